@@ -24,6 +24,10 @@ package su.sres.sur.sctp.api;
 
 import io.netty.buffer.ByteBufAllocator;
 
+import java.util.Collection;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Flow;
+
 
 
 /**
@@ -150,8 +154,75 @@ public interface Association {
 	 */
 	public void send(PayloadData payloadData) throws Exception;
 
+	/**
+	 * Send all {@link PayloadData} to the peer in the order of the collection.
+	 * The payloads are queued together and the IP channel is flushed once for
+	 * the whole batch. If a payload is rejected because the outgoing queue is
+	 * full, the payloads before it are still sent
+	 * 
+	 * @param payloadDataList
+	 * @throws Exception
+	 */
+	public void send(Collection<PayloadData> payloadDataList) throws Exception;
+
+	/**
+	 * Send the {@link PayloadData} to the peer. The returned stage completes
+	 * when the payload is handed over to the IP channel, or fails with the
+	 * reason why it was not sent (association down, outgoing queue full,
+	 * invalid stream, IO error). Dependent actions without an executor run in
+	 * the I/O thread and must not block. Use {@link #send(PayloadData)} if the
+	 * outcome is not needed, it does not create a future
+	 * 
+	 * @param payloadData
+	 * @return
+	 */
+	public CompletionStage<Void> sendAsync(PayloadData payloadData);
+
+	/**
+	 * Return the publisher of the received payloads. It accepts one subscriber
+	 * at a time, whose demand controls reading: the association stops reading
+	 * from the IP channel while nothing is requested, so the peer is slowed
+	 * down by the transport flow control. While subscribed the publisher
+	 * replaces the AssociationListener and passes the other events on to it
+	 * 
+	 * @return
+	 */
+	public Flow.Publisher<PayloadData> getPayloadPublisher();
+
+	/**
+	 * Create a subscriber that sends the payloads it receives through this
+	 * association. It requests at most prefetch payloads ahead and stops
+	 * requesting while the congestion level is above 0
+	 * 
+	 * @param prefetch
+	 * @return
+	 */
+	public Flow.Subscriber<PayloadData> createPayloadSubscriber(int prefetch);
+
+	/**
+	 * Stop reading from the IP channel, for example while the application is
+	 * overloaded. Received data then stays in the socket buffers and the
+	 * transport flow control (SCTP receive window, TCP window) slows down the
+	 * peer. Notifications of the SCTP channel are not processed either while
+	 * reading is suspended
+	 */
+	public void suspendReading();
+
+	/**
+	 * Restart reading after {@link #suspendReading()}. Reading stays suspended
+	 * while the payload publisher has no demand or the inbound backlog is above
+	 * its limit
+	 */
+	public void resumeReading();
+
+	/**
+	 * @return true if reading from the IP channel is suspended for any reason
+	 */
+	public boolean isReadSuspended();
+
     /**
-     * Return ByteBufAllocator if the underlying Channel is netty or null if not
+     * Return ByteBufAllocator of the underlying Channel (netty) or of the
+     * Management (NIO). Buffers of received payloads come from the same allocator
      *
      * @return
      */
@@ -164,6 +235,17 @@ public interface Association {
      */
     public int getCongestionLevel();
 
+    /**
+     * Return true if the association is up and its outbound buffer is below the
+     * high water mark. Messages sent while it is false are still queued, callers
+     * should hold them back till
+     * {@link AssociationListener#onWritabilityChanged(Association, boolean)}
+     * reports that the association is writable again
+     *
+     * @return
+     */
+    public boolean isWritable();
+
 	/**
 	 * Use this method only for accepting anonymous connections
 	 * from the ServerListener.onNewRemoteConnection() invoking
@@ -21,6 +21,8 @@
  */
 package su.sres.sur.sctp.api;
 
+import java.util.List;
+
 /**
  * <p>
  * The listener interface for receiving the underlying socket status and
@@ -88,14 +90,53 @@ public interface AssociationListener {
 	 */
 	public void onPayload(Association association, PayloadData payloadData);
 
+	/**
+	 * <p>
+	 * Invoked with all {@link PayloadData} received from peer in one I/O cycle,
+	 * in the order they were received. This is used when the callbacks run in
+	 * the I/O thread, in single thread mode or with netty. Listeners may
+	 * override it to process the payloads together, the default calls
+	 * {@link #onPayload(Association, PayloadData)} for each of them.
+	 * </p>
+	 * <p>
+	 * The list is reused by the stack once the method returns, it must not be
+	 * kept. The payloads themselves may be kept.
+	 * </p>
+	 * 
+	 * @param association
+	 * @param payloadDataList
+	 */
+	public default void onPayloads(Association association, List<PayloadData> payloadDataList) {
+		for (int i = 0; i < payloadDataList.size(); i++) {
+			this.onPayload(association, payloadDataList.get(i));
+		}
+	}
+
+	/**
+	 * Invoked when the outbound buffer of the association crosses the high
+	 * water mark (writable=false) or drains below the low water mark
+	 * (writable=true). The default does nothing.
+	 * 
+	 * @param association
+	 * @param writable
+	 */
+	public default void onWritabilityChanged(Association association, boolean writable) {
+	}
+
 	/**
 	 * <p>
 	 * The stream id set in outgoing {@link PayloadData} is invalid. This packe
 	 * will be dropped after calling the listener.
 	 * </p>
 	 * <p>
-	 * This callback is on same Thread as {@link SelectorThread}. Do not delay
-	 * the process here as it will hold all other IO.
+	 * This callback is on the thread that writes the payload: the
+	 * SelectorThread, or with direct write the thread calling
+	 * {@link Association#send(PayloadData)}, inside that call. Do not delay
+	 * the process here as it will hold all other IO of the association.
+	 * </p>
+	 * <p>
+	 * The buffer of the payload is released when the callback returns, call
+	 * {@link PayloadData#retain()} to keep it.
 	 * </p>
 	 * 
 	 * @param payloadData
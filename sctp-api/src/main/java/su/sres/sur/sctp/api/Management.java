@@ -702,6 +702,184 @@ public interface Management {
      */
     public void setBufferSize(int bufferSize) throws Exception;
 
+    /**
+     * Outgoing queue limit per an association (in bytes not yet written to the IP channel). When the queue exceeds the high
+     * watermark, further sends are handled as {@link #getOutboundOverflowPolicy()} defines until the queue falls to the low
+     * watermark. 0 means no limit (default).
+     * 
+     * @return
+     */
+    public int getOutboundQueueHighWatermark();
+
+    /**
+     * Outgoing queue limit per an association (in bytes not yet written to the IP channel). When the queue exceeds the high
+     * watermark, further sends are handled as {@link #getOutboundOverflowPolicy()} defines until the queue falls to the low
+     * watermark. 0 means no limit (default).
+     * 
+     * @param val
+     * @throws Exception
+     */
+    public void setOutboundQueueHighWatermark(int val) throws Exception;
+
+    /**
+     * The outgoing queue of an association that exceeded the high watermark accepts payloads again when it falls to this
+     * value (in bytes). Default value is 0.
+     * 
+     * @return
+     */
+    public int getOutboundQueueLowWatermark();
+
+    /**
+     * The outgoing queue of an association that exceeded the high watermark accepts payloads again when it falls to this
+     * value (in bytes). Default value is 0.
+     * 
+     * @param val
+     * @throws Exception
+     */
+    public void setOutboundQueueLowWatermark(int val) throws Exception;
+
+    /**
+     * Limit of the bytes not yet written to the IP channel of all associations together. When it is reached, further sends
+     * are handled as {@link #getOutboundOverflowPolicy()} defines. 0 means no limit (default).
+     * 
+     * @return
+     */
+    public long getMaxPendingOutboundBytes();
+
+    /**
+     * Limit of the bytes not yet written to the IP channel of all associations together. When it is reached, further sends
+     * are handled as {@link #getOutboundOverflowPolicy()} defines. 0 means no limit (default).
+     * 
+     * @param val
+     * @throws Exception
+     */
+    public void setMaxPendingOutboundBytes(long val) throws Exception;
+
+    /**
+     * What a send does when an outgoing queue limit is reached. Default value is REJECT.
+     * 
+     * @return
+     */
+    public OutboundOverflowPolicy getOutboundOverflowPolicy();
+
+    /**
+     * What a send does when an outgoing queue limit is reached. Default value is REJECT.
+     * 
+     * @param val
+     * @throws Exception
+     */
+    public void setOutboundOverflowPolicy(OutboundOverflowPolicy val) throws Exception;
+
+    /**
+     * Maximum time in milliseconds a send waits for room with {@link OutboundOverflowPolicy#BLOCK}. Default value is 1000.
+     * 
+     * @return
+     */
+    public long getOutboundBlockTimeout();
+
+    /**
+     * Maximum time in milliseconds a send waits for room with {@link OutboundOverflowPolicy#BLOCK}. Default value is 1000.
+     * 
+     * @param val
+     * @throws Exception
+     */
+    public void setOutboundBlockTimeout(long val) throws Exception;
+
+    /**
+     * If true, AssociationListener callbacks run on virtual threads (on a cached thread pool if the JVM has no virtual
+     * threads), one stream after another in order. Listeners may then block without stalling the I/O threads. This
+     * overrides the single thread / worker threads model. Default value is false.
+     * 
+     * @return
+     */
+    public boolean isVirtualThreadDelivery();
+
+    /**
+     * If true, AssociationListener callbacks run on virtual threads (on a cached thread pool if the JVM has no virtual
+     * threads), one stream after another in order. Listeners may then block without stalling the I/O threads. This
+     * overrides the single thread / worker threads model. Default value is false.
+     * Can be updated only when the stack is NOT running.
+     * 
+     * @param val
+     * @throws Exception
+     */
+    public void setVirtualThreadDelivery(boolean val) throws Exception;
+
+    /**
+     * Limit of the received payloads per an association that wait for the worker / listener threads. When it is exceeded,
+     * the association stops reading from the IP channel until the backlog falls to the low watermark, so the peer is slowed
+     * down by the transport flow control. Not used in the single thread model without virtual thread delivery. 0 means no
+     * limit (default).
+     * 
+     * @return
+     */
+    public int getInboundBacklogHighWatermark();
+
+    /**
+     * Limit of the received payloads per an association that wait for the worker / listener threads. When it is exceeded,
+     * the association stops reading from the IP channel until the backlog falls to the low watermark, so the peer is slowed
+     * down by the transport flow control. Not used in the single thread model without virtual thread delivery. 0 means no
+     * limit (default).
+     * 
+     * @param val
+     * @throws Exception
+     */
+    public void setInboundBacklogHighWatermark(int val) throws Exception;
+
+    /**
+     * An association that stopped reading because of its inbound backlog reads again when the backlog falls to this value
+     * (in payloads). Default value is 0.
+     * 
+     * @return
+     */
+    public int getInboundBacklogLowWatermark();
+
+    /**
+     * An association that stopped reading because of its inbound backlog reads again when the backlog falls to this value
+     * (in payloads). Default value is 0.
+     * 
+     * @param val
+     * @throws Exception
+     */
+    public void setInboundBacklogLowWatermark(int val) throws Exception;
+
+    /**
+     * How the byte stream of TCP associations is split into messages. null means no framing (default), every read of the
+     * socket is delivered as one PayloadData.
+     * 
+     * @return
+     */
+    public TcpFramingConfig getTcpFraming();
+
+    /**
+     * How the byte stream of TCP associations is split into messages. null means no framing (default), every read of the
+     * socket is delivered as one PayloadData. With framing, every PayloadData is one complete message sharing the read
+     * buffer. Can be updated only when the stack is NOT running.
+     * 
+     * @param val
+     * @throws Exception
+     */
+    public void setTcpFraming(TcpFramingConfig val) throws Exception;
+
+    /**
+     * Maximum size of a message reassembled from the fragments (PayloadData with isComplete()==false) of SCTP associations
+     * (in bytes). A larger message is dropped. 0 means no reassembly, fragments are delivered to the AssociationListener as
+     * they are read. Default value is 1048576.
+     * 
+     * @return
+     */
+    public int getMaxSctpMessageSize();
+
+    /**
+     * Maximum size of a message reassembled from the fragments (PayloadData with isComplete()==false) of SCTP associations
+     * (in bytes). A larger message is dropped. 0 means no reassembly, fragments are delivered to the AssociationListener as
+     * they are read. Default value is 1048576. Can be updated only when the stack is NOT running.
+     * 
+     * @param val
+     * @throws Exception
+     */
+    public void setMaxSctpMessageSize(int val) throws Exception;
+
     /**
 	 * Modify existed {@link Server}.
 	 * 
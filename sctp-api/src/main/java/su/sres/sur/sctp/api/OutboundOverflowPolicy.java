@@ -0,0 +1,51 @@
+/*
+ * TeleStax, Open Source Cloud Communications  Copyright 2012. 
+ * and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package su.sres.sur.sctp.api;
+
+/**
+ * What {@link Association#send(PayloadData)} does when the outbound queue of
+ * the Association is above its high watermark or the pending outbound bytes
+ * of the {@link Management} reached their maximum
+ * 
+ */
+public enum OutboundOverflowPolicy {
+    /**
+     * send() throws {@link OutboundQueueFullException}
+     */
+    REJECT,
+    /**
+     * send() waits up to {@link Management#getOutboundBlockTimeout()}
+     * milliseconds for room and throws {@link OutboundQueueFullException} if
+     * there is still none. On an I/O thread of the Management (the
+     * SelectorThread or a netty event loop, which also call the listeners in
+     * single thread mode) send() does not wait and behaves as REJECT, as that
+     * thread is the one draining the queue
+     */
+    BLOCK,
+    /**
+     * The oldest queued payloads of the Association are dropped to make room.
+     * Where the transport can not give back queued payloads (netty) the new
+     * payload is dropped instead
+     */
+    DROP_OLDEST;
+}
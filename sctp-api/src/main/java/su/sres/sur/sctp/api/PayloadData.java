@@ -22,8 +22,11 @@ package su.sres.sur.sctp.api;
 
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
+import io.netty.util.ByteProcessor;
 import io.netty.util.ReferenceCountUtil;
 
+import java.nio.ByteBuffer;
+
 import org.mobicents.commons.HexTools;
 
 /**
@@ -33,12 +36,23 @@ import org.mobicents.commons.HexTools;
  * 
  */
 public class PayloadData {
-	private final int dataLength;
-	private final ByteBuf byteBuf;
-	private final boolean complete;
-	private final boolean unordered;
-	private final int payloadProtocolId;
-	private final int streamNumber;
+	// toString() dumps only the beginning of large payloads
+	private static final int TO_STRING_MAX_BYTES = 64;
+
+	// not final, pooled subclasses reuse the instance
+	private int dataLength;
+	private ByteBuf byteBuf;
+	private boolean complete;
+	private boolean unordered;
+	private int payloadProtocolId;
+	private int streamNumber;
+
+    /**
+     * For subclasses that fill the fields with {@link #init(int, ByteBuf, boolean, boolean, int, int)}
+     */
+    protected PayloadData() {
+        super();
+    }
 
     /**
      * @param dataLength
@@ -56,12 +70,29 @@ public class PayloadData {
      */
     public PayloadData(int dataLength, ByteBuf byteBuf, boolean complete, boolean unordered, int payloadProtocolId, int streamNumber) {
         super();
-        this.dataLength = dataLength;
-        this.byteBuf = byteBuf;
-        this.complete = complete;
-        this.unordered = unordered;
-        this.payloadProtocolId = payloadProtocolId;
-        this.streamNumber = streamNumber;
+        this.init(dataLength, byteBuf, complete, unordered, payloadProtocolId, streamNumber);
+    }
+
+    /**
+     * A payload of several parts, for example a protocol header and a body
+     * encoded separately. The parts are not copied, they are sent with a
+     * gathering write where the transport allows it
+     * 
+     * @param parts
+     *            the payload data, owned by the PayloadData from now on
+     * @param complete
+     *            if this data represents complete protocol data
+     * @param unordered
+     *            set to true if we don't care for oder
+     * @param payloadProtocolId
+     *            protocol ID of the data carried
+     * @param streamNumber
+     *            the SCTP stream number
+     */
+    public PayloadData(ByteBuf[] parts, boolean complete, boolean unordered, int payloadProtocolId, int streamNumber) {
+        super();
+        ByteBuf byteBuf = Unpooled.wrappedBuffer(parts);
+        this.init(byteBuf.readableBytes(), byteBuf, complete, unordered, payloadProtocolId, streamNumber);
     }
 
     /**
@@ -88,6 +119,16 @@ public class PayloadData {
         this.streamNumber = streamNumber;
     }
 
+    protected void init(int dataLength, ByteBuf byteBuf, boolean complete, boolean unordered, int payloadProtocolId,
+            int streamNumber) {
+        this.dataLength = dataLength;
+        this.byteBuf = byteBuf;
+        this.complete = complete;
+        this.unordered = unordered;
+        this.payloadProtocolId = payloadProtocolId;
+        this.streamNumber = streamNumber;
+    }
+
 	/**
 	 * @return the dataLength
 	 */
@@ -96,24 +137,155 @@ public class PayloadData {
 	}
 
     /**
-     * @return the byteBuf
+     * @return the byteBuf, its readable bytes are the payload. Reading from it
+     *         moves the reader index, use the views or the getters at offsets
+     *         to parse in place
      */
     public ByteBuf getByteBuf() {
         return byteBuf;
     }
 
     /**
-     * @return the data
+     * @return a copy of the payload. The ByteBuf is released
+     * @deprecated copies the data and releases the ByteBuf as a side effect,
+     *             use {@link #readOnlyByteBuf()}, {@link #readOnlyByteBuffer()}
+     *             or the getters at offsets and {@link #release()} instead
      */
+    @Deprecated
     public byte[] getData() {
         byte[] array = new byte[byteBuf.readableBytes()];
-        byteBuf.getBytes(0, array);
+        byteBuf.getBytes(byteBuf.readerIndex(), array);
         ReferenceCountUtil.release(byteBuf);
         return array;
     }
 
+    /**
+     * Ends the use of the payload, same as {@link #release()}
+     */
     public void releaseBuffer() {
-    	ReferenceCountUtil.release(byteBuf);
+        this.release();
+    }
+
+    /**
+     * Adds an owner. Every owner ends its use with {@link #release()}, so a
+     * decoder that keeps the payload beyond the listener callback retains it
+     * first
+     *
+     * @return this PayloadData
+     */
+    public PayloadData retain() {
+        byteBuf.retain();
+        return this;
+    }
+
+    /**
+     * Removes an owner
+     *
+     * @return true if it was the last owner and the ByteBuf has been released
+     */
+    public boolean release() {
+        return ReferenceCountUtil.release(byteBuf);
+    }
+
+    /**
+     * @return the number of owners, 0 if the payload has been released
+     */
+    public int refCnt() {
+        return byteBuf != null ? byteBuf.refCnt() : 0;
+    }
+
+    /**
+     * @return a read-only view of the payload sharing the content and the
+     *         owners of the ByteBuf, with its own indexes. No data is copied
+     */
+    public ByteBuf readOnlyByteBuf() {
+        return byteBuf.slice().asReadOnly();
+    }
+
+    /**
+     * @return a read-only ByteBuffer of the payload. No data is copied unless
+     *         the ByteBuf is a composite of several buffers. Valid only till
+     *         the payload is released
+     */
+    public ByteBuffer readOnlyByteBuffer() {
+        return byteBuf.nioBuffer().asReadOnlyBuffer();
+    }
+
+    /**
+     * Passes the payload bytes to the processor till it returns false
+     *
+     * @return the offset where the processor stopped or -1 if it processed
+     *         all bytes
+     */
+    public int forEachByte(ByteProcessor processor) {
+        int index = byteBuf.forEachByte(processor);
+        return index < 0 ? -1 : index - byteBuf.readerIndex();
+    }
+
+    /**
+     * @param offset
+     *            from the start of the payload
+     */
+    public byte getByte(int offset) {
+        return byteBuf.getByte(this.index(offset, 1));
+    }
+
+    /**
+     * @param offset
+     *            from the start of the payload
+     */
+    public short getUnsignedByte(int offset) {
+        return byteBuf.getUnsignedByte(this.index(offset, 1));
+    }
+
+    /**
+     * @param offset
+     *            from the start of the payload
+     */
+    public short getShort(int offset) {
+        return byteBuf.getShort(this.index(offset, 2));
+    }
+
+    /**
+     * @param offset
+     *            from the start of the payload
+     */
+    public int getUnsignedShort(int offset) {
+        return byteBuf.getUnsignedShort(this.index(offset, 2));
+    }
+
+    /**
+     * @param offset
+     *            from the start of the payload
+     */
+    public int getInt(int offset) {
+        return byteBuf.getInt(this.index(offset, 4));
+    }
+
+    /**
+     * @param offset
+     *            from the start of the payload
+     */
+    public long getUnsignedInt(int offset) {
+        return byteBuf.getUnsignedInt(this.index(offset, 4));
+    }
+
+    /**
+     * Copies length bytes starting at offset of the payload into dst
+     */
+    public void getBytes(int offset, byte[] dst, int dstIndex, int length) {
+        byteBuf.getBytes(this.index(offset, length), dst, dstIndex, length);
+    }
+
+    /**
+     * @return the ByteBuf index of the offset, checked against the payload and
+     *         not only against the capacity of the ByteBuf
+     */
+    private int index(int offset, int length) {
+        if (offset < 0 || length < 0 || offset > byteBuf.readableBytes() - length)
+            throw new IndexOutOfBoundsException(String.format("offset=%d, length=%d, payload length=%d", offset, length,
+                    byteBuf.readableBytes()));
+        return byteBuf.readerIndex() + offset;
     }
     
 	/**
@@ -166,13 +338,24 @@ public class PayloadData {
 	 */
 	@Override
 	public String toString() {
-        byte[] array = new byte[byteBuf.readableBytes()];
-        byteBuf.getBytes(0, array);
-
         StringBuffer sb = new StringBuffer();
         sb.append("PayloadData [dataLength=").append(dataLength).append(", complete=").append(complete).append(", unordered=")
                 .append(unordered).append(", payloadProtocolId=").append(payloadProtocolId).append(", streamNumber=")
-                .append(streamNumber).append(", data=\n").append(HexTools.dump(array, 0)).append("]");
+                .append(streamNumber).append(", data=");
+
+        // the payload may be released already when it is logged
+        if (this.refCnt() == 0) {
+            sb.append("released]");
+            return sb.toString();
+        }
+
+        int readable = byteBuf.readableBytes();
+        byte[] array = new byte[Math.min(readable, TO_STRING_MAX_BYTES)];
+        byteBuf.getBytes(byteBuf.readerIndex(), array);
+        sb.append("\n").append(HexTools.dump(array, 0));
+        if (readable > array.length)
+            sb.append("... ").append(readable - array.length).append(" more bytes");
+        sb.append("]");
         return sb.toString();
 	}
 
@@ -0,0 +1,110 @@
+/*
+ * TeleStax, Open Source Cloud Communications  Copyright 2012. 
+ * and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package su.sres.sur.sctp.api;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.util.Recycler;
+
+/**
+ * A {@link PayloadData} taken from a per thread pool, so the hot paths do not
+ * allocate an object per message. The stack creates received payloads this
+ * way, and senders may use it too.
+ * 
+ * Ownership: whoever holds the payload owns both the PayloadData and its
+ * ByteBuf. A received payload belongs to the AssociationListener; a payload
+ * passed to send() belongs to the stack from then on. The owner ends the use
+ * with {@link #releaseBuffer()} / {@link #release()}. When the last owner
+ * (see {@link #retain()}) is gone, the ByteBuf is released and the PayloadData
+ * returns to the pool. Neither of them may be touched afterwards, so a
+ * listener that keeps the payload beyond the callback must retain it first.
+ * {@link #getData()} releases the ByteBuf but does not return the PayloadData
+ * to the pool, so it stays usable.
+ * 
+ */
+public final class RecyclablePayloadData extends PayloadData {
+
+	private static final Recycler<RecyclablePayloadData> RECYCLER = new Recycler<RecyclablePayloadData>() {
+		@Override
+		protected RecyclablePayloadData newObject(Recycler.Handle<RecyclablePayloadData> handle) {
+			return new RecyclablePayloadData(handle);
+		}
+	};
+
+	private final Recycler.Handle<RecyclablePayloadData> handle;
+	// guards against returning the instance to the pool twice
+	private boolean recycled = false;
+
+	private RecyclablePayloadData(Recycler.Handle<RecyclablePayloadData> handle) {
+		super();
+		this.handle = handle;
+	}
+
+	/**
+	 * @param dataLength
+	 *            Length of the data
+	 * @param byteBuf
+	 *            the payload data
+	 * @param complete
+	 *            if this data represents complete protocol data
+	 * @param unordered
+	 *            set to true if we don't care for oder
+	 * @param payloadProtocolId
+	 *            protocol ID of the data carried
+	 * @param streamNumber
+	 *            the SCTP stream number
+	 * @return a pooled PayloadData
+	 */
+	public static RecyclablePayloadData newInstance(int dataLength, ByteBuf byteBuf, boolean complete, boolean unordered,
+			int payloadProtocolId, int streamNumber) {
+		RecyclablePayloadData payloadData = RECYCLER.get();
+		payloadData.recycled = false;
+		payloadData.init(dataLength, byteBuf, complete, unordered, payloadProtocolId, streamNumber);
+		return payloadData;
+	}
+
+	/**
+	 * Removes an owner. The last one returns this PayloadData to the pool
+	 * together with releasing the ByteBuf
+	 */
+	@Override
+	public boolean release() {
+		if (this.recycled)
+			return false;
+		boolean released = super.release();
+		if (released)
+			this.recycle();
+		return released;
+	}
+
+	/**
+	 * Returns this PayloadData to the pool without releasing the ByteBuf, for
+	 * the stack when the ByteBuf was handed on to the channel
+	 */
+	public void recycle() {
+		if (this.recycled)
+			return;
+		this.recycled = true;
+		this.init(0, null, false, false, 0, 0);
+		this.handle.recycle(this);
+	}
+}
@@ -0,0 +1,140 @@
+/*
+ * TeleStax, Open Source Cloud Communications  Copyright 2012. 
+ * and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package su.sres.sur.sctp.api;
+
+/**
+ * Splits the byte stream of a TCP association into messages by a length field,
+ * so that every {@link PayloadData} carries exactly one complete message. The
+ * parameters have the meaning of Netty's LengthFieldBasedFrameDecoder.
+ * 
+ * When the length field is a prefix that is stripped on receive (see
+ * {@link #lengthPrefix(int, int)}), the stack also adds it to every message it
+ * sends. Otherwise the messages carry their own length field, as M3UA does.
+ * 
+ */
+public class TcpFramingConfig {
+
+    /**
+     * Default maximum length of a message, the largest M3UA message fits into it
+     */
+    public static final int DEFAULT_MAX_FRAME_LENGTH = 65536;
+
+    private final int maxFrameLength;
+    private final int lengthFieldOffset;
+    private final int lengthFieldLength;
+    private final int lengthAdjustment;
+    private final int initialBytesToStrip;
+
+    /**
+     * @param maxFrameLength
+     *            the maximum length of a message, a longer one breaks the connection
+     * @param lengthFieldOffset
+     *            the offset of the length field
+     * @param lengthFieldLength
+     *            the length of the length field: 1, 2, 3, 4 or 8 bytes, unsigned big endian
+     * @param lengthAdjustment
+     *            added to the value of the length field to get the number of bytes following the length field
+     * @param initialBytesToStrip
+     *            number of bytes removed from the beginning of a delivered message
+     */
+    public TcpFramingConfig(int maxFrameLength, int lengthFieldOffset, int lengthFieldLength, int lengthAdjustment,
+            int initialBytesToStrip) {
+        if (lengthFieldLength != 1 && lengthFieldLength != 2 && lengthFieldLength != 3 && lengthFieldLength != 4
+                && lengthFieldLength != 8)
+            throw new IllegalArgumentException("lengthFieldLength must be 1, 2, 3, 4 or 8: " + lengthFieldLength);
+        if (lengthFieldOffset < 0)
+            throw new IllegalArgumentException("lengthFieldOffset must not be negative: " + lengthFieldOffset);
+        if (initialBytesToStrip < 0)
+            throw new IllegalArgumentException("initialBytesToStrip must not be negative: " + initialBytesToStrip);
+        if (maxFrameLength < lengthFieldOffset + lengthFieldLength)
+            throw new IllegalArgumentException("maxFrameLength must be greater than the length field end: " + maxFrameLength);
+
+        this.maxFrameLength = maxFrameLength;
+        this.lengthFieldOffset = lengthFieldOffset;
+        this.lengthFieldLength = lengthFieldLength;
+        this.lengthAdjustment = lengthAdjustment;
+        this.initialBytesToStrip = initialBytesToStrip;
+    }
+
+    /**
+     * The common message header of M3UA (RFC 4666) and SUA (RFC 3868): version, reserved, message class and type followed
+     * by the 32 bit length of the whole message, header included. Messages are delivered with their header
+     */
+    public static TcpFramingConfig m3ua(int maxFrameLength) {
+        return new TcpFramingConfig(maxFrameLength, 4, 4, -8, 0);
+    }
+
+    /**
+     * Messages preceded by the length of the message body. Messages are delivered without the length prefix, and the
+     * prefix is added to sent messages
+     * 
+     * @param lengthFieldLength
+     *            the length of the prefix: 1, 2, 3, 4 or 8 bytes
+     */
+    public static TcpFramingConfig lengthPrefix(int lengthFieldLength, int maxFrameLength) {
+        return new TcpFramingConfig(maxFrameLength, 0, lengthFieldLength, 0, lengthFieldLength);
+    }
+
+    public int getMaxFrameLength() {
+        return maxFrameLength;
+    }
+
+    public int getLengthFieldOffset() {
+        return lengthFieldOffset;
+    }
+
+    public int getLengthFieldLength() {
+        return lengthFieldLength;
+    }
+
+    public int getLengthAdjustment() {
+        return lengthAdjustment;
+    }
+
+    public int getInitialBytesToStrip() {
+        return initialBytesToStrip;
+    }
+
+    /**
+     * @return true if the length field is a prefix stripped from received messages, so it has to be added to sent ones
+     */
+    public boolean isLengthPrefix() {
+        return lengthFieldOffset == 0 && initialBytesToStrip == lengthFieldLength;
+    }
+
+    /**
+     * @return the value of the length prefix of a message of the passed length
+     */
+    public long getLengthFieldValue(int messageLength) {
+        return (long) messageLength - lengthAdjustment;
+    }
+
+    @Override
+    public String toString() {
+        return "TcpFramingConfig [maxFrameLength=" + maxFrameLength + ", lengthFieldOffset=" + lengthFieldOffset
+                + ", lengthFieldLength=" + lengthFieldLength + ", lengthAdjustment=" + lengthAdjustment
+                + ", initialBytesToStrip=" + initialBytesToStrip + "]";
+    }
+
+}
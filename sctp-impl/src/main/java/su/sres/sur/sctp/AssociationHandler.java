@@ -97,6 +97,9 @@ class AssociationHandler extends AbstractNotificationHandler<AssociationImpl> {
 		case COMM_LOST:
 			logger.warn(String.format("Communication lost for Association=%s", associtaion.getName()));
 
+			// payloads read before go to the listener ahead of the event
+			associtaion.deliverRxBatch();
+
 			// Close the Socket
 			associtaion.close();
 
@@ -121,6 +124,8 @@ class AssociationHandler extends AbstractNotificationHandler<AssociationImpl> {
 			if (logger.isInfoEnabled()) {
 				logger.info(String.format("Shutdown for Association=%s", associtaion.getName()));
 			}
+			// payloads read before go to the listener ahead of the event
+			associtaion.deliverRxBatch();
 			try {
 				associtaion.markAssociationDown();
 				associtaion.getAssociationListener().onCommunicationShutdown(associtaion);
@@ -145,6 +150,9 @@ class AssociationHandler extends AbstractNotificationHandler<AssociationImpl> {
 
 		// TODO assign Thread's ?
 
+		// payloads read before go to the listener ahead of the event
+		associtaion.deliverRxBatch();
+
 		try {
 			associtaion.markAssociationDown();
 			associtaion.getAssociationListener().onCommunicationShutdown(associtaion);
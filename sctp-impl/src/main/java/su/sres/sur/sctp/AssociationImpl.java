@@ -24,9 +24,10 @@ package su.sres.sur.sctp;
 
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.ByteBufAllocator;
-import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.DecoderException;
 import io.netty.util.ReferenceCountUtil;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
@@ -35,19 +36,29 @@ import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.spi.AbstractSelectableChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
-import javolution.util.FastTable;
 import javolution.xml.XMLFormat;
 import javolution.xml.stream.XMLStreamException;
 import su.sres.sur.sctp.api.Association;
 import su.sres.sur.sctp.api.AssociationListener;
 import su.sres.sur.sctp.api.AssociationType;
+import su.sres.sur.sctp.api.CongestionListener;
 import su.sres.sur.sctp.api.IpChannelType;
 import su.sres.sur.sctp.api.ManagementEventListener;
+import su.sres.sur.sctp.api.OutboundQueueFullException;
 import su.sres.sur.sctp.api.PayloadData;
+import su.sres.sur.sctp.api.RecyclablePayloadData;
+import su.sres.sur.sctp.api.TcpFramingConfig;
 
 import org.apache.log4j.Logger;
 
@@ -75,6 +86,22 @@ public class AssociationImpl implements Association {
 	private static final String EXTRA_HOST_ADDRESS = "extraHostAddress";
 	private static final String EXTRA_HOST_ADDRESS_SIZE = "extraHostAddresseSize";
 
+	// reasons for suspending the read, bits of readSuspendReasons
+	protected static final int READ_SUSPENDED_BY_SUBSCRIBER = 1;
+	protected static final int READ_SUSPENDED_BY_APPLICATION = 2;
+	protected static final int READ_SUSPENDED_BY_BACKLOG = 4;
+	protected static final int READ_SUSPENDED_BY_DISPATCHER = 8;
+
+	// layout of congLevels: up to CONG_LEVELS_MAX levels in the low bits and
+	// their number in the top bits
+	private static final long CONG_LEVEL_MASK = 3;
+	private static final int CONG_LEVELS_MAX = 28;
+	private static final long CONG_LEVELS_PATH_MASK = (1L << (CONG_LEVELS_MAX * 2)) - 1;
+	private static final int CONG_LEVELS_COUNT_SHIFT = 58;
+
+	// initial size of txSctpBuffer, it grows to the largest composite message
+	private static final int TX_SCTP_BUFFER_SIZE = 8192;
+
 	private String hostAddress;
 	private int hostPort;
 	private String peerAddress;
@@ -84,10 +111,17 @@ public class AssociationImpl implements Association {
 	private IpChannelType ipChannelType;
 	private String[] extraHostAddresses;
 	private ServerImpl server; // this is filled only for anonymous Associations
+	private String shardKey; // this is filled only for anonymous Associations
+
+	// the last CONNECT handed to the SelectorThread. Older ones that are still
+	// in the timer wheel (for example from before a stop/start) are stale
+	private volatile ChangeRequest pendingConnect;
 
 	private AssociationType type;
 
-	private AssociationListener associationListener = null;
+	private volatile AssociationListener associationListener = null;
+
+	private AssociationPublisher payloadPublisher = null;
 
 	protected final AssociationHandler associationHandler = new AssociationHandler();
 
@@ -106,17 +140,100 @@ public class AssociationImpl implements Association {
 
 	private int workerThreadTable[] = null;
 
-	private ConcurrentLinkedQueue<PayloadData> txQueue = new ConcurrentLinkedQueue<PayloadData>();
+	// per stream queues if listener callbacks run on virtual threads, created
+	// on demand by the SelectorThread
+	private ListenerExecutor.StreamQueue[] streamQueues = null;
+
+	// payloads read in one I/O cycle in the single thread model, handed to
+	// AssociationListener.onPayloads() together. Only used by the
+	// SelectorThread
+	private final ArrayList<PayloadData> rxBatch = new ArrayList<PayloadData>();
+
+	// payloads read while the ring of a PayloadDispatcher was full, in the
+	// order they were read. Dispatched by the SelectorThread when reading is
+	// resumed
+	private final ConcurrentLinkedQueue<PayloadData> rxPending = new ConcurrentLinkedQueue<PayloadData>();
+
+	// a PayloadData, or its TxCompletion if it was sent with sendAsync(), so
+	// the future travels with the payload
+	private ConcurrentLinkedQueue<Object> txQueue = new ConcurrentLinkedQueue<Object>();
+
+	// Bytes and messages sent but not yet written to the socket, the input of
+	// the outgoing congestion control and of the outbound queue limits
+	private final OutboundQueueLimiter.Account txAccount = new OutboundQueueLimiter.Account();
+	private final AtomicInteger txPendingMessages = new AtomicInteger();
+	// The congestion level in the low 2 bits, preceded by the levels the
+	// listeners were not told about yet, 2 bits each. Their number is kept in
+	// the top bits, see pushCongestionLevel()
+	private final AtomicLong congLevels = new AtomicLong();
+	// the level the listeners were told about last, accessed by the thread
+	// that incremented congNotifyCount from 0 only
+	private int notifiedCongLevel = 0;
+	private final AtomicInteger congNotifyCount = new AtomicInteger();
+
+	// Set while OP_WRITE is requested or set for the channel, so sends can skip
+	// the change request and the selector wakeup
+	private final AtomicBoolean writeInterestRequested = new AtomicBoolean();
+
+	// OP_READ is cleared while any reason is set
+	private final AtomicInteger readSuspendReasons = new AtomicInteger();
+
+	// payloads handed to the worker / listener threads and not yet delivered
+	private InboundBacklogLimiter.Account inboundBacklog = null;
+
+	// Held by whoever writes the tx batch, the SelectorThread or a thread
+	// sending directly. No listener is called while holding it, the events
+	// below are fired by releaseWriteInProgress()
+	private final AtomicBoolean writeInProgress = new AtomicBoolean();
+	private boolean txCongLevelChanged = false;
+	// futures of written or dropped payloads, chained by TxCompletion.next
+	private TxCompletion txCompletedHead;
+	private TxCompletion txCompletedTail;
+	// payloads for inValidStreamId(), created on the first one
+	private ArrayList<PayloadData> txInvalidStreams;
+
+	// set by close() for the holder of writeInProgress to clear the tx batch
+	// and the txQueue
+	private volatile boolean txClearRequested = false;
 
 	private ManagementImpl management;
 
 	private SctpChannel socketChannelSctp;
 	private SocketChannel socketChannelTcp;
 
-	// The buffer into which we'll read data when it's available
-	private ByteBuffer rxBuffer;
-	
-	private volatile MessageInfo msgInfo;
+	// payloads taken from txQueue and not yet fully written, with the
+	// ByteBuffers keeping their write position. A TCP payload of several
+	// components (CompositeByteBuf) has a ByteBuffer per component, the ones
+	// of txBatch[i] end before txBufferEnds[i]. Accessed only while holding
+	// writeInProgress
+	private PayloadData[] txBatch;
+	// the TxCompletion of txBatch[i] if it was sent with sendAsync()
+	private TxCompletion[] txBatchCompletions;
+	private int[] txBufferEnds;
+	private ByteBuffer[] txBuffers;
+	// the length prefix of txBatch[i] if TCP framing adds it, reused by the
+	// following batches
+	private ByteBuffer[] txPrefixBuffers;
+	private int txBatchIndex = 0;
+	private int txBatchCount = 0;
+	private int txBufferIndex = 0;
+	private int txBufferCount = 0;
+
+	// splits the TCP byte stream into messages if TcpFraming is set, created
+	// with the first read of a connection
+	private volatile TcpFrameDecoder tcpFrameDecoder;
+
+	// set while the Association waits in the pending reads of its
+	// SelectorThread. Accessed by the SelectorThread only
+	private boolean pendingRead = false;
+
+	// reassembles SCTP messages larger than bufferSize, created with the
+	// first fragment of a connection
+	private volatile SctpMessageReassembler sctpMessageReassembler;
+
+	// SctpChannel sends a message from one buffer, a payload of several
+	// components is copied here right before it is sent
+	private ByteBuffer txSctpBuffer;
 
 	/**
 	 * Count of number of IO Errors occured. If this exceeds the maxIOErrors set
@@ -129,15 +246,6 @@ public class AssociationImpl implements Association {
 		super();
 	}
 
-	protected void initChannels() {
-        rxBuffer = ByteBuffer.allocateDirect(management.getBufferSize());
-
-        // clean receiver buffer
-        rxBuffer.clear();
-        rxBuffer.rewind();
-        rxBuffer.flip();
-	}
-
 	/**
 	 * Creating a CLIENT Association
 	 * 
@@ -243,6 +351,7 @@ public class AssociationImpl implements Association {
 	 */
 	protected void stop() throws Exception {
 		this.started = false;
+		this.pendingConnect = null;
 		for (ManagementEventListener lstr : this.management.getManagementEventListeners()) {
 			try {
 				lstr.onAssociationStopped(this);
@@ -252,15 +361,14 @@ public class AssociationImpl implements Association {
 		}
 
 		if (this.getSocketChannel() != null && this.getSocketChannel().isOpen()) {
-			FastTable<ChangeRequest> pendingChanges = this.management.getPendingChanges();
-			synchronized (pendingChanges) {
-				// Indicate we want the interest ops set changed
-				pendingChanges.add(new ChangeRequest(getSocketChannel(), this, ChangeRequest.CLOSE, -1));
-			}
+			SelectorThread selectorThread = this.management.getSelectorThread(this);
+
+			// Indicate we want the interest ops set changed
+			selectorThread.addChangeRequest(new ChangeRequest(getSocketChannel(), this, ChangeRequest.CLOSE, -1));
 
 			// Finally, wake up our selecting thread so it can make the required
 			// changes
-			this.management.getSocketSelector().wakeup();
+			selectorThread.wakeup();
 		}
 	}
 
@@ -462,7 +570,29 @@ public class AssociationImpl implements Association {
 	 */
 	protected void setManagement(ManagementImpl management) {
         this.management = management;
-        this.initChannels();
+		this.inboundBacklog = new InboundBacklogLimiter.Account(management.getInboundBacklogLimiter()) {
+			@Override
+			protected void suspend() {
+				if (logger.isDebugEnabled()) {
+					logger.debug(String.format("Suspended reading of Association=%s, inbound backlog=%d", name,
+							this.getPendingPayloads()));
+				}
+				suspendReading(READ_SUSPENDED_BY_BACKLOG);
+			}
+
+			@Override
+			protected void resume() {
+				resumeReading(READ_SUSPENDED_BY_BACKLOG);
+			}
+		};
+	}
+
+	/**
+	 * @return the account of the payloads waiting for the worker / listener
+	 *         threads
+	 */
+	protected InboundBacklogLimiter.Account getInboundBacklog() {
+		return this.inboundBacklog;
 	}
 
 	private AbstractSelectableChannel getSocketChannel() {
@@ -481,27 +611,226 @@ public class AssociationImpl implements Association {
 			this.socketChannelSctp = (SctpChannel) socketChannel;
 		else
 			this.socketChannelTcp = (SocketChannel) socketChannel;
+		this.writeInterestRequested.set(false);
+		this.releaseTcpFrameDecoder();
+		this.releaseSctpMessageReassembler();
+	}
+
+	/**
+	 * A new connection starts a new byte stream
+	 */
+	private void releaseTcpFrameDecoder() {
+		TcpFrameDecoder decoder = this.tcpFrameDecoder;
+		if (decoder != null) {
+			this.tcpFrameDecoder = null;
+			decoder.release();
+		}
+	}
+
+	/**
+	 * Partial messages of a broken connection are never completed
+	 */
+	private void releaseSctpMessageReassembler() {
+		SctpMessageReassembler reassembler = this.sctpMessageReassembler;
+		if (reassembler != null) {
+			this.sctpMessageReassembler = null;
+			reassembler.release();
+		}
 	}
 
 	public void send(PayloadData payloadData) throws Exception {
+		this.send(payloadData, payloadData);
+	}
+
+	/**
+	 * @param txItem
+	 *            the payloadData or its TxCompletion, queued in the txQueue
+	 */
+	private void send(PayloadData payloadData, Object txItem) throws Exception {
 		this.checkSocketIsOpen();
 
-		FastTable<ChangeRequest> pendingChanges = this.management.getPendingChanges();
-		synchronized (pendingChanges) {
+		int bytes = payloadData.getByteBuf().readableBytes();
+		OutboundQueueLimiter limiter = this.management.getOutboundQueueLimiter();
+		if (!limiter.acquire(this.txAccount, this.name)) {
+			this.dropOldest(limiter, bytes);
+		}
 
-			// Indicate we want the interest ops set changed
-			pendingChanges.add(new ChangeRequest(this.getSocketChannel(), this, ChangeRequest.CHANGEOPS,
+		limiter.added(this.txAccount, bytes);
+		this.txPendingMessages.incrementAndGet();
+		this.updateCongestionLevel();
+
+		// Queue the data we want written. This must happen before the write
+		// interest is checked so the SelectorThread finds it when the socket
+		// becomes writable
+		this.txQueue.add(txItem);
+
+		this.flushTxQueue();
+	}
+
+	public void send(Collection<PayloadData> payloadDataList) throws Exception {
+		this.checkSocketIsOpen();
+
+		OutboundQueueLimiter limiter = this.management.getOutboundQueueLimiter();
+		int queued = 0;
+		try {
+			for (PayloadData payloadData : payloadDataList) {
+				int bytes = payloadData.getByteBuf().readableBytes();
+				if (!limiter.acquire(this.txAccount, this.name)) {
+					this.dropOldest(limiter, bytes);
+				}
+
+				limiter.added(this.txAccount, bytes);
+				this.txPendingMessages.incrementAndGet();
+				this.txQueue.add(payloadData);
+				queued++;
+			}
+		} finally {
+			// what was queued before a rejected payload is sent, with one
+			// write or wakeup for all of it
+			if (queued > 0) {
+				this.updateCongestionLevel();
+				this.flushTxQueue();
+			}
+		}
+	}
+
+	public CompletionStage<Void> sendAsync(PayloadData payloadData) {
+		CompletableFuture<Void> future = new CompletableFuture<Void>();
+		try {
+			this.send(payloadData, new TxCompletion(payloadData, future));
+		} catch (Exception e) {
+			future.completeExceptionally(e);
+		}
+		return future;
+	}
+
+	/**
+	 * Writes the txQueue from the sending thread if possible, otherwise hands
+	 * it over to the SelectorThread
+	 */
+	private void flushTxQueue() {
+		// Nothing waits for the socket to become writable, so try to write
+		// straight away and save the handoff to the SelectorThread
+		if (this.management.isDirectWrite() && !this.writeInterestRequested.get()
+				&& this.writeInProgress.compareAndSet(false, true)) {
+			boolean drained;
+			try {
+				drained = this.doWrite();
+			} catch (IOException e) {
+				// The SelectorThread meets the error again on OP_WRITE and
+				// takes care of ioErrors and closing
+				if (logger.isDebugEnabled()) {
+					logger.debug(String.format("IOException while writing directly for Association=%s", this.name), e);
+				}
+				drained = false;
+			} finally {
+				this.releaseWriteInProgress();
+			}
+
+			// A send() that found the write in progress has requested the write
+			// interest itself
+			if (drained)
+				return;
+		}
+
+		this.requestWriteInterest();
+	}
+
+	private void requestWriteInterest() {
+		// Only the first send after the txQueue has been drained needs the
+		// interest ops set changed
+		if (this.writeInterestRequested.compareAndSet(false, true)) {
+			SelectorThread selectorThread = this.management.getSelectorThread(this);
+
+			// Indicate we want the interest ops set changed, the SelectorThread
+			// adds the read interest valid at that time
+			selectorThread.addChangeRequest(new ChangeRequest(this.getSocketChannel(), this, ChangeRequest.CHANGEOPS,
 					SelectionKey.OP_WRITE));
 
-			// And queue the data we want written
-			// TODO Do we need to synchronize ConcurrentLinkedQueue ?
-			// synchronized (this.txQueue) {
-			this.txQueue.add(payloadData);
+			// Finally, wake up our selecting thread so it can make the required
+			// changes
+			selectorThread.wakeup();
 		}
+	}
 
-		// Finally, wake up our selecting thread so it can make the required
-		// changes
-		this.management.getSocketSelector().wakeup();
+	/**
+	 * Stops reading from the channel till all reasons are cleared again with
+	 * resumeReading()
+	 * 
+	 * @param reason
+	 *            a READ_SUSPENDED_* bit
+	 */
+	protected void suspendReading(int reason) {
+		int reasons;
+		do {
+			reasons = this.readSuspendReasons.get();
+			if ((reasons & reason) != 0)
+				return;
+		} while (!this.readSuspendReasons.compareAndSet(reasons, reasons | reason));
+
+		if (reasons == 0)
+			this.requestReadInterestUpdate();
+	}
+
+	/**
+	 * Clears a reason for suspending the read and restarts reading if no other
+	 * reason is left
+	 * 
+	 * @param reason
+	 *            a READ_SUSPENDED_* bit
+	 */
+	protected void resumeReading(int reason) {
+		int reasons;
+		do {
+			reasons = this.readSuspendReasons.get();
+			if ((reasons & reason) == 0)
+				return;
+		} while (!this.readSuspendReasons.compareAndSet(reasons, reasons & ~reason));
+
+		if (reasons == reason)
+			this.requestReadInterestUpdate();
+	}
+
+	@Override
+	public void suspendReading() {
+		this.suspendReading(READ_SUSPENDED_BY_APPLICATION);
+	}
+
+	@Override
+	public void resumeReading() {
+		this.resumeReading(READ_SUSPENDED_BY_APPLICATION);
+	}
+
+	@Override
+	public boolean isReadSuspended() {
+		return this.readSuspendReasons.get() != 0;
+	}
+
+	/**
+	 * @return OP_READ or 0 if reading is suspended
+	 */
+	protected int getReadOps() {
+		return this.isReadSuspended() ? 0 : SelectionKey.OP_READ;
+	}
+
+	private void requestReadInterestUpdate() {
+		AbstractSelectableChannel socketChannel = this.getSocketChannel();
+		if (socketChannel == null || this.management == null) {
+			// applied when the channel is registered
+			return;
+		}
+
+		SelectorThread selectorThread = this.management.getSelectorThread(this);
+		selectorThread.addChangeRequest(new ChangeRequest(socketChannel, this, ChangeRequest.READINTEREST, -1));
+		selectorThread.wakeup();
+	}
+
+	/**
+	 * Called by the SelectorThread when the write interest could not be set
+	 * because the channel is not registered (any more)
+	 */
+	protected void clearWriteInterest() {
+		this.writeInterestRequested.set(false);
 	}
 
 	private void checkSocketIsOpen() throws Exception {
@@ -518,50 +847,74 @@ public class AssociationImpl implements Association {
 		}
 	}
 
+	/**
+	 * Reads messages till the channel has no more data or the read budget of
+	 * the Association is used up. The key stays readable in the latter case,
+	 * so the rest is read after the other Associations of the SelectorThread
+	 * had their turn. Complete messages left in the read buffer of the
+	 * TcpFrameDecoder are read in the next cycle of the SelectorThread, or
+	 * after resumeReading() if reading is suspended. Payloads a
+	 * PayloadDispatcher could not take are dispatched first
+	 */
 	protected void read() {
 
-		try {
-			PayloadData payload;
-			if (this.ipChannelType == IpChannelType.SCTP)
-				payload = this.doReadSctp();
-			else
-				payload = this.doReadTcp();
-			if (payload == null)
-				return;
-
-			if (logger.isDebugEnabled()) {
-				logger.debug(String.format("Rx : Ass=%s %s", this.name, payload));
-			}
-
-			if (this.management.isSingleThread()) {
-				// If single thread model the listener should be called in the
-				// selector thread itself
-				try {
-					this.associationListener.onPayload(this, payload);
-				} catch (Exception e) {
-					logger.error(String.format("Error while calling Listener for Association=%s.Payload=%s", this.name,
-							payload), e);
-				}
-			} else {
-				Worker worker = new Worker(this, this.associationListener, payload);
+		if (!this.rxPending.isEmpty() && !this.dispatchRxPending())
+			return;
 
-//				System.out.println("payload.getStreamNumber()=" + payload.getStreamNumber()
-//						+ " this.workerThreadTable[payload.getStreamNumber()]"
-//						+ this.workerThreadTable[payload.getStreamNumber()]);
+		int budgetMessages = this.management.getReadBudgetMessages();
+		int budgetBytes = this.management.getReadBudgetBytes();
 
-				ExecutorService executorService = this.management.getExecutorService(this.workerThreadTable[payload
-						.getStreamNumber()]);
-				try {
-					executorService.execute(worker);
-				} catch (RejectedExecutionException e) {
-					logger.error(String.format("Rejected %s as Executors is shutdown", payload), e);
-				} catch (NullPointerException e) {
-					logger.error(String.format("NullPointerException while submitting %s", payload), e);
-				} catch (Exception e) {
-					logger.error(String.format("Exception while submitting %s", payload), e);
+		try {
+			int messages = 0;
+			int bytes = 0;
+			AbstractSelectableChannel socketChannel = this.getSocketChannel();
+			while (messages < budgetMessages && bytes < budgetBytes && socketChannel.isOpen() && !this.isReadSuspended()) {
+				PayloadData payload;
+				if (this.ipChannelType == IpChannelType.SCTP)
+					payload = this.doReadSctp();
+				else if (this.management.getTcpFraming() != null)
+					payload = this.doReadTcpFrame();
+				else
+					payload = this.doReadTcp();
+				if (payload == null)
+					break;
+
+				messages++;
+				bytes += payload.getDataLength();
+				if (!payload.isComplete() || this.sctpMessageReassembler != null) {
+					payload = this.reassemble(payload);
+					if (payload == null)
+						continue;
 				}
+				this.deliver(payload);
 			}
+			this.deliverRxBatch();
+
+			// complete messages left in the read buffer would wait for the next
+			// readiness event of the socket, which may never come
+			if (!this.isReadSuspended() && this.hasPendingInput())
+				this.management.getSelectorThread(this).addPendingRead(this);
+		} catch (EOFException e) {
+			// what was read before the peer closed still goes to the listener,
+			// before it is told that the Association is down
+			this.deliverRxBatch();
+
+			logger.warn(e.getMessage());
+			this.close();
+			this.scheduleConnect();
+		} catch (DecoderException e) {
+			// what was read before the error still goes to the listener
+			this.deliverRxBatch();
+
+			// the next message can not be found in the byte stream any more
+			logger.error(String.format("Framing error while reading from underlying socket for Association=%s", this.name),
+					e);
+			this.close();
+			this.scheduleConnect();
 		} catch (IOException e) {
+			// what was read before the error still goes to the listener
+			this.deliverRxBatch();
+
 			this.ioErrors++;
 			logger.error(String.format(
 					"IOException while trying to read from underlying socket for Association=%s IOError count=%d",
@@ -577,111 +930,277 @@ public class AssociationImpl implements Association {
 		}
 	}
 
-	private PayloadData doReadSctp() throws IOException {
+	private void deliver(PayloadData payload) {
+		if (logger.isDebugEnabled()) {
+			logger.debug(String.format("Rx : Ass=%s %s", this.name, payload));
+		}
 
-		rxBuffer.clear();
-		MessageInfo messageInfo = this.socketChannelSctp.receive(rxBuffer, this, this.associationHandler);
+		ListenerExecutor listenerExecutor = this.management.getListenerExecutor();
+		if (listenerExecutor != null) {
+			ListenerExecutor.StreamQueue streamQueue = this.getStreamQueue(listenerExecutor, payload.getStreamNumber());
+			this.inboundBacklog.added();
+			streamQueue.deliver(payload);
+		} else if (this.management.isSingleThread()) {
+			// If single thread model the listener should be called in the
+			// selector thread itself, once for all payloads of this read
+			this.rxBatch.add(payload);
+		} else {
+			// streams are bound to a worker thread, which keeps their order.
+			// Once a payload is kept back the following ones queue behind it
+			this.inboundBacklog.added();
+			if (!this.rxPending.isEmpty() || !this.dispatch(payload))
+				this.rxPending.add(payload);
+		}
+	}
 
-		if (messageInfo == null) {
-			if (logger.isDebugEnabled()) {
-				logger.debug(String.format(" messageInfo is null for Association=%s", this.name));
-			}
-			return null;
+	/**
+	 * Posts the payload to the PayloadDispatcher of its stream. If the ring
+	 * is full reading is suspended till the worker has made room
+	 * 
+	 * @return false if the payload was not taken
+	 */
+	private boolean dispatch(PayloadData payload) {
+		try {
+			PayloadDispatcher payloadDispatcher = this.management.getPayloadDispatcher(this.workerThreadTable[payload
+					.getStreamNumber()]);
+			if (payloadDispatcher.dispatch(this, payload))
+				return true;
+
+			this.suspendReading(READ_SUSPENDED_BY_DISPATCHER);
+			payloadDispatcher.resumeWhenFree(this);
+			return false;
+		} catch (NullPointerException e) {
+			logger.error(String.format("NullPointerException while submitting %s", payload), e);
+		} catch (Exception e) {
+			logger.error(String.format("Exception while submitting %s", payload), e);
 		}
+		return true;
+	}
 
-		int len = messageInfo.bytes();
-		if (len == -1) {
-			logger.error(String.format("Rx -1 while trying to read from underlying socket for Association=%s ",
-					this.name));
-			this.close();
-			this.scheduleConnect();
-			return null;
+	/**
+	 * @return false if a payload is still kept back
+	 */
+	private boolean dispatchRxPending() {
+		PayloadData payload;
+		while ((payload = this.rxPending.peek()) != null) {
+			if (!this.dispatch(payload))
+				return false;
+			this.rxPending.poll();
 		}
+		return true;
+	}
 
-		rxBuffer.flip();		
-		ByteBuf byteBuf = Unpooled.copiedBuffer(rxBuffer);
-		rxBuffer.clear();
+	private void releaseRxPending() {
+		PayloadData payload;
+		while ((payload = this.rxPending.poll()) != null) {
+			payload.releaseBuffer();
+			this.inboundBacklog.removed();
+		}
+		this.resumeReading(READ_SUSPENDED_BY_DISPATCHER);
+	}
 
-		PayloadData payload = new PayloadData(len, byteBuf, messageInfo.isComplete(), messageInfo.isUnordered(),
-				messageInfo.payloadProtocolID(), messageInfo.streamNumber());
+	/**
+	 * Delivers the payloads gathered by the current read in single thread
+	 * mode. Called by the SelectorThread only, also before the Association is
+	 * closed while reading
+	 */
+	protected void deliverRxBatch() {
+		if (this.rxBatch.isEmpty())
+			return;
 
-		return payload;
+		try {
+			this.associationListener.onPayloads(this, this.rxBatch);
+		} catch (Exception e) {
+			logger.error(String.format("Error while calling Listener for Association=%s.Payloads=%d", this.name,
+					this.rxBatch.size()), e);
+		} finally {
+			this.rxBatch.clear();
+		}
 	}
 
-	private PayloadData doReadTcp() throws IOException {
+	private ListenerExecutor.StreamQueue getStreamQueue(ListenerExecutor listenerExecutor, int streamNumber) {
+		ListenerExecutor.StreamQueue[] queues = this.streamQueues;
+		if (queues == null) {
+			// no COMM_UP seen yet
+			queues = new ListenerExecutor.StreamQueue[1];
+			this.streamQueues = queues;
+		}
 
-		rxBuffer.clear();
-		int len = this.socketChannelTcp.read(rxBuffer);
-		if (len == -1) {
-			logger.warn(String.format("Rx -1 while trying to read from underlying socket for Association=%s ",
-					this.name));
-			this.close();
-			this.scheduleConnect();
-			return null;
+		int index = streamNumber % queues.length;
+		ListenerExecutor.StreamQueue queue = queues[index];
+		if (queue == null) {
+			queue = listenerExecutor.newStreamQueue(this, this.inboundBacklog);
+			queues[index] = queue;
 		}
+		return queue;
+	}
+
+	private PayloadData doReadSctp() throws IOException {
+
+		// read straight into a pooled buffer that is handed over to the
+		// listener, who releases it
+		ByteBuf byteBuf = this.management.getByteBufAllocator().directBuffer(this.management.getBufferSize());
+		boolean release = true;
+		try {
+			ByteBuffer rxBuffer = byteBuf.internalNioBuffer(byteBuf.writerIndex(), byteBuf.writableBytes());
+			MessageInfo messageInfo = this.socketChannelSctp.receive(rxBuffer, this, this.associationHandler);
+
+			if (messageInfo == null) {
+				if (logger.isDebugEnabled()) {
+					logger.debug(String.format(" messageInfo is null for Association=%s", this.name));
+				}
+				return null;
+			}
 
-		rxBuffer.flip();
-		ByteBuf byteBuf = Unpooled.copiedBuffer(rxBuffer);
-		rxBuffer.clear();
+			int len = messageInfo.bytes();
+			if (len == -1) {
+				throw new EOFException(String.format("Rx -1 while trying to read from underlying socket for Association=%s ",
+						this.name));
+			}
 
-		PayloadData payload = new PayloadData(len, byteBuf, true, false, 0, 0);
+			byteBuf.writerIndex(byteBuf.writerIndex() + len);
 
-		return payload;
+			PayloadData payload = RecyclablePayloadData.newInstance(len, byteBuf, messageInfo.isComplete(),
+					messageInfo.isUnordered(), messageInfo.payloadProtocolID(), messageInfo.streamNumber());
+			release = false;
+
+			return payload;
+		} finally {
+			if (release) {
+				byteBuf.release();
+			}
+		}
 	}
 
-	protected void write(SelectionKey key) {
+	private PayloadData doReadTcp() throws IOException {
 
-		try {			
-			// TODO Do we need to synchronize ConcurrentLinkedQueue?
-			// synchronized (this.txQueue) {
-			if (!txQueue.isEmpty()) {
-				while (!txQueue.isEmpty()) {
-					// Lets read all the messages in txQueue and send
+		// read straight into a pooled buffer that is handed over to the
+		// listener, who releases it
+		ByteBuf byteBuf = this.management.getByteBufAllocator().directBuffer(this.management.getBufferSize());
+		boolean release = true;
+		try {
+			int len = byteBuf.writeBytes(this.socketChannelTcp, byteBuf.writableBytes());
+			if (len == -1) {
+				throw new EOFException(String.format("Rx -1 while trying to read from underlying socket for Association=%s ",
+						this.name));
+			}
 
-					PayloadData payloadData = txQueue.poll();
+			if (len == 0) {
+				return null;
+			}
 
-					if (logger.isDebugEnabled()) {
-						logger.debug(String.format("Tx : Ass=%s %s", this.name, payloadData));
-					}
+			PayloadData payload = RecyclablePayloadData.newInstance(len, byteBuf, true, false, 0, 0);
+			release = false;
 
-					if (this.ipChannelType == IpChannelType.SCTP) {
-						int seqControl = payloadData.getStreamNumber();
-
-						if (seqControl < 0 || seqControl >= this.associationHandler.getMaxOutboundStreams()) {
-							try {
-								// TODO : calling in same Thread. Is this ok? or
-								// dangerous?
-								this.associationListener.inValidStreamId(payloadData);
-							} catch (Exception e) {
-
-							}
-							
-							continue;
-						}
-
-						msgInfo = MessageInfo.createOutgoing(this.peerSocketAddress, seqControl);
-						msgInfo.payloadProtocolID(payloadData.getPayloadProtocolId());
-						msgInfo.complete(payloadData.isComplete());
-						msgInfo.unordered(payloadData.isUnordered());
-					}
+			return payload;
+		} finally {
+			if (release) {
+				byteBuf.release();
+			}
+		}
+	}
 
-					try
-					{
-						this.doSend(payloadData.getByteBuf());
-					}
-					finally {
-						payloadData.releaseBuffer();
-					}					
+	/**
+	 * @return the complete message or null if the fragment is not the last one
+	 *         or the message is dropped
+	 */
+	private PayloadData reassemble(PayloadData payload) {
+		SctpMessageReassembler reassembler = this.sctpMessageReassembler;
+		if (reassembler == null) {
+			int maxSctpMessageSize = this.management.getMaxSctpMessageSize();
+			if (maxSctpMessageSize == 0) {
+				// the listener gets the fragments
+				return payload;
+			}
+			reassembler = new SctpMessageReassembler(this.name, this.management.getByteBufAllocator(), maxSctpMessageSize);
+			this.sctpMessageReassembler = reassembler;
+		}
+		return reassembler.add(payload);
+	}
+
+	/**
+	 * @return true if complete messages wait in the read buffer of the
+	 *         TcpFrameDecoder of the open connection
+	 */
+	protected boolean hasPendingFrames() {
+		TcpFrameDecoder decoder = this.tcpFrameDecoder;
+		AbstractSelectableChannel socketChannel = this.getSocketChannel();
+		return decoder != null && socketChannel != null && socketChannel.isOpen() && decoder.hasFrame();
+	}
+
+	/**
+	 * @return true if payloads kept back from a PayloadDispatcher or complete
+	 *         messages in the read buffer wait for the next read()
+	 */
+	protected boolean hasPendingInput() {
+		return !this.rxPending.isEmpty() || this.hasPendingFrames();
+	}
+
+	protected boolean isPendingRead() {
+		return this.pendingRead;
+	}
+
+	protected void setPendingRead(boolean pendingRead) {
+		this.pendingRead = pendingRead;
+	}
+
+	/**
+	 * Reads the socket till a complete message is buffered
+	 * 
+	 * @return one complete message sharing the read buffer or null if the
+	 *         socket has no more data
+	 */
+	private PayloadData doReadTcpFrame() throws IOException {
+		TcpFrameDecoder decoder = this.tcpFrameDecoder;
+		if (decoder == null) {
+			decoder = new TcpFrameDecoder(this.management.getTcpFraming());
+			this.tcpFrameDecoder = decoder;
+		}
+
+		ByteBuf frame;
+		while ((frame = decoder.decode()) == null) {
+			ByteBuf byteBuf = decoder.readBuffer(this.management.getByteBufAllocator(), this.management.getBufferSize());
+			int len = byteBuf.writeBytes(this.socketChannelTcp, byteBuf.writableBytes());
+			if (len == -1) {
+				throw new EOFException(String.format("Rx -1 while trying to read from underlying socket for Association=%s ",
+						this.name));
+			}
 
-				}// end of while
+			if (len == 0) {
+				return null;
 			}
+		}
+
+		return RecyclablePayloadData.newInstance(frame.readableBytes(), frame, true, false, 0, 0);
+	}
+
+	protected void write(SelectionKey key) {
+
+		if (!this.writeInProgress.compareAndSet(false, true)) {
+			// A sending thread is writing directly, OP_WRITE stays set and
+			// the write is retried with the next select
+			return;
+		}
+
+		boolean closeChannel = false;
+		try {
+			boolean drained = this.doWrite();
 
-			if (txQueue.isEmpty()) {
+			if (drained) {
 				// We wrote away all data, so we're no longer interested
 				// in writing on this socket. Switch back to waiting for
 				// data.
-				key.interestOps(SelectionKey.OP_READ);
+				key.interestOps(this.getReadOps());
+				this.writeInterestRequested.set(false);
+
+				// A send() may have queued data after the txQueue was found
+				// empty but before the flag was cleared
+				if (!txQueue.isEmpty() && this.writeInterestRequested.compareAndSet(false, true)) {
+					key.interestOps(this.getReadOps() | SelectionKey.OP_WRITE);
+				}
 			}
+			// else the socket send buffer is full, OP_WRITE stays set and the
+			// tx batch is resumed when the socket becomes writable again
 
 		} catch (IOException e) {
 			this.ioErrors++;
@@ -689,41 +1208,525 @@ public class AssociationImpl implements Association {
 					"IOException while trying to write to underlying socket for Association=%s IOError count=%d",
 					this.name, this.ioErrors), e);
 
-			if (this.ioErrors > this.management.getMaxIOErrors()) {
-				// Close this socket
-				this.close();
-
-				// retry to connect after delay
-				this.scheduleConnect();
-			}
+			closeChannel = this.ioErrors > this.management.getMaxIOErrors();
+		} finally {
+			// close() takes over the tx batch
+			this.releaseWriteInProgress();
 		}// try-catch
+
+		if (closeChannel) {
+			// Close this socket
+			this.close();
+
+			// retry to connect after delay
+			this.scheduleConnect();
+		}
 	}
 
-	private int doSend(ByteBuf buffer) throws IOException {
+	private boolean doWrite() throws IOException {
 		if (this.ipChannelType == IpChannelType.SCTP)
-			return this.doSendSctp(buffer);
+			return this.doWriteSctp();
 		else
-			return this.doSendTcp(buffer);
+			return this.doWriteTcp();
+	}
+
+	/**
+	 * Moves queued payloads into the tx batch, up to writeBatchSize payloads
+	 * and writeBatchBytes bytes
+	 * 
+	 * @return the number of payloads in the batch
+	 */
+	private int fillTxBatch() {
+		int batchSize = this.management.getWriteBatchSize();
+		if (this.txBatch == null || this.txBatch.length != batchSize) {
+			this.txBatch = new PayloadData[batchSize];
+			this.txBatchCompletions = new TxCompletion[batchSize];
+			this.txBufferEnds = new int[batchSize];
+			this.txBuffers = new ByteBuffer[batchSize];
+			this.txPrefixBuffers = new ByteBuffer[batchSize];
+		}
+		int batchBytes = this.management.getWriteBatchBytes();
+		TcpFramingConfig tcpFraming = null;
+		if (this.ipChannelType == IpChannelType.TCP && this.management.getTcpFraming() != null
+				&& this.management.getTcpFraming().isLengthPrefix()) {
+			tcpFraming = this.management.getTcpFraming();
+		}
+
+		int count = 0;
+		int bufferCount = 0;
+		int bytes = 0;
+		while (count < batchSize && bytes < batchBytes) {
+			Object txItem = this.txQueue.poll();
+			if (txItem == null)
+				break;
+			TxCompletion txCompletion = completionOf(txItem);
+			PayloadData payloadData = txCompletion != null ? txCompletion.payloadData : (PayloadData) txItem;
+
+			if (logger.isDebugEnabled()) {
+				logger.debug(String.format("Tx : Ass=%s %s", this.name, payloadData));
+			}
+
+			if (this.ipChannelType == IpChannelType.SCTP) {
+				int seqControl = payloadData.getStreamNumber();
+
+				if (seqControl < 0 || seqControl >= this.associationHandler.getMaxOutboundStreams()) {
+					this.txCompleted(payloadData, txCompletion, new Exception(String.format(
+							"Invalid stream id %d for Association=%s", seqControl, this.name)));
+					// the listener is told once writeInProgress is released
+					if (this.txInvalidStreams == null)
+						this.txInvalidStreams = new ArrayList<PayloadData>();
+					this.txInvalidStreams.add(payloadData);
+
+					continue;
+				}
+			}
+
+			ByteBuf byteBuf = payloadData.getByteBuf();
+			if (tcpFraming != null) {
+				ByteBuffer prefix = this.txLengthPrefix(count, tcpFraming, byteBuf.readableBytes());
+				if (prefix == null) {
+					this.txCompleted(payloadData, txCompletion, new Exception(String.format(
+							"Payload of %d bytes does not fit into the length prefix of Association=%s",
+							byteBuf.readableBytes(), this.name)));
+					payloadData.releaseBuffer();
+					continue;
+				}
+				bufferCount = this.addTxBuffer(bufferCount, prefix);
+			}
+
+			if (byteBuf.nioBufferCount() == 1) {
+				bufferCount = this.addTxBuffer(bufferCount, byteBuf.nioBuffer());
+			} else if (this.ipChannelType == IpChannelType.SCTP) {
+				// nioBuffer() would merge the components into a heap copy,
+				// which SctpChannel copies once more into a direct buffer
+				bufferCount = this.addTxBuffer(bufferCount, null);
+			} else {
+				// gathered together with the rest of the batch
+				for (ByteBuffer buffer : byteBuf.nioBuffers()) {
+					bufferCount = this.addTxBuffer(bufferCount, buffer);
+				}
+			}
+			this.txBatch[count] = payloadData;
+			this.txBatchCompletions[count] = txCompletion;
+			this.txBufferEnds[count] = bufferCount;
+			bytes += byteBuf.readableBytes();
+			count++;
+		}
+
+		this.txBatchIndex = 0;
+		this.txBatchCount = count;
+		this.txBufferIndex = 0;
+		this.txBufferCount = bufferCount;
+		return count;
+	}
+
+	private int addTxBuffer(int index, ByteBuffer buffer) {
+		if (index == this.txBuffers.length) {
+			this.txBuffers = Arrays.copyOf(this.txBuffers, index * 2);
+		}
+		this.txBuffers[index] = buffer;
+		return index + 1;
+	}
+
+	/**
+	 * Encodes the length prefix of the payload at the passed batch index, big
+	 * endian as LengthFieldBasedFrameDecoder expects it
+	 * 
+	 * @return null if the length does not fit into the length field
+	 */
+	private ByteBuffer txLengthPrefix(int index, TcpFramingConfig tcpFraming, int length) {
+		int fieldLength = tcpFraming.getLengthFieldLength();
+		long value = tcpFraming.getLengthFieldValue(length);
+		if (value < 0 || (fieldLength < 8 && value >= 1L << (fieldLength * 8))
+				|| length + fieldLength > tcpFraming.getMaxFrameLength())
+			return null;
+
+		ByteBuffer prefix = this.txPrefixBuffers[index];
+		if (prefix == null) {
+			prefix = ByteBuffer.allocateDirect(8);
+			this.txPrefixBuffers[index] = prefix;
+		}
+		prefix.clear();
+		for (int i = fieldLength - 1; i >= 0; i--) {
+			prefix.put((byte) (value >>> (i * 8)));
+		}
+		prefix.flip();
+		return prefix;
+	}
+
+	/**
+	 * Copies a payload of several components into txSctpBuffer
+	 */
+	private ByteBuffer copyToTxSctpBuffer(ByteBuf byteBuf) {
+		int length = byteBuf.readableBytes();
+		if (this.txSctpBuffer == null || this.txSctpBuffer.capacity() < length) {
+			this.txSctpBuffer = ByteBuffer.allocateDirect(Math.max(length, TX_SCTP_BUFFER_SIZE));
+		}
+		ByteBuffer buffer = this.txSctpBuffer;
+		buffer.clear().limit(length);
+		byteBuf.getBytes(byteBuf.readerIndex(), buffer);
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * Writes the tx batch with one gathering write per batch, the components
+	 * of composite payloads included
+	 * 
+	 * @return true if the txQueue is drained, false if the socket send buffer
+	 *         is full
+	 */
+	private boolean doWriteTcp() throws IOException {
+		while (true) {
+			if (this.txBatchIndex == this.txBatchCount && this.fillTxBatch() == 0)
+				return true;
+
+			this.socketChannelTcp.write(this.txBuffers, this.txBufferIndex, this.txBufferCount - this.txBufferIndex);
+
+			int written = this.txBufferIndex;
+			while (written < this.txBufferCount && !this.txBuffers[written].hasRemaining()) {
+				written++;
+			}
+			while (this.txBatchIndex < this.txBatchCount && this.txBufferEnds[this.txBatchIndex] <= written) {
+				this.releaseTxBatchHead(null);
+			}
+
+			if (this.txBatchIndex < this.txBatchCount) {
+				// partially written, resume from the exact position later
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * SctpChannel has no gathering send, every message of the tx batch is sent
+	 * separately and DATA chunks are bundled by the SCTP stack. Only a payload
+	 * of several components is copied, into one reused direct buffer
+	 * 
+	 * @return true if the txQueue is drained, false if the socket send buffer
+	 *         is full
+	 */
+	private boolean doWriteSctp() throws IOException {
+		while (true) {
+			if (this.txBatchIndex == this.txBatchCount && this.fillTxBatch() == 0)
+				return true;
+
+			while (this.txBatchIndex < this.txBatchCount) {
+				PayloadData payloadData = this.txBatch[this.txBatchIndex];
+
+				MessageInfo msgInfo = MessageInfo.createOutgoing(this.peerSocketAddress, payloadData.getStreamNumber());
+				msgInfo.payloadProtocolID(payloadData.getPayloadProtocolId());
+				msgInfo.complete(payloadData.isComplete());
+				msgInfo.unordered(payloadData.isUnordered());
+
+				ByteBuffer buffer = this.txBuffers[this.txBatchIndex];
+				if (buffer == null) {
+					// kept till the message is sent, it may be resent later
+					buffer = this.copyToTxSctpBuffer(payloadData.getByteBuf());
+					this.txBuffers[this.txBatchIndex] = buffer;
+				}
+
+				int sent;
+				try {
+					sent = this.socketChannelSctp.send(buffer, msgInfo);
+				} catch (IOException e) {
+					// the message is dropped
+					this.releaseTxBatchHead(e);
+					throw e;
+				}
+
+				if (sent == 0) {
+					// no room for the whole message, resend it later
+					return false;
+				}
+				this.releaseTxBatchHead(null);
+			}
+		}
 	}
 
-	private int doSendSctp(ByteBuf buffer) throws IOException {
-		return this.socketChannelSctp.send(buffer.nioBuffer(), msgInfo);
+	/**
+	 * @param cause
+	 *            null if the payload was written, else why it was dropped
+	 */
+	private void releaseTxBatchHead(Throwable cause) {
+		PayloadData payloadData = this.txBatch[this.txBatchIndex];
+		TxCompletion txCompletion = this.txBatchCompletions[this.txBatchIndex];
+		this.txBatch[this.txBatchIndex] = null;
+		this.txBatchCompletions[this.txBatchIndex] = null;
+		while (this.txBufferIndex < this.txBufferEnds[this.txBatchIndex]) {
+			this.txBuffers[this.txBufferIndex++] = null;
+		}
+		this.txBatchIndex++;
+
+		this.txCompleted(payloadData, txCompletion, cause);
+		payloadData.releaseBuffer();
 	}
 
-	private int doSendTcp(ByteBuf buffer) throws IOException {
-		return this.socketChannelTcp.write(buffer.nioBuffer());
+	/**
+	 * Removes a written or dropped payload from the pending counters. Called
+	 * while holding writeInProgress, the future of a payload sent with
+	 * sendAsync() and a change of the congestion level are left to
+	 * releaseWriteInProgress()
+	 * 
+	 * @param txCompletion
+	 *            null if the payload was not sent with sendAsync()
+	 * @param cause
+	 *            null if the payload was written, else why it was dropped
+	 */
+	private void txCompleted(PayloadData payloadData, TxCompletion txCompletion, Throwable cause) {
+		this.management.getOutboundQueueLimiter().removed(this.txAccount, payloadData.getByteBuf().readableBytes());
+		this.txPendingMessages.decrementAndGet();
+		if (this.changeCongestionLevel())
+			this.txCongLevelChanged = true;
+
+		if (txCompletion != null) {
+			txCompletion.cause = cause;
+			if (this.txCompletedTail == null)
+				this.txCompletedHead = txCompletion;
+			else
+				this.txCompletedTail.next = txCompletion;
+			this.txCompletedTail = txCompletion;
+		}
+	}
+
+	/**
+	 * Removes a payload dropped from the txQueue by a sending thread, which
+	 * does not hold writeInProgress
+	 */
+	private void txDropped(Object txItem, Throwable cause) {
+		TxCompletion txCompletion = completionOf(txItem);
+		PayloadData payloadData = txCompletion != null ? txCompletion.payloadData : (PayloadData) txItem;
+		this.management.getOutboundQueueLimiter().removed(this.txAccount, payloadData.getByteBuf().readableBytes());
+		this.txPendingMessages.decrementAndGet();
+		this.updateCongestionLevel();
+
+		if (txCompletion != null)
+			txCompletion.complete(cause);
+		payloadData.releaseBuffer();
+	}
+
+	/**
+	 * Gives up writeInProgress and then fires the events raised while holding
+	 * it, so listeners may send or close the Association. Clears the tx batch
+	 * if close() has asked for it in the meantime
+	 */
+	private void releaseWriteInProgress() {
+		while (true) {
+			boolean congLevelChanged = this.txCongLevelChanged;
+			TxCompletion txCompletion = this.txCompletedHead;
+			ArrayList<PayloadData> invalidStreams = this.txInvalidStreams;
+			this.txCongLevelChanged = false;
+			this.txCompletedHead = null;
+			this.txCompletedTail = null;
+			this.txInvalidStreams = null;
+			this.writeInProgress.set(false);
+
+			if (congLevelChanged)
+				this.notifyCongestionLevel();
+
+			while (txCompletion != null) {
+				TxCompletion next = txCompletion.next;
+				txCompletion.next = null;
+				txCompletion.complete(txCompletion.cause);
+				txCompletion = next;
+			}
+
+			if (invalidStreams != null) {
+				for (PayloadData payloadData : invalidStreams) {
+					try {
+						this.associationListener.inValidStreamId(payloadData);
+					} catch (Exception e) {
+						logger.error("Exception while invoking inValidStreamId", e);
+					}
+					// the packet is dropped, the listener must not keep it
+					payloadData.releaseBuffer();
+				}
+			}
+
+			// close() found the write in progress and left the tx batch to us
+			if (!this.txClearRequested || !this.writeInProgress.compareAndSet(false, true))
+				return;
+			this.clearTx();
+		}
+	}
+
+	private static TxCompletion completionOf(Object txItem) {
+		return txItem instanceof TxCompletion ? (TxCompletion) txItem : null;
+	}
+
+	/**
+	 * Drops queued payloads, oldest first, till a payload of the passed size
+	 * fits. Payloads already taken into the tx batch can not be dropped
+	 */
+	private void dropOldest(OutboundQueueLimiter limiter, int bytes) {
+		int dropped = 0;
+		Object txItem;
+		while (!limiter.hasRoom(this.txAccount, bytes) && (txItem = this.txQueue.poll()) != null) {
+			this.txDropped(txItem, new OutboundQueueFullException(String.format(
+					"Dropped as the outbound queue of Association=%s is full", this.name)));
+			dropped++;
+		}
+
+		if (dropped > 0 && logger.isDebugEnabled()) {
+			logger.debug(String.format("Outbound queue of Association=%s is full, dropped %d oldest messages", this.name,
+					dropped));
+		}
+	}
+
+	/**
+	 * Raises the congestion level if the pending bytes or messages exceed a
+	 * threshold and reduces it when both are back below the BackToNormal
+	 * thresholds. A level set concurrently from older counters is evaluated
+	 * again, so the level always matches the pending counters once the
+	 * senders and the writer are done
+	 */
+	private void updateCongestionLevel() {
+		if (this.changeCongestionLevel())
+			this.notifyCongestionLevel();
+	}
+
+	/**
+	 * @return true if this thread has changed the congestion level
+	 */
+	private boolean changeCongestionLevel() {
+		boolean changed = false;
+		while (true) {
+			long levels = this.congLevels.get();
+			int level = (int) (levels & CONG_LEVEL_MASK);
+			int newLevel = this.computeCongestionLevel(level, this.txAccount.getPendingBytes(),
+					this.txPendingMessages.get());
+			if (newLevel == level)
+				break;
+			if (this.congLevels.compareAndSet(levels, pushCongestionLevel(levels, newLevel)))
+				changed = true;
+		}
+		return changed;
+	}
+
+	/**
+	 * Appends a level to the ones not notified yet. If the listeners fall
+	 * behind by more than CONG_LEVELS_MAX changes the oldest are dropped
+	 */
+	private static long pushCongestionLevel(long levels, int newLevel) {
+		long count = Math.min((levels >>> CONG_LEVELS_COUNT_SHIFT) + 1, CONG_LEVELS_MAX);
+		return (count << CONG_LEVELS_COUNT_SHIFT) | (((levels << 2) | newLevel) & CONG_LEVELS_PATH_MASK);
+	}
+
+	private int computeCongestionLevel(int level, long bytes, int messages) {
+		int newLevel = level;
+		for (int i1 = level - 1; i1 >= 0; i1--) {
+			if (bytes <= this.management.congControl_BackToNormalQueueBytesThreshold[i1]
+					&& messages <= this.management.congControl_BackToNormalQueueMessagesThreshold[i1]) {
+				newLevel = i1;
+			}
+		}
+		for (int i1 = level; i1 < 3; i1++) {
+			if (bytes >= this.management.congControl_QueueBytesThreshold[i1]
+					|| messages >= this.management.congControl_QueueMessagesThreshold[i1]) {
+				newLevel = i1 + 1;
+			}
+		}
+		return newLevel;
+	}
+
+	/**
+	 * Tells CongestionListeners and the AssociationListener about the changes
+	 * of the congestion level. One thread at a time notifies, the others leave
+	 * their changes to it, so the events keep the order of the levels
+	 */
+	private void notifyCongestionLevel() {
+		if (this.congNotifyCount.getAndIncrement() != 0)
+			return;
+
+		int missed = 1;
+		do {
+			// take the levels not notified yet, oldest first, the current one
+			// stays
+			long levels;
+			do {
+				levels = this.congLevels.get();
+			} while (!this.congLevels.compareAndSet(levels, levels & CONG_LEVEL_MASK));
+
+			for (int i = (int) (levels >>> CONG_LEVELS_COUNT_SHIFT) - 1; i >= 0; i--) {
+				int level = this.notifiedCongLevel;
+				int newLevel = (int) ((levels >>> (i << 1)) & CONG_LEVEL_MASK);
+				if (newLevel != level) {
+					this.notifiedCongLevel = newLevel;
+					this.fireCongestionLevelChanged(level, newLevel);
+				}
+			}
+			missed = this.congNotifyCount.addAndGet(-missed);
+		} while (missed != 0);
+	}
+
+	private void fireCongestionLevelChanged(int level, int newLevel) {
+		logger.warn(String.format(
+				"Outgoing congestion control: Changing of congestion level for Association=%s %d->%d, pending bytes=%d messages=%d",
+				this.name, level, newLevel, this.txAccount.getPendingBytes(), this.txPendingMessages.get()));
+
+		for (CongestionListener lstr : this.management.getCongestionListeners()) {
+			try {
+				lstr.onCongLevelChanged(this, level, newLevel);
+			} catch (Throwable ee) {
+				logger.error("Exception while invoking onCongLevelChanged", ee);
+			}
+		}
+
+		// the association is writable while there is no congestion
+		if ((level == 0) != (newLevel == 0)) {
+			AssociationListener listener = this.associationListener;
+			if (listener != null) {
+				try {
+					listener.onWritabilityChanged(this, newLevel == 0);
+				} catch (Throwable ee) {
+					logger.error("Exception while invoking onWritabilityChanged", ee);
+				}
+			}
+		}
 	}
 
     @Override
     public ByteBufAllocator getByteBufAllocator() {
-        return null;
+        return this.management.getByteBufAllocator();
     }
 
     @Override
     public int getCongestionLevel() {
-        return 0;
+        return (int) (this.congLevels.get() & CONG_LEVEL_MASK);
+    }
+
+    /**
+     * The NIO stack has no outbound buffer of its own, the association is
+     * writable while it is up and the outgoing congestion level is 0
+     */
+    @Override
+    public boolean isWritable() {
+        return this.isConnected() && (int) (this.congLevels.get() & CONG_LEVEL_MASK) == 0;
     }
 
+	@Override
+	public synchronized Flow.Publisher<PayloadData> getPayloadPublisher() {
+		if (this.payloadPublisher == null) {
+			this.payloadPublisher = new AssociationPublisher(this) {
+				@Override
+				protected void suspendReading() {
+					AssociationImpl.this.suspendReading(READ_SUSPENDED_BY_SUBSCRIBER);
+				}
+
+				@Override
+				protected void resumeReading() {
+					AssociationImpl.this.resumeReading(READ_SUSPENDED_BY_SUBSCRIBER);
+				}
+			};
+		}
+		return this.payloadPublisher;
+	}
+
+	@Override
+	public Flow.Subscriber<PayloadData> createPayloadSubscriber(int prefetch) {
+		return new AssociationSubscriber(this, this.management, prefetch);
+	}
+
 	protected void close() {
 		if (this.getSocketChannel() != null) {
 			try {
@@ -742,26 +1745,68 @@ public class AssociationImpl implements Association {
 					this.name), e);
 		}
 
-		// Finally clear the txQueue
-		if (this.txQueue.size() > 0) {
+		// messages of a broken connection are incomplete
+		this.releaseTcpFrameDecoder();
+		this.releaseSctpMessageReassembler();
+		this.releaseRxPending();
+
+		// Finally clear the tx batch and the txQueue. A thread writing fails on
+		// the closed channel and clears them when it gives up writeInProgress
+		this.txClearRequested = true;
+		if (this.writeInProgress.compareAndSet(false, true)) {
+			this.clearTx();
+			this.releaseWriteInProgress();
+		}
+	}
+
+	/**
+	 * Drops the tx batch and the txQueue of a closed Association. Called while
+	 * holding writeInProgress
+	 */
+	private void clearTx() {
+		this.txClearRequested = false;
+		if (this.txBatchIndex < this.txBatchCount || this.txQueue.size() > 0) {
 			logger.warn(String.format("Clearig txQueue for Association=%s. %d messages still pending will be cleared",
-					this.name, this.txQueue.size()));
+					this.name, this.txBatchCount - this.txBatchIndex + this.txQueue.size()));
 		}
-		this.txQueue.clear();
+		Exception closed = new Exception(String.format("Association=%s is closed", this.name));
+		while (this.txBatchIndex < this.txBatchCount) {
+			this.releaseTxBatchHead(closed);
+		}
+		Object txItem;
+		while ((txItem = this.txQueue.poll()) != null) {
+			TxCompletion txCompletion = completionOf(txItem);
+			PayloadData payloadData = txCompletion != null ? txCompletion.payloadData : (PayloadData) txItem;
+			this.txCompleted(payloadData, txCompletion, closed);
+			payloadData.releaseBuffer();
+		}
+		this.writeInterestRequested.set(false);
 	}
 
 	protected void scheduleConnect() {
 		if (this.getAssociationType() == AssociationType.CLIENT) {
 			// If Associtaion is of Client type, reinitiate the connection
 			// procedure
-			FastTable<ChangeRequest> pendingChanges = this.management.getPendingChanges();
-			synchronized (pendingChanges) {
-				pendingChanges.add(new ChangeRequest(this, ChangeRequest.CONNECT, System.currentTimeMillis()
-						+ this.management.getConnectDelay()));
-			}
+			SelectorThread selectorThread = this.management.getSelectorThread(this);
+			ChangeRequest connect = new ChangeRequest(this, ChangeRequest.CONNECT, System.currentTimeMillis()
+					+ this.management.getConnectDelay());
+			this.pendingConnect = connect;
+			selectorThread.addChangeRequest(connect);
+
+			// wake up the selecting thread so it can schedule the connect and
+			// adjust its select timeout
+			selectorThread.wakeup();
 		}
 	}
 
+	/**
+	 * @return true if the passed CONNECT is the last one scheduled and the
+	 *         Association was not stopped since
+	 */
+	protected boolean isPendingConnect(ChangeRequest connect) {
+		return this.started && this.pendingConnect == connect;
+	}
+
 	protected void initiateConnection() throws IOException {
 
 		// If Association is stopped, don't try to initiate connect
@@ -793,24 +1838,25 @@ public class AssociationImpl implements Association {
 
 		// reset the ioErrors
 		this.ioErrors = 0;
+		this.writeInterestRequested.set(false);
 
 		// Queue a channel registration since the caller is not the
 		// selecting thread. As part of the registration we'll register
 		// an interest in connection events. These are raised when a channel
 		// is ready to complete connection establishment.
-		FastTable<ChangeRequest> pendingChanges = this.management.getPendingChanges();
-		synchronized (pendingChanges) {
-			pendingChanges.add(new ChangeRequest(this.getSocketChannel(), this, ChangeRequest.REGISTER,
-					SelectionKey.OP_CONNECT));
-		}
+		SelectorThread selectorThread = this.management.getSelectorThread(this);
+		selectorThread.addChangeRequest(new ChangeRequest(this.getSocketChannel(), this, ChangeRequest.REGISTER,
+				SelectionKey.OP_CONNECT));
 
 		// Finally, wake up our selecting thread so it can make the required
 		// changes
-		this.management.getSocketSelector().wakeup();
+		selectorThread.wakeup();
 
 	}
 
 	private void doInitiateConnectionSctp() throws IOException {
+		this.releaseSctpMessageReassembler();
+
 		// Create a non-blocking socket channel
 		this.socketChannelSctp = SctpChannel.open();
 		this.socketChannelSctp.configureBlocking(false);
@@ -830,6 +1876,7 @@ public class AssociationImpl implements Association {
 	private void doInitiateConnectionTcp() throws IOException {
 
 		// Create a non-blocking socket channel
+		this.releaseTcpFrameDecoder();
 		this.socketChannelTcp = SocketChannel.open();
 		this.socketChannelTcp.configureBlocking(false);
 
@@ -840,9 +1887,27 @@ public class AssociationImpl implements Association {
 		this.socketChannelTcp.connect(new InetSocketAddress(this.peerAddress, this.peerPort));
 	}
 
+	/**
+	 * @return the key used to pin this Association to one of the
+	 *         SelectorThreads. Anonymous Associations have no name, so the peer
+	 *         address is used for them
+	 */
+	protected String getShardKey() {
+		if (this.name != null)
+			return this.name;
+
+		if (this.shardKey == null)
+			this.shardKey = this.peerAddress + ":" + this.peerPort;
+		return this.shardKey;
+	}
+
 	protected void createworkerThreadTable(int maximumBooundStream) {
 		this.workerThreadTable = new int[maximumBooundStream];
 		this.management.populateWorkerThread(this.workerThreadTable);
+		// queues of a previous connection may still be delivering, they are
+		// kept so the order of the streams is not broken
+		if (this.streamQueues == null || this.streamQueues.length != Math.max(1, maximumBooundStream))
+			this.streamQueues = new ListenerExecutor.StreamQueue[Math.max(1, maximumBooundStream)];
 	}
 
 	/*
@@ -931,4 +1996,24 @@ public class AssociationImpl implements Association {
 		}
 	};
 
+	private static final class TxCompletion {
+		private final PayloadData payloadData;
+		private final CompletableFuture<Void> future;
+		// set by the writer till the future is completed
+		private Throwable cause;
+		private TxCompletion next;
+
+		private TxCompletion(PayloadData payloadData, CompletableFuture<Void> future) {
+			this.payloadData = payloadData;
+			this.future = future;
+		}
+
+		private void complete(Throwable cause) {
+			if (cause == null) {
+				this.future.complete(null);
+			} else {
+				this.future.completeExceptionally(cause);
+			}
+		}
+	}
 }
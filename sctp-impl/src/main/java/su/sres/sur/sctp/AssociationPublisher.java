@@ -0,0 +1,268 @@
+/*
+ * TeleStax, Open Source Cloud Communications  Copyright 2012.
+ * and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package su.sres.sur.sctp;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import su.sres.sur.sctp.api.Association;
+import su.sres.sur.sctp.api.AssociationListener;
+import su.sres.sur.sctp.api.PayloadData;
+
+/**
+ * Publishes the payloads received by an Association to a single
+ * {@link Flow.Subscriber}. The demand of the subscriber controls reading:
+ * while it is exhausted the Association stops reading from the channel, so the
+ * SCTP receive window / TCP flow control pushes back on the peer. Payloads
+ * that were already read when the demand ran out are kept until requested.
+ * 
+ * While subscribed the publisher takes the place of the AssociationListener
+ * and passes all other events on to the replaced listener, which is restored
+ * when the subscription is cancelled. The subscription spans reconnects of the
+ * Association, it is never completed by the publisher.
+ * 
+ */
+public abstract class AssociationPublisher implements Flow.Publisher<PayloadData> {
+
+	private static final Logger logger = Logger.getLogger(AssociationPublisher.class);
+
+	private final Association association;
+
+	private PayloadSubscription subscription;
+
+	protected AssociationPublisher(Association association) {
+		this.association = association;
+	}
+
+	/**
+	 * Stops reading from the channel of the Association
+	 */
+	protected abstract void suspendReading();
+
+	/**
+	 * Restarts reading from the channel of the Association
+	 */
+	protected abstract void resumeReading();
+
+	@Override
+	public void subscribe(Flow.Subscriber<? super PayloadData> subscriber) {
+		if (subscriber == null)
+			throw new NullPointerException("subscriber");
+
+		PayloadSubscription newSubscription;
+		synchronized (this) {
+			if (this.subscription != null) {
+				newSubscription = null;
+			} else {
+				newSubscription = new PayloadSubscription(subscriber, this.association.getAssociationListener());
+				this.subscription = newSubscription;
+			}
+		}
+
+		if (newSubscription == null) {
+			subscriber.onSubscribe(new Flow.Subscription() {
+				@Override
+				public void request(long n) {
+				}
+
+				@Override
+				public void cancel() {
+				}
+			});
+			subscriber.onError(new IllegalStateException(String.format(
+					"Association=%s has already a subscriber", this.association.getName())));
+			return;
+		}
+
+		// nothing is requested yet
+		this.suspendReading();
+		this.association.setAssociationListener(newSubscription);
+		subscriber.onSubscribe(newSubscription);
+	}
+
+	private synchronized void unsubscribe(PayloadSubscription subscription) {
+		if (this.subscription == subscription) {
+			this.subscription = null;
+		}
+	}
+
+	private class PayloadSubscription implements Flow.Subscription, AssociationListener {
+
+		private final Flow.Subscriber<? super PayloadData> subscriber;
+		private final AssociationListener listener;
+
+		private final ConcurrentLinkedQueue<PayloadData> received = new ConcurrentLinkedQueue<PayloadData>();
+		private final AtomicLong demand = new AtomicLong();
+		// serializes the calls to the subscriber
+		private final AtomicInteger wip = new AtomicInteger();
+
+		private volatile boolean cancelled = false;
+		// accessed by the draining thread only
+		private boolean readingSuspended = true;
+
+		private PayloadSubscription(Flow.Subscriber<? super PayloadData> subscriber, AssociationListener listener) {
+			this.subscriber = subscriber;
+			this.listener = listener;
+		}
+
+		@Override
+		public void request(long n) {
+			if (n <= 0) {
+				this.cancel();
+				this.subscriber.onError(new IllegalArgumentException("Non-positive request: " + n));
+				return;
+			}
+
+			long current;
+			long updated;
+			do {
+				current = this.demand.get();
+				updated = current + n;
+				if (updated < 0)
+					updated = Long.MAX_VALUE;
+			} while (!this.demand.compareAndSet(current, updated));
+
+			this.drain();
+		}
+
+		@Override
+		public void cancel() {
+			if (this.cancelled)
+				return;
+			this.cancelled = true;
+
+			association.setAssociationListener(this.listener);
+			unsubscribe(this);
+			this.drain();
+		}
+
+		/**
+		 * Passes received payloads to the subscriber as far as demanded and
+		 * switches reading according to the remaining demand
+		 */
+		private void drain() {
+			if (this.wip.getAndIncrement() != 0)
+				return;
+
+			int missed = 1;
+			do {
+				if (this.cancelled) {
+					// read before the listener was restored
+					PayloadData payloadData;
+					while ((payloadData = this.received.poll()) != null) {
+						this.onPayload(association, payloadData);
+					}
+					if (this.readingSuspended) {
+						this.readingSuspended = false;
+						resumeReading();
+					}
+				} else {
+					while (this.demand.get() > 0) {
+						PayloadData payloadData = this.received.poll();
+						if (payloadData == null)
+							break;
+						this.demand.decrementAndGet();
+						try {
+							this.subscriber.onNext(payloadData);
+						} catch (Throwable e) {
+							logger.error(String.format("Exception while passing %s to the subscriber", payloadData), e);
+						}
+					}
+
+					boolean suspend = this.demand.get() == 0;
+					if (suspend != this.readingSuspended) {
+						this.readingSuspended = suspend;
+						if (suspend)
+							suspendReading();
+						else
+							resumeReading();
+					}
+				}
+
+				missed = this.wip.addAndGet(-missed);
+			} while (missed != 0);
+		}
+
+		@Override
+		public void onPayload(Association association, PayloadData payloadData) {
+			if (this.cancelled) {
+				if (this.listener != null)
+					this.listener.onPayload(association, payloadData);
+				else
+					payloadData.releaseBuffer();
+				return;
+			}
+			this.received.offer(payloadData);
+			this.drain();
+		}
+
+		@Override
+		public void onPayloads(Association association, List<PayloadData> payloadDataList) {
+			for (int i = 0; i < payloadDataList.size(); i++) {
+				this.received.offer(payloadDataList.get(i));
+			}
+			this.drain();
+		}
+
+		@Override
+		public void onCommunicationUp(Association association, int maxInboundStreams, int maxOutboundStreams) {
+			if (this.listener != null)
+				this.listener.onCommunicationUp(association, maxInboundStreams, maxOutboundStreams);
+		}
+
+		@Override
+		public void onCommunicationShutdown(Association association) {
+			if (this.listener != null)
+				this.listener.onCommunicationShutdown(association);
+		}
+
+		@Override
+		public void onCommunicationLost(Association association) {
+			if (this.listener != null)
+				this.listener.onCommunicationLost(association);
+		}
+
+		@Override
+		public void onCommunicationRestart(Association association) {
+			if (this.listener != null)
+				this.listener.onCommunicationRestart(association);
+		}
+
+		@Override
+		public void inValidStreamId(PayloadData payloadData) {
+			if (this.listener != null)
+				this.listener.inValidStreamId(payloadData);
+		}
+
+		@Override
+		public void onWritabilityChanged(Association association, boolean writable) {
+			if (this.listener != null)
+				this.listener.onWritabilityChanged(association, writable);
+		}
+	}
+}
@@ -0,0 +1,243 @@
+/*
+ * TeleStax, Open Source Cloud Communications  Copyright 2012.
+ * and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package su.sres.sur.sctp;
+
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+import org.apache.log4j.Logger;
+
+import su.sres.sur.sctp.api.Association;
+import su.sres.sur.sctp.api.CongestionListener;
+import su.sres.sur.sctp.api.Management;
+import su.sres.sur.sctp.api.ManagementEventListener;
+import su.sres.sur.sctp.api.PayloadData;
+import su.sres.sur.sctp.api.Server;
+
+/**
+ * Sends the payloads of a {@link Flow.Publisher} through an Association.
+ * At most prefetch payloads are requested ahead. A payload is requested again
+ * when one has been written, but only while the congestion level of the
+ * Association is 0, otherwise the request waits till the congestion is
+ * cleared.
+ * 
+ * A payload that could not be sent (the Association is down, the outbound
+ * queue is full, the stream id is invalid) is not requested again till the
+ * Association comes up or its congestion is cleared, so a down Association
+ * does not drain the publisher.
+ * 
+ */
+public class AssociationSubscriber implements Flow.Subscriber<PayloadData>, CongestionListener, ManagementEventListener {
+
+	private static final Logger logger = Logger.getLogger(AssociationSubscriber.class);
+
+	private final Association association;
+	private final Management management;
+	private final int prefetch;
+
+	private Flow.Subscription subscription;
+	// payloads written but not requested again yet
+	private long credit = 0;
+	// payloads failed, requested again when the Association is up or not
+	// congested any more
+	private long heldCredit = 0;
+	private boolean done = false;
+
+	// the thread that gets it from 0 requests from the subscription, others
+	// only leave their credit, so request() is not called recursively from
+	// onNext() when a send completes at once
+	private final AtomicInteger drainCount = new AtomicInteger();
+
+	private final BiConsumer<Void, Throwable> sent = new BiConsumer<Void, Throwable>() {
+		@Override
+		public void accept(Void v, Throwable e) {
+			if (e == null) {
+				credit(1);
+				return;
+			}
+
+			logger.warn(String.format("Payload not sent by Association=%s: %s", association.getName(), e.getMessage()));
+			synchronized (AssociationSubscriber.this) {
+				heldCredit++;
+			}
+		}
+	};
+
+	public AssociationSubscriber(Association association, Management management, int prefetch) {
+		if (prefetch <= 0)
+			throw new IllegalArgumentException("prefetch must be positive");
+		this.association = association;
+		this.management = management;
+		this.prefetch = prefetch;
+	}
+
+	@Override
+	public void onSubscribe(Flow.Subscription subscription) {
+		synchronized (this) {
+			if (this.subscription != null || this.done) {
+				subscription.cancel();
+				return;
+			}
+			this.subscription = subscription;
+		}
+
+		this.management.addCongestionListener(this);
+		this.management.addManagementEventListener(this);
+		this.credit(this.prefetch);
+	}
+
+	@Override
+	public void onNext(PayloadData payloadData) {
+		this.association.sendAsync(payloadData).whenComplete(this.sent);
+	}
+
+	@Override
+	public void onError(Throwable throwable) {
+		logger.error(String.format("Publisher of Association=%s failed", this.association.getName()), throwable);
+		this.terminate();
+	}
+
+	@Override
+	public void onComplete() {
+		this.terminate();
+	}
+
+	/**
+	 * Stops requesting payloads from the publisher
+	 */
+	public void cancel() {
+		Flow.Subscription s;
+		synchronized (this) {
+			s = this.subscription;
+		}
+		this.terminate();
+		if (s != null)
+			s.cancel();
+	}
+
+	@Override
+	public void onCongLevelChanged(Association association, int oldCongLevel, int newCongLevel) {
+		if (association == this.association && newCongLevel == 0) {
+			this.releaseHeldCredit();
+		}
+	}
+
+	@Override
+	public void onAssociationUp(Association association) {
+		if (association == this.association) {
+			this.releaseHeldCredit();
+		}
+	}
+
+	@Override
+	public void onServiceStarted() {
+	}
+
+	@Override
+	public void onServiceStopped() {
+	}
+
+	@Override
+	public void onRemoveAllResources() {
+	}
+
+	@Override
+	public void onServerAdded(Server server) {
+	}
+
+	@Override
+	public void onServerRemoved(Server serverName) {
+	}
+
+	@Override
+	public void onAssociationAdded(Association association) {
+	}
+
+	@Override
+	public void onAssociationRemoved(Association association) {
+	}
+
+	@Override
+	public void onAssociationStarted(Association association) {
+	}
+
+	@Override
+	public void onAssociationStopped(Association association) {
+	}
+
+	@Override
+	public void onAssociationDown(Association association) {
+	}
+
+	@Override
+	public void onServerModified(Server removeServer) {
+	}
+
+	@Override
+	public void onAssociationModified(Association association) {
+	}
+
+	private void terminate() {
+		synchronized (this) {
+			this.done = true;
+		}
+		this.management.removeCongestionListener(this);
+		this.management.removeManagementEventListener(this);
+	}
+
+	private void releaseHeldCredit() {
+		synchronized (this) {
+			this.credit += this.heldCredit;
+			this.heldCredit = 0;
+		}
+		this.drain();
+	}
+
+	private void credit(long n) {
+		synchronized (this) {
+			this.credit += n;
+		}
+		this.drain();
+	}
+
+	private void drain() {
+		if (this.drainCount.getAndIncrement() != 0)
+			return;
+
+		do {
+			Flow.Subscription s = null;
+			long requested = 0;
+			synchronized (this) {
+				if (!this.done && this.subscription != null && this.credit > 0 && this.association.getCongestionLevel() == 0) {
+					s = this.subscription;
+					requested = this.credit;
+					this.credit = 0;
+				}
+			}
+			// outside of the lock, onNext() may be called from here
+			if (s != null)
+				s.request(requested);
+		} while (this.drainCount.decrementAndGet() != 0);
+	}
+}
@@ -32,6 +32,10 @@ public final class ChangeRequest {
 	public static final int CHANGEOPS = 2;
 	public static final int CONNECT = 3;
 	public static final int CLOSE = 4;
+	// registers a channel accepted by another SelectorThread
+	public static final int ACCEPT = 5;
+	// applies the current read suspension of the association to OP_READ
+	public static final int READINTEREST = 6;
 
 	private int type;
 	private int ops;
@@ -0,0 +1,132 @@
+/*
+ * TeleStax, Open Source Cloud Communications  Copyright 2012.
+ * and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package su.sres.sur.sctp;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Suspends reading of Associations whose received payloads pile up in the
+ * worker (or listener) queues. Every Association owns an {@link Account}
+ * counting the payloads handed to a queue and not yet delivered to the
+ * AssociationListener. When the account exceeds the high watermark reading is
+ * suspended till it falls to the low watermark again, so the SCTP receive
+ * window / TCP flow control pushes back on the peer instead of the queues
+ * growing.
+ * 
+ * 0 for the high watermark means no automatic suspension, which is the
+ * default.
+ * 
+ */
+public class InboundBacklogLimiter {
+
+	private volatile int highWatermark = 0;
+	private volatile int lowWatermark = 0;
+
+	public int getHighWatermark() {
+		return highWatermark;
+	}
+
+	public void setHighWatermark(int highWatermark) throws Exception {
+		if (highWatermark < 0)
+			throw new Exception("InboundBacklogHighWatermark must not be negative");
+
+		this.highWatermark = highWatermark;
+	}
+
+	public int getLowWatermark() {
+		return lowWatermark;
+	}
+
+	public void setLowWatermark(int lowWatermark) throws Exception {
+		if (lowWatermark < 0)
+			throw new Exception("InboundBacklogLowWatermark must not be negative");
+
+		this.lowWatermark = lowWatermark;
+	}
+
+	/**
+	 * Queued payloads of one Association. The suspension is switched under the
+	 * lock of the account, so suspend() and resume() alternate
+	 */
+	public abstract static class Account {
+
+		private final InboundBacklogLimiter limiter;
+		private final AtomicInteger pendingPayloads = new AtomicInteger();
+		private volatile boolean suspended = false;
+
+		protected Account(InboundBacklogLimiter limiter) {
+			this.limiter = limiter;
+		}
+
+		/**
+		 * Stops reading from the channel of the Association
+		 */
+		protected abstract void suspend();
+
+		/**
+		 * Restarts reading from the channel of the Association
+		 */
+		protected abstract void resume();
+
+		public int getPendingPayloads() {
+			return this.pendingPayloads.get();
+		}
+
+		public boolean isSuspended() {
+			return this.suspended;
+		}
+
+		/**
+		 * A payload was handed to a queue
+		 */
+		public void added() {
+			int pending = this.pendingPayloads.incrementAndGet();
+
+			int high = this.limiter.highWatermark;
+			if (high > 0 && pending > high && !this.suspended) {
+				synchronized (this) {
+					if (!this.suspended && this.pendingPayloads.get() > high) {
+						this.suspended = true;
+						this.suspend();
+					}
+				}
+			}
+		}
+
+		/**
+		 * A payload was delivered to the listener or dropped
+		 */
+		public void removed() {
+			int pending = this.pendingPayloads.decrementAndGet();
+
+			if (this.suspended && pending <= this.limiter.lowWatermark) {
+				synchronized (this) {
+					if (this.suspended && this.pendingPayloads.get() <= this.limiter.lowWatermark) {
+						this.suspended = false;
+						this.resume();
+					}
+				}
+			}
+		}
+	}
+}
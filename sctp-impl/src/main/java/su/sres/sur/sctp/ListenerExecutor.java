@@ -0,0 +1,187 @@
+/*
+ * TeleStax, Open Source Cloud Communications  Copyright 2012.
+ * and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package su.sres.sur.sctp;
+
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.log4j.Logger;
+
+import su.sres.sur.sctp.api.Association;
+import su.sres.sur.sctp.api.AssociationListener;
+import su.sres.sur.sctp.api.PayloadData;
+
+/**
+ * Runs AssociationListener callbacks on virtual threads, so listeners may
+ * block without stalling the I/O threads. Payloads of a stream are kept in a
+ * {@link StreamQueue} and delivered one after another, which keeps the order
+ * of the stream while different streams run in parallel.
+ * 
+ * The stack is compiled for Java 11, so virtual threads are looked up by
+ * reflection. On older JVMs a cached thread pool is used instead.
+ * 
+ */
+public class ListenerExecutor {
+
+	private static final Logger logger = Logger.getLogger(ListenerExecutor.class);
+
+	private final ExecutorService executorService;
+	private final boolean virtual;
+
+	public ListenerExecutor(String name) {
+		ExecutorService virtualExecutor = null;
+		try {
+			virtualExecutor = newVirtualThreadPerTaskExecutor("SctpListener-" + name + "-");
+		} catch (Throwable e) {
+			logger.warn(String.format(
+					"Virtual threads are not available in this JVM, listener callbacks of Management=%s run on a cached thread pool",
+					name));
+		}
+
+		this.virtual = virtualExecutor != null;
+		if (this.virtual) {
+			this.executorService = virtualExecutor;
+		} else {
+			this.executorService = Executors.newCachedThreadPool(new DefaultThreadFactory("SctpListener-" + name));
+		}
+	}
+
+	/**
+	 * Thread.ofVirtual().name(prefix, 0).factory() passed to
+	 * Executors.newThreadPerTaskExecutor()
+	 */
+	private static ExecutorService newVirtualThreadPerTaskExecutor(String prefix) throws Exception {
+		Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+		Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+		builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, prefix, 0L);
+		ThreadFactory threadFactory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+
+		Method newThreadPerTaskExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+		return (ExecutorService) newThreadPerTaskExecutor.invoke(null, threadFactory);
+	}
+
+	/**
+	 * @return true if the callbacks run on virtual threads
+	 */
+	public boolean isVirtual() {
+		return virtual;
+	}
+
+	/**
+	 * @return a new queue for the payloads of one stream of the Association
+	 */
+	public StreamQueue newStreamQueue(Association association) {
+		return new StreamQueue(association, null);
+	}
+
+	/**
+	 * @param backlog
+	 *            told about every payload that is delivered or dropped, the
+	 *            caller counts the queued ones
+	 * @return a new queue for the payloads of one stream of the Association
+	 */
+	public StreamQueue newStreamQueue(Association association, InboundBacklogLimiter.Account backlog) {
+		return new StreamQueue(association, backlog);
+	}
+
+	public void shutdown() {
+		this.executorService.shutdown();
+	}
+
+	public boolean awaitTermination(long timeout) throws InterruptedException {
+		return this.executorService.awaitTermination(timeout, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Payloads of one stream. At most one thread delivers them at a time
+	 * 
+	 */
+	public final class StreamQueue implements Runnable {
+
+		private final Association association;
+		private final InboundBacklogLimiter.Account backlog;
+		private final ConcurrentLinkedQueue<PayloadData> payloads = new ConcurrentLinkedQueue<PayloadData>();
+		private final AtomicBoolean scheduled = new AtomicBoolean();
+
+		private StreamQueue(Association association, InboundBacklogLimiter.Account backlog) {
+			this.association = association;
+			this.backlog = backlog;
+		}
+
+		/**
+		 * Queues the payload for delivery. If the executor is shut down the
+		 * payload is released
+		 */
+		public void deliver(PayloadData payloadData) {
+			this.payloads.add(payloadData);
+			this.schedule();
+		}
+
+		private void schedule() {
+			if (!this.scheduled.compareAndSet(false, true))
+				return;
+
+			try {
+				executorService.execute(this);
+			} catch (Exception e) {
+				logger.error(String.format("Rejected payloads of Association=%s as Executor is shutdown", this.association.getName()), e);
+				PayloadData payloadData;
+				while ((payloadData = this.payloads.poll()) != null) {
+					payloadData.releaseBuffer();
+					if (this.backlog != null)
+						this.backlog.removed();
+				}
+				this.scheduled.set(false);
+			}
+		}
+
+		@Override
+		public void run() {
+			PayloadData payloadData;
+			while ((payloadData = this.payloads.poll()) != null) {
+				AssociationListener associationListener = this.association.getAssociationListener();
+				try {
+					associationListener.onPayload(this.association, payloadData);
+				} catch (Exception e) {
+					logger.error(String.format("Error while calling Listener for Association=%s.Payload=%s",
+							this.association.getName(), payloadData), e);
+				}
+				if (this.backlog != null)
+					this.backlog.removed();
+			}
+
+			this.scheduled.set(false);
+			// a payload may have been added after the queue was found empty
+			if (!this.payloads.isEmpty()) {
+				this.schedule();
+			}
+		}
+	}
+}
@@ -22,12 +22,14 @@
 
 package su.sres.sur.sctp;
 
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.channels.Selector;
 import java.nio.channels.spi.SelectorProvider;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -35,9 +37,6 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
 
 import javolution.text.TextBuilder;
 import javolution.util.FastTable;
@@ -51,8 +50,10 @@ import su.sres.sur.sctp.api.CongestionListener;
 import su.sres.sur.sctp.api.IpChannelType;
 import su.sres.sur.sctp.api.Management;
 import su.sres.sur.sctp.api.ManagementEventListener;
+import su.sres.sur.sctp.api.OutboundOverflowPolicy;
 import su.sres.sur.sctp.api.Server;
 import su.sres.sur.sctp.api.ServerListener;
+import su.sres.sur.sctp.api.TcpFramingConfig;
 import su.sres.sur.sctp.netty.NettySctpManagementImpl;
 
 import org.apache.log4j.Logger;
@@ -76,6 +77,19 @@ public class ManagementImpl implements Management {
     private static final String SINGLE_THREAD_PROP = "singlethread";
     private static final String WORKER_THREADS_PROP = "workerthreads";
 
+    public static final String CONG_CONTROL_QUEUE_BYTES_THRESHOLD_1 = "congControl_QueueBytesThreshold_1";
+    public static final String CONG_CONTROL_QUEUE_BYTES_THRESHOLD_2 = "congControl_QueueBytesThreshold_2";
+    public static final String CONG_CONTROL_QUEUE_BYTES_THRESHOLD_3 = "congControl_QueueBytesThreshold_3";
+    public static final String CONG_CONTROL_BACK_TO_NORMAL_QUEUE_BYTES_THRESHOLD_1 = "congControl_BackToNormalQueueBytesThreshold_1";
+    public static final String CONG_CONTROL_BACK_TO_NORMAL_QUEUE_BYTES_THRESHOLD_2 = "congControl_BackToNormalQueueBytesThreshold_2";
+    public static final String CONG_CONTROL_BACK_TO_NORMAL_QUEUE_BYTES_THRESHOLD_3 = "congControl_BackToNormalQueueBytesThreshold_3";
+    public static final String CONG_CONTROL_QUEUE_MESSAGES_THRESHOLD_1 = "congControl_QueueMessagesThreshold_1";
+    public static final String CONG_CONTROL_QUEUE_MESSAGES_THRESHOLD_2 = "congControl_QueueMessagesThreshold_2";
+    public static final String CONG_CONTROL_QUEUE_MESSAGES_THRESHOLD_3 = "congControl_QueueMessagesThreshold_3";
+    public static final String CONG_CONTROL_BACK_TO_NORMAL_QUEUE_MESSAGES_THRESHOLD_1 = "congControl_BackToNormalQueueMessagesThreshold_1";
+    public static final String CONG_CONTROL_BACK_TO_NORMAL_QUEUE_MESSAGES_THRESHOLD_2 = "congControl_BackToNormalQueueMessagesThreshold_2";
+    public static final String CONG_CONTROL_BACK_TO_NORMAL_QUEUE_MESSAGES_THRESHOLD_3 = "congControl_BackToNormalQueueMessagesThreshold_3";
+
 	private final TextBuilder persistFile = new TextBuilder();
 
 	protected static final SctpXMLBinding binding = new SctpXMLBinding();
@@ -89,12 +103,11 @@ public class ManagementImpl implements Management {
 	protected FastTable<Server> servers = new FastTable<Server>();
 	protected AssociationMap<String, Association> associations = new AssociationMap<String, Association>();
 
-	private FastTable<ChangeRequest> pendingChanges = new FastTable<ChangeRequest>();
-
-	// Create a new selector
-	private Selector socketSelector = null;
+	// Selector threads, each owning its own Selector and queue of pending
+	// changes. Associations are spread across them by a stable hash
+	private SelectorThread[] selectorThreadPool = null;
 
-	private SelectorThread selectorThread = null;
+	private int selectorThreads = 1;
 
 	static final int DEFAULT_IO_THREADS = Runtime.getRuntime().availableProcessors() * 2;
 
@@ -104,6 +117,10 @@ public class ManagementImpl implements Management {
 
 	private int workerThreadCount = 0;
 
+	// size of the ring of each worker thread and how an idle worker waits
+	private int workerQueueSize = 8192;
+	private WaitStrategy workerWaitStrategy = WaitStrategy.BLOCKING;
+
 	// Maximum IO Errors tolerated by Socket. After this the Socket will be
 	// closed and attempt will be made to open again
 	private int maxIOErrors = 3;
@@ -112,9 +129,50 @@ public class ManagementImpl implements Management {
 
 	private int bufferSize = 8192;
 
-	private ExecutorService[] executorServices = null;
+	// Maximum number of payloads and bytes taken from the txQueue of an
+	// Association for one gathering write
+	private int writeBatchSize = 64;
+	private int writeBatchBytes = 65536;
+	private boolean directWrite = true;
+
+	// Maximum number of messages and bytes read from an Association per
+	// readiness event, so a busy Association can not starve the others of
+	// its SelectorThread
+	private int readBudgetMessages = 16;
+	private int readBudgetBytes = 65536;
+
+	// allocator for the inbound buffers handed to the AssociationListener and
+	// exposed to users for encoding outbound messages
+	private ByteBufAllocator byteBufAllocator = PooledByteBufAllocator.DEFAULT;
+
+	// limits of the outbound bytes not yet written to the sockets
+	private final OutboundQueueLimiter outboundQueueLimiter = new OutboundQueueLimiter() {
+		@Override
+		protected boolean isIoThread() {
+			return ManagementImpl.this.isSelectorThread();
+		}
+	};
+	private final InboundBacklogLimiter inboundBacklogLimiter = new InboundBacklogLimiter();
+
+	private PayloadDispatcher[] payloadDispatchers = null;
+
+	// delivery of listener callbacks on virtual threads
+	private boolean virtualThreadDelivery = false;
+	private TcpFramingConfig tcpFraming = null;
+	private int maxSctpMessageSize = 1048576;
+	private ListenerExecutor listenerExecutor = null;
 
 	private FastTable<ManagementEventListener> managementEventListeners = new FastTable<ManagementEventListener>();
+	private FastTable<CongestionListener> congestionListeners = new FastTable<CongestionListener>();
+
+	// Outgoing congestion control: bytes and messages not yet written to the
+	// socket of an Association. Exceeding one of the thresholds raises the
+	// congestion level to 1, 2 or 3, it is reduced again when both values
+	// are below the BackToNormal thresholds
+	protected int[] congControl_QueueBytesThreshold = new int[] { 512 * 1024, 2 * 1024 * 1024, 8 * 1024 * 1024 };
+	protected int[] congControl_BackToNormalQueueBytesThreshold = new int[] { 256 * 1024, 1024 * 1024, 4 * 1024 * 1024 };
+	protected int[] congControl_QueueMessagesThreshold = new int[] { 1000, 5000, 20000 };
+	protected int[] congControl_BackToNormalQueueMessagesThreshold = new int[] { 500, 2500, 10000 };
 
 	private ServerListener serverListener = null;
 
@@ -126,7 +184,6 @@ public class ManagementImpl implements Management {
 		binding.setAlias(ServerImpl.class, "server");
 		binding.setAlias(AssociationImpl.class, "association");
 		binding.setAlias(String.class, "string");
-		this.socketSelector = SelectorProvider.provider().openSelector();
 	}
 
 	/**
@@ -187,6 +244,102 @@ public class ManagementImpl implements Management {
 //		this.store();
 	}
 
+	/**
+	 * @return the number of payloads each worker thread can queue
+	 */
+	public int getWorkerQueueSize() {
+		return workerQueueSize;
+	}
+
+	/**
+	 * @param workerQueueSize
+	 *            the workerQueueSize to set, rounded up to a power of two
+	 */
+	public void setWorkerQueueSize(int workerQueueSize) throws Exception {
+		if (this.started)
+			throw new Exception("WorkerQueueSize parameter can be updated only when SCTP stack is NOT running");
+		if (workerQueueSize < 1)
+			throw new Exception("WorkerQueueSize must be greater than 0");
+
+		this.workerQueueSize = workerQueueSize;
+	}
+
+	/**
+	 * @return the strategy idle worker threads wait with
+	 */
+	public WaitStrategy getWorkerWaitStrategy() {
+		return workerWaitStrategy;
+	}
+
+	/**
+	 * @param workerWaitStrategy
+	 *            the workerWaitStrategy to set
+	 */
+	public void setWorkerWaitStrategy(WaitStrategy workerWaitStrategy) throws Exception {
+		if (this.started)
+			throw new Exception("WorkerWaitStrategy parameter can be updated only when SCTP stack is NOT running");
+		if (workerWaitStrategy == null)
+			throw new Exception("WorkerWaitStrategy must not be null");
+
+		this.workerWaitStrategy = workerWaitStrategy;
+	}
+
+	/**
+	 * @return the number of payloads waiting for delivery in each worker
+	 *         thread, empty if the stack is stopped or in single thread mode
+	 */
+	public int[] getWorkerQueueDepths() {
+		PayloadDispatcher[] dispatchers = this.payloadDispatchers;
+		if (dispatchers == null)
+			return new int[0];
+
+		int[] depths = new int[dispatchers.length];
+		for (int i = 0; i < dispatchers.length; i++) {
+			depths[i] = dispatchers[i].getQueueDepth();
+		}
+		return depths;
+	}
+
+	/**
+	 * @return the highest number of payloads that were waiting for delivery
+	 *         in each worker thread
+	 */
+	public int[] getWorkerQueuePeakDepths() {
+		PayloadDispatcher[] dispatchers = this.payloadDispatchers;
+		if (dispatchers == null)
+			return new int[0];
+
+		int[] depths = new int[dispatchers.length];
+		for (int i = 0; i < dispatchers.length; i++) {
+			depths[i] = dispatchers[i].getPeakQueueDepth();
+		}
+		return depths;
+	}
+
+	/**
+	 * @return the number of SelectorThreads
+	 */
+	public int getSelectorThreads() {
+		return selectorThreads;
+	}
+
+	/**
+	 * Sets the number of SelectorThreads (each with its own Selector) the I/O
+	 * of Servers and Associations is spread across
+	 * 
+	 * @param selectorThreads
+	 *            the selectorThreads to set
+	 */
+	public void setSelectorThreads(int selectorThreads) throws Exception {
+		if (this.started)
+			throw new Exception("SelectorThreads parameter can be updated only when SCTP stack is NOT running");
+
+		if (selectorThreads < 1) {
+			selectorThreads = 1;
+		}
+		this.selectorThreads = selectorThreads;
+	}
+
 	/**
 	 * @return the maxIOErrors
 	 */
@@ -240,6 +393,261 @@ public class ManagementImpl implements Management {
         this.bufferSize = bufferSize;
     }
 
+    @Override
+    public int getOutboundQueueHighWatermark() {
+        return this.outboundQueueLimiter.getHighWatermark();
+    }
+
+    @Override
+    public void setOutboundQueueHighWatermark(int val) throws Exception {
+        this.outboundQueueLimiter.setHighWatermark(val);
+    }
+
+    @Override
+    public int getOutboundQueueLowWatermark() {
+        return this.outboundQueueLimiter.getLowWatermark();
+    }
+
+    @Override
+    public void setOutboundQueueLowWatermark(int val) throws Exception {
+        this.outboundQueueLimiter.setLowWatermark(val);
+    }
+
+    @Override
+    public long getMaxPendingOutboundBytes() {
+        return this.outboundQueueLimiter.getMaxPendingBytes();
+    }
+
+    @Override
+    public void setMaxPendingOutboundBytes(long val) throws Exception {
+        this.outboundQueueLimiter.setMaxPendingBytes(val);
+    }
+
+    @Override
+    public OutboundOverflowPolicy getOutboundOverflowPolicy() {
+        return this.outboundQueueLimiter.getOverflowPolicy();
+    }
+
+    @Override
+    public void setOutboundOverflowPolicy(OutboundOverflowPolicy val) throws Exception {
+        this.outboundQueueLimiter.setOverflowPolicy(val);
+    }
+
+    @Override
+    public long getOutboundBlockTimeout() {
+        return this.outboundQueueLimiter.getBlockTimeout();
+    }
+
+    @Override
+    public void setOutboundBlockTimeout(long val) throws Exception {
+        this.outboundQueueLimiter.setBlockTimeout(val);
+    }
+
+    protected OutboundQueueLimiter getOutboundQueueLimiter() {
+        return this.outboundQueueLimiter;
+    }
+
+    @Override
+    public boolean isVirtualThreadDelivery() {
+        return this.virtualThreadDelivery;
+    }
+
+    @Override
+    public void setVirtualThreadDelivery(boolean val) throws Exception {
+        if (this.started)
+            throw new Exception("VirtualThreadDelivery parameter can be updated only when SCTP stack is NOT running");
+
+        this.virtualThreadDelivery = val;
+    }
+
+    @Override
+    public int getInboundBacklogHighWatermark() {
+        return this.inboundBacklogLimiter.getHighWatermark();
+    }
+
+    @Override
+    public void setInboundBacklogHighWatermark(int val) throws Exception {
+        this.inboundBacklogLimiter.setHighWatermark(val);
+    }
+
+    @Override
+    public int getInboundBacklogLowWatermark() {
+        return this.inboundBacklogLimiter.getLowWatermark();
+    }
+
+    @Override
+    public void setInboundBacklogLowWatermark(int val) throws Exception {
+        this.inboundBacklogLimiter.setLowWatermark(val);
+    }
+
+    protected InboundBacklogLimiter getInboundBacklogLimiter() {
+        return this.inboundBacklogLimiter;
+    }
+
+    @Override
+    public TcpFramingConfig getTcpFraming() {
+        return this.tcpFraming;
+    }
+
+    @Override
+    public void setTcpFraming(TcpFramingConfig val) throws Exception {
+        if (this.started)
+            throw new Exception("TcpFraming parameter can be updated only when SCTP stack is NOT running");
+
+        this.tcpFraming = val;
+    }
+
+    @Override
+    public int getMaxSctpMessageSize() {
+        return this.maxSctpMessageSize;
+    }
+
+    @Override
+    public void setMaxSctpMessageSize(int val) throws Exception {
+        if (this.started)
+            throw new Exception("MaxSctpMessageSize parameter can be updated only when SCTP stack is NOT running");
+        if (val < 0)
+            throw new Exception("MaxSctpMessageSize must not be negative");
+
+        this.maxSctpMessageSize = val;
+    }
+
+    /**
+     * @return the executor of listener callbacks or null if they are not
+     *         delivered on virtual threads
+     */
+    protected ListenerExecutor getListenerExecutor() {
+        return this.listenerExecutor;
+    }
+
+	/**
+	 * @return the maximum number of queued payloads written with one
+	 *         (gathering) write
+	 */
+	public int getWriteBatchSize() {
+		return writeBatchSize;
+	}
+
+	/**
+	 * @param writeBatchSize
+	 *            the writeBatchSize to set
+	 */
+	public void setWriteBatchSize(int writeBatchSize) throws Exception {
+		if (this.started)
+			throw new Exception("WriteBatchSize parameter can be updated only when SCTP stack is NOT running");
+		if (writeBatchSize < 1)
+			throw new Exception("WriteBatchSize must be greater than 0");
+
+		this.writeBatchSize = writeBatchSize;
+	}
+
+	/**
+	 * @return the number of bytes after which no more queued payloads are
+	 *         added to a (gathering) write
+	 */
+	public int getWriteBatchBytes() {
+		return writeBatchBytes;
+	}
+
+	/**
+	 * @param writeBatchBytes
+	 *            the writeBatchBytes to set
+	 */
+	public void setWriteBatchBytes(int writeBatchBytes) throws Exception {
+		if (this.started)
+			throw new Exception("WriteBatchBytes parameter can be updated only when SCTP stack is NOT running");
+		if (writeBatchBytes < 1)
+			throw new Exception("WriteBatchBytes must be greater than 0");
+
+		this.writeBatchBytes = writeBatchBytes;
+	}
+
+	/**
+	 * @return true if Associations write from the sending thread while their
+	 *         txQueue is empty instead of handing every payload to the
+	 *         SelectorThread
+	 */
+	public boolean isDirectWrite() {
+		return directWrite;
+	}
+
+	/**
+	 * @param directWrite
+	 *            the directWrite to set
+	 */
+	public void setDirectWrite(boolean directWrite) throws Exception {
+		if (this.started)
+			throw new Exception("DirectWrite parameter can be updated only when SCTP stack is NOT running");
+
+		this.directWrite = directWrite;
+	}
+
+	/**
+	 * @return the maximum number of messages read from an Association per
+	 *         readiness event
+	 */
+	public int getReadBudgetMessages() {
+		return readBudgetMessages;
+	}
+
+	/**
+	 * @param readBudgetMessages
+	 *            the readBudgetMessages to set
+	 */
+	public void setReadBudgetMessages(int readBudgetMessages) throws Exception {
+		if (this.started)
+			throw new Exception("ReadBudgetMessages parameter can be updated only when SCTP stack is NOT running");
+		if (readBudgetMessages < 1)
+			throw new Exception("ReadBudgetMessages must be greater than 0");
+
+		this.readBudgetMessages = readBudgetMessages;
+	}
+
+	/**
+	 * @return the maximum number of bytes read from an Association per
+	 *         readiness event
+	 */
+	public int getReadBudgetBytes() {
+		return readBudgetBytes;
+	}
+
+	/**
+	 * @param readBudgetBytes
+	 *            the readBudgetBytes to set
+	 */
+	public void setReadBudgetBytes(int readBudgetBytes) throws Exception {
+		if (this.started)
+			throw new Exception("ReadBudgetBytes parameter can be updated only when SCTP stack is NOT running");
+		if (readBudgetBytes < 1)
+			throw new Exception("ReadBudgetBytes must be greater than 0");
+
+		this.readBudgetBytes = readBudgetBytes;
+	}
+
+	/**
+	 * @return the ByteBufAllocator that Associations read into and expose via
+	 *         {@link Association#getByteBufAllocator()}
+	 */
+	public ByteBufAllocator getByteBufAllocator() {
+		return byteBufAllocator;
+	}
+
+	/**
+	 * Sets the ByteBufAllocator used for inbound payloads. By default this is
+	 * the shared PooledByteBufAllocator, so the AssociationListener must
+	 * release the received PayloadData
+	 * 
+	 * @param byteBufAllocator
+	 */
+	public void setByteBufAllocator(ByteBufAllocator byteBufAllocator) throws Exception {
+		if (this.started)
+			throw new Exception("ByteBufAllocator parameter can be updated only when SCTP stack is NOT running");
+		if (byteBufAllocator == null)
+			throw new Exception("ByteBufAllocator cannot be null");
+
+		this.byteBufAllocator = byteBufAllocator;
+	}
+
 	public ServerListener getServerListener() {
 		return serverListener;
 	}
@@ -295,29 +703,41 @@ public class ManagementImpl implements Management {
 
 			logger.info(String.format("SCTP configuration file path %s", persistFile.toString()));
 
+			// Selectors must exist before load() as started Servers are
+			// registered with them
+			this.selectorThreadPool = new SelectorThread[this.selectorThreads];
+			for (int i = 0; i < this.selectorThreads; i++) {
+				this.selectorThreadPool[i] = new SelectorThread(SelectorProvider.provider().openSelector(), this, i);
+			}
+
 			try {
 				this.load();
 			} catch (FileNotFoundException e) {
 				logger.warn(String.format("Failed to load the SCTP configuration file. \n%s", e.getMessage()));
 			}
 
-			if (!this.singleThread) {
+			if (this.virtualThreadDelivery) {
+				this.listenerExecutor = new ListenerExecutor(this.name);
+			} else if (!this.singleThread) {
 				// If not single thread model we create worker threads
-				this.executorServices = new ExecutorService[this.workerThreads];
+				this.payloadDispatchers = new PayloadDispatcher[this.workerThreads];
 				for (int i = 0; i < this.workerThreads; i++) {
-					this.executorServices[i] = Executors.newSingleThreadExecutor();
+					this.payloadDispatchers[i] = new PayloadDispatcher(this.workerQueueSize, this.workerWaitStrategy);
+					this.payloadDispatchers[i].start(String.format("SctpWorker-%s-%d", this.name, i));
 				}
 			}
-			this.selectorThread = new SelectorThread(this.socketSelector, this);
-			this.selectorThread.setStarted(true);
-
-			(new Thread(this.selectorThread)).start();
+			for (int i = 0; i < this.selectorThreadPool.length; i++) {
+				this.selectorThreadPool[i].setStarted(true);
+				(new Thread(this.selectorThreadPool[i], String.format("SctpSelector-%s-%d", this.name, i))).start();
+			}
 
 			this.started = true;
 
 			if (logger.isInfoEnabled()) {
-				logger.info(String.format("Started SCTP Management=%s WorkerThreads=%d SingleThread=%s", this.name,
-						(this.singleThread ? 0 : this.workerThreads), this.singleThread));
+				logger.info(String.format(
+						"Started SCTP Management=%s SelectorThreads=%d WorkerThreads=%d SingleThread=%s VirtualThreadDelivery=%s", this.name,
+						this.selectorThreadPool.length, (this.singleThread || this.virtualThreadDelivery ? 0 : this.workerThreads),
+						this.singleThread, this.virtualThreadDelivery));
 			}
 
 			for (ManagementEventListener lstr : managementEventListeners) {
@@ -388,14 +808,19 @@ public class ManagementImpl implements Management {
 			}
 		} */
 
-		if (this.executorServices != null) {
-			for (int i = 0; i < this.executorServices.length; i++) {
-				this.executorServices[i].shutdown();
+		if (this.payloadDispatchers != null) {
+			for (int i = 0; i < this.payloadDispatchers.length; i++) {
+				this.payloadDispatchers[i].stop();
 			}
 		}
+		if (this.listenerExecutor != null) {
+			this.listenerExecutor.shutdown();
+		}
 
-		this.selectorThread.setStarted(false);
-		this.socketSelector.wakeup(); // Wakeup selector so SelectorThread dies
+		for (int i = 0; i < this.selectorThreadPool.length; i++) {
+			this.selectorThreadPool[i].setStarted(false);
+			this.selectorThreadPool[i].wakeup(); // Wakeup selector so SelectorThread dies
+		}
 
 		// waiting till stopping associations
 		for (int i1 = 0; i1 < 20; i1++) {
@@ -423,20 +848,27 @@ public class ManagementImpl implements Management {
 			Thread.sleep(100);
 		}
 
-		// Graceful shutdown for each of Executors
-		if (this.executorServices != null) {
-			for (int i = 0; i < this.executorServices.length; i++) {
-				if (!this.executorServices[i].isTerminated()) {
-					if (logger.isInfoEnabled()) {
-						logger.info("Waiting for worker thread to die gracefully ....");
-					}
-					try {
-						this.executorServices[i].awaitTermination(5000, TimeUnit.MILLISECONDS);
-					} catch (InterruptedException e) {
-						// Do we care?
-					}
+		// Graceful shutdown for each of worker threads
+		if (this.payloadDispatchers != null) {
+			for (int i = 0; i < this.payloadDispatchers.length; i++) {
+				if (logger.isInfoEnabled()) {
+					logger.info("Waiting for worker thread to die gracefully ....");
 				}
+				try {
+					this.payloadDispatchers[i].awaitTermination(5000);
+				} catch (InterruptedException e) {
+					// Do we care?
+				}
+			}
+			this.payloadDispatchers = null;
+		}
+		if (this.listenerExecutor != null) {
+			try {
+				this.listenerExecutor.awaitTermination(5000);
+			} catch (InterruptedException e) {
+				// Do we care?
 			}
+			this.listenerExecutor = null;
 		}
 
 		this.started = false;
@@ -472,6 +904,21 @@ public class ManagementImpl implements Management {
                 Double valTB3 = reader
                         .read(NettySctpManagementImpl.CONG_CONTROL_BACK_TO_NORMAL_DELAY_THRESHOLD_3, Double.class);
 
+                this.congControl_QueueBytesThreshold = this.readThresholds(reader, this.congControl_QueueBytesThreshold,
+                        CONG_CONTROL_QUEUE_BYTES_THRESHOLD_1, CONG_CONTROL_QUEUE_BYTES_THRESHOLD_2,
+                        CONG_CONTROL_QUEUE_BYTES_THRESHOLD_3);
+                this.congControl_BackToNormalQueueBytesThreshold = this.readThresholds(reader,
+                        this.congControl_BackToNormalQueueBytesThreshold, CONG_CONTROL_BACK_TO_NORMAL_QUEUE_BYTES_THRESHOLD_1,
+                        CONG_CONTROL_BACK_TO_NORMAL_QUEUE_BYTES_THRESHOLD_2, CONG_CONTROL_BACK_TO_NORMAL_QUEUE_BYTES_THRESHOLD_3);
+                this.congControl_QueueMessagesThreshold = this.readThresholds(reader, this.congControl_QueueMessagesThreshold,
+                        CONG_CONTROL_QUEUE_MESSAGES_THRESHOLD_1, CONG_CONTROL_QUEUE_MESSAGES_THRESHOLD_2,
+                        CONG_CONTROL_QUEUE_MESSAGES_THRESHOLD_3);
+                this.congControl_BackToNormalQueueMessagesThreshold = this.readThresholds(reader,
+                        this.congControl_BackToNormalQueueMessagesThreshold,
+                        CONG_CONTROL_BACK_TO_NORMAL_QUEUE_MESSAGES_THRESHOLD_1,
+                        CONG_CONTROL_BACK_TO_NORMAL_QUEUE_MESSAGES_THRESHOLD_2,
+                        CONG_CONTROL_BACK_TO_NORMAL_QUEUE_MESSAGES_THRESHOLD_3);
+
                 // TODO: revive this test when we introduce of parameters persistense 
 //                Boolean valB = reader.read(NettySctpManagementImpl.OPTION_SCTP_DISABLE_FRAGMENTS, Boolean.class);
 //                Integer valI = reader.read(NettySctpManagementImpl.OPTION_SCTP_FRAGMENT_INTERLEAVE, Integer.class);
@@ -531,6 +978,24 @@ public class ManagementImpl implements Management {
 		}
 	}
 
+	private int[] readThresholds(XMLObjectReader reader, int[] current, String name1, String name2, String name3)
+			throws XMLStreamException {
+		Integer val1 = reader.read(name1, Integer.class);
+		Integer val2 = reader.read(name2, Integer.class);
+		Integer val3 = reader.read(name3, Integer.class);
+		if (val1 != null && val2 != null && val3 != null)
+			return new int[] { val1, val2, val3 };
+		else
+			return current;
+	}
+
+	private void writeThresholds(XMLObjectWriter writer, int[] thresholds, String name1, String name2, String name3)
+			throws XMLStreamException {
+		writer.write(thresholds[0], name1, Integer.class);
+		writer.write(thresholds[1], name2, Integer.class);
+		writer.write(thresholds[2], name3, Integer.class);
+	}
+
 	public void store() {
 		try {
 			XMLObjectWriter writer = XMLObjectWriter.newInstance(new FileOutputStream(persistFile.toString()));
@@ -540,6 +1005,17 @@ public class ManagementImpl implements Management {
 			writer.setIndentation(TAB_INDENT);
 
             writer.write(this.connectDelay, CONNECT_DELAY_PROP, Integer.class);
+            this.writeThresholds(writer, this.congControl_QueueBytesThreshold, CONG_CONTROL_QUEUE_BYTES_THRESHOLD_1,
+                    CONG_CONTROL_QUEUE_BYTES_THRESHOLD_2, CONG_CONTROL_QUEUE_BYTES_THRESHOLD_3);
+            this.writeThresholds(writer, this.congControl_BackToNormalQueueBytesThreshold,
+                    CONG_CONTROL_BACK_TO_NORMAL_QUEUE_BYTES_THRESHOLD_1, CONG_CONTROL_BACK_TO_NORMAL_QUEUE_BYTES_THRESHOLD_2,
+                    CONG_CONTROL_BACK_TO_NORMAL_QUEUE_BYTES_THRESHOLD_3);
+            this.writeThresholds(writer, this.congControl_QueueMessagesThreshold, CONG_CONTROL_QUEUE_MESSAGES_THRESHOLD_1,
+                    CONG_CONTROL_QUEUE_MESSAGES_THRESHOLD_2, CONG_CONTROL_QUEUE_MESSAGES_THRESHOLD_3);
+            this.writeThresholds(writer, this.congControl_BackToNormalQueueMessagesThreshold,
+                    CONG_CONTROL_BACK_TO_NORMAL_QUEUE_MESSAGES_THRESHOLD_1,
+                    CONG_CONTROL_BACK_TO_NORMAL_QUEUE_MESSAGES_THRESHOLD_2,
+                    CONG_CONTROL_BACK_TO_NORMAL_QUEUE_MESSAGES_THRESHOLD_3);
 //            writer.write(this.workerThreads, WORKER_THREADS_PROP, Integer.class);
 //            writer.write(this.singleThread, SINGLE_THREAD_PROP, Boolean.class);
 
@@ -1183,20 +1659,41 @@ public class ManagementImpl implements Management {
 	}
 
 	/**
-	 * @return the pendingChanges
+	 * @return the SelectorThread that owns all I/O of the passed Association
+	 */
+	protected SelectorThread getSelectorThread(AssociationImpl association) {
+		return this.getSelectorThread(association.getShardKey());
+	}
+
+	/**
+	 * @return the SelectorThread that accepts connections for the passed Server
 	 */
-	protected FastTable<ChangeRequest> getPendingChanges() {
-		return pendingChanges;
+	protected SelectorThread getSelectorThread(ServerImpl server) {
+		return this.getSelectorThread(server.getName());
 	}
 
 	/**
-	 * @return the socketSelector
+	 * @return true if called by one of the SelectorThreads
 	 */
-	protected Selector getSocketSelector() {
-		return socketSelector;
+	protected boolean isSelectorThread() {
+		SelectorThread[] pool = this.selectorThreadPool;
+		if (pool == null)
+			return false;
+		for (int i = 0; i < pool.length; i++) {
+			if (pool[i].inSelectorThread())
+				return true;
+		}
+		return false;
 	}
 
-	protected void populateWorkerThread(int workerThreadTable[]) {
+	private SelectorThread getSelectorThread(String shardKey) {
+		SelectorThread[] pool = this.selectorThreadPool;
+		int hash = shardKey.hashCode();
+		hash ^= (hash >>> 16);
+		return pool[(hash & Integer.MAX_VALUE) % pool.length];
+	}
+
+	protected synchronized void populateWorkerThread(int workerThreadTable[]) {
 		for (int count = 0; count < workerThreadTable.length; count++) {
 			if (this.workerThreadCount == this.workerThreads) {
 				this.workerThreadCount = 0;
@@ -1207,8 +1704,8 @@ public class ManagementImpl implements Management {
 		}
 	}
 
-	protected ExecutorService getExecutorService(int index) {
-		return this.executorServices[index];
+	protected PayloadDispatcher getPayloadDispatcher(int index) {
+		return this.payloadDispatchers[index];
 	}
 
     @Override
@@ -1283,6 +1780,162 @@ public class ManagementImpl implements Management {
         
     }
 
+    public int getCongControl_QueueBytesThreshold_1() {
+        return congControl_QueueBytesThreshold[0];
+    }
+
+    public int getCongControl_QueueBytesThreshold_2() {
+        return congControl_QueueBytesThreshold[1];
+    }
+
+    public int getCongControl_QueueBytesThreshold_3() {
+        return congControl_QueueBytesThreshold[2];
+    }
+
+    public void setCongControl_QueueBytesThreshold_1(int val) throws Exception {
+        if (!this.started)
+            throw new Exception("CongControl_QueueBytesThreshold parameter can be updated only when SCTP stack is running");
+
+        congControl_QueueBytesThreshold[0] = val;
+
+        this.store();
+    }
+
+    public void setCongControl_QueueBytesThreshold_2(int val) throws Exception {
+        if (!this.started)
+            throw new Exception("CongControl_QueueBytesThreshold parameter can be updated only when SCTP stack is running");
+
+        congControl_QueueBytesThreshold[1] = val;
+
+        this.store();
+    }
+
+    public void setCongControl_QueueBytesThreshold_3(int val) throws Exception {
+        if (!this.started)
+            throw new Exception("CongControl_QueueBytesThreshold parameter can be updated only when SCTP stack is running");
+
+        congControl_QueueBytesThreshold[2] = val;
+
+        this.store();
+    }
+
+    public int getCongControl_BackToNormalQueueBytesThreshold_1() {
+        return congControl_BackToNormalQueueBytesThreshold[0];
+    }
+
+    public int getCongControl_BackToNormalQueueBytesThreshold_2() {
+        return congControl_BackToNormalQueueBytesThreshold[1];
+    }
+
+    public int getCongControl_BackToNormalQueueBytesThreshold_3() {
+        return congControl_BackToNormalQueueBytesThreshold[2];
+    }
+
+    public void setCongControl_BackToNormalQueueBytesThreshold_1(int val) throws Exception {
+        if (!this.started)
+            throw new Exception("CongControl_BackToNormalQueueBytesThreshold parameter can be updated only when SCTP stack is running");
+
+        congControl_BackToNormalQueueBytesThreshold[0] = val;
+
+        this.store();
+    }
+
+    public void setCongControl_BackToNormalQueueBytesThreshold_2(int val) throws Exception {
+        if (!this.started)
+            throw new Exception("CongControl_BackToNormalQueueBytesThreshold parameter can be updated only when SCTP stack is running");
+
+        congControl_BackToNormalQueueBytesThreshold[1] = val;
+
+        this.store();
+    }
+
+    public void setCongControl_BackToNormalQueueBytesThreshold_3(int val) throws Exception {
+        if (!this.started)
+            throw new Exception("CongControl_BackToNormalQueueBytesThreshold parameter can be updated only when SCTP stack is running");
+
+        congControl_BackToNormalQueueBytesThreshold[2] = val;
+
+        this.store();
+    }
+
+    public int getCongControl_QueueMessagesThreshold_1() {
+        return congControl_QueueMessagesThreshold[0];
+    }
+
+    public int getCongControl_QueueMessagesThreshold_2() {
+        return congControl_QueueMessagesThreshold[1];
+    }
+
+    public int getCongControl_QueueMessagesThreshold_3() {
+        return congControl_QueueMessagesThreshold[2];
+    }
+
+    public void setCongControl_QueueMessagesThreshold_1(int val) throws Exception {
+        if (!this.started)
+            throw new Exception("CongControl_QueueMessagesThreshold parameter can be updated only when SCTP stack is running");
+
+        congControl_QueueMessagesThreshold[0] = val;
+
+        this.store();
+    }
+
+    public void setCongControl_QueueMessagesThreshold_2(int val) throws Exception {
+        if (!this.started)
+            throw new Exception("CongControl_QueueMessagesThreshold parameter can be updated only when SCTP stack is running");
+
+        congControl_QueueMessagesThreshold[1] = val;
+
+        this.store();
+    }
+
+    public void setCongControl_QueueMessagesThreshold_3(int val) throws Exception {
+        if (!this.started)
+            throw new Exception("CongControl_QueueMessagesThreshold parameter can be updated only when SCTP stack is running");
+
+        congControl_QueueMessagesThreshold[2] = val;
+
+        this.store();
+    }
+
+    public int getCongControl_BackToNormalQueueMessagesThreshold_1() {
+        return congControl_BackToNormalQueueMessagesThreshold[0];
+    }
+
+    public int getCongControl_BackToNormalQueueMessagesThreshold_2() {
+        return congControl_BackToNormalQueueMessagesThreshold[1];
+    }
+
+    public int getCongControl_BackToNormalQueueMessagesThreshold_3() {
+        return congControl_BackToNormalQueueMessagesThreshold[2];
+    }
+
+    public void setCongControl_BackToNormalQueueMessagesThreshold_1(int val) throws Exception {
+        if (!this.started)
+            throw new Exception("CongControl_BackToNormalQueueMessagesThreshold parameter can be updated only when SCTP stack is running");
+
+        congControl_BackToNormalQueueMessagesThreshold[0] = val;
+
+        this.store();
+    }
+
+    public void setCongControl_BackToNormalQueueMessagesThreshold_2(int val) throws Exception {
+        if (!this.started)
+            throw new Exception("CongControl_BackToNormalQueueMessagesThreshold parameter can be updated only when SCTP stack is running");
+
+        congControl_BackToNormalQueueMessagesThreshold[1] = val;
+
+        this.store();
+    }
+
+    public void setCongControl_BackToNormalQueueMessagesThreshold_3(int val) throws Exception {
+        if (!this.started)
+            throw new Exception("CongControl_BackToNormalQueueMessagesThreshold parameter can be updated only when SCTP stack is running");
+
+        congControl_BackToNormalQueueMessagesThreshold[2] = val;
+
+        this.store();
+    }
+
     @Override
     public Boolean getOptionSctpDisableFragments() {
         // TODO Auto-generated method stub
@@ -1381,14 +2034,32 @@ public class ManagementImpl implements Management {
 
     @Override
     public void addCongestionListener(CongestionListener listener) {
-        // TODO Auto-generated method stub
-        
+        synchronized (this) {
+            if (this.congestionListeners.contains(listener))
+                return;
+
+            FastTable<CongestionListener> newCongestionListeners = new FastTable<CongestionListener>();
+            newCongestionListeners.addAll(this.congestionListeners);
+            newCongestionListeners.add(listener);
+            this.congestionListeners = newCongestionListeners;
+        }
     }
 
     @Override
     public void removeCongestionListener(CongestionListener listener) {
-        // TODO Auto-generated method stub
-        
+        synchronized (this) {
+            if (!this.congestionListeners.contains(listener))
+                return;
+
+            FastTable<CongestionListener> newCongestionListeners = new FastTable<CongestionListener>();
+            newCongestionListeners.addAll(this.congestionListeners);
+            newCongestionListeners.remove(listener);
+            this.congestionListeners = newCongestionListeners;
+        }
+    }
+
+    protected FastTable<CongestionListener> getCongestionListeners() {
+        return congestionListeners;
     }
 
 	@Override
@@ -0,0 +1,261 @@
+/*
+ * TeleStax, Open Source Cloud Communications  Copyright 2012.
+ * and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package su.sres.sur.sctp;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import su.sres.sur.sctp.api.OutboundOverflowPolicy;
+import su.sres.sur.sctp.api.OutboundQueueFullException;
+
+/**
+ * Limits the outbound bytes that Associations of a Management may have queued
+ * but not yet written to the IP channel. Every Association owns an
+ * {@link Account}. When the account exceeds the high watermark it stays full
+ * till it falls below the low watermark again. Independent of that the total
+ * pending bytes of all accounts are capped by maxPendingBytes. A payload is
+ * admitted if its Association is not full and the total is below the cap, so
+ * both limits may be exceeded by one payload.
+ * 
+ * 0 for the high watermark and for maxPendingBytes means no limit, which is
+ * the default.
+ * 
+ * The BLOCK policy never waits on an I/O thread of the Management, which
+ * {@link #isIoThread()} detects. The queue is drained by that thread, so it
+ * would wait for the whole timeout and stall its other Associations.
+ * 
+ */
+public class OutboundQueueLimiter {
+
+	private volatile int highWatermark = 0;
+	private volatile int lowWatermark = 0;
+	private volatile long maxPendingBytes = 0;
+	private volatile OutboundOverflowPolicy overflowPolicy = OutboundOverflowPolicy.REJECT;
+	private volatile long blockTimeout = 1000;
+
+	private final AtomicLong pendingBytes = new AtomicLong();
+
+	// senders waiting for room with the BLOCK policy, guarded by this
+	private volatile int waiters = 0;
+
+	public int getHighWatermark() {
+		return highWatermark;
+	}
+
+	public void setHighWatermark(int highWatermark) throws Exception {
+		if (highWatermark < 0)
+			throw new Exception("OutboundQueueHighWatermark must not be negative");
+
+		this.highWatermark = highWatermark;
+	}
+
+	public int getLowWatermark() {
+		return lowWatermark;
+	}
+
+	public void setLowWatermark(int lowWatermark) throws Exception {
+		if (lowWatermark < 0)
+			throw new Exception("OutboundQueueLowWatermark must not be negative");
+
+		this.lowWatermark = lowWatermark;
+	}
+
+	public long getMaxPendingBytes() {
+		return maxPendingBytes;
+	}
+
+	public void setMaxPendingBytes(long maxPendingBytes) throws Exception {
+		if (maxPendingBytes < 0)
+			throw new Exception("MaxPendingOutboundBytes must not be negative");
+
+		this.maxPendingBytes = maxPendingBytes;
+	}
+
+	public OutboundOverflowPolicy getOverflowPolicy() {
+		return overflowPolicy;
+	}
+
+	public void setOverflowPolicy(OutboundOverflowPolicy overflowPolicy) throws Exception {
+		if (overflowPolicy == null)
+			throw new Exception("OutboundOverflowPolicy must not be null");
+
+		this.overflowPolicy = overflowPolicy;
+	}
+
+	public long getBlockTimeout() {
+		return blockTimeout;
+	}
+
+	public void setBlockTimeout(long blockTimeout) throws Exception {
+		if (blockTimeout < 0)
+			throw new Exception("OutboundBlockTimeout must not be negative");
+
+		this.blockTimeout = blockTimeout;
+	}
+
+	/**
+	 * @return true if a limit is configured
+	 */
+	public boolean isEnabled() {
+		return this.highWatermark > 0 || this.maxPendingBytes > 0;
+	}
+
+	/**
+	 * @return the pending bytes of all accounts
+	 */
+	public long getPendingBytes() {
+		return this.pendingBytes.get();
+	}
+
+	/**
+	 * Applies the overflow policy if the account or the Management is full
+	 * 
+	 * @return true if the payload may be queued, false if the caller has to
+	 *         make room by dropping payloads (DROP_OLDEST)
+	 * @throws OutboundQueueFullException
+	 *             if the policy is REJECT, BLOCK timed out or BLOCK was
+	 *             called on an I/O thread
+	 */
+	public boolean acquire(Account account, String associationName) throws OutboundQueueFullException {
+		if (this.hasCapacity(account))
+			return true;
+
+		switch (this.overflowPolicy) {
+		case DROP_OLDEST:
+			return false;
+		case BLOCK:
+			if (this.isIoThread())
+				throw new OutboundQueueFullException(String.format(
+						"Outbound queue of Association=%s is full, an I/O thread does not wait for room. Pending bytes=%d, total pending bytes=%d",
+						associationName, account.getPendingBytes(), this.pendingBytes.get()));
+			if (this.awaitCapacity(account))
+				return true;
+			throw new OutboundQueueFullException(String.format(
+					"Outbound queue of Association=%s is still full after %d ms. Pending bytes=%d, total pending bytes=%d",
+					associationName, this.blockTimeout, account.getPendingBytes(), this.pendingBytes.get()));
+		default:
+			throw new OutboundQueueFullException(String.format(
+					"Outbound queue of Association=%s is full. Pending bytes=%d, total pending bytes=%d", associationName,
+					account.getPendingBytes(), this.pendingBytes.get()));
+		}
+	}
+
+	/**
+	 * @return true if the account is not full and the total pending bytes are
+	 *         below the maximum
+	 */
+	public boolean hasCapacity(Account account) {
+		if (account.full)
+			return false;
+		long max = this.maxPendingBytes;
+		return max <= 0 || this.pendingBytes.get() < max;
+	}
+
+	/**
+	 * @return true if a payload of the passed size fits below the high
+	 *         watermark and the maximum without overshooting them
+	 */
+	public boolean hasRoom(Account account, int bytes) {
+		int high = this.highWatermark;
+		if (high > 0 && account.getPendingBytes() + bytes > high)
+			return false;
+		long max = this.maxPendingBytes;
+		return max <= 0 || this.pendingBytes.get() + bytes <= max;
+	}
+
+	/**
+	 * A payload was queued
+	 */
+	public void added(Account account, int bytes) {
+		long pending = account.pendingBytes.addAndGet(bytes);
+		this.pendingBytes.addAndGet(bytes);
+
+		int high = this.highWatermark;
+		if (high > 0 && pending > high && !account.full) {
+			account.full = true;
+		}
+	}
+
+	/**
+	 * A payload was written or dropped
+	 */
+	public void removed(Account account, int bytes) {
+		long pending = account.pendingBytes.addAndGet(-bytes);
+		this.pendingBytes.addAndGet(-bytes);
+
+		if (account.full && pending <= this.lowWatermark) {
+			account.full = false;
+		}
+
+		if (this.waiters > 0) {
+			synchronized (this) {
+				this.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * @return true if the current thread writes the queues of the Management,
+	 *         so it must not wait for room. Overridden by the Management
+	 */
+	protected boolean isIoThread() {
+		return false;
+	}
+
+	private boolean awaitCapacity(Account account) {
+		long deadline = System.currentTimeMillis() + this.blockTimeout;
+		synchronized (this) {
+			this.waiters++;
+			try {
+				while (!this.hasCapacity(account)) {
+					long remaining = deadline - System.currentTimeMillis();
+					if (remaining <= 0)
+						return false;
+					this.wait(remaining);
+				}
+				return true;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			} finally {
+				this.waiters--;
+			}
+		}
+	}
+
+	/**
+	 * Pending outbound bytes of one Association
+	 */
+	public static class Account {
+		private final AtomicLong pendingBytes = new AtomicLong();
+		private volatile boolean full = false;
+
+		public long getPendingBytes() {
+			return this.pendingBytes.get();
+		}
+
+		public boolean isFull() {
+			return this.full;
+		}
+	}
+}
@@ -0,0 +1,340 @@
+/*
+ * TeleStax, Open Source Cloud Communications  Copyright 2012.
+ * and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package su.sres.sur.sctp;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.log4j.Logger;
+
+import su.sres.sur.sctp.api.PayloadData;
+
+/**
+ * Delivers received payloads to the AssociationListener in a dedicated worker
+ * thread. Payloads are posted to a preallocated bounded ring buffer (a Vyukov
+ * style multi producer queue, as several SelectorThreads may post to the same
+ * worker), so no objects are created and no lock is taken per message. Each
+ * stream of an Association is bound to one PayloadDispatcher, which keeps the
+ * order of the stream.
+ * 
+ * If the ring stays full for a few spins dispatch() fails and the posting
+ * SelectorThread keeps the payload, suspends reading of the Association and
+ * asks to resume it with resumeWhenFree(). The Association is resumed once the
+ * worker has drained half of the ring, so a slow listener throttles reading
+ * from the IP channels without stalling the SelectorThread.
+ * 
+ */
+public class PayloadDispatcher implements Runnable {
+
+	private static final Logger logger = Logger.getLogger(PayloadDispatcher.class);
+
+	// busy spins before an idle thread yields or parks, and before dispatch()
+	// gives up on a full ring
+	private static final int SPIN_TRIES = 100;
+
+	private final int mask;
+	private final int capacity;
+
+	// slot i is free for the producer at position p if sequences[i] == p and
+	// holds a payload for the consumer at position p if sequences[i] == p + 1
+	private final AtomicLongArray sequences;
+	private final AssociationImpl[] associations;
+	private final PayloadData[] payloads;
+
+	private final AtomicLong tail = new AtomicLong();
+	// written by the worker thread only
+	private volatile long head = 0;
+
+	// Associations whose reading is suspended till the ring has room again
+	private final ConcurrentLinkedQueue<AssociationImpl> stalled = new ConcurrentLinkedQueue<AssociationImpl>();
+
+	private final WaitStrategy waitStrategy;
+
+	private volatile Thread thread;
+	private volatile boolean started = false;
+	private volatile boolean waiting = false;
+
+	private volatile int peakQueueDepth = 0;
+	private volatile long dispatched = 0;
+
+	/**
+	 * @param capacity
+	 *            size of the ring, rounded up to a power of two
+	 * @param waitStrategy
+	 */
+	protected PayloadDispatcher(int capacity, WaitStrategy waitStrategy) {
+		int normalized = 1;
+		while (normalized < capacity) {
+			normalized <<= 1;
+		}
+		this.capacity = normalized;
+		this.mask = normalized - 1;
+		this.waitStrategy = waitStrategy;
+
+		this.sequences = new AtomicLongArray(normalized);
+		for (int i = 0; i < normalized; i++) {
+			this.sequences.set(i, i);
+		}
+		this.associations = new AssociationImpl[normalized];
+		this.payloads = new PayloadData[normalized];
+	}
+
+	protected void start(String threadName) {
+		this.started = true;
+		this.thread = new Thread(this, threadName);
+		this.thread.start();
+	}
+
+	/**
+	 * Stops accepting payloads. The worker thread delivers what is already
+	 * queued and dies
+	 */
+	protected void stop() {
+		this.started = false;
+		Thread t = this.thread;
+		if (t != null) {
+			LockSupport.unpark(t);
+		}
+	}
+
+	protected boolean awaitTermination(long timeout) throws InterruptedException {
+		Thread t = this.thread;
+		if (t == null)
+			return true;
+		t.join(timeout);
+		return !t.isAlive();
+	}
+
+	/**
+	 * @return the number of slots of the ring
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * @return the number of payloads waiting for delivery
+	 */
+	public int getQueueDepth() {
+		return (int) Math.max(0, this.tail.get() - this.head);
+	}
+
+	/**
+	 * @return the highest number of payloads that were waiting for delivery
+	 */
+	public int getPeakQueueDepth() {
+		return peakQueueDepth;
+	}
+
+	/**
+	 * @return the number of payloads delivered so far
+	 */
+	public long getDispatched() {
+		return dispatched;
+	}
+
+	/**
+	 * Queues the payload for delivery. The caller is not kept waiting: if the
+	 * ring is still full after a few spins the payload is not taken
+	 * 
+	 * @param association
+	 * @param payloadData
+	 * @return false if the ring is full and the payload stays with the caller
+	 */
+	protected boolean dispatch(AssociationImpl association, PayloadData payloadData) {
+		int tries = 0;
+		while (!this.offer(association, payloadData)) {
+			if (!this.started) {
+				logger.error(String.format("Rejected %s as PayloadDispatcher is stopped", payloadData));
+				payloadData.releaseBuffer();
+				this.delivered(association);
+				return true;
+			}
+
+			if (tries++ == SPIN_TRIES)
+				return false;
+			Thread.onSpinWait();
+		}
+
+		if (this.waiting) {
+			LockSupport.unpark(this.thread);
+		}
+		return true;
+	}
+
+	/**
+	 * Resumes reading of the Association, suspended with
+	 * READ_SUSPENDED_BY_DISPATCHER after dispatch() failed, once the ring is
+	 * half empty
+	 * 
+	 * @param association
+	 */
+	protected void resumeWhenFree(AssociationImpl association) {
+		this.stalled.add(association);
+
+		// the worker may have drained the ring before it could see the
+		// Association
+		if (this.getQueueDepth() <= this.capacity >> 1 || !this.started)
+			this.resumeStalled();
+	}
+
+	private void resumeStalled() {
+		AssociationImpl association;
+		while ((association = this.stalled.poll()) != null) {
+			association.resumeReading(AssociationImpl.READ_SUSPENDED_BY_DISPATCHER);
+		}
+	}
+
+	private boolean offer(AssociationImpl association, PayloadData payloadData) {
+		if (!this.started)
+			return false;
+
+		long pos = this.tail.get();
+		int idx;
+		while (true) {
+			idx = (int) (pos & this.mask);
+			long dif = this.sequences.get(idx) - pos;
+			if (dif == 0) {
+				if (this.tail.compareAndSet(pos, pos + 1))
+					break;
+				pos = this.tail.get();
+			} else if (dif < 0) {
+				// the consumer has not freed the slot yet: the ring is full
+				return false;
+			} else {
+				// another producer took the slot
+				pos = this.tail.get();
+			}
+		}
+
+		this.associations[idx] = association;
+		this.payloads[idx] = payloadData;
+		this.sequences.set(idx, pos + 1);
+
+		int depth = (int) (pos + 1 - this.head);
+		if (depth > this.peakQueueDepth) {
+			this.peakQueueDepth = depth;
+		}
+		return true;
+	}
+
+	private boolean isEmpty() {
+		long h = this.head;
+		return this.sequences.get((int) (h & this.mask)) != h + 1;
+	}
+
+	/**
+	 * Takes the next payload from the ring and delivers it
+	 * 
+	 * @return false if the ring was empty
+	 */
+	private boolean poll() {
+		long h = this.head;
+		int idx = (int) (h & this.mask);
+		if (this.sequences.get(idx) != h + 1)
+			return false;
+
+		AssociationImpl association = this.associations[idx];
+		PayloadData payloadData = this.payloads[idx];
+		this.associations[idx] = null;
+		this.payloads[idx] = null;
+
+		// free the slot before delivering, so a slow listener does not keep
+		// the producers waiting for it
+		this.sequences.set(idx, h + this.capacity);
+		this.head = h + 1;
+
+		if (!this.stalled.isEmpty() && this.getQueueDepth() <= this.capacity >> 1)
+			this.resumeStalled();
+
+		try {
+			association.getAssociationListener().onPayload(association, payloadData);
+		} catch (Exception e) {
+			logger.error(String.format("Error while calling Listener for Association=%s.Payload=%s", association.getName(),
+					payloadData), e);
+		}
+		this.delivered(association);
+		this.dispatched++;
+		return true;
+	}
+
+	private void delivered(AssociationImpl association) {
+		InboundBacklogLimiter.Account backlog = association.getInboundBacklog();
+		if (backlog != null)
+			backlog.removed();
+	}
+
+	@Override
+	public void run() {
+		int idle = 0;
+		while (true) {
+			if (this.poll()) {
+				idle = 0;
+				continue;
+			}
+
+			if (!this.started && this.isEmpty())
+				break;
+
+			idle = this.idle(idle);
+		}
+
+		// nothing is taken any more, dispatch() releases the payloads
+		this.resumeStalled();
+
+		if (logger.isDebugEnabled()) {
+			logger.debug(String.format("PayloadDispatcher %s stopped after %d payloads", Thread.currentThread().getName(),
+					this.dispatched));
+		}
+	}
+
+	private int idle(int idle) {
+		switch (this.waitStrategy) {
+		case BUSY_SPIN:
+			Thread.onSpinWait();
+			return idle;
+		case YIELDING:
+			if (idle < SPIN_TRIES) {
+				Thread.onSpinWait();
+				return idle + 1;
+			}
+			Thread.yield();
+			return idle;
+		default:
+			if (idle < SPIN_TRIES) {
+				Thread.onSpinWait();
+				return idle + 1;
+			}
+			// dispatch() and stop() unpark the worker, the waiting flag is
+			// set before the ring is checked so no wake up is lost
+			this.waiting = true;
+			if (this.started && this.isEmpty()) {
+				LockSupport.park(this);
+			}
+			this.waiting = false;
+			return idle;
+		}
+	}
+}
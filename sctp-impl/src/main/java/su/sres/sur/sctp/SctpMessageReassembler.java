@@ -0,0 +1,154 @@
+/*
+ * TeleStax, Open Source Cloud Communications  Copyright 2012.
+ * and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package su.sres.sur.sctp;
+
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.util.collection.IntObjectHashMap;
+import su.sres.sur.sctp.api.PayloadData;
+import su.sres.sur.sctp.api.RecyclablePayloadData;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Reassembles the fragments of SCTP messages read by the NIO stack, the
+ * counterpart of Netty's SctpMessageCompletionHandler. The ByteBufs of the
+ * fragments of a stream are collected into a pooled CompositeByteBuf without
+ * copying them, till the fragment completing the message arrives.
+ * 
+ * The memory held is bounded: a message growing beyond maxMessageSize is
+ * dropped together with its remaining fragments, and partial messages of a
+ * broken connection are dropped by {@link #release()}.
+ * 
+ */
+public class SctpMessageReassembler {
+
+	private static final Logger logger = Logger.getLogger(SctpMessageReassembler.class);
+
+	private final String associationName;
+	private final ByteBufAllocator allocator;
+	private final int maxMessageSize;
+
+	// partial messages by stream number
+	private final IntObjectHashMap<PartialMessage> partialMessages = new IntObjectHashMap<PartialMessage>();
+
+	public SctpMessageReassembler(String associationName, ByteBufAllocator allocator, int maxMessageSize) {
+		this.associationName = associationName;
+		this.allocator = allocator;
+		this.maxMessageSize = maxMessageSize;
+	}
+
+	/**
+	 * Takes over the passed payload
+	 * 
+	 * @return the payload to deliver: the passed one if it is a complete
+	 *         message of a stream without a partial message, the reassembled
+	 *         message if the passed one is its last fragment, else null
+	 */
+	public synchronized PayloadData add(PayloadData payloadData) {
+		int streamNumber = payloadData.getStreamNumber();
+		boolean complete = payloadData.isComplete();
+		PartialMessage partialMessage = this.partialMessages.get(streamNumber);
+		if (partialMessage == null) {
+			if (complete)
+				return payloadData;
+
+			partialMessage = new PartialMessage();
+			this.partialMessages.put(streamNumber, partialMessage);
+		}
+
+		if (partialMessage.dropped) {
+			payloadData.releaseBuffer();
+		} else if ((long) partialMessage.size + payloadData.getDataLength() > this.maxMessageSize) {
+			logger.warn(String.format(
+					"Message of stream=%d for Association=%s exceeds MaxSctpMessageSize=%d, it is dropped",
+					streamNumber, this.associationName, this.maxMessageSize));
+			payloadData.releaseBuffer();
+			partialMessage.drop();
+		} else {
+			if (partialMessage.byteBuf == null) {
+				partialMessage.byteBuf = this.allocator.compositeDirectBuffer(Integer.MAX_VALUE);
+			}
+			// the ByteBuf moves into the composite one
+			partialMessage.byteBuf.addComponent(true, payloadData.getByteBuf());
+			partialMessage.size += payloadData.getDataLength();
+		}
+
+		if (!complete) {
+			this.recycle(payloadData);
+			return null;
+		}
+
+		this.partialMessages.remove(streamNumber);
+		PayloadData message = null;
+		if (!partialMessage.dropped) {
+			// the last fragment carries the attributes of the message
+			message = RecyclablePayloadData.newInstance(partialMessage.size, partialMessage.byteBuf, true,
+					payloadData.isUnordered(), payloadData.getPayloadProtocolId(), streamNumber);
+		}
+		this.recycle(payloadData);
+		return message;
+	}
+
+	/**
+	 * Returns a fragment whose ByteBuf has been taken over or released to the
+	 * pool
+	 */
+	private void recycle(PayloadData payloadData) {
+		if (payloadData instanceof RecyclablePayloadData) {
+			((RecyclablePayloadData) payloadData).recycle();
+		}
+	}
+
+	/**
+	 * @return the number of streams with a partial message
+	 */
+	public synchronized int getPartialMessages() {
+		return this.partialMessages.size();
+	}
+
+	/**
+	 * Drops all partial messages
+	 */
+	public synchronized void release() {
+		for (PartialMessage partialMessage : this.partialMessages.values()) {
+			partialMessage.drop();
+		}
+		this.partialMessages.clear();
+	}
+
+	private static class PartialMessage {
+		private CompositeByteBuf byteBuf;
+		private int size = 0;
+		// the rest of the fragments is dropped till the message is complete
+		private boolean dropped = false;
+
+		private void drop() {
+			if (this.byteBuf != null) {
+				this.byteBuf.release();
+				this.byteBuf = null;
+			}
+			this.dropped = true;
+		}
+	}
+}
@@ -35,6 +35,8 @@ import java.nio.channels.spi.AbstractSelectableChannel;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javolution.util.FastTable;
 import javolution.util.FastMap;
@@ -63,14 +65,85 @@ public class SelectorThread implements Runnable {
 
 	protected volatile boolean started = true;
 
+	// the wheel covers 5.12 sec with 10 ms resolution
+	private static final int CONNECT_TIMER_TICKS = 512;
+	private static final long CONNECT_TIMER_TICK_DURATION = 10;
+
+	// upper limit for a select() when no CONNECT is due earlier
+	private static final long MAX_SELECT_TIMEOUT = 500;
+
+	// index of this SelectorThread in the Management pool
+	private final int index;
+
+	// the thread running this SelectorThread
+	private volatile Thread thread;
+
+	// Changes are queued by any thread and consumed by this thread only
+	private final ConcurrentLinkedQueue<ChangeRequest> pendingChanges = new ConcurrentLinkedQueue<ChangeRequest>();
+
+	// CONNECT requests whose execution time has not come yet. Accessed by
+	// this thread only
+	private final TimerWheel connectTimer = new TimerWheel(CONNECT_TIMER_TICKS, CONNECT_TIMER_TICK_DURATION,
+			System.currentTimeMillis());
+
+	private final FastTable<ChangeRequest> expiredConnects = new FastTable<ChangeRequest>();
+
+	// Associations with complete messages in their read buffer, read once
+	// more after the ready keys of the next cycle. Accessed by this thread
+	// only
+	private FastTable<AssociationImpl> pendingReads = new FastTable<AssociationImpl>();
+	private FastTable<AssociationImpl> cycleReads = new FastTable<AssociationImpl>();
+
+	// Set once wakeup() was called after the last select, so concurrent callers
+	// do not wake up the Selector again
+	private final AtomicBoolean wakenUp = new AtomicBoolean();
+
 	/**
 	 * @param selector
 	 * @param management
+	 * @param index
 	 */
-	protected SelectorThread(Selector selector, ManagementImpl management) {
+	protected SelectorThread(Selector selector, ManagementImpl management, int index) {
 		super();
 		this.selector = selector;
 		this.management = management;
+		this.index = index;
+	}
+
+	/**
+	 * Queues a change to be applied by this SelectorThread. The caller must
+	 * wakeup() the selector if the change should be applied without delay
+	 * 
+	 * @param changeRequest
+	 */
+	protected void addChangeRequest(ChangeRequest changeRequest) {
+		this.pendingChanges.add(changeRequest);
+	}
+
+	/**
+	 * Reads the Association once more in the next cycle, without waiting for a
+	 * readiness event of its channel. Called by this thread only
+	 * 
+	 * @param association
+	 */
+	protected void addPendingRead(AssociationImpl association) {
+		if (!association.isPendingRead()) {
+			association.setPendingRead(true);
+			this.pendingReads.add(association);
+		}
+	}
+
+	/**
+	 * @return true if called by the thread running this SelectorThread
+	 */
+	protected boolean inSelectorThread() {
+		return Thread.currentThread() == this.thread;
+	}
+
+	protected void wakeup() {
+		if (this.wakenUp.compareAndSet(false, true)) {
+			this.selector.wakeup();
+		}
 	}
 
 	/**
@@ -88,49 +161,86 @@ public class SelectorThread implements Runnable {
 	 */
 	@Override
 	public void run() {
+		this.thread = Thread.currentThread();
 		if (logger.isInfoEnabled()) {
-			logger.info(String.format("SelectorThread for Management=%s started.", this.management.getName()));
+			logger.info(String.format("SelectorThread=%d for Management=%s started.", this.index, this.management.getName()));
 		}
 		while (this.started) {
 			try {
-				FastTable<ChangeRequest> pendingChanges = this.management.getPendingChanges();
+				// Changes queued from now on must wakeup the selector again
+				this.wakenUp.set(false);
 
 				// Process any pending changes
-				synchronized (pendingChanges) {
-					Iterator<ChangeRequest> changes = pendingChanges.iterator();
-					while (changes.hasNext()) {
-						ChangeRequest change = changes.next();
-						switch (change.getType()) {
-						case ChangeRequest.CHANGEOPS:
-							pendingChanges.remove(change);
-							SelectionKey key = change.getSocketChannel().keyFor(this.selector);
-							key.interestOps(change.getOps());
-							break;
-						case ChangeRequest.REGISTER:
-							pendingChanges.remove(change);
-							SelectionKey key1 = change.getSocketChannel().register(this.selector, change.getOps());
-							key1.attach(change.getAssociation());
-							break;
-						case ChangeRequest.CONNECT:
-							if (!change.getAssociation().isStarted()) {
-								// if Association is stopped - remove pending connection requests  
-								pendingChanges.remove(change);
-							} else {
-								if (change.getExecutionTime() <= System.currentTimeMillis()) {
-									pendingChanges.remove(change);
-									change.getAssociation().initiateConnection();
-								}
+				ChangeRequest change;
+				while ((change = this.pendingChanges.poll()) != null) {
+					switch (change.getType()) {
+					case ChangeRequest.CHANGEOPS:
+						SelectionKey key = change.getSocketChannel().keyFor(this.selector);
+						if (key != null && key.isValid()) {
+							// the read interest is taken when the request is
+							// applied, a suspendReading() queued after the
+							// request must not be undone
+							key.interestOps(change.getAssociation().getReadOps() | SelectionKey.OP_WRITE);
+						} else {
+							change.getAssociation().clearWriteInterest();
+						}
+						break;
+					case ChangeRequest.REGISTER:
+						SelectionKey key1 = change.getSocketChannel().register(this.selector, change.getOps());
+						key1.attach(change.getAssociation());
+						break;
+					case ChangeRequest.CONNECT:
+						this.connectTimer.schedule(change);
+						break;
+					case ChangeRequest.CLOSE:
+						change.getAssociation().close();
+						break;
+					case ChangeRequest.ACCEPT:
+						this.registerAcceptedChannel(change.getAssociation(), change.getSocketChannel());
+						break;
+					case ChangeRequest.READINTEREST:
+						SelectionKey key2 = change.getSocketChannel().keyFor(this.selector);
+						// a connecting channel gets its read interest when
+						// the connection is finished
+						if (key2 != null && key2.isValid() && (key2.interestOps() & SelectionKey.OP_CONNECT) == 0) {
+							key2.interestOps((key2.interestOps() & ~SelectionKey.OP_READ) | change.getAssociation().getReadOps());
+							// messages buffered while reading was suspended
+							if (change.getAssociation().getReadOps() != 0 && change.getAssociation().hasPendingInput()) {
+								this.addPendingRead(change.getAssociation());
 							}
-							break;
-						case ChangeRequest.CLOSE:
-							pendingChanges.remove(change);
-							change.getAssociation().close();
 						}
-					}// end of while
+						break;
+					}
+				}// end of while
+
+				long now = System.currentTimeMillis();
+				this.expiredConnects.clear();
+				this.connectTimer.expire(now, this.expiredConnects);
+				for (int i = 0; i < this.expiredConnects.size(); i++) {
+					ChangeRequest connect = this.expiredConnects.get(i);
+					// if Association is stopped or has been restarted since -
+					// drop the stale connection request
+					if (connect.getAssociation().isPendingConnect(connect)) {
+						connect.getAssociation().initiateConnection();
+					}
+				}
+				this.expiredConnects.clear();
+
+				// the reads of this cycle, the ones added from now on are made
+				// in the next cycle
+				FastTable<AssociationImpl> reads = this.pendingReads;
+				this.pendingReads = this.cycleReads;
+				this.cycleReads = reads;
+
+				// Wait for an event one of the registered channels, but not
+				// longer than till the next CONNECT is due. Pending reads do
+				// not wait at all
+				long timeout = this.connectTimer.nextTimeout(now);
+				if (!this.cycleReads.isEmpty()) {
+					this.selector.selectNow();
+				} else {
+					this.selector.select(timeout < 0 ? MAX_SELECT_TIMEOUT : Math.min(timeout, MAX_SELECT_TIMEOUT));
 				}
-
-				// Wait for an event one of the registered channels
-				this.selector.select(500);
 
 				// System.out.println("Done selecting " +
 				// this.selector.selectedKeys().size());
@@ -146,18 +256,25 @@ public class SelectorThread implements Runnable {
 						continue;
 					}
 
-					// Check what event is available and deal with it
-					if (key.isConnectable()) {
+					// Check what event is available and deal with it. Read and
+					// write readiness are both served in the same cycle
+					int readyOps = key.readyOps();
+					if ((readyOps & SelectionKey.OP_CONNECT) != 0) {
 						this.finishConnection(key);
-					} else if (key.isAcceptable()) {
+					} else if ((readyOps & SelectionKey.OP_ACCEPT) != 0) {
 						this.accept(key);
-					} else if (key.isReadable()) {
-						this.read(key);
-					} else if (key.isWritable()) {
-						this.write(key);
+					} else {
+						if ((readyOps & SelectionKey.OP_READ) != 0) {
+							this.read(key);
+						}
+						if ((readyOps & SelectionKey.OP_WRITE) != 0 && key.isValid()) {
+							this.write(key);
+						}
 					}
 				}
 
+				this.runPendingReads();
+
 			} catch (Exception e) {
 				logger.error("Error while selecting the ready keys", e);
 			}
@@ -170,7 +287,7 @@ public class SelectorThread implements Runnable {
 		}
 
 		if (logger.isInfoEnabled()) {
-			logger.info(String.format("SelectorThread for Management=%s stopped.", this.management.getName()));
+			logger.info(String.format("SelectorThread=%d for Management=%s stopped.", this.index, this.management.getName()));
 		}
 	}
 
@@ -259,21 +376,11 @@ public class SelectorThread implements Runnable {
 								// Accept the connection and make it non-blocking
 								socketChannel.configureBlocking(false);
 
-								// Register the new SocketChannel with our Selector,
-								// indicating we'd like to be notified when there's data
-								// waiting to be read
-								SelectionKey key1 = socketChannel.register(this.selector, SelectionKey.OP_READ);
-								key1.attach(association);
-
 								if (logger.isInfoEnabled()) {
 									logger.info(String.format("Connected %s", association));
 								}
 
-								if (association.getIpChannelType() == IpChannelType.TCP) {
-									AssocChangeEvent ace = AssocChangeEvent.COMM_UP;
-									AssociationChangeNotification2 acn = new AssociationChangeNotification2(ace);
-									association.associationHandler.handleNotification(acn, association);
-								}
+								this.dispatchAcceptedChannel(association, socketChannel);
 
 								break;
 							}
@@ -372,21 +479,11 @@ public class SelectorThread implements Runnable {
 						return;
 					}
 
-					// Register the new SocketChannel with our Selector,
-					// indicating we'd like to be notified when there's data
-					// waiting to be read
-					SelectionKey key1 = socketChannel.register(this.selector, SelectionKey.OP_READ);
-					key1.attach(anonymAssociation);
-
 					if (logger.isInfoEnabled()) {
 						logger.info(String.format("Accepted anonymous %s", anonymAssociation));
 					}
 
-					if (anonymAssociation.getIpChannelType() == IpChannelType.TCP) {
-						AssocChangeEvent ace = AssocChangeEvent.COMM_UP;
-						AssociationChangeNotification2 acn = new AssociationChangeNotification2(ace);
-						anonymAssociation.associationHandler.handleNotification(acn, anonymAssociation);
-					}
+					this.dispatchAcceptedChannel(anonymAssociation, socketChannel);
 				}
 			}
 
@@ -403,6 +500,34 @@ public class SelectorThread implements Runnable {
 		}
 	}
 
+	/**
+	 * Hands over an accepted channel to the SelectorThread that owns the
+	 * Association, so all further I/O of the Association happens there
+	 */
+	private void dispatchAcceptedChannel(AssociationImpl association, AbstractSelectableChannel socketChannel) throws IOException {
+		SelectorThread selectorThread = this.management.getSelectorThread(association);
+		if (selectorThread == this) {
+			this.registerAcceptedChannel(association, socketChannel);
+		} else {
+			selectorThread.addChangeRequest(new ChangeRequest(socketChannel, association, ChangeRequest.ACCEPT, SelectionKey.OP_READ));
+			selectorThread.wakeup();
+		}
+	}
+
+	private void registerAcceptedChannel(AssociationImpl association, AbstractSelectableChannel socketChannel) throws IOException {
+		// Register the new SocketChannel with our Selector,
+		// indicating we'd like to be notified when there's data
+		// waiting to be read
+		SelectionKey key1 = socketChannel.register(this.selector, association.getReadOps());
+		key1.attach(association);
+
+		if (association.getIpChannelType() == IpChannelType.TCP) {
+			AssocChangeEvent ace = AssocChangeEvent.COMM_UP;
+			AssociationChangeNotification2 acn = new AssociationChangeNotification2(ace);
+			association.associationHandler.handleNotification(acn, association);
+		}
+	}
+
 	private void finishConnection(SelectionKey key) throws IOException{
 		AssociationImpl association = (AssociationImpl) key.attachment();
 		if (association.getIpChannelType() == IpChannelType.SCTP)
@@ -429,8 +554,8 @@ public class SelectorThread implements Runnable {
 				logger.info(String.format("Association=%s connected to=%s", association.getName(), socketChannel.getRemoteAddresses()));
 			}
 
-			// Register an interest in writing on this channel
-			key.interestOps(SelectionKey.OP_READ);
+			// Register an interest in reading on this channel
+			key.interestOps(association.getReadOps());
 		} catch (Exception e) {
 			logger.error(String.format("Exception while finishing connection for Association=%s", association.getName()), e);
 			association.scheduleConnect();
@@ -455,8 +580,8 @@ public class SelectorThread implements Runnable {
 				logger.info(String.format("Association=%s connected to=%s", association.getName(), socketChannel.getRemoteAddress()));
 			}
 
-			// Register an interest in writing on this channel
-			key.interestOps(SelectionKey.OP_READ);
+			// Register an interest in reading on this channel
+			key.interestOps(association.getReadOps());
 
 			AssocChangeEvent ace = AssocChangeEvent.COMM_UP;
 			AssociationChangeNotification2 acn = new AssociationChangeNotification2(ace);
@@ -469,6 +594,23 @@ public class SelectorThread implements Runnable {
 		}
 	}
 
+	/**
+	 * Reads the Associations added with addPendingRead() before this cycle,
+	 * the ones that use up their read budget again are added for the next
+	 * cycle
+	 */
+	private void runPendingReads() {
+		FastTable<AssociationImpl> reads = this.cycleReads;
+		for (int i = 0; i < reads.size(); i++) {
+			AssociationImpl association = reads.get(i);
+			association.setPendingRead(false);
+			if (!association.isReadSuspended() && association.hasPendingInput()) {
+				association.read();
+			}
+		}
+		reads.clear();
+	}
+
 	private void read(SelectionKey key) throws IOException {
 		AssociationImpl association = (AssociationImpl) key.attachment();
 		association.read();
@@ -173,15 +173,13 @@ public class ServerImpl implements Server {
 		// accepting new connections
 		// this.serverChannel.register(socketSelector, SelectionKey.OP_ACCEPT);
 
-		FastTable<ChangeRequest> pendingChanges = this.management.getPendingChanges();
-		synchronized (pendingChanges) {
+		SelectorThread selectorThread = this.management.getSelectorThread(this);
 
-			// Indicate we want the interest ops set changed
-			pendingChanges.add(new ChangeRequest(this.getIpChannel(), null, ChangeRequest.REGISTER,
-					SelectionKey.OP_ACCEPT));
-		}
+		// Indicate we want the interest ops set changed
+		selectorThread.addChangeRequest(new ChangeRequest(this.getIpChannel(), null, ChangeRequest.REGISTER,
+				SelectionKey.OP_ACCEPT));
 
-		this.management.getSocketSelector().wakeup();
+		selectorThread.wakeup();
 	}
 
 	private void doInitSocketSctp() throws IOException {
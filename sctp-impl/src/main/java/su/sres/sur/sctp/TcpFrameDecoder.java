@@ -0,0 +1,189 @@
+/*
+ * TeleStax, Open Source Cloud Communications  Copyright 2012.
+ * and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package su.sres.sur.sctp;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.handler.codec.CorruptedFrameException;
+import io.netty.handler.codec.DecoderException;
+import io.netty.handler.codec.TooLongFrameException;
+import su.sres.sur.sctp.api.TcpFramingConfig;
+
+import java.nio.channels.ClosedChannelException;
+
+/**
+ * Splits the byte stream of a TCP Association into messages as configured by
+ * {@link TcpFramingConfig}, the NIO counterpart of Netty's
+ * LengthFieldBasedFrameDecoder.
+ * 
+ * The socket is read straight into the buffer returned by
+ * {@link #readBuffer(ByteBufAllocator, int)} and every message returned by
+ * {@link #decode()} is a retained slice of it, so no data is copied. A read
+ * buffer still shared with delivered messages is never compacted, it is
+ * replaced by a new one and only the incomplete message at its end is
+ * copied.
+ * 
+ * Corrupted length fields are reported with Netty's
+ * {@link CorruptedFrameException} and {@link TooLongFrameException}, after
+ * which the stream can not be resynchronized.
+ * 
+ */
+public class TcpFrameDecoder {
+
+	private final TcpFramingConfig config;
+	private final int lengthFieldEnd;
+
+	private ByteBuf cumulation;
+	private boolean released = false;
+
+	public TcpFrameDecoder(TcpFramingConfig config) {
+		this.config = config;
+		this.lengthFieldEnd = config.getLengthFieldOffset() + config.getLengthFieldLength();
+	}
+
+	/**
+	 * @return the buffer the next read of the socket writes to. It has room for
+	 *         the rest of the message being received and for at least an
+	 *         eighth of bufferSize
+	 * @throws ClosedChannelException
+	 *             if the decoder has been released
+	 */
+	public synchronized ByteBuf readBuffer(ByteBufAllocator allocator, int bufferSize) throws ClosedChannelException {
+		if (this.released)
+			throw new ClosedChannelException();
+
+		if (this.cumulation == null) {
+			this.cumulation = allocator.directBuffer(bufferSize);
+			return this.cumulation;
+		}
+
+		int readable = this.cumulation.readableBytes();
+		if (readable == 0 && this.cumulation.refCnt() == 1) {
+			// no delivered message refers to it any more
+			this.cumulation.clear();
+		}
+
+		long frameLength = this.frameLength();
+		int pending = frameLength < 0 ? 0 : (int) frameLength - readable;
+		if (this.cumulation.writableBytes() < Math.max(pending, Math.max(bufferSize >> 3, 1))) {
+			ByteBuf buffer = allocator.directBuffer(Math.max(bufferSize, readable + pending));
+			buffer.writeBytes(this.cumulation);
+			this.cumulation.release();
+			this.cumulation = buffer;
+		}
+		return this.cumulation;
+	}
+
+	/**
+	 * @return the next complete message as a slice of the read buffer, which
+	 *         the receiver releases, or null if more bytes must be read first
+	 */
+	public synchronized ByteBuf decode() {
+		if (this.cumulation == null)
+			return null;
+
+		long frameLength = this.frameLength();
+		if (frameLength < 0 || this.cumulation.readableBytes() < frameLength)
+			return null;
+
+		int length = (int) frameLength;
+		int strip = this.config.getInitialBytesToStrip();
+		ByteBuf frame = this.cumulation.retainedSlice(this.cumulation.readerIndex() + strip, length - strip);
+		this.cumulation.skipBytes(length);
+		return frame;
+	}
+
+	/**
+	 * @return true if the next call of {@link #decode()} returns a message or
+	 *         fails, without reading more bytes
+	 */
+	public synchronized boolean hasFrame() {
+		if (this.cumulation == null)
+			return false;
+
+		try {
+			long frameLength = this.frameLength();
+			return frameLength >= 0 && this.cumulation.readableBytes() >= frameLength;
+		} catch (DecoderException e) {
+			// reported by decode()
+			return true;
+		}
+	}
+
+	/**
+	 * Releases the read buffer, messages delivered before stay valid till
+	 * their receivers release them
+	 */
+	public synchronized void release() {
+		this.released = true;
+		if (this.cumulation != null) {
+			this.cumulation.release();
+			this.cumulation = null;
+		}
+	}
+
+	/**
+	 * @return the length of the message at the reader index, -1 if its length
+	 *         field has not been read yet
+	 */
+	private long frameLength() {
+		ByteBuf buffer = this.cumulation;
+		if (buffer.readableBytes() < this.lengthFieldEnd)
+			return -1;
+
+		int index = buffer.readerIndex() + this.config.getLengthFieldOffset();
+		long length;
+		switch (this.config.getLengthFieldLength()) {
+		case 1:
+			length = buffer.getUnsignedByte(index);
+			break;
+		case 2:
+			length = buffer.getUnsignedShort(index);
+			break;
+		case 3:
+			length = buffer.getUnsignedMedium(index);
+			break;
+		case 4:
+			length = buffer.getUnsignedInt(index);
+			break;
+		default:
+			length = buffer.getLong(index);
+			break;
+		}
+		if (length < 0)
+			throw new CorruptedFrameException("negative length field: " + length);
+
+		long frameLength = length + this.config.getLengthAdjustment() + this.lengthFieldEnd;
+		if (frameLength < this.lengthFieldEnd)
+			throw new CorruptedFrameException(String.format("Adjusted frame length (%d) is less than lengthFieldEnd: %d",
+					frameLength, this.lengthFieldEnd));
+		if (frameLength > this.config.getMaxFrameLength())
+			throw new TooLongFrameException(String.format("Adjusted frame length exceeds %d: %d",
+					this.config.getMaxFrameLength(), frameLength));
+		if (frameLength < this.config.getInitialBytesToStrip())
+			throw new CorruptedFrameException(String.format(
+					"Adjusted frame length (%d) is less than initialBytesToStrip: %d", frameLength,
+					this.config.getInitialBytesToStrip()));
+		return frameLength;
+	}
+}
@@ -0,0 +1,163 @@
+/*
+ * TeleStax, Open Source Cloud Communications  Copyright 2012.
+ * and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package su.sres.sur.sctp;
+
+import java.util.List;
+
+/**
+ * Hashed timer wheel holding the delayed {@link ChangeRequest}s (CONNECT) of a
+ * SelectorThread. Scheduling is O(1) and expiring only touches the buckets of
+ * the elapsed ticks, so the cost does not grow with the number of scheduled
+ * requests. Requests expire at most one tick after their execution time.
+ *
+ * Not thread safe, it is only accessed by the owning SelectorThread.
+ *
+ */
+public class TimerWheel {
+
+	private final long tickDuration;
+	private final Timeout[] wheel;
+	private final int mask;
+	private final long startTime;
+
+	// the tick that expires next
+	private long tick = 0;
+	private int size = 0;
+
+	/**
+	 * @param ticksPerWheel
+	 *            number of buckets, rounded up to a power of two
+	 * @param tickDuration
+	 *            duration of a tick in milliseconds
+	 * @param startTime
+	 *            current time in milliseconds
+	 */
+	protected TimerWheel(int ticksPerWheel, long tickDuration, long startTime) {
+		int normalized = 1;
+		while (normalized < ticksPerWheel) {
+			normalized <<= 1;
+		}
+		this.wheel = new Timeout[normalized];
+		this.mask = normalized - 1;
+		this.tickDuration = tickDuration;
+		this.startTime = startTime;
+	}
+
+	/**
+	 * @return number of scheduled requests
+	 */
+	protected int size() {
+		return this.size;
+	}
+
+	/**
+	 * Schedules the request to expire at its execution time
+	 *
+	 * @param changeRequest
+	 */
+	protected void schedule(ChangeRequest changeRequest) {
+		long calculated = (changeRequest.getExecutionTime() - this.startTime) / this.tickDuration;
+		if (calculated < this.tick) {
+			// already due, expire with the next tick
+			calculated = this.tick;
+		}
+
+		Timeout timeout = new Timeout(changeRequest, (calculated - this.tick) / this.wheel.length);
+		int idx = (int) (calculated & this.mask);
+		timeout.next = this.wheel[idx];
+		this.wheel[idx] = timeout;
+		this.size++;
+	}
+
+	/**
+	 * Moves all requests due at the passed time to the expired list
+	 *
+	 * @param now
+	 *            current time in milliseconds
+	 * @param expired
+	 */
+	protected void expire(long now, List<ChangeRequest> expired) {
+		if (this.size == 0) {
+			// nothing to expire, just catch up with the current time
+			long current = (now - this.startTime) / this.tickDuration;
+			if (current > this.tick) {
+				this.tick = current;
+			}
+			return;
+		}
+
+		while (this.size > 0 && this.startTime + (this.tick + 1) * this.tickDuration <= now) {
+			int idx = (int) (this.tick & this.mask);
+			Timeout previous = null;
+			Timeout timeout = this.wheel[idx];
+			while (timeout != null) {
+				Timeout next = timeout.next;
+				if (timeout.remainingRounds <= 0) {
+					if (previous == null) {
+						this.wheel[idx] = next;
+					} else {
+						previous.next = next;
+					}
+					this.size--;
+					expired.add(timeout.changeRequest);
+				} else {
+					timeout.remainingRounds--;
+					previous = timeout;
+				}
+				timeout = next;
+			}
+			this.tick++;
+		}
+	}
+
+	/**
+	 * @param now
+	 *            current time in milliseconds
+	 * @return milliseconds till the next tick that has requests scheduled, or
+	 *         -1 if nothing is scheduled
+	 */
+	protected long nextTimeout(long now) {
+		if (this.size == 0) {
+			return -1;
+		}
+
+		for (int i = 0; i < this.wheel.length; i++) {
+			if (this.wheel[(int) ((this.tick + i) & this.mask)] != null) {
+				long deadline = this.startTime + (this.tick + i + 1) * this.tickDuration;
+				return Math.max(1, deadline - now);
+			}
+		}
+		return -1;
+	}
+
+	private static final class Timeout {
+		private final ChangeRequest changeRequest;
+		private long remainingRounds;
+		private Timeout next;
+
+		private Timeout(ChangeRequest changeRequest, long remainingRounds) {
+			this.changeRequest = changeRequest;
+			this.remainingRounds = remainingRounds;
+		}
+	}
+}
@@ -0,0 +1,169 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2011-2014, Telestax Inc and individual contributors
+ * by the @authors tag.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ *
+ */
+
+package su.sres.sur.sctp.netty;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.EventExecutorChooserFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Chooses the event loop of an EventLoopGroup a new channel is registered with, according to the
+ * {@link EventLoopPlacementPolicy} of the management and the pinned event loop index of the Association.
+ *
+ * Netty registers a channel by calling the chooser of the group on the thread that creates the channel, so the Association
+ * is passed in a ThreadLocal set around the registration: {@link #beginPlacement(NettyAssociationImpl)} and
+ * {@link #endPlacement()}. Channels registered without an Association are placed round robin, or on the least loaded event
+ * loop with the LEAST_LOADED policy.
+ *
+ */
+public class EventLoopPlacement implements EventExecutorChooserFactory {
+
+    // the Association whose channel the current thread registers
+    private static final ThreadLocal<NettyAssociationImpl> PLACED_ASSOCIATION = new ThreadLocal<NettyAssociationImpl>();
+
+    private final String name;
+    private final NettySctpManagementImpl management;
+
+    private volatile EventExecutor[] executors = new EventExecutor[0];
+    private final AtomicInteger next = new AtomicInteger();
+
+    // event loop index by the name of the Association whose channel is open
+    private final ConcurrentHashMap<String, Integer> placedAssociations = new ConcurrentHashMap<String, Integer>();
+
+    public EventLoopPlacement(String name, NettySctpManagementImpl management) {
+        this.name = name;
+        this.management = management;
+    }
+
+    /**
+     * The channel registered by the current thread till {@link #endPlacement()} belongs to the passed Association
+     */
+    protected static void beginPlacement(NettyAssociationImpl association) {
+        PLACED_ASSOCIATION.set(association);
+    }
+
+    protected static void endPlacement() {
+        PLACED_ASSOCIATION.remove();
+    }
+
+    @Override
+    public EventExecutorChooser newChooser(EventExecutor[] executors) {
+        this.executors = executors;
+        return new EventExecutorChooser() {
+            @Override
+            public EventExecutor next() {
+                EventExecutor[] executors = EventLoopPlacement.this.executors;
+                return executors[EventLoopPlacement.this.select(PLACED_ASSOCIATION.get(), executors.length)];
+            }
+        };
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Records the event loop the channel of the Association has been registered with, till the channel is closed
+     *
+     * @return false if the channel is not registered with this group
+     */
+    protected boolean placed(NettyAssociationImpl association, Channel channel) {
+        final int index = this.indexOf(channel.eventLoop());
+        if (index < 0)
+            return false;
+
+        final String associationName = association.getName();
+        this.placedAssociations.put(associationName, index);
+        channel.closeFuture().addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception {
+                placedAssociations.remove(associationName, index);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * @return the names of the Associations with an open channel, per event loop index
+     */
+    public List<List<String>> getPlacedAssociations() {
+        List<List<String>> loops = new ArrayList<List<String>>();
+        for (int i = 0; i < this.executors.length; i++) {
+            loops.add(new ArrayList<String>());
+        }
+        for (Map.Entry<String, Integer> entry : this.placedAssociations.entrySet()) {
+            if (entry.getValue() < loops.size())
+                loops.get(entry.getValue()).add(entry.getKey());
+        }
+        for (List<String> names : loops) {
+            Collections.sort(names);
+        }
+        return loops;
+    }
+
+    private int select(NettyAssociationImpl association, int loops) {
+        EventLoopPlacementPolicy policy = this.management.getEventLoopPlacementPolicy();
+        if (association != null) {
+            int pinned = association.getEventLoopIndex();
+            if (pinned >= 0)
+                return pinned % loops;
+            if (policy == EventLoopPlacementPolicy.HASH_BY_NAME)
+                return (association.getName().hashCode() & Integer.MAX_VALUE) % loops;
+        }
+
+        int start = (this.next.getAndIncrement() & Integer.MAX_VALUE) % loops;
+        if (policy != EventLoopPlacementPolicy.LEAST_LOADED)
+            return start;
+
+        // a reconnecting Association does not count its old channel
+        int[] counts = new int[loops];
+        for (Map.Entry<String, Integer> entry : this.placedAssociations.entrySet()) {
+            if (entry.getValue() < loops && (association == null || !entry.getKey().equals(association.getName())))
+                counts[entry.getValue()]++;
+        }
+        // ties are broken round robin
+        int selected = start;
+        for (int i = 1; i < loops; i++) {
+            int index = (start + i) % loops;
+            if (counts[index] < counts[selected])
+                selected = index;
+        }
+        return selected;
+    }
+
+    private int indexOf(EventExecutor executor) {
+        EventExecutor[] executors = this.executors;
+        for (int i = 0; i < executors.length; i++) {
+            if (executors[i] == executor)
+                return i;
+        }
+        return -1;
+    }
+}
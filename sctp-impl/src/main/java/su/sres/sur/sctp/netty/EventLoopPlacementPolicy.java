@@ -0,0 +1,42 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2011-2014, Telestax Inc and individual contributors
+ * by the @authors tag.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ *
+ */
+
+package su.sres.sur.sctp.netty;
+
+/**
+ * How the channels of Associations are spread over the event loops of a group. A pinned event loop index of an Association
+ * ({@link NettyAssociationImpl#setEventLoopIndex(int)}) overrides the policy.
+ *
+ */
+public enum EventLoopPlacementPolicy {
+    /**
+     * Netty's default, the next event loop in turn
+     */
+    ROUND_ROBIN,
+    /**
+     * The event loop serving the fewest Associations
+     */
+    LEAST_LOADED,
+    /**
+     * The event loop chosen by the hash of the Association name, so an Association lands on the same event loop after every
+     * reconnect and restart
+     */
+    HASH_BY_NAME;
+}
@@ -25,29 +25,42 @@ import io.netty.buffer.ByteBuf;
 import io.netty.buffer.ByteBufAllocator;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
 import io.netty.channel.sctp.SctpChannel;
 import io.netty.channel.sctp.SctpChannelOption;
 import io.netty.channel.sctp.SctpMessage;
 import io.netty.channel.sctp.nio.NioSctpChannel;
-import io.netty.channel.socket.nio.NioSocketChannel;
 
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Flow;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javolution.xml.XMLFormat;
 import javolution.xml.stream.XMLStreamException;
+import su.sres.sur.sctp.AssociationPublisher;
+import su.sres.sur.sctp.AssociationSubscriber;
+import su.sres.sur.sctp.InboundBacklogLimiter;
+import su.sres.sur.sctp.ListenerExecutor;
+import su.sres.sur.sctp.OutboundQueueLimiter;
 import su.sres.sur.sctp.api.Association;
 import su.sres.sur.sctp.api.AssociationListener;
 import su.sres.sur.sctp.api.AssociationType;
 import su.sres.sur.sctp.api.CongestionListener;
 import su.sres.sur.sctp.api.IpChannelType;
 import su.sres.sur.sctp.api.ManagementEventListener;
+import su.sres.sur.sctp.api.OutboundQueueFullException;
 import su.sres.sur.sctp.api.PayloadData;
+import su.sres.sur.sctp.api.RecyclablePayloadData;
 
 import org.apache.log4j.Logger;
 
@@ -71,6 +84,12 @@ public class NettyAssociationImpl implements Association {
     private static final String IPCHANNEL_TYPE = "ipChannelType";
     private static final String EXTRA_HOST_ADDRESS = "extraHostAddress";
     private static final String EXTRA_HOST_ADDRESS_SIZE = "extraHostAddresseSize";
+    private static final String EVENT_LOOP_INDEX = "eventLoopIndex";
+
+    // reasons for suspending the read, bits of readSuspendReasons
+    protected static final int READ_SUSPENDED_BY_SUBSCRIBER = 1;
+    protected static final int READ_SUSPENDED_BY_APPLICATION = 2;
+    protected static final int READ_SUSPENDED_BY_BACKLOG = 4;
 
     private String hostAddress;
     private int hostPort;
@@ -80,11 +99,15 @@ public class NettyAssociationImpl implements Association {
     private String name;
     private IpChannelType ipChannelType;
     private String[] extraHostAddresses;
+    // index of the event loop the channel is pinned to, -1 means the EventLoopPlacementPolicy of the management
+    private int eventLoopIndex = -1;
     private NettyServerImpl server; // this is filled only for anonymous Associations
 
     private AssociationType type;
 
-    private AssociationListener associationListener = null;
+    private volatile AssociationListener associationListener = null;
+
+    private AssociationPublisher payloadPublisher = null;
 
     private NettySctpManagementImpl management;
 
@@ -95,8 +118,31 @@ public class NettyAssociationImpl implements Association {
     // Is the Association up (connection is established)
     protected volatile boolean up = false;
 
-    private NettySctpChannelInboundHandlerAdapter channelHandler;
+    private volatile NettySctpChannelInboundHandlerAdapter channelHandler;
     protected int congLevel;
+    // congestion level measured by the write delay, congLevel is raised above
+    // it while the channel is not writable
+    private int delayCongLevel;
+    private volatile boolean writable = true;
+
+    // autoRead of the channel is off while any reason is set
+    private final AtomicInteger readSuspendReasons = new AtomicInteger();
+
+    // payloads handed to the listener threads and not yet delivered
+    private InboundBacklogLimiter.Account inboundBacklog = null;
+
+    // bytes written to the channel and not yet flushed to the IP channel,
+    // counted only while outbound queue limits are configured
+    private final OutboundQueueLimiter.Account txAccount = new OutboundQueueLimiter.Account();
+
+    // per stream queues if listener callbacks run on virtual threads, only
+    // accessed by the event loop of the channel
+    private ListenerExecutor.StreamQueue[] streamQueues = null;
+
+    // payloads of one channelRead cycle, handed to
+    // AssociationListener.onPayloads() in channelReadComplete. Only accessed
+    // by the event loop of the channel
+    private final ArrayList<PayloadData> rxBatch = new ArrayList<PayloadData>();
 
     public NettyAssociationImpl() {
         super();
@@ -347,6 +393,26 @@ public class NettyAssociationImpl implements Association {
         this.extraHostAddresses = extraHostAddresses;
     }
 
+    /**
+     * @return the index of the event loop the channel is pinned to or -1 if the EventLoopPlacementPolicy of the management
+     *         chooses it
+     */
+    public int getEventLoopIndex() {
+        return eventLoopIndex;
+    }
+
+    /**
+     * Pins the channel to an event loop of the worker group (server associations) or the client group (client
+     * associations). The index is taken modulo the thread count of the group. The next connection of the Association
+     * uses it
+     *
+     * @param eventLoopIndex
+     *            the index of the event loop or -1 for the EventLoopPlacementPolicy of the management
+     */
+    public void setEventLoopIndex(int eventLoopIndex) {
+        this.eventLoopIndex = eventLoopIndex < 0 ? -1 : eventLoopIndex;
+    }
+
     /*
      * (non-Javadoc)
      * 
@@ -354,6 +420,42 @@ public class NettyAssociationImpl implements Association {
      */
     @Override
     public void send(PayloadData payloadData) throws Exception {
+        this.doSend(payloadData);
+    }
+
+    @Override
+    public CompletionStage<Void> sendAsync(PayloadData payloadData) {
+        final CompletableFuture<Void> result = new CompletableFuture<Void>();
+
+        ChannelFuture future;
+        try {
+            future = this.doSend(payloadData);
+        } catch (Exception e) {
+            result.completeExceptionally(e);
+            return result;
+        }
+
+        if (future == null) {
+            result.completeExceptionally(new OutboundQueueFullException(String.format(
+                    "Dropped as the outbound queue of Association=%s is full or the channel is down", this.name)));
+        } else {
+            future.addListener(new ChannelFutureListener() {
+                @Override
+                public void operationComplete(ChannelFuture future) throws Exception {
+                    if (future.isSuccess())
+                        result.complete(null);
+                    else
+                        result.completeExceptionally(future.cause());
+                }
+            });
+        }
+        return result;
+    }
+
+    /**
+     * @return the future of the write or null if the payload was dropped
+     */
+    private ChannelFuture doSend(PayloadData payloadData) throws Exception {
         if (logger.isDebugEnabled()) {
             logger.debug(String.format("Tx : Ass=%s %s", this.getName(), payloadData));
         }
@@ -361,12 +463,113 @@ public class NettyAssociationImpl implements Association {
         NettySctpChannelInboundHandlerAdapter handler = checkSocketIsOpen();
 
         final ByteBuf byteBuf = payloadData.getByteBuf();
+
+        // The accounting costs a listener per write, so it is done only when
+        // limits are configured
+        final OutboundQueueLimiter limiter = this.management.getOutboundQueueLimiter();
+        final int bytes;
+        if (limiter.isEnabled()) {
+            if (!limiter.acquire(this.txAccount, this.name)) {
+                // the ChannelOutboundBuffer can not give back queued messages,
+                // so DROP_OLDEST drops the new one
+                if (logger.isDebugEnabled()) {
+                    logger.debug(String.format("Outbound queue of Association=%s is full, dropped the message", this.name));
+                }
+                payloadData.releaseBuffer();
+                return null;
+            }
+            bytes = byteBuf.readableBytes();
+            limiter.added(this.txAccount, bytes);
+        } else {
+            bytes = -1;
+        }
+
+        ChannelFuture future = handler.writeAndFlush(this.toMessage(payloadData));
+
+        if (bytes >= 0) {
+            this.removeOnComplete(limiter, future, bytes);
+        }
+        return future;
+    }
+
+    @Override
+    public void send(Collection<PayloadData> payloadDataList) throws Exception {
+        NettySctpChannelInboundHandlerAdapter handler = checkSocketIsOpen();
+
+        OutboundQueueLimiter limiter = this.management.getOutboundQueueLimiter();
+        boolean accounting = limiter.isEnabled();
+        ArrayList<Object> messages = new ArrayList<Object>(payloadDataList.size());
+        int[] bytes = accounting ? new int[payloadDataList.size()] : null;
+
+        OutboundQueueFullException rejected = null;
+        try {
+            for (PayloadData payloadData : payloadDataList) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug(String.format("Tx : Ass=%s %s", this.getName(), payloadData));
+                }
+
+                if (accounting) {
+                    if (!limiter.acquire(this.txAccount, this.name)) {
+                        // DROP_OLDEST drops the new message, see send(PayloadData)
+                        if (logger.isDebugEnabled()) {
+                            logger.debug(String.format("Outbound queue of Association=%s is full, dropped the message", this.name));
+                        }
+                        payloadData.releaseBuffer();
+                        continue;
+                    }
+                    bytes[messages.size()] = payloadData.getByteBuf().readableBytes();
+                    limiter.added(this.txAccount, bytes[messages.size()]);
+                }
+                messages.add(this.toMessage(payloadData));
+            }
+        } catch (OutboundQueueFullException e) {
+            // what was accepted before is still sent
+            rejected = e;
+        }
+
+        if (messages.size() > 0) {
+            ChannelFuture[] futures = handler.writeAndFlush(messages);
+            if (accounting) {
+                for (int i = 0; i < messages.size(); i++) {
+                    this.removeOnComplete(limiter, futures != null ? futures[i] : null, bytes[i]);
+                }
+            }
+        }
+
+        if (rejected != null)
+            throw rejected;
+    }
+
+    /**
+     * The ByteBuf goes on to the channel, a pooled PayloadData is not needed
+     * any more. A CompositeByteBuf is passed untouched, the TCP channel writes
+     * its components with a gathering write and the SCTP channel copies it
+     * into one direct buffer
+     */
+    private Object toMessage(PayloadData payloadData) {
+        Object message;
         if (this.ipChannelType == IpChannelType.SCTP) {
-            SctpMessage sctpMessage = new SctpMessage(payloadData.getPayloadProtocolId(), payloadData.getStreamNumber(),
-                    payloadData.isUnordered(), byteBuf);
-            handler.writeAndFlush(sctpMessage);
+            message = new SctpMessage(payloadData.getPayloadProtocolId(), payloadData.getStreamNumber(),
+                    payloadData.isUnordered(), payloadData.getByteBuf());
         } else {
-            handler.writeAndFlush(byteBuf);
+            message = payloadData.getByteBuf();
+        }
+
+        if (payloadData instanceof RecyclablePayloadData)
+            ((RecyclablePayloadData) payloadData).recycle();
+        return message;
+    }
+
+    private void removeOnComplete(final OutboundQueueLimiter limiter, ChannelFuture future, final int bytes) {
+        if (future != null) {
+            future.addListener(new ChannelFutureListener() {
+                @Override
+                public void operationComplete(ChannelFuture future) throws Exception {
+                    limiter.removed(txAccount, bytes);
+                }
+            });
+        } else {
+            limiter.removed(this.txAccount, bytes);
         }
     }
 
@@ -386,15 +589,142 @@ public class NettyAssociationImpl implements Association {
             return null;
     }
 
+    /**
+     * @return the count of flushes requested by sending on the current channel or 0 if there is no channel or flushes are
+     *         not consolidated
+     */
+    public long getFlushRequests() {
+        NettyFlushConsolidationHandler flushHandler = this.getFlushConsolidationHandler();
+        return flushHandler != null ? flushHandler.getFlushRequests() : 0;
+    }
+
+    /**
+     * @return the count of flushes done on the current channel or 0 if there is no channel or flushes are not consolidated
+     */
+    public long getFlushes() {
+        NettyFlushConsolidationHandler flushHandler = this.getFlushConsolidationHandler();
+        return flushHandler != null ? flushHandler.getFlushes() : 0;
+    }
+
+    private NettyFlushConsolidationHandler getFlushConsolidationHandler() {
+        NettySctpChannelInboundHandlerAdapter handler = this.channelHandler;
+        if (handler == null || handler.channel == null)
+            return null;
+        return handler.channel.pipeline().get(NettyFlushConsolidationHandler.class);
+    }
+
     @Override
     public int getCongestionLevel() {
         return this.congLevel;
     }
 
+    @Override
+    public synchronized Flow.Publisher<PayloadData> getPayloadPublisher() {
+        if (this.payloadPublisher == null) {
+            this.payloadPublisher = new AssociationPublisher(this) {
+                @Override
+                protected void suspendReading() {
+                    NettyAssociationImpl.this.suspendReading(READ_SUSPENDED_BY_SUBSCRIBER);
+                }
+
+                @Override
+                protected void resumeReading() {
+                    NettyAssociationImpl.this.resumeReading(READ_SUSPENDED_BY_SUBSCRIBER);
+                }
+            };
+        }
+        return this.payloadPublisher;
+    }
+
+    @Override
+    public Flow.Subscriber<PayloadData> createPayloadSubscriber(int prefetch) {
+        return new AssociationSubscriber(this, this.management, prefetch);
+    }
+
+    /**
+     * Turns autoRead of the channel off till all reasons are cleared again
+     * with resumeReading()
+     *
+     * @param reason a READ_SUSPENDED_* bit
+     */
+    protected void suspendReading(int reason) {
+        int reasons;
+        do {
+            reasons = this.readSuspendReasons.get();
+            if ((reasons & reason) != 0)
+                return;
+        } while (!this.readSuspendReasons.compareAndSet(reasons, reasons | reason));
+
+        if (reasons == 0)
+            this.updateAutoRead(this.channelHandler);
+    }
+
+    /**
+     * Clears a reason for suspending the read and turns autoRead on if no
+     * other reason is left
+     *
+     * @param reason a READ_SUSPENDED_* bit
+     */
+    protected void resumeReading(int reason) {
+        int reasons;
+        do {
+            reasons = this.readSuspendReasons.get();
+            if ((reasons & reason) == 0)
+                return;
+        } while (!this.readSuspendReasons.compareAndSet(reasons, reasons & ~reason));
+
+        if (reasons == reason)
+            this.updateAutoRead(this.channelHandler);
+    }
+
+    @Override
+    public void suspendReading() {
+        this.suspendReading(READ_SUSPENDED_BY_APPLICATION);
+    }
+
+    @Override
+    public void resumeReading() {
+        this.resumeReading(READ_SUSPENDED_BY_APPLICATION);
+    }
+
+    @Override
+    public boolean isReadSuspended() {
+        return this.readSuspendReasons.get() != 0;
+    }
+
+    private void updateAutoRead(NettySctpChannelInboundHandlerAdapter handler) {
+        if (handler == null || handler.channel == null)
+            return;
+
+        // applied in the event loop, so the last change of the reasons wins
+        final Channel channel = handler.channel;
+        channel.eventLoop().execute(new Runnable() {
+            @Override
+            public void run() {
+                channel.config().setAutoRead(!isReadSuspended());
+            }
+        });
+    }
+
+    protected int getDelayCongestionLevel() {
+        return this.delayCongLevel;
+    }
+
     protected void setCongestionLevel(int val) {
+        this.updateCongestionLevel(val, true);
+    }
+
+    private synchronized void updateCongestionLevel(int delayLevel, boolean notifyUnchanged) {
+        this.delayCongLevel = delayLevel;
+        int val = delayLevel;
+        if (!this.writable)
+            val = Math.max(val, this.management.getUnwritableCongestionLevel());
+
         if (this.congLevel != val) {
             logger.warn("Outgoing congestion control: SCTP: Changing of congestion level for Association=" + this.name + " "
-                    + this.congLevel + "->" + val);
+                    + this.congLevel + "->" + val + (this.writable ? "" : " (not writable)"));
+        } else if (!notifyUnchanged) {
+            return;
         }
 
         for (CongestionListener lstr : this.management.getCongestionListeners()) {
@@ -408,6 +738,40 @@ public class NettyAssociationImpl implements Association {
         this.congLevel = val;
     }
 
+    /*
+     * (non-Javadoc)
+     * 
+     * @see su.sres.sur.sctp.api.Association#isWritable()
+     */
+    @Override
+    public boolean isWritable() {
+        NettySctpChannelInboundHandlerAdapter handler = this.channelHandler;
+        return this.up && handler != null && handler.channel != null && handler.channel.isWritable();
+    }
+
+    /**
+     * Invoked by the event loop when the outbound buffer of the channel crosses a water mark
+     */
+    protected void onWritabilityChanged(boolean writable) {
+        if (this.writable == writable)
+            return;
+
+        this.writable = writable;
+        if (logger.isDebugEnabled()) {
+            logger.debug(String.format("Writability changed: Association=%s writable=%s", this.name, writable));
+        }
+        this.updateCongestionLevel(this.delayCongLevel, false);
+
+        AssociationListener listener = this.associationListener;
+        if (listener != null && this.up) {
+            try {
+                listener.onWritabilityChanged(this, writable);
+            } catch (Throwable ee) {
+                logger.error("Exception while invoking onWritabilityChanged", ee);
+            }
+        }
+    }
+
     /*
      * (non-Javadoc)
      * 
@@ -483,6 +847,21 @@ public class NettyAssociationImpl implements Association {
      */
     protected void setManagement(NettySctpManagementImpl management) {
         this.management = management;
+        this.inboundBacklog = new InboundBacklogLimiter.Account(management.getInboundBacklogLimiter()) {
+            @Override
+            protected void suspend() {
+                if (logger.isDebugEnabled()) {
+                    logger.debug(String.format("Suspended reading of Association=%s, inbound backlog=%d", name,
+                            this.getPendingPayloads()));
+                }
+                suspendReading(READ_SUSPENDED_BY_BACKLOG);
+            }
+
+            @Override
+            protected void resume() {
+                resumeReading(READ_SUSPENDED_BY_BACKLOG);
+            }
+        };
     }
 
     protected void start() throws Exception {
@@ -533,14 +912,58 @@ public class NettyAssociationImpl implements Association {
     }
 
     protected void read(PayloadData payload) {
+        ListenerExecutor listenerExecutor = this.management.getListenerExecutor();
+        if (listenerExecutor != null) {
+            ListenerExecutor.StreamQueue streamQueue = this.getStreamQueue(listenerExecutor, payload.getStreamNumber());
+            this.inboundBacklog.added();
+            streamQueue.deliver(payload);
+            return;
+        }
+
+        this.rxBatch.add(payload);
+    }
+
+    /**
+     * Delivers the payloads of the finished read cycle
+     */
+    protected void readComplete() {
+        if (this.rxBatch.isEmpty())
+            return;
+
         try {
-            this.associationListener.onPayload(this, payload);
+            this.associationListener.onPayloads(this, this.rxBatch);
         } catch (Exception e) {
-            logger.error(String.format("Error while calling Listener for Association=%s.Payload=%s", this.name, payload), e);
+            logger.error(String.format("Error while calling Listener for Association=%s.Payloads=%d", this.name,
+                    this.rxBatch.size()), e);
+        } finally {
+            this.rxBatch.clear();
         }
     }
 
+    private ListenerExecutor.StreamQueue getStreamQueue(ListenerExecutor listenerExecutor, int streamNumber) {
+        ListenerExecutor.StreamQueue[] queues = this.streamQueues;
+        if (queues == null) {
+            // no COMM_UP seen yet
+            queues = new ListenerExecutor.StreamQueue[1];
+            this.streamQueues = queues;
+        }
+
+        int index = streamNumber % queues.length;
+        ListenerExecutor.StreamQueue queue = queues[index];
+        if (queue == null) {
+            queue = listenerExecutor.newStreamQueue(this, this.inboundBacklog);
+            queues[index] = queue;
+        }
+        return queue;
+    }
+
     protected void markAssociationUp(int maxInboundStreams, int maxOutboundStreams) {
+        // queues of a previous connection may still be delivering, they are
+        // kept so the order of the streams is not broken
+        int streams = Math.max(1, Math.max(maxInboundStreams, maxOutboundStreams));
+        if (this.streamQueues == null || this.streamQueues.length != streams)
+            this.streamQueues = new ListenerExecutor.StreamQueue[streams];
+
         if (this.server != null) {
             synchronized (this.server.anonymAssociations) {
                 this.server.anonymAssociations.add(this);
@@ -564,6 +987,12 @@ public class NettyAssociationImpl implements Association {
             // To avoid calling Listener again and again
             this.up = false;
 
+            // the next channel starts writable
+            if (!this.writable) {
+                this.writable = true;
+                this.updateCongestionLevel(this.delayCongLevel, false);
+            }
+
             for (ManagementEventListener lstr : this.management.getManagementEventListeners()) {
                 try {
                     lstr.onAssociationDown(this);
@@ -601,6 +1030,8 @@ public class NettyAssociationImpl implements Association {
 
     protected void setChannelHandler(NettySctpChannelInboundHandlerAdapter channelHandler) {
         this.channelHandler = channelHandler;
+        if (channelHandler != null && this.isReadSuspended())
+            this.updateAutoRead(channelHandler);
     }
 
     protected void connect() {
@@ -616,10 +1047,11 @@ public class NettyAssociationImpl implements Association {
         Bootstrap b;
         InetSocketAddress localAddress;
         try {
-            EventLoopGroup group = this.management.getBossGroup();
+            EventLoopGroup group = this.management.getClientGroup(this.ipChannelType);
             b = new Bootstrap();
 
             b.group(group);
+            b.option(ChannelOption.WRITE_BUFFER_WATER_MARK, this.management.getWriteBufferWaterMark());
             if (this.ipChannelType == IpChannelType.SCTP) {
                 b.channel(NioSctpChannel.class);
 
@@ -628,7 +1060,8 @@ public class NettyAssociationImpl implements Association {
 
                 b.handler(new NettySctpClientChannelInitializer(this));
             } else {
-                b.channel(NioSocketChannel.class);
+                // NioSocketChannel or EpollSocketChannel
+                b.channel(this.management.getTcpChannelClass());
                 b.option(ChannelOption.TCP_NODELAY, true);
                 b.handler(new NettyTcpClientChannelInitializer(this));
             }
@@ -642,8 +1075,17 @@ public class NettyAssociationImpl implements Association {
 
         // Bind the client channel.
         try {
-            ChannelFuture bindFuture = b.bind(localAddress).sync();
+            ChannelFuture bindFuture;
+            // the channel is registered with an event loop of the group by bind()
+            EventLoopPlacement.beginPlacement(this);
+            try {
+                bindFuture = b.bind(localAddress);
+            } finally {
+                EventLoopPlacement.endPlacement();
+            }
             Channel channel = bindFuture.channel();
+            this.management.placed(this, channel);
+            bindFuture.sync();
 
             if (this.ipChannelType == IpChannelType.SCTP) {
                 // Get the underlying sctp channel
@@ -706,6 +1148,7 @@ public class NettyAssociationImpl implements Association {
                     .getInstance(xml.getAttribute(IPCHANNEL_TYPE, IpChannelType.SCTP.getCode()));
             if (association.ipChannelType == null)
                 association.ipChannelType = IpChannelType.SCTP;
+            association.eventLoopIndex = xml.getAttribute(EVENT_LOOP_INDEX, -1);
 
             int extraHostAddressesSize = xml.getAttribute(EXTRA_HOST_ADDRESS_SIZE, 0);
             association.extraHostAddresses = new String[extraHostAddressesSize];
@@ -729,6 +1172,7 @@ public class NettyAssociationImpl implements Association {
 
             xml.setAttribute(SERVER_NAME, association.serverName);
             xml.setAttribute(IPCHANNEL_TYPE, association.ipChannelType.getCode());
+            xml.setAttribute(EVENT_LOOP_INDEX, association.eventLoopIndex);
 
             xml.setAttribute(EXTRA_HOST_ADDRESS_SIZE,
                     association.extraHostAddresses != null ? association.extraHostAddresses.length : 0);
@@ -0,0 +1,178 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2011-2014, Telestax Inc and individual contributors
+ * by the @authors tag.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ *
+ */
+
+package su.sres.sur.sctp.netty;
+
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Consolidates the flushes of a channel, so that a burst of messages is written with a few syscalls instead of one per
+ * message.
+ *
+ * A flush is deferred to the end of the current run of the event loop, so the writes already queued by other threads go out
+ * with it. A message on an idle link is therefore flushed without a timer delay. When flushInterval is set and the link
+ * was flushed less than flushInterval ago, the deferred flush waits for the rest of the interval. The flush is done at once
+ * when maxWrites flushes have been requested since the last one, and it is done at the end of a read.
+ *
+ */
+public class NettyFlushConsolidationHandler extends ChannelDuplexHandler {
+
+    private final int maxWrites;
+    private final long flushIntervalNanos;
+
+    private ChannelHandlerContext ctx;
+    private int pendingFlushes;
+    private boolean readInProgress;
+    private boolean flushScheduled;
+    private Future<?> scheduledFlush;
+    private long lastFlushNanos;
+
+    // written by the event loop only
+    private volatile long flushRequests;
+    private volatile long flushes;
+
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            if (flushScheduled) {
+                scheduledFlush = null;
+                flushNow();
+            }
+        }
+    };
+
+    /**
+     * @param maxWrites
+     *            the count of requested flushes after which the channel is flushed at once
+     * @param flushIntervalMicros
+     *            the minimal interval between the flushes of a busy link or 0
+     */
+    public NettyFlushConsolidationHandler(int maxWrites, int flushIntervalMicros) {
+        this.maxWrites = maxWrites;
+        this.flushIntervalNanos = TimeUnit.MICROSECONDS.toNanos(flushIntervalMicros);
+        this.lastFlushNanos = System.nanoTime() - this.flushIntervalNanos;
+    }
+
+    /**
+     * @return the count of flushes requested by the writers of the channel
+     */
+    public long getFlushRequests() {
+        return this.flushRequests;
+    }
+
+    /**
+     * @return the count of flushes passed to the channel
+     */
+    public long getFlushes() {
+        return this.flushes;
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+        this.ctx = ctx;
+    }
+
+    @Override
+    public void flush(ChannelHandlerContext ctx) throws Exception {
+        this.flushRequests++;
+        if (++this.pendingFlushes >= this.maxWrites) {
+            this.flushNow();
+            return;
+        }
+        // flushed by channelReadComplete() or by the scheduled flush
+        if (this.readInProgress || this.flushScheduled)
+            return;
+
+        this.flushScheduled = true;
+        long sinceLastFlush = System.nanoTime() - this.lastFlushNanos;
+        if (sinceLastFlush < this.flushIntervalNanos) {
+            this.scheduledFlush = ctx.executor().schedule(this.flushTask, this.flushIntervalNanos - sinceLastFlush,
+                    TimeUnit.NANOSECONDS);
+        } else {
+            ctx.executor().execute(this.flushTask);
+        }
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        this.readInProgress = true;
+        ctx.fireChannelRead(msg);
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+        this.readInProgress = false;
+        this.flushIfPending();
+        ctx.fireChannelReadComplete();
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        // the outbound buffer is over its high water mark, the pending writes must go out
+        if (!ctx.channel().isWritable())
+            this.flushIfPending();
+        ctx.fireChannelWritabilityChanged();
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+        this.flushIfPending();
+        ctx.fireExceptionCaught(cause);
+    }
+
+    @Override
+    public void disconnect(ChannelHandlerContext ctx, ChannelPromise promise) throws Exception {
+        this.flushIfPending();
+        ctx.disconnect(promise);
+    }
+
+    @Override
+    public void close(ChannelHandlerContext ctx, ChannelPromise promise) throws Exception {
+        this.flushIfPending();
+        ctx.close(promise);
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+        this.flushIfPending();
+    }
+
+    private void flushIfPending() {
+        if (this.pendingFlushes > 0)
+            this.flushNow();
+    }
+
+    private void flushNow() {
+        if (this.scheduledFlush != null) {
+            this.scheduledFlush.cancel(false);
+            this.scheduledFlush = null;
+        }
+        this.flushScheduled = false;
+        this.pendingFlushes = 0;
+        this.lastFlushNanos = System.nanoTime();
+        this.flushes++;
+        this.ctx.flush();
+    }
+}
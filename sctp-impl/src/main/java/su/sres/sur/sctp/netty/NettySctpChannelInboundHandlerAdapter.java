@@ -26,9 +26,16 @@ import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
 import io.netty.channel.sctp.SctpMessage;
+import io.netty.util.ReferenceCountUtil;
+
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+
 import su.sres.sur.sctp.api.IpChannelType;
 import su.sres.sur.sctp.api.PayloadData;
+import su.sres.sur.sctp.api.RecyclablePayloadData;
 
 import org.apache.log4j.Logger;
 import org.apache.log4j.Priority;
@@ -70,8 +77,11 @@ public class NettySctpChannelInboundHandlerAdapter extends ChannelInboundHandler
             logger.debug(String.format("channelInactive event: association=%s", this.association));
         }
 
-        if (this.association != null)
+        if (this.association != null) {
+            // payloads of an unfinished read cycle are delivered first
+            this.association.readComplete();
             this.association.markAssociationDown();
+        }
     }
 
     @Override
@@ -181,11 +191,11 @@ public class NettySctpChannelInboundHandlerAdapter extends ChannelInboundHandler
         if (this.association.getIpChannelType() == IpChannelType.SCTP) {
             SctpMessage sctpMessage = (SctpMessage) msg;
             ByteBuf byteBuf = sctpMessage.content();
-            payload = new PayloadData(byteBuf.readableBytes(), byteBuf, sctpMessage.isComplete(), sctpMessage.isUnordered(),
-                    sctpMessage.protocolIdentifier(), sctpMessage.streamIdentifier());
+            payload = RecyclablePayloadData.newInstance(byteBuf.readableBytes(), byteBuf, sctpMessage.isComplete(),
+                    sctpMessage.isUnordered(), sctpMessage.protocolIdentifier(), sctpMessage.streamIdentifier());
         } else {
             ByteBuf byteBuf = (ByteBuf) msg;
-            payload = new PayloadData(byteBuf.readableBytes(), byteBuf, true, false, 0, 0);
+            payload = RecyclablePayloadData.newInstance(byteBuf.readableBytes(), byteBuf, true, false, 0, 0);
         }
 
         if (logger.isDebugEnabled()) {
@@ -198,7 +208,23 @@ public class NettySctpChannelInboundHandlerAdapter extends ChannelInboundHandler
         // }
     }
 
-    protected void writeAndFlush(Object message) {
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) {
+        if (this.association != null)
+            this.association.readComplete();
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        if (this.association != null)
+            this.association.onWritabilityChanged(ctx.channel().isWritable());
+        ctx.fireChannelWritabilityChanged();
+    }
+
+    /**
+     * @return the future of the write or null if there is no channel
+     */
+    protected ChannelFuture writeAndFlush(Object message) {
         Channel ch = this.channel;
         if (ch != null) {
             ChannelFuture future = ch.writeAndFlush(message);
@@ -210,17 +236,70 @@ public class NettySctpChannelInboundHandlerAdapter extends ChannelInboundHandler
                 CongestionMonitor congestionMonitor = new CongestionMonitor();
                 future.addListener(congestionMonitor);
             }
+            return future;
         }
+        return null;
      }
 
+    /**
+     * Writes all messages and flushes once. Outside of the event loop this is done by one task for the whole batch
+     *
+     * @return the futures of the writes or null if there is no channel
+     */
+    protected ChannelFuture[] writeAndFlush(final List<Object> messages) {
+        final Channel ch = this.channel;
+        if (ch == null)
+            return null;
+
+        final ChannelPromise[] promises = new ChannelPromise[messages.size()];
+        for (int i = 0; i < promises.length; i++) {
+            promises[i] = ch.newPromise();
+        }
+
+        if (ch.eventLoop().inEventLoop()) {
+            writeAndFlush(ch, messages, promises);
+        } else {
+            try {
+                ch.eventLoop().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        writeAndFlush(ch, messages, promises);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                for (int i = 0; i < promises.length; i++) {
+                    ReferenceCountUtil.release(messages.get(i));
+                    promises[i].setFailure(e);
+                }
+                return promises;
+            }
+        }
+
+        long curMillisec = System.currentTimeMillis();
+        long secPart = curMillisec / 500;
+        if (lastCongestionMonitorSecondPart < secPart && promises.length > 0) {
+            lastCongestionMonitorSecondPart = secPart;
+            CongestionMonitor congestionMonitor = new CongestionMonitor();
+            promises[promises.length - 1].addListener(congestionMonitor);
+        }
+        return promises;
+    }
+
+    private static void writeAndFlush(Channel ch, List<Object> messages, ChannelPromise[] promises) {
+        for (int i = 0; i < promises.length; i++) {
+            ch.write(messages.get(i), promises[i]);
+        }
+        ch.flush();
+    }
+
     private void onCongestionMonitor(double delaySec) {
-        int newAlarmLevel = this.association.getCongestionLevel();
-        for (int i1 = this.association.getCongestionLevel() - 1; i1 >= 0; i1--) {
+        int newAlarmLevel = this.association.getDelayCongestionLevel();
+        for (int i1 = this.association.getDelayCongestionLevel() - 1; i1 >= 0; i1--) {
             if (delaySec <= this.association.getManagement().congControl_BackToNormalDelayThreshold[i1]) {
                 newAlarmLevel = i1;
             }
         }
-        for (int i1 = this.association.getCongestionLevel(); i1 < 3; i1++) {
+        for (int i1 = this.association.getDelayCongestionLevel(); i1 < 3; i1++) {
             if (delaySec >= this.association.getManagement().congControl_DelayThreshold[i1]) {
                 newAlarmLevel = i1 + 1;
             }
@@ -42,6 +42,10 @@ public class NettySctpClientChannelInitializer extends ChannelInitializer<SctpCh
 
     @Override
     protected void initChannel(SctpChannel ch) throws Exception {
+        NettyFlushConsolidationHandler flushHandler = this.nettyAssociationImpl.getManagement().createFlushConsolidationHandler();
+        if (flushHandler != null) {
+            ch.pipeline().addLast(flushHandler);
+        }
         ch.pipeline().addLast(new SctpMessageCompletionHandler(), new NettySctpClientHandler(this.nettyAssociationImpl));
 
     }
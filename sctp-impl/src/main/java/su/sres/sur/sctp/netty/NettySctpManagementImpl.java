@@ -19,15 +19,31 @@
  */
 package su.sres.sur.sctp.netty;
 
+import io.netty.channel.Channel;
+import io.netty.channel.DefaultSelectStrategyFactory;
 import io.netty.channel.EventLoopGroup;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
 import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.ServerSocketChannel;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+import io.netty.handler.codec.LengthFieldPrepender;
 import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.ThreadPerTaskExecutor;
 
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.channels.spi.SelectorProvider;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -43,14 +59,19 @@ import javolution.util.FastMap;
 import javolution.xml.XMLObjectReader;
 import javolution.xml.XMLObjectWriter;
 import javolution.xml.stream.XMLStreamException;
+import su.sres.sur.sctp.InboundBacklogLimiter;
+import su.sres.sur.sctp.ListenerExecutor;
+import su.sres.sur.sctp.OutboundQueueLimiter;
 import su.sres.sur.sctp.api.Association;
 import su.sres.sur.sctp.api.AssociationType;
 import su.sres.sur.sctp.api.CongestionListener;
 import su.sres.sur.sctp.api.IpChannelType;
 import su.sres.sur.sctp.api.Management;
 import su.sres.sur.sctp.api.ManagementEventListener;
+import su.sres.sur.sctp.api.OutboundOverflowPolicy;
 import su.sres.sur.sctp.api.Server;
 import su.sres.sur.sctp.api.ServerListener;
+import su.sres.sur.sctp.api.TcpFramingConfig;
 
 import org.apache.log4j.Logger;
 
@@ -118,12 +139,52 @@ public class NettySctpManagementImpl implements Management {
 
     private FastTable<ManagementEventListener> managementEventListeners = new FastTable<ManagementEventListener>();
     private FastTable<CongestionListener> congestionListeners = new FastTable<CongestionListener>();
+
+    // limits of the outbound bytes not yet written to the channels
+    private final OutboundQueueLimiter outboundQueueLimiter = new OutboundQueueLimiter() {
+        @Override
+        protected boolean isIoThread() {
+            return NettySctpManagementImpl.this.isEventLoopThread();
+        }
+    };
+    private final InboundBacklogLimiter inboundBacklogLimiter = new InboundBacklogLimiter();
+
+    // delivery of listener callbacks on virtual threads
+    private boolean virtualThreadDelivery = false;
+    private TcpFramingConfig tcpFraming = null;
+    private int maxSctpMessageSize = 1048576;
+    // flush consolidation of Netty channels, see NettyFlushConsolidationHandler
+    private int flushConsolidationWrites = 256;
+    private int flushConsolidationMicros = 0;
+    // writability of Netty channels
+    private int writeBufferLowWaterMark = 32 * 1024;
+    private int writeBufferHighWaterMark = 64 * 1024;
+    private int unwritableCongestionLevel = 1;
+    private ListenerExecutor listenerExecutor = null;
+
     protected FastTable<Server> servers = new FastTable<Server>();
     protected NettyAssociationMap<String, Association> associations = new NettyAssociationMap<String, Association>();
     private volatile boolean started = false;
 
     private EventLoopGroup bossGroup;
     private EventLoopGroup workerGroup;
+    // connections of client associations
+    private EventLoopGroup clientGroup;
+
+    // 0 means the Netty default: twice the number of available processors
+    private int bossGroupThreads = 1;
+    private int workerGroupThreads = 0;
+    private int clientGroupThreads = 1;
+    private EventLoopPlacementPolicy eventLoopPlacementPolicy = EventLoopPlacementPolicy.ROUND_ROBIN;
+    private FastTable<EventLoopPlacement> eventLoopPlacements = new FastTable<EventLoopPlacement>();
+
+    // TCP associations and servers use the native epoll transport if it is
+    // enabled and available, else they share the NIO groups with SCTP
+    private boolean epollEnabled = true;
+    private boolean epollTransport = false;
+    private EventLoopGroup tcpBossGroup;
+    private EventLoopGroup tcpWorkerGroup;
+    private EventLoopGroup tcpClientGroup;
     private ScheduledExecutorService clientExecutor;
 
     // SctpStandardSocketOptions
@@ -232,6 +293,173 @@ public class NettySctpManagementImpl implements Management {
         return workerGroup;
     }
 
+    /**
+     * @return the group of server channels and client channels of the passed type
+     */
+    protected EventLoopGroup getBossGroup(IpChannelType ipChannelType) {
+        return ipChannelType == IpChannelType.TCP ? this.tcpBossGroup : this.bossGroup;
+    }
+
+    /**
+     * @return the group of accepted channels of the passed type
+     */
+    protected EventLoopGroup getWorkerGroup(IpChannelType ipChannelType) {
+        return ipChannelType == IpChannelType.TCP ? this.tcpWorkerGroup : this.workerGroup;
+    }
+
+    /**
+     * @return the group of client channels of the passed type
+     */
+    protected EventLoopGroup getClientGroup(IpChannelType ipChannelType) {
+        return ipChannelType == IpChannelType.TCP ? this.tcpClientGroup : this.clientGroup;
+    }
+
+    protected Class<? extends SocketChannel> getTcpChannelClass() {
+        return this.epollTransport ? EpollSocketChannel.class : NioSocketChannel.class;
+    }
+
+    protected Class<? extends ServerSocketChannel> getTcpServerChannelClass() {
+        return this.epollTransport ? EpollServerSocketChannel.class : NioServerSocketChannel.class;
+    }
+
+    /**
+     * @return true if TCP may use the native epoll transport where it is available. Default value is true
+     */
+    public boolean isEpollEnabled() {
+        return this.epollEnabled;
+    }
+
+    /**
+     * @param val
+     *            true if TCP may use the native epoll transport where it is available. SCTP always uses NIO
+     */
+    public void setEpollEnabled(boolean val) throws Exception {
+        if (this.started)
+            throw new Exception("EpollEnabled parameter can be updated only when SCTP stack is NOT running");
+
+        this.epollEnabled = val;
+    }
+
+    /**
+     * @return true if TCP associations and servers of the running stack use the native epoll transport
+     */
+    public boolean isEpollTransport() {
+        return this.epollTransport;
+    }
+
+    /**
+     * @return the thread count of the group accepting connections of servers. Default value is 1
+     */
+    public int getBossGroupThreads() {
+        return this.bossGroupThreads;
+    }
+
+    public void setBossGroupThreads(int val) throws Exception {
+        if (this.started)
+            throw new Exception("BossGroupThreads parameter can be updated only when SCTP stack is NOT running");
+        if (val < 1)
+            throw new Exception("BossGroupThreads parameter must be at least 1");
+
+        this.bossGroupThreads = val;
+    }
+
+    /**
+     * @return the thread count of the group of accepted channels. Default value is 0, which means twice the number of
+     *         available processors
+     */
+    public int getWorkerGroupThreads() {
+        return this.workerGroupThreads;
+    }
+
+    public void setWorkerGroupThreads(int val) throws Exception {
+        if (this.started)
+            throw new Exception("WorkerGroupThreads parameter can be updated only when SCTP stack is NOT running");
+        if (val < 0)
+            throw new Exception("WorkerGroupThreads parameter must not be negative");
+
+        this.workerGroupThreads = val;
+    }
+
+    /**
+     * @return the thread count of the group of client channels. Default value is 1, 0 means twice the number of available
+     *         processors
+     */
+    public int getClientGroupThreads() {
+        return this.clientGroupThreads;
+    }
+
+    public void setClientGroupThreads(int val) throws Exception {
+        if (this.started)
+            throw new Exception("ClientGroupThreads parameter can be updated only when SCTP stack is NOT running");
+        if (val < 0)
+            throw new Exception("ClientGroupThreads parameter must not be negative");
+
+        this.clientGroupThreads = val;
+    }
+
+    /**
+     * @return how the channels of associations are spread over the event loops of the worker and client groups. Default
+     *         value is ROUND_ROBIN
+     */
+    public EventLoopPlacementPolicy getEventLoopPlacementPolicy() {
+        return this.eventLoopPlacementPolicy;
+    }
+
+    public void setEventLoopPlacementPolicy(EventLoopPlacementPolicy val) throws Exception {
+        if (this.started)
+            throw new Exception("EventLoopPlacementPolicy parameter can be updated only when SCTP stack is NOT running");
+        if (val == null)
+            throw new Exception("EventLoopPlacementPolicy parameter must not be null");
+
+        this.eventLoopPlacementPolicy = val;
+    }
+
+    /**
+     * Records the event loop the channel of the Association has been registered with for {@link #getEventLoopReport()}
+     */
+    protected void placed(NettyAssociationImpl association, Channel channel) {
+        for (EventLoopPlacement placement : this.eventLoopPlacements) {
+            if (placement.placed(association, channel))
+                return;
+        }
+    }
+
+    /**
+     * @return the associations with an open channel per event loop of the worker and client groups, one line per event
+     *         loop
+     */
+    public String getEventLoopReport() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("EventLoopPlacementPolicy=").append(this.eventLoopPlacementPolicy).append("\n");
+        for (EventLoopPlacement placement : this.eventLoopPlacements) {
+            List<List<String>> loops = placement.getPlacedAssociations();
+            for (int i = 0; i < loops.size(); i++) {
+                sb.append(placement.getName()).append("[").append(i).append("] associations=").append(loops.get(i).size())
+                        .append(" ").append(loops.get(i)).append("\n");
+            }
+        }
+        return sb.toString();
+    }
+
+    private EventLoopGroup createNioGroup(int threads, String groupName, EventLoopPlacement placement) {
+        ThreadPerTaskExecutor executor = new ThreadPerTaskExecutor(new DefaultThreadFactory(groupName + this.name));
+        if (placement == null)
+            return new NioEventLoopGroup(threads, executor);
+
+        this.eventLoopPlacements.add(placement);
+        return new NioEventLoopGroup(threads, executor, placement, SelectorProvider.provider(),
+                DefaultSelectStrategyFactory.INSTANCE);
+    }
+
+    private EventLoopGroup createEpollGroup(int threads, String groupName, EventLoopPlacement placement) {
+        ThreadPerTaskExecutor executor = new ThreadPerTaskExecutor(new DefaultThreadFactory(groupName + this.name));
+        if (placement == null)
+            return new EpollEventLoopGroup(threads, executor);
+
+        this.eventLoopPlacements.add(placement);
+        return new EpollEventLoopGroup(threads, executor, placement, DefaultSelectStrategyFactory.INSTANCE);
+    }
+
     protected ScheduledExecutorService getClientExecutor() {
         return clientExecutor;
     }
@@ -325,11 +553,33 @@ public class NettySctpManagementImpl implements Management {
 
             logger.info(String.format("SCTP configuration file path %s", persistFile.toString()));
 
-            this.bossGroup = new NioEventLoopGroup(1, new DefaultThreadFactory("Sctp-BossGroup-" + this.name));
-            // TODO: make a thread count for WorkerGroup configurable
-            this.workerGroup = new NioEventLoopGroup(0, new DefaultThreadFactory("Sctp-WorkerGroup-" + this.name));
+            this.eventLoopPlacements.clear();
+            this.bossGroup = this.createNioGroup(this.bossGroupThreads, "Sctp-BossGroup-", null);
+            this.workerGroup = this.createNioGroup(this.workerGroupThreads, "Sctp-WorkerGroup-", new EventLoopPlacement(
+                    "WorkerGroup", this));
+            this.clientGroup = this.createNioGroup(this.clientGroupThreads, "Sctp-ClientGroup-", new EventLoopPlacement(
+                    "ClientGroup", this));
+            this.epollTransport = this.epollEnabled && Epoll.isAvailable();
+            if (this.epollTransport) {
+                this.tcpBossGroup = this.createEpollGroup(this.bossGroupThreads, "Sctp-TcpBossGroup-", null);
+                this.tcpWorkerGroup = this.createEpollGroup(this.workerGroupThreads, "Sctp-TcpWorkerGroup-",
+                        new EventLoopPlacement("TcpWorkerGroup", this));
+                this.tcpClientGroup = this.createEpollGroup(this.clientGroupThreads, "Sctp-TcpClientGroup-",
+                        new EventLoopPlacement("TcpClientGroup", this));
+            } else {
+                if (this.epollEnabled) {
+                    logger.info(String.format("Epoll transport is not available, TCP of SCTP Management=%s uses NIO: %s",
+                            this.name, Epoll.unavailabilityCause()));
+                }
+                this.tcpBossGroup = this.bossGroup;
+                this.tcpWorkerGroup = this.workerGroup;
+                this.tcpClientGroup = this.clientGroup;
+            }
             this.clientExecutor = new ScheduledThreadPoolExecutor(1, new DefaultThreadFactory("Sctp-ClientExecutorGroup-"
                     + this.name));
+            if (this.virtualThreadDelivery) {
+                this.listenerExecutor = new ListenerExecutor(this.name);
+            }
 
             // this.nettyClientOpsThread = new NettyClientOpsThread(this);
             // (new Thread(this.nettyClientOpsThread )).start();
@@ -343,7 +593,10 @@ public class NettySctpManagementImpl implements Management {
             this.started = true;
 
             if (logger.isInfoEnabled()) {
-                logger.info(String.format("Started SCTP Management=%s", this.name));
+                logger.info(String.format(
+                        "Started SCTP Management=%s EpollTransport=%s BossGroupThreads=%d WorkerGroupThreads=%d ClientGroupThreads=%d EventLoopPlacementPolicy=%s",
+                        this.name, this.epollTransport, this.bossGroupThreads, this.workerGroupThreads,
+                        this.clientGroupThreads, this.eventLoopPlacementPolicy));
             }
 
             for (ManagementEventListener lstr : managementEventListeners) {
@@ -451,7 +704,17 @@ public class NettySctpManagementImpl implements Management {
         // TODO - make a general shutdown and waiting for it instead of "waiting till stopping associations" 
         this.bossGroup.shutdownGracefully();
         this.workerGroup.shutdownGracefully();
+        this.clientGroup.shutdownGracefully();
+        if (this.epollTransport) {
+            this.tcpBossGroup.shutdownGracefully();
+            this.tcpWorkerGroup.shutdownGracefully();
+            this.tcpClientGroup.shutdownGracefully();
+        }
         this.clientExecutor.shutdown();
+        if (this.listenerExecutor != null) {
+            this.listenerExecutor.shutdown();
+            this.listenerExecutor = null;
+        }
        
 
         // TODO Should servers be also checked for shutdown?
@@ -1656,6 +1919,270 @@ public class NettySctpManagementImpl implements Management {
         // this parameter is only needed for non-netty version
     }
 
+    @Override
+    public int getOutboundQueueHighWatermark() {
+        return this.outboundQueueLimiter.getHighWatermark();
+    }
+
+    @Override
+    public void setOutboundQueueHighWatermark(int val) throws Exception {
+        this.outboundQueueLimiter.setHighWatermark(val);
+    }
+
+    @Override
+    public int getOutboundQueueLowWatermark() {
+        return this.outboundQueueLimiter.getLowWatermark();
+    }
+
+    @Override
+    public void setOutboundQueueLowWatermark(int val) throws Exception {
+        this.outboundQueueLimiter.setLowWatermark(val);
+    }
+
+    @Override
+    public long getMaxPendingOutboundBytes() {
+        return this.outboundQueueLimiter.getMaxPendingBytes();
+    }
+
+    @Override
+    public void setMaxPendingOutboundBytes(long val) throws Exception {
+        this.outboundQueueLimiter.setMaxPendingBytes(val);
+    }
+
+    @Override
+    public OutboundOverflowPolicy getOutboundOverflowPolicy() {
+        return this.outboundQueueLimiter.getOverflowPolicy();
+    }
+
+    @Override
+    public void setOutboundOverflowPolicy(OutboundOverflowPolicy val) throws Exception {
+        this.outboundQueueLimiter.setOverflowPolicy(val);
+    }
+
+    @Override
+    public long getOutboundBlockTimeout() {
+        return this.outboundQueueLimiter.getBlockTimeout();
+    }
+
+    @Override
+    public void setOutboundBlockTimeout(long val) throws Exception {
+        this.outboundQueueLimiter.setBlockTimeout(val);
+    }
+
+    protected OutboundQueueLimiter getOutboundQueueLimiter() {
+        return this.outboundQueueLimiter;
+    }
+
+    /**
+     * @return true if called by an event loop of one of the groups of this Management
+     */
+    protected boolean isEventLoopThread() {
+        return inEventLoop(this.bossGroup) || inEventLoop(this.workerGroup) || inEventLoop(this.clientGroup)
+                || inEventLoop(this.tcpBossGroup) || inEventLoop(this.tcpWorkerGroup) || inEventLoop(this.tcpClientGroup);
+    }
+
+    private static boolean inEventLoop(EventLoopGroup group) {
+        if (group == null)
+            return false;
+        for (EventExecutor executor : group) {
+            if (executor.inEventLoop())
+                return true;
+        }
+        return false;
+    }
+
+    @Override
+    public boolean isVirtualThreadDelivery() {
+        return this.virtualThreadDelivery;
+    }
+
+    @Override
+    public void setVirtualThreadDelivery(boolean val) throws Exception {
+        if (this.started)
+            throw new Exception("VirtualThreadDelivery parameter can be updated only when SCTP stack is NOT running");
+
+        this.virtualThreadDelivery = val;
+    }
+
+    @Override
+    public int getInboundBacklogHighWatermark() {
+        return this.inboundBacklogLimiter.getHighWatermark();
+    }
+
+    @Override
+    public void setInboundBacklogHighWatermark(int val) throws Exception {
+        this.inboundBacklogLimiter.setHighWatermark(val);
+    }
+
+    @Override
+    public int getInboundBacklogLowWatermark() {
+        return this.inboundBacklogLimiter.getLowWatermark();
+    }
+
+    @Override
+    public void setInboundBacklogLowWatermark(int val) throws Exception {
+        this.inboundBacklogLimiter.setLowWatermark(val);
+    }
+
+    protected InboundBacklogLimiter getInboundBacklogLimiter() {
+        return this.inboundBacklogLimiter;
+    }
+
+    @Override
+    public TcpFramingConfig getTcpFraming() {
+        return this.tcpFraming;
+    }
+
+    @Override
+    public void setTcpFraming(TcpFramingConfig val) throws Exception {
+        if (this.started)
+            throw new Exception("TcpFraming parameter can be updated only when SCTP stack is NOT running");
+
+        this.tcpFraming = val;
+    }
+
+    @Override
+    public int getMaxSctpMessageSize() {
+        return this.maxSctpMessageSize;
+    }
+
+    @Override
+    public void setMaxSctpMessageSize(int val) throws Exception {
+        if (this.started)
+            throw new Exception("MaxSctpMessageSize parameter can be updated only when SCTP stack is NOT running");
+        if (val < 0)
+            throw new Exception("MaxSctpMessageSize must not be negative");
+
+        // the Netty pipelines reassemble with SctpMessageCompletionHandler,
+        // this parameter is only needed for non-netty version
+        this.maxSctpMessageSize = val;
+    }
+
+    /**
+     * @return a new decoder splitting the byte stream of a TCP channel into messages or null if TcpFraming is not set
+     */
+    protected LengthFieldBasedFrameDecoder createTcpFrameDecoder() {
+        TcpFramingConfig config = this.tcpFraming;
+        if (config == null)
+            return null;
+
+        // frames are retained slices of the cumulation buffer
+        return new LengthFieldBasedFrameDecoder(config.getMaxFrameLength(), config.getLengthFieldOffset(),
+                config.getLengthFieldLength(), config.getLengthAdjustment(), config.getInitialBytesToStrip());
+    }
+
+    /**
+     * @return a new encoder adding the length prefix to sent messages or null if TcpFraming is not set or the messages
+     *         carry their own length field
+     */
+    protected LengthFieldPrepender createTcpFramePrepender() {
+        TcpFramingConfig config = this.tcpFraming;
+        if (config == null || !config.isLengthPrefix())
+            return null;
+
+        // the decoder adds lengthAdjustment to the field value, the prepender adds it to the message length
+        return new LengthFieldPrepender(config.getLengthFieldLength(), -config.getLengthAdjustment());
+    }
+
+    /**
+     * @return the count of requested flushes after which a channel is flushed at once. Default value is 256, 0 or 1 means
+     *         that every message is flushed at once
+     */
+    public int getFlushConsolidationWrites() {
+        return this.flushConsolidationWrites;
+    }
+
+    public void setFlushConsolidationWrites(int val) throws Exception {
+        if (this.started)
+            throw new Exception("FlushConsolidationWrites parameter can be updated only when SCTP stack is NOT running");
+        if (val < 0)
+            throw new Exception("FlushConsolidationWrites parameter must not be negative");
+
+        this.flushConsolidationWrites = val;
+    }
+
+    /**
+     * @return the minimal interval in microseconds between the flushes of a busy channel. Default value is 0, a deferred
+     *         flush is done once the event loop has run the queued writes
+     */
+    public int getFlushConsolidationMicros() {
+        return this.flushConsolidationMicros;
+    }
+
+    public void setFlushConsolidationMicros(int val) throws Exception {
+        if (this.started)
+            throw new Exception("FlushConsolidationMicros parameter can be updated only when SCTP stack is NOT running");
+        if (val < 0)
+            throw new Exception("FlushConsolidationMicros parameter must not be negative");
+
+        this.flushConsolidationMicros = val;
+    }
+
+    /**
+     * @return the count of bytes in the outbound buffer of a channel below which a non writable association becomes
+     *         writable again. Default value is 32768
+     */
+    public int getWriteBufferLowWaterMark() {
+        return this.writeBufferLowWaterMark;
+    }
+
+    /**
+     * @return the count of bytes in the outbound buffer of a channel above which the association is not writable. Default
+     *         value is 65536
+     */
+    public int getWriteBufferHighWaterMark() {
+        return this.writeBufferHighWaterMark;
+    }
+
+    public void setWriteBufferWaterMark(int low, int high) throws Exception {
+        if (this.started)
+            throw new Exception("WriteBufferWaterMark parameter can be updated only when SCTP stack is NOT running");
+        if (low < 0 || high < low)
+            throw new Exception(String.format(
+                    "WriteBufferWaterMark parameter must be 0 <= low <= high, low=%d high=%d", low, high));
+
+        this.writeBufferLowWaterMark = low;
+        this.writeBufferHighWaterMark = high;
+    }
+
+    protected WriteBufferWaterMark getWriteBufferWaterMark() {
+        return new WriteBufferWaterMark(this.writeBufferLowWaterMark, this.writeBufferHighWaterMark);
+    }
+
+    /**
+     * @return the congestion level an association has at least while it is not writable. Default value is 1, 0 means that
+     *         writability does not change the congestion level
+     */
+    public int getUnwritableCongestionLevel() {
+        return this.unwritableCongestionLevel;
+    }
+
+    public void setUnwritableCongestionLevel(int val) throws Exception {
+        if (this.started)
+            throw new Exception("UnwritableCongestionLevel parameter can be updated only when SCTP stack is NOT running");
+        if (val < 0 || val > 3)
+            throw new Exception("UnwritableCongestionLevel parameter must be from 0 to 3");
+
+        this.unwritableCongestionLevel = val;
+    }
+
+    /**
+     * @return a new handler consolidating the flushes of a channel or null if every message is flushed at once
+     */
+    protected NettyFlushConsolidationHandler createFlushConsolidationHandler() {
+        if (this.flushConsolidationWrites <= 1)
+            return null;
+
+        return new NettyFlushConsolidationHandler(this.flushConsolidationWrites, this.flushConsolidationMicros);
+    }
+
+    /**
+     * @return the executor of listener callbacks or null if they are not delivered on virtual threads
+     */
+    protected ListenerExecutor getListenerExecutor() {
+        return this.listenerExecutor;
+    }
+
 	@Override
 	public void modifyServer(String serverName, String hostAddress, Integer port, IpChannelType ipChannelType, Boolean acceptAnonymousConnections, Integer maxConcurrentConnectionsCount, String[] extraHostAddresses)
 			throws Exception {
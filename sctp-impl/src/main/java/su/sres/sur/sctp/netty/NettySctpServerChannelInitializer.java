@@ -40,6 +40,10 @@ public class NettySctpServerChannelInitializer extends ChannelInitializer<SctpCh
 
     @Override
     protected void initChannel(SctpChannel ch) throws Exception {
+        NettyFlushConsolidationHandler flushHandler = this.sctpManagementImpl.createFlushConsolidationHandler();
+        if (flushHandler != null) {
+            ch.pipeline().addLast(flushHandler);
+        }
         ch.pipeline().addLast(new SctpMessageCompletionHandler(),
                 new NettySctpServerHandler(this.nettyServerImpl, this.sctpManagementImpl));
     }
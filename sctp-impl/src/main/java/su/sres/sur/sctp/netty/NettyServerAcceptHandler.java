@@ -0,0 +1,71 @@
+/*
+ * TeleStax, Open Source Cloud Communications
+ * Copyright 2011-2014, Telestax Inc and individual contributors
+ * by the @authors tag.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ *
+ */
+
+package su.sres.sur.sctp.netty;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+
+import java.net.InetSocketAddress;
+
+/**
+ * Handler of a server channel that places the accepted channel of a provisioned server Association on an event loop of the
+ * worker group by the EventLoopPlacementPolicy of the management or the pinned event loop index of the Association.
+ *
+ * It must precede the acceptor of the ServerBootstrap which registers the accepted channel with the worker group.
+ *
+ */
+public class NettyServerAcceptHandler extends ChannelInboundHandlerAdapter {
+
+    private final NettyServerImpl serverImpl;
+    private final NettySctpManagementImpl managementImpl;
+
+    public NettyServerAcceptHandler(NettyServerImpl serverImpl, NettySctpManagementImpl managementImpl) {
+        this.serverImpl = serverImpl;
+        this.managementImpl = managementImpl;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        NettyAssociationImpl association = null;
+        if (msg instanceof Channel) {
+            InetSocketAddress sockAdd = (InetSocketAddress) ((Channel) msg).remoteAddress();
+            if (sockAdd != null)
+                association = this.serverImpl.findServerAssociation(sockAdd.getAddress().getHostAddress(), sockAdd.getPort());
+        }
+
+        if (association == null) {
+            ctx.fireChannelRead(msg);
+            return;
+        }
+
+        Channel channel = (Channel) msg;
+        EventLoopPlacement.beginPlacement(association);
+        try {
+            ctx.fireChannelRead(msg);
+        } finally {
+            EventLoopPlacement.endPlacement();
+        }
+        // the acceptor closes the channel if it could not be registered
+        if (channel.isOpen())
+            this.managementImpl.placed(association, channel);
+    }
+}
@@ -21,26 +21,31 @@
 package su.sres.sur.sctp.netty;
 
 import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.ServerChannel;
 import io.netty.channel.sctp.SctpChannelOption;
 import io.netty.channel.sctp.SctpServerChannel;
 import io.netty.channel.sctp.nio.NioSctpServerChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.ServerSocketChannel;
 import io.netty.handler.logging.LogLevel;
 import io.netty.handler.logging.LoggingHandler;
 
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.util.Iterator;
 import java.util.List;
 import java.util.ListIterator;
 
+import javolution.util.FastMap;
 import javolution.util.FastTable;
 import javolution.xml.XMLFormat;
 import javolution.xml.stream.XMLStreamException;
 import su.sres.sur.sctp.api.Association;
+import su.sres.sur.sctp.api.AssociationType;
 import su.sres.sur.sctp.api.IpChannelType;
 import su.sres.sur.sctp.api.Server;
 
@@ -86,7 +91,7 @@ public class NettyServerImpl implements Server {
     // Netty declarations
     // The channel on which we'll accept connections
     private SctpServerChannel serverChannelSctp;
-    private NioServerSocketChannel serverChannelTcp;
+    private ServerSocketChannel serverChannelTcp;
 
     /**
      * 
@@ -310,20 +315,44 @@ public class NettyServerImpl implements Server {
         }
     }
 
+    /**
+     * @return the provisioned server Association of this Server for the peer, matched like NettySctpServerHandler does, or
+     *         null
+     */
+    protected NettyAssociationImpl findServerAssociation(String host, int port) {
+        Iterator<FastMap.Entry<String, Association>> iter = this.management.associations.entrySet().iterator();
+        while (iter.hasNext()) {
+            NettyAssociationImpl association = (NettyAssociationImpl) iter.next().getValue();
+            if (this.name.equals(association.getServerName()) && association.getAssociationType() == AssociationType.SERVER
+                    && (port == association.getPeerPort() || association.getPeerPort() == 0)
+                    && host.equals(association.getPeerAddress()))
+                return association;
+        }
+        return null;
+    }
+
     private void initSocket() throws Exception {
         ServerBootstrap b = new ServerBootstrap();
-        b.group(this.management.getBossGroup(), this.management.getWorkerGroup());
+        b.group(this.management.getBossGroup(this.ipChannelType), this.management.getWorkerGroup(this.ipChannelType));
         if (this.ipChannelType == IpChannelType.SCTP) {
             b.channel(NioSctpServerChannel.class);
             b.option(ChannelOption.SO_BACKLOG, 100);
             b.childHandler(new NettySctpServerChannelInitializer(this, this.management));
             this.applySctpOptions(b);
         } else {
-            b.channel(NioServerSocketChannel.class);
+            // NioServerSocketChannel or EpollServerSocketChannel
+            b.channel(this.management.getTcpServerChannelClass());
             b.option(ChannelOption.SO_BACKLOG, 100);
             b.childHandler(new NettyTcpServerChannelInitializer(this, this.management));
         }
-        b.handler(new LoggingHandler(LogLevel.INFO));
+        b.childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, this.management.getWriteBufferWaterMark());
+        b.handler(new ChannelInitializer<Channel>() {
+            @Override
+            protected void initChannel(Channel ch) throws Exception {
+                ch.pipeline().addLast(new LoggingHandler(LogLevel.INFO),
+                        new NettyServerAcceptHandler(NettyServerImpl.this, management));
+            }
+        });
 
         InetSocketAddress localAddress = new InetSocketAddress(this.hostAddress, this.hostport);
 
@@ -350,7 +379,7 @@ public class NettyServerImpl implements Server {
                 logger.info(String.format("SctpServerChannel bound to=%s ", this.serverChannelSctp.allLocalAddresses()));
             }
         } else {
-            this.serverChannelTcp = (NioServerSocketChannel) channelFuture.channel();
+            this.serverChannelTcp = (ServerSocketChannel) channelFuture.channel();
 
             if (logger.isInfoEnabled()) {
                 logger.info(String.format("ServerSocketChannel bound to=%s ", this.serverChannelTcp.localAddress()));
@@ -22,6 +22,8 @@ package su.sres.sur.sctp.netty;
 
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.socket.SocketChannel;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+import io.netty.handler.codec.LengthFieldPrepender;
 
 /**
  * @author <a href="mailto:amit.bhayani@telestax.com">Amit Bhayani</a>
@@ -42,6 +44,18 @@ public class NettyTcpClientChannelInitializer extends ChannelInitializer<SocketC
 
     @Override
     protected void initChannel(SocketChannel ch) throws Exception {
+        NettyFlushConsolidationHandler flushHandler = this.nettyAssociationImpl.getManagement().createFlushConsolidationHandler();
+        if (flushHandler != null) {
+            ch.pipeline().addLast(flushHandler);
+        }
+        LengthFieldBasedFrameDecoder frameDecoder = this.nettyAssociationImpl.getManagement().createTcpFrameDecoder();
+        if (frameDecoder != null) {
+            ch.pipeline().addLast(frameDecoder);
+        }
+        LengthFieldPrepender framePrepender = this.nettyAssociationImpl.getManagement().createTcpFramePrepender();
+        if (framePrepender != null) {
+            ch.pipeline().addLast(framePrepender);
+        }
         ch.pipeline().addLast(new NettySctpClientHandler(this.nettyAssociationImpl));
 
     }
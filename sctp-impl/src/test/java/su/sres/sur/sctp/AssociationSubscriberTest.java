@@ -0,0 +1,144 @@
+/*
+ * TeleStax, Open Source Cloud Communications  Copyright 2012.
+ * and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package su.sres.sur.sctp;
+
+import static org.junit.Assert.assertEquals;
+import io.netty.buffer.Unpooled;
+import su.sres.sur.sctp.api.Association;
+import su.sres.sur.sctp.api.Management;
+import su.sres.sur.sctp.api.PayloadData;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+
+import org.testng.annotations.Test;
+
+/**
+ * Feeds the subscriber from a publisher that calls onNext() from within
+ * request(), with sends that complete at once
+ *
+ */
+public class AssociationSubscriberTest {
+
+	private static final int MESSAGES = 100000;
+
+	private volatile boolean sendFails = false;
+	private int sent = 0;
+
+	@Test(groups = { "functional" })
+	public void testSynchronousPublisher() {
+		Association association = this.newAssociation();
+		AssociationSubscriber subscriber = new AssociationSubscriber(association, this.newManagement(), 1);
+		SynchronousPublisher publisher = new SynchronousPublisher(subscriber);
+		subscriber.onSubscribe(publisher);
+
+		// every payload is requested again once it is sent, without nested
+		// request() calls
+		assertEquals(MESSAGES, this.sent);
+		assertEquals(MESSAGES, publisher.published);
+		assertEquals(1, publisher.maxDepth);
+	}
+
+	@Test(groups = { "functional" })
+	public void testFailedSends() {
+		Association association = this.newAssociation();
+		AssociationSubscriber subscriber = new AssociationSubscriber(association, this.newManagement(), 16);
+		SynchronousPublisher publisher = new SynchronousPublisher(subscriber);
+		this.sendFails = true;
+		subscriber.onSubscribe(publisher);
+
+		// the credit of failed sends is held
+		assertEquals(16, publisher.published);
+		subscriber.onCongLevelChanged(association, 0, 0);
+		assertEquals(32, publisher.published);
+
+		this.sendFails = false;
+		subscriber.onAssociationUp(association);
+		assertEquals(MESSAGES, publisher.published);
+		assertEquals(MESSAGES - 32, this.sent);
+	}
+
+	private Association newAssociation() {
+		this.sendFails = false;
+		this.sent = 0;
+		return (Association) Proxy.newProxyInstance(Association.class.getClassLoader(), new Class<?>[] { Association.class },
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						if (method.getName().equals("sendAsync")) {
+							((PayloadData) args[0]).releaseBuffer();
+							if (sendFails) {
+								CompletableFuture<Void> future = new CompletableFuture<Void>();
+								future.completeExceptionally(new Exception("Association is down"));
+								return future;
+							}
+							sent++;
+							return CompletableFuture.completedFuture(null);
+						}
+						if (method.getName().equals("getCongestionLevel"))
+							return 0;
+						if (method.getName().equals("getName"))
+							return "test";
+						return null;
+					}
+				});
+	}
+
+	private Management newManagement() {
+		return (Management) Proxy.newProxyInstance(Management.class.getClassLoader(), new Class<?>[] { Management.class },
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						return null;
+					}
+				});
+	}
+
+	private static class SynchronousPublisher implements Flow.Subscription {
+
+		private final Flow.Subscriber<PayloadData> subscriber;
+		private int published = 0;
+		private int depth = 0;
+		private int maxDepth = 0;
+
+		private SynchronousPublisher(Flow.Subscriber<PayloadData> subscriber) {
+			this.subscriber = subscriber;
+		}
+
+		@Override
+		public void request(long n) {
+			this.maxDepth = Math.max(this.maxDepth, ++this.depth);
+			for (long i = 0; i < n && this.published < MESSAGES; i++) {
+				this.subscriber.onNext(new PayloadData(4, Unpooled.buffer(4).writeInt(this.published++), true, false, 3, 1));
+			}
+			this.depth--;
+		}
+
+		@Override
+		public void cancel() {
+		}
+	}
+}
@@ -0,0 +1,504 @@
+/*
+ * TeleStax, Open Source Cloud Communications  Copyright 2012.
+ * and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package su.sres.sur.sctp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import io.netty.buffer.ByteBuf;
+import su.sres.sur.sctp.api.Association;
+import su.sres.sur.sctp.api.AssociationListener;
+import su.sres.sur.sctp.api.CongestionListener;
+import su.sres.sur.sctp.api.IpChannelType;
+import su.sres.sur.sctp.api.PayloadData;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.*;
+
+/**
+ * Sends much more data than fits into the socket buffers at once, so batches
+ * are written partially and must be resumed at the right position
+ *
+ */
+public class BatchedWriteTest {
+	private static final String SERVER_NAME = "testserver";
+	private static final String SERVER_HOST = "127.0.0.1";
+	private static final int SERVER_PORT = 13367;
+
+	private static final String SERVER_ASSOCIATION_NAME = "serverAssociation";
+	private static final String CLIENT_ASSOCIATION_NAME = "clientAssociation";
+
+	private static final String CLIENT_HOST = "127.0.0.1";
+	private static final int CLIENT_PORT = 13368;
+
+	private static final int MESSAGES = 4000;
+	private static final int MESSAGE_SIZE = 1024;
+
+	private ManagementImpl management = null;
+
+	private volatile boolean serverAssocUp = false;
+	private volatile boolean clientAssocUp = false;
+
+	private volatile long receivedBytes = 0;
+	private volatile int corrupted = 0;
+	private volatile int maxReadBatch = 0;
+	private volatile boolean serverDown = false;
+	private volatile int payloadsAfterDown = 0;
+
+	public void setUp(IpChannelType ipChannelType, boolean directWrite, int portOffset) throws Exception {
+		this.serverAssocUp = false;
+		this.clientAssocUp = false;
+		this.receivedBytes = 0;
+		this.corrupted = 0;
+		this.maxReadBatch = 0;
+		this.serverDown = false;
+		this.payloadsAfterDown = 0;
+
+		this.management = new ManagementImpl("server-management");
+		this.management.setSingleThread(true);
+		this.management.setWriteBatchSize(16);
+		this.management.setWriteBatchBytes(8192);
+		this.management.setDirectWrite(directWrite);
+		// the server has to come back for the rest of the data many times
+		this.management.setReadBudgetMessages(2);
+		this.management.start();
+		this.management.setConnectDelay(10000);// Try connecting every 10 secs
+		this.management.removeAllResourses();
+
+		this.management.addServer(SERVER_NAME, SERVER_HOST, SERVER_PORT + portOffset, ipChannelType, false, 0, null);
+		this.management.addServerAssociation(CLIENT_HOST, CLIENT_PORT + portOffset, SERVER_NAME, SERVER_ASSOCIATION_NAME,
+				ipChannelType);
+		this.management.addAssociation(CLIENT_HOST, CLIENT_PORT + portOffset, SERVER_HOST, SERVER_PORT + portOffset,
+				CLIENT_ASSOCIATION_NAME, ipChannelType, null);
+	}
+
+	public void tearDown() throws Exception {
+		this.management.removeAssociation(CLIENT_ASSOCIATION_NAME);
+		this.management.removeAssociation(SERVER_ASSOCIATION_NAME);
+		this.management.removeServer(SERVER_NAME);
+
+		this.management.stop();
+	}
+
+	@Test(groups = { "functional", "tcp" })
+	public void testBatchedWriteTcp() throws Exception {
+		this.transfer(true, 1, false, false, 0);
+	}
+
+	/**
+	 * All payloads are handed to the SelectorThread
+	 */
+	@Test(groups = { "functional", "tcp" })
+	public void testQueuedWriteTcp() throws Exception {
+		this.transfer(false, 1, false, false, 2);
+	}
+
+	/**
+	 * Payloads are passed to send() in batches
+	 */
+	@Test(groups = { "functional", "tcp" })
+	public void testBatchedSendTcp() throws Exception {
+		this.transfer(true, 50, false, false, 10);
+	}
+
+	/**
+	 * Payloads are passed to sendAsync() and all returned futures must complete
+	 */
+	@Test(groups = { "functional", "tcp" })
+	public void testAsyncSendTcp() throws Exception {
+		this.transfer(false, 1, true, false, 20);
+	}
+
+	/**
+	 * Every payload is a header and a body ByteBuf, written with a gathering
+	 * write without merging them
+	 */
+	@Test(groups = { "functional", "tcp" })
+	public void testCompositeSendTcp() throws Exception {
+		this.transfer(true, 50, false, true, 30);
+	}
+
+	/**
+	 * Plain and async sends are mixed and the last PayloadData is passed to
+	 * sendAsync() twice, every future must complete
+	 */
+	@Test(groups = { "functional", "tcp" })
+	public void testMixedAsyncSendTcp() throws Exception {
+
+		this.setUp(IpChannelType.TCP, false, 50);
+
+		this.management.startServer(SERVER_NAME);
+
+		this.management.getAssociation(SERVER_ASSOCIATION_NAME).setAssociationListener(new ServerAssociationListener());
+		this.management.startAssociation(SERVER_ASSOCIATION_NAME);
+
+		Association clientAssociation = this.management.getAssociation(CLIENT_ASSOCIATION_NAME);
+		clientAssociation.setAssociationListener(new ClientAssociationListener());
+		this.management.startAssociation(CLIENT_ASSOCIATION_NAME);
+
+		for (int i1 = 0; i1 < 100; i1++) {
+			if (this.serverAssocUp && this.clientAssocUp)
+				break;
+			Thread.sleep(100);
+		}
+		assertTrue(this.clientAssocUp);
+
+		ArrayList<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>();
+		for (int i = 0; i < MESSAGES; i++) {
+			ByteBuf byteBuf = clientAssociation.getByteBufAllocator().buffer(MESSAGE_SIZE);
+			for (int j = 0; j < MESSAGE_SIZE / 4; j++) {
+				byteBuf.writeInt(i);
+			}
+			PayloadData payloadData = new PayloadData(MESSAGE_SIZE, byteBuf, true, false, 3, 1);
+			if (i == MESSAGES - 1) {
+				// released once per send
+				byteBuf.retain();
+				futures.add(clientAssociation.sendAsync(payloadData).toCompletableFuture());
+				futures.add(clientAssociation.sendAsync(payloadData).toCompletableFuture());
+			} else if (i % 2 == 0) {
+				futures.add(clientAssociation.sendAsync(payloadData).toCompletableFuture());
+			} else {
+				clientAssociation.send(payloadData);
+			}
+		}
+
+		for (int i1 = 0; i1 < 200; i1++) {
+			if (this.receivedBytes == (long) (MESSAGES + 1) * MESSAGE_SIZE)
+				break;
+			Thread.sleep(100);
+		}
+
+		for (CompletableFuture<Void> future : futures) {
+			// throws if the payload was not written
+			future.get(1, TimeUnit.SECONDS);
+		}
+
+		this.management.stopAssociation(CLIENT_ASSOCIATION_NAME);
+
+		Thread.sleep(1000);
+
+		this.management.stopAssociation(SERVER_ASSOCIATION_NAME);
+		this.management.stopServer(SERVER_NAME);
+
+		assertEquals((long) (MESSAGES + 1) * MESSAGE_SIZE, this.receivedBytes);
+		// the repeated message carries the sequence number of the one before
+		assertEquals(MESSAGE_SIZE / 4, this.corrupted);
+
+		this.tearDown();
+	}
+
+	/**
+	 * The data and the FIN of the peer are read in the same cycle, the data
+	 * must reach the listener before the Association goes down
+	 */
+	@Test(groups = { "functional", "tcp" })
+	public void testPeerCloseTcp() throws Exception {
+
+		this.setUp(IpChannelType.TCP, true, 40);
+
+		this.management.startServer(SERVER_NAME);
+
+		AssociationImpl serverAssociation = (AssociationImpl) this.management.getAssociation(SERVER_ASSOCIATION_NAME);
+		serverAssociation.setAssociationListener(new ServerAssociationListener());
+		this.management.startAssociation(SERVER_ASSOCIATION_NAME);
+
+		Association clientAssociation = this.management.getAssociation(CLIENT_ASSOCIATION_NAME);
+		clientAssociation.setAssociationListener(new ClientAssociationListener());
+		this.management.startAssociation(CLIENT_ASSOCIATION_NAME);
+
+		for (int i1 = 0; i1 < 100; i1++) {
+			if (this.serverAssocUp && this.clientAssocUp)
+				break;
+			Thread.sleep(100);
+		}
+		assertTrue(this.clientAssocUp);
+
+		// less than one read buffer, followed by the FIN
+		serverAssociation.suspendReading();
+		for (int i = 0; i < 4; i++) {
+			ByteBuf byteBuf = clientAssociation.getByteBufAllocator().buffer(MESSAGE_SIZE);
+			for (int j = 0; j < MESSAGE_SIZE / 4; j++) {
+				byteBuf.writeInt(i);
+			}
+			clientAssociation.send(new PayloadData(MESSAGE_SIZE, byteBuf, true, false, 3, 1));
+		}
+		Thread.sleep(500);
+		this.management.stopAssociation(CLIENT_ASSOCIATION_NAME);
+		Thread.sleep(500);
+		serverAssociation.resumeReading();
+
+		for (int i1 = 0; i1 < 100; i1++) {
+			if (this.serverDown)
+				break;
+			Thread.sleep(100);
+		}
+
+		this.management.stopAssociation(SERVER_ASSOCIATION_NAME);
+		this.management.stopServer(SERVER_NAME);
+
+		assertTrue(this.serverDown);
+		assertEquals(4L * MESSAGE_SIZE, this.receivedBytes);
+		assertEquals(0, this.payloadsAfterDown);
+		assertEquals(0, this.corrupted);
+
+		this.tearDown();
+	}
+
+	/**
+	 * The direct write of the sending thread ends the congestion, the
+	 * CongestionListener closes the Association from that thread. The
+	 * listener must not be called while the write is in progress, close()
+	 * would wait for it forever
+	 */
+	@Test(groups = { "functional", "tcp" })
+	public void testCloseInListenerTcp() throws Exception {
+
+		this.setUp(IpChannelType.TCP, true, 60);
+		this.management.setCongControl_QueueMessagesThreshold_1(1);
+		this.management.setCongControl_BackToNormalQueueMessagesThreshold_1(0);
+
+		final Thread[] closedBy = new Thread[1];
+		this.management.addCongestionListener(new CongestionListener() {
+			@Override
+			public void onCongLevelChanged(Association association, int oldCongLevel, int newCongLevel) {
+				if (newCongLevel == 0 && closedBy[0] == null && association.getName().equals(CLIENT_ASSOCIATION_NAME)) {
+					closedBy[0] = Thread.currentThread();
+					((AssociationImpl) association).close();
+				}
+			}
+		});
+
+		this.management.startServer(SERVER_NAME);
+
+		this.management.getAssociation(SERVER_ASSOCIATION_NAME).setAssociationListener(new ServerAssociationListener());
+		this.management.startAssociation(SERVER_ASSOCIATION_NAME);
+
+		final Association clientAssociation = this.management.getAssociation(CLIENT_ASSOCIATION_NAME);
+		clientAssociation.setAssociationListener(new ClientAssociationListener());
+		this.management.startAssociation(CLIENT_ASSOCIATION_NAME);
+
+		for (int i1 = 0; i1 < 100; i1++) {
+			if (this.serverAssocUp && this.clientAssocUp)
+				break;
+			Thread.sleep(100);
+		}
+		assertTrue(this.clientAssocUp);
+
+		Thread sender = new Thread() {
+			@Override
+			public void run() {
+				try {
+					ByteBuf byteBuf = clientAssociation.getByteBufAllocator().buffer(MESSAGE_SIZE);
+					byteBuf.writeZero(MESSAGE_SIZE);
+					clientAssociation.send(new PayloadData(MESSAGE_SIZE, byteBuf, true, false, 3, 1));
+				} catch (Exception e) {
+				}
+			}
+		};
+		sender.start();
+		sender.join(5000);
+		assertFalse(sender.isAlive());
+		assertTrue(closedBy[0] == sender);
+		assertFalse(clientAssociation.isConnected());
+		assertEquals(0, clientAssociation.getCongestionLevel());
+
+		this.management.stopAssociation(CLIENT_ASSOCIATION_NAME);
+		this.management.stopAssociation(SERVER_ASSOCIATION_NAME);
+		this.management.stopServer(SERVER_NAME);
+
+		this.tearDown();
+	}
+
+	private void transfer(boolean directWrite, int sendBatch, boolean async, boolean composite, int portOffset) throws Exception {
+
+		this.setUp(IpChannelType.TCP, directWrite, portOffset);
+
+		this.management.startServer(SERVER_NAME);
+
+		this.management.getAssociation(SERVER_ASSOCIATION_NAME).setAssociationListener(new ServerAssociationListener());
+		this.management.startAssociation(SERVER_ASSOCIATION_NAME);
+
+		Association clientAssociation = this.management.getAssociation(CLIENT_ASSOCIATION_NAME);
+		clientAssociation.setAssociationListener(new ClientAssociationListener());
+		this.management.startAssociation(CLIENT_ASSOCIATION_NAME);
+
+		for (int i1 = 0; i1 < 100; i1++) {
+			if (this.serverAssocUp && this.clientAssocUp)
+				break;
+			Thread.sleep(100);
+		}
+		assertTrue(this.clientAssocUp);
+
+		ArrayList<PayloadData> batch = new ArrayList<PayloadData>();
+		ArrayList<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>();
+		for (int i = 0; i < MESSAGES; i++) {
+			PayloadData payloadData;
+			if (composite) {
+				ByteBuf header = clientAssociation.getByteBufAllocator().buffer(4).writeInt(i);
+				ByteBuf body = clientAssociation.getByteBufAllocator().buffer(MESSAGE_SIZE - 4);
+				for (int j = 1; j < MESSAGE_SIZE / 4; j++) {
+					body.writeInt(i);
+				}
+				payloadData = new PayloadData(new ByteBuf[] { header, body }, true, false, 3, 1);
+				assertEquals(MESSAGE_SIZE, payloadData.getDataLength());
+			} else {
+				ByteBuf byteBuf = clientAssociation.getByteBufAllocator().buffer(MESSAGE_SIZE);
+				for (int j = 0; j < MESSAGE_SIZE / 4; j++) {
+					byteBuf.writeInt(i);
+				}
+				payloadData = new PayloadData(MESSAGE_SIZE, byteBuf, true, false, 3, 1);
+			}
+			if (async) {
+				futures.add(clientAssociation.sendAsync(payloadData).toCompletableFuture());
+			} else if (sendBatch == 1) {
+				clientAssociation.send(payloadData);
+			} else {
+				batch.add(payloadData);
+				if (batch.size() == sendBatch) {
+					clientAssociation.send(batch);
+					batch.clear();
+				}
+			}
+		}
+		if (batch.size() > 0)
+			clientAssociation.send(batch);
+
+		for (int i1 = 0; i1 < 200; i1++) {
+			if (this.receivedBytes == (long) MESSAGES * MESSAGE_SIZE)
+				break;
+			Thread.sleep(100);
+		}
+
+		for (CompletableFuture<Void> future : futures) {
+			// throws if the payload was not written
+			future.get(1, TimeUnit.SECONDS);
+		}
+
+		this.management.stopAssociation(CLIENT_ASSOCIATION_NAME);
+
+		Thread.sleep(1000);
+
+		this.management.stopAssociation(SERVER_ASSOCIATION_NAME);
+		this.management.stopServer(SERVER_NAME);
+
+		assertEquals((long) MESSAGES * MESSAGE_SIZE, this.receivedBytes);
+		assertEquals(0, this.corrupted);
+		// the payloads of a read cycle are delivered together, within the
+		// budget of 2 messages
+		assertEquals(2, this.maxReadBatch);
+
+		this.tearDown();
+	}
+
+	private class ClientAssociationListener implements AssociationListener {
+
+		@Override
+		public void onCommunicationUp(Association association, int maxInboundStreams, int maxOutboundStreams) {
+			clientAssocUp = true;
+		}
+
+		@Override
+		public void onCommunicationShutdown(Association association) {
+		}
+
+		@Override
+		public void onCommunicationLost(Association association) {
+		}
+
+		@Override
+		public void onCommunicationRestart(Association association) {
+		}
+
+		@Override
+		public void onPayload(Association association, PayloadData payloadData) {
+			payloadData.releaseBuffer();
+		}
+
+		@Override
+		public void inValidStreamId(PayloadData payloadData) {
+		}
+	}
+
+	private class ServerAssociationListener implements AssociationListener {
+
+		private int partial = 0;
+		private int partialBytes = 0;
+
+		@Override
+		public void onCommunicationUp(Association association, int maxInboundStreams, int maxOutboundStreams) {
+			serverAssocUp = true;
+		}
+
+		@Override
+		public void onCommunicationShutdown(Association association) {
+			serverDown = true;
+		}
+
+		@Override
+		public void onCommunicationLost(Association association) {
+		}
+
+		@Override
+		public void onCommunicationRestart(Association association) {
+		}
+
+		@Override
+		public void onPayloads(Association association, List<PayloadData> payloadDataList) {
+			if (payloadDataList.size() > maxReadBatch)
+				maxReadBatch = payloadDataList.size();
+			AssociationListener.super.onPayloads(association, payloadDataList);
+		}
+
+		@Override
+		public void onPayload(Association association, PayloadData payloadData) {
+			if (serverDown)
+				payloadsAfterDown++;
+			try {
+				ByteBuf byteBuf = payloadData.getByteBuf();
+				while (byteBuf.isReadable()) {
+					partial = (partial << 8) | byteBuf.readUnsignedByte();
+					if (++partialBytes == 4) {
+						// every int of a message carries its sequence number
+						long offset = receivedBytes;
+						if (partial != (int) (offset / MESSAGE_SIZE))
+							corrupted++;
+						partial = 0;
+						partialBytes = 0;
+						receivedBytes = offset + 4;
+					}
+				}
+			} finally {
+				payloadData.releaseBuffer();
+			}
+		}
+
+		@Override
+		public void inValidStreamId(PayloadData payloadData) {
+		}
+	}
+
+}
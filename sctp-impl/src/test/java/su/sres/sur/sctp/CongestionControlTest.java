@@ -0,0 +1,235 @@
+/*
+ * TeleStax, Open Source Cloud Communications  Copyright 2012.
+ * and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package su.sres.sur.sctp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import io.netty.buffer.ByteBuf;
+import su.sres.sur.sctp.api.Association;
+import su.sres.sur.sctp.api.AssociationListener;
+import su.sres.sur.sctp.api.CongestionListener;
+import su.sres.sur.sctp.api.IpChannelType;
+import su.sres.sur.sctp.api.PayloadData;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.*;
+
+/**
+ * The server stops reading, so the payloads of the client pile up in its
+ * txQueue and the congestion level has to go up to 3 and back to 0 after the
+ * server resumes
+ *
+ */
+public class CongestionControlTest {
+	private static final String SERVER_NAME = "testserver";
+	private static final String SERVER_HOST = "127.0.0.1";
+	private static final int SERVER_PORT = 13371;
+
+	private static final String SERVER_ASSOCIATION_NAME = "serverAssociation";
+	private static final String CLIENT_ASSOCIATION_NAME = "clientAssociation";
+
+	private static final String CLIENT_HOST = "127.0.0.1";
+	private static final int CLIENT_PORT = 13372;
+
+	private static final int MESSAGES = 10000;
+	private static final int MESSAGE_SIZE = 1024;
+
+	private ManagementImpl serverManagement = null;
+	private ManagementImpl clientManagement = null;
+
+	private volatile boolean serverAssocUp = false;
+	private volatile boolean clientAssocUp = false;
+
+	private final CountDownLatch readingStalled = new CountDownLatch(1);
+	private volatile long receivedBytes = 0;
+
+	private final CopyOnWriteArrayList<String> levelChanges = new CopyOnWriteArrayList<String>();
+
+	public void setUp(IpChannelType ipChannelType) throws Exception {
+		this.serverManagement = new ManagementImpl("server-management");
+		this.serverManagement.setSingleThread(true);
+		this.serverManagement.start();
+		this.serverManagement.setConnectDelay(10000);// Try connecting every 10 secs
+		this.serverManagement.removeAllResourses();
+
+		this.clientManagement = new ManagementImpl("client-management");
+		this.clientManagement.setSingleThread(true);
+		this.clientManagement.start();
+		this.clientManagement.setConnectDelay(10000);// Try connecting every 10 secs
+		this.clientManagement.removeAllResourses();
+
+		this.clientManagement.setCongControl_QueueMessagesThreshold_1(1000);
+		this.clientManagement.setCongControl_QueueMessagesThreshold_2(2000);
+		this.clientManagement.setCongControl_QueueMessagesThreshold_3(3000);
+		this.clientManagement.setCongControl_BackToNormalQueueMessagesThreshold_1(100);
+		this.clientManagement.setCongControl_BackToNormalQueueMessagesThreshold_2(200);
+		this.clientManagement.setCongControl_BackToNormalQueueMessagesThreshold_3(300);
+
+		this.serverManagement.addServer(SERVER_NAME, SERVER_HOST, SERVER_PORT, ipChannelType, false, 0, null);
+		this.serverManagement.addServerAssociation(CLIENT_HOST, CLIENT_PORT, SERVER_NAME, SERVER_ASSOCIATION_NAME,
+				ipChannelType);
+		this.clientManagement.addAssociation(CLIENT_HOST, CLIENT_PORT, SERVER_HOST, SERVER_PORT, CLIENT_ASSOCIATION_NAME,
+				ipChannelType, null);
+	}
+
+	public void tearDown() throws Exception {
+		this.clientManagement.removeAssociation(CLIENT_ASSOCIATION_NAME);
+		this.serverManagement.removeAssociation(SERVER_ASSOCIATION_NAME);
+		this.serverManagement.removeServer(SERVER_NAME);
+
+		this.clientManagement.stop();
+		this.serverManagement.stop();
+	}
+
+	@Test(groups = { "functional", "tcp" })
+	public void testCongestionLevelTcp() throws Exception {
+
+		this.setUp(IpChannelType.TCP);
+
+		this.clientManagement.addCongestionListener(new CongestionListener() {
+			@Override
+			public void onCongLevelChanged(Association association, int oldCongLevel, int newCongLevel) {
+				levelChanges.add(oldCongLevel + "->" + newCongLevel);
+			}
+		});
+
+		this.serverManagement.startServer(SERVER_NAME);
+
+		this.serverManagement.getAssociation(SERVER_ASSOCIATION_NAME).setAssociationListener(new ServerAssociationListener());
+		this.serverManagement.startAssociation(SERVER_ASSOCIATION_NAME);
+
+		Association clientAssociation = this.clientManagement.getAssociation(CLIENT_ASSOCIATION_NAME);
+		clientAssociation.setAssociationListener(new ClientAssociationListener());
+		this.clientManagement.startAssociation(CLIENT_ASSOCIATION_NAME);
+
+		for (int i1 = 0; i1 < 100; i1++) {
+			if (this.serverAssocUp && this.clientAssocUp)
+				break;
+			Thread.sleep(100);
+		}
+		assertTrue(this.clientAssocUp);
+		assertEquals(0, clientAssociation.getCongestionLevel());
+
+		try {
+			for (int i = 0; i < MESSAGES; i++) {
+				ByteBuf byteBuf = clientAssociation.getByteBufAllocator().buffer(MESSAGE_SIZE);
+				byteBuf.writeZero(MESSAGE_SIZE);
+				clientAssociation.send(new PayloadData(MESSAGE_SIZE, byteBuf, true, false, 3, 1));
+			}
+
+			// the socket buffers take far less than the 10 MB sent
+			assertEquals(3, clientAssociation.getCongestionLevel());
+		} finally {
+			this.readingStalled.countDown();
+		}
+
+		for (int i1 = 0; i1 < 600; i1++) {
+			if (this.receivedBytes == (long) MESSAGES * MESSAGE_SIZE)
+				break;
+			Thread.sleep(100);
+		}
+		assertEquals((long) MESSAGES * MESSAGE_SIZE, this.receivedBytes);
+		assertEquals(0, clientAssociation.getCongestionLevel());
+
+		this.clientManagement.stopAssociation(CLIENT_ASSOCIATION_NAME);
+
+		Thread.sleep(1000);
+
+		this.serverManagement.stopAssociation(SERVER_ASSOCIATION_NAME);
+		this.serverManagement.stopServer(SERVER_NAME);
+
+		assertEquals("[0->1, 1->2, 2->3, 3->2, 2->1, 1->0]", this.levelChanges.toString());
+
+		this.tearDown();
+	}
+
+	private class ClientAssociationListener implements AssociationListener {
+
+		@Override
+		public void onCommunicationUp(Association association, int maxInboundStreams, int maxOutboundStreams) {
+			clientAssocUp = true;
+		}
+
+		@Override
+		public void onCommunicationShutdown(Association association) {
+		}
+
+		@Override
+		public void onCommunicationLost(Association association) {
+		}
+
+		@Override
+		public void onCommunicationRestart(Association association) {
+		}
+
+		@Override
+		public void onPayload(Association association, PayloadData payloadData) {
+			payloadData.releaseBuffer();
+		}
+
+		@Override
+		public void inValidStreamId(PayloadData payloadData) {
+		}
+	}
+
+	private class ServerAssociationListener implements AssociationListener {
+
+		@Override
+		public void onCommunicationUp(Association association, int maxInboundStreams, int maxOutboundStreams) {
+			serverAssocUp = true;
+		}
+
+		@Override
+		public void onCommunicationShutdown(Association association) {
+		}
+
+		@Override
+		public void onCommunicationLost(Association association) {
+		}
+
+		@Override
+		public void onCommunicationRestart(Association association) {
+		}
+
+		@Override
+		public void onPayload(Association association, PayloadData payloadData) {
+			try {
+				// blocks the SelectorThread of the server until the client
+				// has sent everything
+				readingStalled.await(60, TimeUnit.SECONDS);
+				receivedBytes += payloadData.getByteBuf().readableBytes();
+			} catch (InterruptedException e) {
+			} finally {
+				payloadData.releaseBuffer();
+			}
+		}
+
+		@Override
+		public void inValidStreamId(PayloadData payloadData) {
+		}
+	}
+
+}
@@ -0,0 +1,257 @@
+/*
+ * TeleStax, Open Source Cloud Communications  Copyright 2012.
+ * and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package su.sres.sur.sctp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import io.netty.buffer.Unpooled;
+import su.sres.sur.sctp.api.Association;
+import su.sres.sur.sctp.api.AssociationListener;
+import su.sres.sur.sctp.api.IpChannelType;
+import su.sres.sur.sctp.api.PayloadData;
+
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+
+import org.testng.annotations.*;
+
+/**
+ * Sends through the subscriber of the client Association and receives through
+ * the publisher of the server Association, whose demand controls reading
+ *
+ */
+public class FlowAdapterTest {
+	private static final String SERVER_NAME = "testserver";
+	private static final String SERVER_HOST = "127.0.0.1";
+	private static final int SERVER_PORT = 13571;
+
+	private static final String SERVER_ASSOCIATION_NAME = "serverAssociation";
+	private static final String CLIENT_ASSOCIATION_NAME = "clientAssociation";
+
+	private static final String CLIENT_HOST = "127.0.0.1";
+	private static final int CLIENT_PORT = 13572;
+
+	private static final int MESSAGES = 1000;
+
+	private ManagementImpl management = null;
+
+	private volatile boolean serverAssocUp = false;
+	private volatile boolean clientAssocUp = false;
+	private volatile boolean serverWritabilityChanged = false;
+
+	private volatile int receivedPayloads = 0;
+	private volatile int received = 0;
+	private volatile int outOfOrder = 0;
+
+	public void setUp(IpChannelType ipChannelType) throws Exception {
+		this.management = new ManagementImpl("server-management");
+		this.management.setSingleThread(true);
+		this.management.start();
+		this.management.setConnectDelay(10000);// Try connecting every 10 secs
+		this.management.removeAllResourses();
+
+		this.management.addServer(SERVER_NAME, SERVER_HOST, SERVER_PORT, ipChannelType, false, 0, null);
+		this.management.addServerAssociation(CLIENT_HOST, CLIENT_PORT, SERVER_NAME, SERVER_ASSOCIATION_NAME, ipChannelType);
+		this.management.addAssociation(CLIENT_HOST, CLIENT_PORT, SERVER_HOST, SERVER_PORT, CLIENT_ASSOCIATION_NAME, ipChannelType,
+				null);
+	}
+
+	public void tearDown() throws Exception {
+		this.management.removeAssociation(CLIENT_ASSOCIATION_NAME);
+		this.management.removeAssociation(SERVER_ASSOCIATION_NAME);
+		this.management.removeServer(SERVER_NAME);
+
+		this.management.stop();
+	}
+
+	@Test(groups = { "functional", "tcp" })
+	public void testFlowAdapterTcp() throws Exception {
+
+		this.setUp(IpChannelType.TCP);
+
+		this.management.startServer(SERVER_NAME);
+
+		AssociationImpl serverAssociation = (AssociationImpl) this.management.getAssociation(SERVER_ASSOCIATION_NAME);
+		serverAssociation.setAssociationListener(new ServerAssociationListener());
+		PayloadSubscriber payloadSubscriber = new PayloadSubscriber();
+		serverAssociation.getPayloadPublisher().subscribe(payloadSubscriber);
+		this.management.startAssociation(SERVER_ASSOCIATION_NAME);
+
+		Association clientAssociation = this.management.getAssociation(CLIENT_ASSOCIATION_NAME);
+		clientAssociation.setAssociationListener(new ClientAssociationListener());
+		this.management.startAssociation(CLIENT_ASSOCIATION_NAME);
+
+		for (int i1 = 0; i1 < 100; i1++) {
+			if (this.serverAssocUp && this.clientAssocUp)
+				break;
+			Thread.sleep(100);
+		}
+		// the publisher passes the events on to the replaced listener
+		assertTrue(this.serverAssocUp);
+		assertTrue(this.clientAssocUp);
+		serverAssociation.getAssociationListener().onWritabilityChanged(serverAssociation, false);
+		assertTrue(this.serverWritabilityChanged);
+
+		SubmissionPublisher<PayloadData> publisher = new SubmissionPublisher<PayloadData>();
+		publisher.subscribe(clientAssociation.createPayloadSubscriber(16));
+		for (int i = 0; i < MESSAGES; i++) {
+			publisher.submit(new PayloadData(4, Unpooled.buffer(4).writeInt(i), true, false, 3, 1));
+		}
+		publisher.close();
+
+		// nothing is read beyond the demand of 1 payload
+		payloadSubscriber.subscription.request(1);
+		Thread.sleep(1000);
+		assertEquals(1, this.receivedPayloads);
+		assertTrue(serverAssociation.isReadSuspended());
+
+		payloadSubscriber.subscription.request(Long.MAX_VALUE);
+		for (int i1 = 0; i1 < 100; i1++) {
+			if (this.received == MESSAGES)
+				break;
+			Thread.sleep(100);
+		}
+		assertEquals(MESSAGES, this.received);
+		assertEquals(0, this.outOfOrder);
+
+		// the listener is restored and reading goes on
+		payloadSubscriber.subscription.cancel();
+		assertTrue(!serverAssociation.isReadSuspended());
+		assertTrue(serverAssociation.getAssociationListener() instanceof ServerAssociationListener);
+
+		this.management.stopAssociation(CLIENT_ASSOCIATION_NAME);
+
+		Thread.sleep(1000);
+
+		this.management.stopAssociation(SERVER_ASSOCIATION_NAME);
+		this.management.stopServer(SERVER_NAME);
+
+		this.tearDown();
+	}
+
+	private class PayloadSubscriber implements Flow.Subscriber<PayloadData> {
+
+		private volatile Flow.Subscription subscription;
+
+		// TCP does not keep message boundaries, so the int sequence is
+		// reassembled from whatever arrives
+		private int partial = 0;
+		private int partialBytes = 0;
+
+		@Override
+		public void onSubscribe(Flow.Subscription subscription) {
+			this.subscription = subscription;
+		}
+
+		@Override
+		public void onNext(PayloadData payloadData) {
+			receivedPayloads++;
+			try {
+				while (payloadData.getByteBuf().isReadable()) {
+					partial = (partial << 8) | payloadData.getByteBuf().readUnsignedByte();
+					if (++partialBytes == 4) {
+						if (partial != received)
+							outOfOrder++;
+						received++;
+						partial = 0;
+						partialBytes = 0;
+					}
+				}
+			} finally {
+				payloadData.releaseBuffer();
+			}
+		}
+
+		@Override
+		public void onError(Throwable throwable) {
+		}
+
+		@Override
+		public void onComplete() {
+		}
+	}
+
+	private class ClientAssociationListener implements AssociationListener {
+
+		@Override
+		public void onCommunicationUp(Association association, int maxInboundStreams, int maxOutboundStreams) {
+			clientAssocUp = true;
+		}
+
+		@Override
+		public void onCommunicationShutdown(Association association) {
+		}
+
+		@Override
+		public void onCommunicationLost(Association association) {
+		}
+
+		@Override
+		public void onCommunicationRestart(Association association) {
+		}
+
+		@Override
+		public void onPayload(Association association, PayloadData payloadData) {
+			payloadData.releaseBuffer();
+		}
+
+		@Override
+		public void inValidStreamId(PayloadData payloadData) {
+		}
+	}
+
+	private class ServerAssociationListener implements AssociationListener {
+
+		@Override
+		public void onCommunicationUp(Association association, int maxInboundStreams, int maxOutboundStreams) {
+			serverAssocUp = true;
+		}
+
+		@Override
+		public void onCommunicationShutdown(Association association) {
+		}
+
+		@Override
+		public void onCommunicationLost(Association association) {
+		}
+
+		@Override
+		public void onCommunicationRestart(Association association) {
+		}
+
+		@Override
+		public void onPayload(Association association, PayloadData payloadData) {
+			payloadData.releaseBuffer();
+		}
+
+		@Override
+		public void inValidStreamId(PayloadData payloadData) {
+		}
+
+		@Override
+		public void onWritabilityChanged(Association association, boolean writable) {
+			serverWritabilityChanged = true;
+		}
+	}
+
+}
@@ -0,0 +1,132 @@
+/*
+ * TeleStax, Open Source Cloud Communications  Copyright 2012.
+ * and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package su.sres.sur.sctp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import io.netty.buffer.Unpooled;
+import su.sres.sur.sctp.api.Association;
+import su.sres.sur.sctp.api.AssociationListener;
+import su.sres.sur.sctp.api.IpChannelType;
+import su.sres.sur.sctp.api.PayloadData;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.annotations.Test;
+
+/**
+ * A listener that blocks on every payload must neither hold up the delivering
+ * thread nor the other streams, and each stream must stay in order
+ *
+ */
+public class ListenerExecutorTest {
+
+	private static final int STREAMS = 8;
+	private static final int MESSAGES = 50;
+
+	@Test(groups = { "functional" })
+	public void testBlockingListener() throws Exception {
+		ListenerExecutor listenerExecutor = new ListenerExecutor("test");
+
+		AssociationImpl association = new AssociationImpl("127.0.0.1", 2905, "testserver", "test", IpChannelType.TCP);
+		BlockingListener listener = new BlockingListener();
+		association.setAssociationListener(listener);
+
+		ListenerExecutor.StreamQueue[] queues = new ListenerExecutor.StreamQueue[STREAMS];
+		for (int i = 0; i < STREAMS; i++) {
+			queues[i] = listenerExecutor.newStreamQueue(association);
+		}
+
+		long start = System.currentTimeMillis();
+		for (int j = 0; j < MESSAGES; j++) {
+			for (int i = 0; i < STREAMS; i++) {
+				queues[i].deliver(new PayloadData(4, Unpooled.buffer(4).writeInt(j), true, false, 3, i));
+			}
+		}
+		// posting does not wait for the listener
+		assertTrue(System.currentTimeMillis() - start < MESSAGES * 10);
+
+		for (int i1 = 0; i1 < 100; i1++) {
+			if (listener.received.get() == STREAMS * MESSAGES)
+				break;
+			Thread.sleep(100);
+		}
+		listenerExecutor.shutdown();
+		assertTrue(listenerExecutor.awaitTermination(1000));
+
+		assertEquals(STREAMS * MESSAGES, listener.received.get());
+		assertEquals(0, listener.outOfOrder.get());
+		// streams were delivered in parallel
+		assertTrue(listener.maxConcurrent.get() > 1);
+	}
+
+	private class BlockingListener implements AssociationListener {
+
+		private final int[] expected = new int[STREAMS];
+		private final AtomicInteger received = new AtomicInteger();
+		private final AtomicInteger outOfOrder = new AtomicInteger();
+		private final AtomicInteger concurrent = new AtomicInteger();
+		private final AtomicInteger maxConcurrent = new AtomicInteger();
+
+		@Override
+		public void onCommunicationUp(Association association, int maxInboundStreams, int maxOutboundStreams) {
+		}
+
+		@Override
+		public void onCommunicationShutdown(Association association) {
+		}
+
+		@Override
+		public void onCommunicationLost(Association association) {
+		}
+
+		@Override
+		public void onCommunicationRestart(Association association) {
+		}
+
+		@Override
+		public void onPayload(Association association, PayloadData payloadData) {
+			int now = concurrent.incrementAndGet();
+			if (now > maxConcurrent.get())
+				maxConcurrent.set(now);
+			try {
+				Thread.sleep(10);
+			} catch (InterruptedException e) {
+			}
+
+			// a stream is never delivered by two threads at once
+			int stream = payloadData.getStreamNumber();
+			if (payloadData.getByteBuf().readInt() != expected[stream])
+				outOfOrder.incrementAndGet();
+			expected[stream]++;
+			payloadData.releaseBuffer();
+
+			concurrent.decrementAndGet();
+			received.incrementAndGet();
+		}
+
+		@Override
+		public void inValidStreamId(PayloadData payloadData) {
+		}
+	}
+}
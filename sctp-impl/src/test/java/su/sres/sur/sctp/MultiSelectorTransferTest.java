@@ -0,0 +1,238 @@
+/*
+ * TeleStax, Open Source Cloud Communications  Copyright 2012.
+ * and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package su.sres.sur.sctp;
+
+import static org.junit.Assert.assertEquals;
+import io.netty.buffer.Unpooled;
+import su.sres.sur.sctp.api.Association;
+import su.sres.sur.sctp.api.AssociationListener;
+import su.sres.sur.sctp.api.IpChannelType;
+import su.sres.sur.sctp.api.PayloadData;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.annotations.*;
+
+/**
+ * Spreads several Associations over a pool of SelectorThreads and checks that
+ * all of them come up and deliver their messages in order
+ *
+ */
+public class MultiSelectorTransferTest {
+	private static final String SERVER_NAME = "testserver";
+	private static final String SERVER_HOST = "127.0.0.1";
+	private static final int SERVER_PORT = 13347;
+
+	private static final String SERVER_ASSOCIATION_NAME = "serverAssociation";
+	private static final String CLIENT_ASSOCIATION_NAME = "clientAssociation";
+
+	private static final String CLIENT_HOST = "127.0.0.1";
+	private static final int CLIENT_PORT = 13357;
+
+	private static final int SELECTOR_THREADS = 4;
+	private static final int ASSOCIATIONS = 6;
+	private static final int MESSAGES = 200;
+
+	private ManagementImpl management = null;
+
+	private final AtomicInteger serverAssocUp = new AtomicInteger();
+	private final AtomicInteger received = new AtomicInteger();
+	private final AtomicInteger outOfOrder = new AtomicInteger();
+
+	public void setUp(IpChannelType ipChannelType, boolean singleThread, boolean virtualThreadDelivery, int portOffset)
+			throws Exception {
+		this.serverAssocUp.set(0);
+		this.received.set(0);
+		this.outOfOrder.set(0);
+
+		this.management = new ManagementImpl("server-management");
+		this.management.setSingleThread(singleThread);
+		this.management.setVirtualThreadDelivery(virtualThreadDelivery);
+		this.management.setSelectorThreads(SELECTOR_THREADS);
+		this.management.start();
+		this.management.setConnectDelay(10000);// Try connecting every 10 secs
+		this.management.removeAllResourses();
+
+		for (int i = 0; i < ASSOCIATIONS; i++) {
+			this.management.addServer(SERVER_NAME + i, SERVER_HOST, SERVER_PORT + portOffset + i, ipChannelType, false, 0, null);
+			this.management.addServerAssociation(CLIENT_HOST, CLIENT_PORT + portOffset + i, SERVER_NAME + i, SERVER_ASSOCIATION_NAME + i,
+					ipChannelType);
+			this.management.addAssociation(CLIENT_HOST, CLIENT_PORT + portOffset + i, SERVER_HOST, SERVER_PORT + portOffset + i,
+					CLIENT_ASSOCIATION_NAME + i, ipChannelType, null);
+		}
+	}
+
+	public void tearDown() throws Exception {
+		for (int i = 0; i < ASSOCIATIONS; i++) {
+			this.management.removeAssociation(CLIENT_ASSOCIATION_NAME + i);
+			this.management.removeAssociation(SERVER_ASSOCIATION_NAME + i);
+			this.management.removeServer(SERVER_NAME + i);
+		}
+
+		this.management.stop();
+	}
+
+	@Test(groups = { "functional", "tcp" })
+	public void testMultiSelectorTransferTcp() throws Exception {
+		this.transfer(true, false, 0);
+	}
+
+	/**
+	 * Payloads are delivered by the worker threads
+	 */
+	@Test(groups = { "functional", "tcp" })
+	public void testMultiSelectorWorkerThreadsTcp() throws Exception {
+		this.transfer(false, false, 100);
+	}
+
+	/**
+	 * Payloads are delivered on virtual threads (or a cached thread pool)
+	 */
+	@Test(groups = { "functional", "tcp" })
+	public void testMultiSelectorVirtualThreadsTcp() throws Exception {
+		this.transfer(true, true, 200);
+	}
+
+	private void transfer(boolean singleThread, boolean virtualThreadDelivery, int portOffset) throws Exception {
+
+		this.setUp(IpChannelType.TCP, singleThread, virtualThreadDelivery, portOffset);
+
+		for (int i = 0; i < ASSOCIATIONS; i++) {
+			this.management.startServer(SERVER_NAME + i);
+
+			this.management.getAssociation(SERVER_ASSOCIATION_NAME + i).setAssociationListener(new ServerAssociationListener());
+			this.management.startAssociation(SERVER_ASSOCIATION_NAME + i);
+
+			this.management.getAssociation(CLIENT_ASSOCIATION_NAME + i).setAssociationListener(new ClientAssociationListener());
+			this.management.startAssociation(CLIENT_ASSOCIATION_NAME + i);
+		}
+
+		for (int i1 = 0; i1 < 200; i1++) {
+			if (this.received.get() == ASSOCIATIONS * MESSAGES)
+				break;
+			Thread.sleep(100);
+		}
+
+		for (int i = 0; i < ASSOCIATIONS; i++) {
+			this.management.stopAssociation(CLIENT_ASSOCIATION_NAME + i);
+		}
+
+		Thread.sleep(1000);
+
+		for (int i = 0; i < ASSOCIATIONS; i++) {
+			this.management.stopAssociation(SERVER_ASSOCIATION_NAME + i);
+			this.management.stopServer(SERVER_NAME + i);
+		}
+
+		assertEquals(ASSOCIATIONS, this.serverAssocUp.get());
+		assertEquals(ASSOCIATIONS * MESSAGES, this.received.get());
+		assertEquals(0, this.outOfOrder.get());
+
+		this.tearDown();
+	}
+
+	private class ClientAssociationListener implements AssociationListener {
+
+		@Override
+		public void onCommunicationUp(Association association, int maxInboundStreams, int maxOutboundStreams) {
+			try {
+				for (int i = 0; i < MESSAGES; i++) {
+					association.send(new PayloadData(4, Unpooled.buffer(4).writeInt(i), true, false, 3, 1));
+				}
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+
+		@Override
+		public void onCommunicationShutdown(Association association) {
+		}
+
+		@Override
+		public void onCommunicationLost(Association association) {
+		}
+
+		@Override
+		public void onCommunicationRestart(Association association) {
+		}
+
+		@Override
+		public void onPayload(Association association, PayloadData payloadData) {
+			payloadData.releaseBuffer();
+		}
+
+		@Override
+		public void inValidStreamId(PayloadData payloadData) {
+		}
+	}
+
+	private class ServerAssociationListener implements AssociationListener {
+
+		// TCP does not keep message boundaries, so the int sequence is
+		// reassembled from whatever arrives
+		private int expected = 0;
+		private int partial = 0;
+		private int partialBytes = 0;
+
+		@Override
+		public void onCommunicationUp(Association association, int maxInboundStreams, int maxOutboundStreams) {
+			serverAssocUp.incrementAndGet();
+		}
+
+		@Override
+		public void onCommunicationShutdown(Association association) {
+		}
+
+		@Override
+		public void onCommunicationLost(Association association) {
+		}
+
+		@Override
+		public void onCommunicationRestart(Association association) {
+		}
+
+		@Override
+		public void onPayload(Association association, PayloadData payloadData) {
+			try {
+				while (payloadData.getByteBuf().isReadable()) {
+					partial = (partial << 8) | payloadData.getByteBuf().readUnsignedByte();
+					if (++partialBytes == 4) {
+						if (partial != expected)
+							outOfOrder.incrementAndGet();
+						expected++;
+						received.incrementAndGet();
+						partial = 0;
+						partialBytes = 0;
+					}
+				}
+			} finally {
+				payloadData.releaseBuffer();
+			}
+		}
+
+		@Override
+		public void inValidStreamId(PayloadData payloadData) {
+		}
+	}
+
+}
@@ -0,0 +1,322 @@
+/*
+ * TeleStax, Open Source Cloud Communications  Copyright 2012.
+ * and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package su.sres.sur.sctp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import io.netty.buffer.ByteBuf;
+import su.sres.sur.sctp.api.Association;
+import su.sres.sur.sctp.api.AssociationListener;
+import su.sres.sur.sctp.api.IpChannelType;
+import su.sres.sur.sctp.api.OutboundOverflowPolicy;
+import su.sres.sur.sctp.api.OutboundQueueFullException;
+import su.sres.sur.sctp.api.PayloadData;
+
+import org.testng.annotations.Test;
+
+/**
+ *
+ *
+ */
+public class OutboundQueueLimiterTest {
+	private static final String SERVER_NAME = "testserver";
+	private static final String SERVER_HOST = "127.0.0.1";
+	private static final int SERVER_PORT = 13591;
+
+	private static final String SERVER_ASSOCIATION_NAME = "serverAssociation";
+	private static final String CLIENT_ASSOCIATION_NAME = "clientAssociation";
+
+	private static final String CLIENT_HOST = "127.0.0.1";
+	private static final int CLIENT_PORT = 13592;
+
+	private static final int MESSAGE_SIZE = 1024;
+
+	private volatile boolean serverAssocUp = false;
+	private volatile boolean clientAssocUp = false;
+
+	private volatile boolean replied = false;
+	private volatile Exception replyError = null;
+	private volatile long replyMillis = 0;
+
+	@Test(groups = { "functional" })
+	public void testWatermarks() throws Exception {
+		OutboundQueueLimiter limiter = new OutboundQueueLimiter();
+		OutboundQueueLimiter.Account account = new OutboundQueueLimiter.Account();
+
+		// no limits by default
+		assertFalse(limiter.isEnabled());
+		limiter.added(account, 1000000);
+		assertTrue(limiter.acquire(account, "test"));
+		limiter.removed(account, 1000000);
+
+		limiter.setHighWatermark(1000);
+		limiter.setLowWatermark(500);
+		assertTrue(limiter.isEnabled());
+
+		limiter.added(account, 600);
+		assertTrue(limiter.hasCapacity(account));
+		// the payload crossing the high watermark is still admitted
+		limiter.added(account, 600);
+		assertFalse(limiter.hasCapacity(account));
+		assertTrue(account.isFull());
+
+		try {
+			limiter.acquire(account, "test");
+			fail("OutboundQueueFullException expected");
+		} catch (OutboundQueueFullException e) {
+		}
+
+		// stays full until it falls to the low watermark
+		limiter.removed(account, 600);
+		assertFalse(limiter.hasCapacity(account));
+		limiter.removed(account, 100);
+		assertTrue(limiter.hasCapacity(account));
+		assertEquals(500, account.getPendingBytes());
+		assertEquals(500, limiter.getPendingBytes());
+	}
+
+	@Test(groups = { "functional" })
+	public void testMaxPendingBytes() throws Exception {
+		OutboundQueueLimiter limiter = new OutboundQueueLimiter();
+		OutboundQueueLimiter.Account account1 = new OutboundQueueLimiter.Account();
+		OutboundQueueLimiter.Account account2 = new OutboundQueueLimiter.Account();
+		limiter.setMaxPendingBytes(1000);
+		limiter.setOverflowPolicy(OutboundOverflowPolicy.DROP_OLDEST);
+
+		limiter.added(account1, 700);
+		assertTrue(limiter.acquire(account2, "test"));
+		limiter.added(account2, 300);
+
+		// the cap is shared by all accounts
+		assertFalse(limiter.acquire(account2, "test"));
+		assertFalse(limiter.hasRoom(account2, 100));
+		limiter.removed(account1, 100);
+		assertTrue(limiter.hasRoom(account2, 100));
+	}
+
+	@Test(groups = { "functional" })
+	public void testBlock() throws Exception {
+		final OutboundQueueLimiter limiter = new OutboundQueueLimiter();
+		final OutboundQueueLimiter.Account account = new OutboundQueueLimiter.Account();
+		limiter.setHighWatermark(1000);
+		limiter.setOverflowPolicy(OutboundOverflowPolicy.BLOCK);
+		limiter.setBlockTimeout(100);
+
+		limiter.added(account, 2000);
+
+		long start = System.currentTimeMillis();
+		try {
+			limiter.acquire(account, "test");
+			fail("OutboundQueueFullException expected");
+		} catch (OutboundQueueFullException e) {
+		}
+		assertTrue(System.currentTimeMillis() - start >= 100);
+
+		limiter.setBlockTimeout(10000);
+		new Thread() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(200);
+				} catch (InterruptedException e) {
+				}
+				limiter.removed(account, 2000);
+			}
+		}.start();
+
+		start = System.currentTimeMillis();
+		assertTrue(limiter.acquire(account, "test"));
+		assertTrue(System.currentTimeMillis() - start < 5000);
+	}
+
+	/**
+	 * BLOCK does not wait on an I/O thread, the queue would not be written
+	 * before the timeout
+	 */
+	@Test(groups = { "functional" })
+	public void testBlockOnIoThread() throws Exception {
+		OutboundQueueLimiter limiter = new OutboundQueueLimiter() {
+			@Override
+			protected boolean isIoThread() {
+				return true;
+			}
+		};
+		OutboundQueueLimiter.Account account = new OutboundQueueLimiter.Account();
+		limiter.setHighWatermark(1000);
+		limiter.setOverflowPolicy(OutboundOverflowPolicy.BLOCK);
+		limiter.setBlockTimeout(10000);
+
+		limiter.added(account, 2000);
+
+		long start = System.currentTimeMillis();
+		try {
+			limiter.acquire(account, "test");
+			fail("OutboundQueueFullException expected");
+		} catch (OutboundQueueFullException e) {
+		}
+		assertTrue(System.currentTimeMillis() - start < 5000);
+	}
+
+	/**
+	 * The listener replies from onPayload() on the SelectorThread, which is the
+	 * thread that would write the full queue. BLOCK must fail at once instead
+	 * of holding the SelectorThread for the timeout
+	 */
+	@Test(groups = { "functional", "tcp" })
+	public void testBlockInListenerTcp() throws Exception {
+		ManagementImpl management = new ManagementImpl("server-management");
+		management.setSingleThread(true);
+		// replies stay queued till the SelectorThread writes them
+		management.setDirectWrite(false);
+		management.setOutboundQueueHighWatermark(1000);
+		management.setOutboundQueueLowWatermark(0);
+		management.setOutboundOverflowPolicy(OutboundOverflowPolicy.BLOCK);
+		management.setOutboundBlockTimeout(10000);
+		management.start();
+		management.setConnectDelay(10000);// Try connecting every 10 secs
+		management.removeAllResourses();
+
+		management.addServer(SERVER_NAME, SERVER_HOST, SERVER_PORT, IpChannelType.TCP, false, 0, null);
+		management.addServerAssociation(CLIENT_HOST, CLIENT_PORT, SERVER_NAME, SERVER_ASSOCIATION_NAME, IpChannelType.TCP);
+		management.addAssociation(CLIENT_HOST, CLIENT_PORT, SERVER_HOST, SERVER_PORT, CLIENT_ASSOCIATION_NAME,
+				IpChannelType.TCP, null);
+
+		management.startServer(SERVER_NAME);
+		management.getAssociation(SERVER_ASSOCIATION_NAME).setAssociationListener(new ServerAssociationListener());
+		management.startAssociation(SERVER_ASSOCIATION_NAME);
+
+		Association clientAssociation = management.getAssociation(CLIENT_ASSOCIATION_NAME);
+		clientAssociation.setAssociationListener(new ClientAssociationListener());
+		management.startAssociation(CLIENT_ASSOCIATION_NAME);
+
+		for (int i1 = 0; i1 < 100; i1++) {
+			if (this.serverAssocUp && this.clientAssocUp)
+				break;
+			Thread.sleep(100);
+		}
+		assertTrue(this.clientAssocUp);
+
+		clientAssociation.send(newPayload(clientAssociation));
+
+		for (int i1 = 0; i1 < 200; i1++) {
+			if (this.replied)
+				break;
+			Thread.sleep(100);
+		}
+
+		management.stopAssociation(CLIENT_ASSOCIATION_NAME);
+		Thread.sleep(1000);
+		management.stopAssociation(SERVER_ASSOCIATION_NAME);
+		management.stopServer(SERVER_NAME);
+
+		management.removeAssociation(CLIENT_ASSOCIATION_NAME);
+		management.removeAssociation(SERVER_ASSOCIATION_NAME);
+		management.removeServer(SERVER_NAME);
+		management.stop();
+
+		assertTrue(this.replied);
+		assertTrue(this.replyError instanceof OutboundQueueFullException);
+		assertTrue(this.replyMillis < 5000);
+	}
+
+	private static PayloadData newPayload(Association association) throws Exception {
+		ByteBuf byteBuf = association.getByteBufAllocator().buffer(MESSAGE_SIZE);
+		byteBuf.writeZero(MESSAGE_SIZE);
+		return new PayloadData(MESSAGE_SIZE, byteBuf, true, false, 3, 1);
+	}
+
+	private class ClientAssociationListener implements AssociationListener {
+
+		@Override
+		public void onCommunicationUp(Association association, int maxInboundStreams, int maxOutboundStreams) {
+			clientAssocUp = true;
+		}
+
+		@Override
+		public void onCommunicationShutdown(Association association) {
+		}
+
+		@Override
+		public void onCommunicationLost(Association association) {
+		}
+
+		@Override
+		public void onCommunicationRestart(Association association) {
+		}
+
+		@Override
+		public void onPayload(Association association, PayloadData payloadData) {
+			payloadData.releaseBuffer();
+		}
+
+		@Override
+		public void inValidStreamId(PayloadData payloadData) {
+		}
+	}
+
+	private class ServerAssociationListener implements AssociationListener {
+
+		@Override
+		public void onCommunicationUp(Association association, int maxInboundStreams, int maxOutboundStreams) {
+			serverAssocUp = true;
+		}
+
+		@Override
+		public void onCommunicationShutdown(Association association) {
+		}
+
+		@Override
+		public void onCommunicationLost(Association association) {
+		}
+
+		@Override
+		public void onCommunicationRestart(Association association) {
+		}
+
+		@Override
+		public void onPayload(Association association, PayloadData payloadData) {
+			payloadData.releaseBuffer();
+			if (replied)
+				return;
+
+			// the first reply fills the queue, the next one finds it full
+			long start = System.currentTimeMillis();
+			try {
+				for (int i = 0; i < 3; i++) {
+					association.send(newPayload(association));
+				}
+			} catch (Exception e) {
+				replyError = e;
+			}
+			replyMillis = System.currentTimeMillis() - start;
+			replied = true;
+		}
+
+		@Override
+		public void inValidStreamId(PayloadData payloadData) {
+		}
+	}
+}
@@ -0,0 +1,173 @@
+/*
+ * TeleStax, Open Source Cloud Communications  Copyright 2012.
+ * and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package su.sres.sur.sctp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.ByteProcessor;
+import su.sres.sur.sctp.api.PayloadData;
+import su.sres.sur.sctp.api.RecyclablePayloadData;
+
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+
+import org.testng.annotations.Test;
+
+/**
+ *
+ *
+ */
+public class PayloadDataTest {
+
+	private ByteBuf newByteBuf() {
+		// a header byte that is already consumed, so offsets start at index 1
+		ByteBuf byteBuf = Unpooled.buffer(16);
+		byteBuf.writeByte(0x7f);
+		byteBuf.writeByte(0xff).writeShort(0x8001).writeInt(0xfffffffe).writeBytes(new byte[] { 1, 2, 3 });
+		byteBuf.readByte();
+		return byteBuf;
+	}
+
+	@Test(groups = { "functional" })
+	public void testGettersAtOffsets() {
+		PayloadData payloadData = new PayloadData(10, this.newByteBuf(), true, false, 3, 1);
+
+		assertEquals((byte) 0xff, payloadData.getByte(0));
+		assertEquals(0xff, payloadData.getUnsignedByte(0));
+		assertEquals((short) 0x8001, payloadData.getShort(1));
+		assertEquals(0x8001, payloadData.getUnsignedShort(1));
+		assertEquals(-2, payloadData.getInt(3));
+		assertEquals(0xfffffffeL, payloadData.getUnsignedInt(3));
+		byte[] dst = new byte[4];
+		payloadData.getBytes(7, dst, 1, 3);
+		assertArrayEquals(new byte[] { 0, 1, 2, 3 }, dst);
+
+		// the getters do not move the reader index
+		assertEquals(10, payloadData.getByteBuf().readableBytes());
+
+		// the capacity of the ByteBuf is larger, but not the payload
+		try {
+			payloadData.getInt(7);
+			assertTrue(false);
+		} catch (IndexOutOfBoundsException e) {
+		}
+
+		int stop = payloadData.forEachByte(new ByteProcessor() {
+			@Override
+			public boolean process(byte value) {
+				return value != 2;
+			}
+		});
+		assertEquals(8, stop);
+		assertEquals(-1, payloadData.forEachByte(ByteProcessor.FIND_NUL));
+
+		assertTrue(payloadData.release());
+	}
+
+	@Test(groups = { "functional" })
+	public void testReadOnlyViews() {
+		PayloadData payloadData = new PayloadData(10, this.newByteBuf(), true, false, 3, 1);
+
+		ByteBuf view = payloadData.readOnlyByteBuf();
+		assertTrue(view.isReadOnly());
+		assertEquals(10, view.readableBytes());
+		assertEquals(0xff, view.readUnsignedByte());
+		try {
+			view.setByte(0, 1);
+			assertTrue(false);
+		} catch (ReadOnlyBufferException e) {
+		}
+
+		ByteBuffer byteBuffer = payloadData.readOnlyByteBuffer();
+		assertTrue(byteBuffer.isReadOnly());
+		assertEquals(10, byteBuffer.remaining());
+		assertEquals((short) 0x8001, byteBuffer.getShort(1));
+
+		// views neither own the payload nor move its indexes
+		assertEquals(1, payloadData.refCnt());
+		assertEquals(10, payloadData.getByteBuf().readableBytes());
+
+		assertTrue(payloadData.release());
+		assertEquals(0, payloadData.refCnt());
+	}
+
+	@Test(groups = { "functional" })
+	public void testRetainRelease() {
+		ByteBuf byteBuf = this.newByteBuf();
+		PayloadData payloadData = new PayloadData(10, byteBuf, true, false, 3, 1);
+
+		assertEquals(payloadData, payloadData.retain());
+		assertEquals(2, payloadData.refCnt());
+		payloadData.releaseBuffer();
+		assertEquals(1, byteBuf.refCnt());
+		assertTrue(payloadData.release());
+		assertEquals(0, byteBuf.refCnt());
+
+		// a pooled payload returns to the pool only with its last owner
+		byteBuf = this.newByteBuf();
+		RecyclablePayloadData recyclable = RecyclablePayloadData.newInstance(10, byteBuf, true, false, 3, 1);
+		recyclable.retain();
+		assertFalse(recyclable.release());
+		assertEquals(byteBuf, recyclable.getByteBuf());
+		assertTrue(recyclable.release());
+		assertEquals(0, recyclable.refCnt());
+		assertFalse(recyclable.release());
+	}
+
+	@Test(groups = { "functional" })
+	public void testToString() {
+		ByteBuf byteBuf = Unpooled.buffer(1000);
+		byteBuf.writeByte(0x7f);
+		for (int i = 0; i < 500; i++) {
+			byteBuf.writeByte(0xab);
+		}
+		byteBuf.readByte();
+		PayloadData payloadData = new PayloadData(500, byteBuf, true, false, 3, 1);
+
+		String s = payloadData.toString();
+		assertTrue(s, s.contains("436 more bytes"));
+		assertFalse(s, s.contains("7f"));
+		assertEquals(1, payloadData.refCnt());
+		assertEquals(500, byteBuf.readableBytes());
+
+		payloadData.release();
+		assertTrue(payloadData.toString().contains("released"));
+	}
+
+	@SuppressWarnings("deprecation")
+	@Test(groups = { "functional" })
+	public void testGetData() {
+		ByteBuf byteBuf = this.newByteBuf();
+		PayloadData payloadData = new PayloadData(10, byteBuf, true, false, 3, 1);
+
+		byte[] data = payloadData.getData();
+		assertEquals(10, data.length);
+		assertEquals((byte) 0xff, data[0]);
+		assertEquals(3, data[9]);
+		assertEquals(0, byteBuf.refCnt());
+	}
+}
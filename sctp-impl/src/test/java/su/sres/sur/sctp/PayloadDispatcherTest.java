@@ -0,0 +1,259 @@
+/*
+ * TeleStax, Open Source Cloud Communications  Copyright 2012.
+ * and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package su.sres.sur.sctp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import io.netty.buffer.Unpooled;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import su.sres.sur.sctp.api.Association;
+import su.sres.sur.sctp.api.AssociationListener;
+import su.sres.sur.sctp.api.IpChannelType;
+import su.sres.sur.sctp.api.PayloadData;
+
+import org.testng.SkipException;
+import org.testng.annotations.Test;
+
+/**
+ * Several producers post to a small ring, so they regularly find it full. Each
+ * producer has its own Association whose payloads must arrive in order
+ *
+ */
+public class PayloadDispatcherTest {
+
+	private static final int PRODUCERS = 4;
+	private static final int MESSAGES = 20000;
+
+	@Test(groups = { "functional" })
+	public void testBlocking() throws Exception {
+		this.dispatch(WaitStrategy.BLOCKING, PRODUCERS, MESSAGES);
+	}
+
+	@Test(groups = { "functional" })
+	public void testYielding() throws Exception {
+		this.dispatch(WaitStrategy.YIELDING, PRODUCERS, MESSAGES);
+	}
+
+	/**
+	 * The spinning dispatcher thread needs a CPU of its own, and less data is
+	 * sent as spinning producers compete for the rest
+	 */
+	@Test(groups = { "functional" })
+	public void testBusySpin() throws Exception {
+		if (Runtime.getRuntime().availableProcessors() < 2)
+			throw new SkipException("BUSY_SPIN needs at least 2 processors");
+		this.dispatch(WaitStrategy.BUSY_SPIN, 2, MESSAGES / 4);
+	}
+
+	@Test(groups = { "functional" })
+	public void testStopped() throws Exception {
+		PayloadDispatcher dispatcher = new PayloadDispatcher(4, WaitStrategy.BLOCKING);
+		AssociationImpl association = new AssociationImpl("127.0.0.1", 2905, "testserver", "test", IpChannelType.TCP);
+		association.setAssociationListener(new OrderListener());
+
+		dispatcher.start("PayloadDispatcherTest");
+		dispatcher.stop();
+		assertTrue(dispatcher.awaitTermination(1000));
+
+		// a stopped dispatcher releases the payloads instead of queuing them
+		PayloadData payloadData = new PayloadData(4, Unpooled.buffer(4).writeInt(0), true, false, 3, 1);
+		assertTrue(dispatcher.dispatch(association, payloadData));
+		assertEquals(0, payloadData.getByteBuf().refCnt());
+		assertEquals(0, dispatcher.getDispatched());
+	}
+
+	/**
+	 * A full ring does not keep the caller waiting. The Association stays
+	 * suspended till the worker has drained half of the ring
+	 */
+	@Test(groups = { "functional" })
+	public void testFull() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		final CountDownLatch entered = new CountDownLatch(1);
+		OrderListener listener = new OrderListener() {
+			@Override
+			public void onPayload(Association association, PayloadData payloadData) {
+				entered.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+				}
+				super.onPayload(association, payloadData);
+			}
+		};
+		PayloadDispatcher dispatcher = new PayloadDispatcher(4, WaitStrategy.BLOCKING);
+		AssociationImpl association = new AssociationImpl("127.0.0.1", 2905, "testserver", "test", IpChannelType.TCP);
+		association.setAssociationListener(listener);
+		dispatcher.start("PayloadDispatcherTest-full");
+
+		// the first payload keeps the worker busy, the next four fill the ring
+		assertTrue(dispatcher.dispatch(association, new PayloadData(4, Unpooled.buffer(4).writeInt(0), true, false, 3, 1)));
+		assertTrue(entered.await(5000, TimeUnit.MILLISECONDS));
+		for (int i = 1; i < 5; i++) {
+			assertTrue(dispatcher.dispatch(association, new PayloadData(4, Unpooled.buffer(4).writeInt(i), true, false, 3,
+					1)));
+		}
+		PayloadData payloadData = new PayloadData(4, Unpooled.buffer(4).writeInt(5), true, false, 3, 1);
+		assertFalse(dispatcher.dispatch(association, payloadData));
+		assertEquals(1, payloadData.getByteBuf().refCnt());
+
+		association.suspendReading(AssociationImpl.READ_SUSPENDED_BY_DISPATCHER);
+		dispatcher.resumeWhenFree(association);
+		assertTrue(association.isReadSuspended());
+
+		release.countDown();
+		for (int i = 0; i < 100 && association.isReadSuspended(); i++) {
+			Thread.sleep(10);
+		}
+		assertFalse(association.isReadSuspended());
+		assertTrue(dispatcher.dispatch(association, payloadData));
+
+		dispatcher.stop();
+		assertTrue(dispatcher.awaitTermination(5000));
+		assertEquals(6, listener.received);
+		assertEquals(0, listener.outOfOrder);
+	}
+
+	/**
+	 * An idle BLOCKING worker parks without a timeout and is woken up by
+	 * dispatch()
+	 */
+	@Test(groups = { "functional" })
+	public void testBlockingIdle() throws Exception {
+		PayloadDispatcher dispatcher = new PayloadDispatcher(4, WaitStrategy.BLOCKING);
+		AssociationImpl association = new AssociationImpl("127.0.0.1", 2905, "testserver", "test", IpChannelType.TCP);
+		OrderListener listener = new OrderListener();
+		association.setAssociationListener(listener);
+		dispatcher.start("PayloadDispatcherTest-idle");
+
+		Thread worker = null;
+		for (Thread t : Thread.getAllStackTraces().keySet()) {
+			if (t.getName().equals("PayloadDispatcherTest-idle"))
+				worker = t;
+		}
+		for (int i = 0; i < 100 && worker.getState() != Thread.State.WAITING; i++) {
+			Thread.sleep(10);
+		}
+		assertEquals(Thread.State.WAITING, worker.getState());
+
+		for (int i = 0; i < 3; i++) {
+			assertTrue(dispatcher.dispatch(association, new PayloadData(4, Unpooled.buffer(4).writeInt(i), true, false, 3,
+					1)));
+			Thread.sleep(50);
+		}
+
+		dispatcher.stop();
+		assertTrue(dispatcher.awaitTermination(5000));
+		assertEquals(3, listener.received);
+	}
+
+	private void dispatch(WaitStrategy waitStrategy, int producerCount, final int messages) throws Exception {
+		final PayloadDispatcher dispatcher = new PayloadDispatcher(50, waitStrategy);
+		assertEquals(64, dispatcher.getCapacity());
+
+		final AssociationImpl[] associations = new AssociationImpl[producerCount];
+		OrderListener[] listeners = new OrderListener[producerCount];
+		for (int i = 0; i < producerCount; i++) {
+			associations[i] = new AssociationImpl("127.0.0.1", 2905 + i, "testserver", "test" + i, IpChannelType.TCP);
+			listeners[i] = new OrderListener();
+			associations[i].setAssociationListener(listeners[i]);
+		}
+
+		dispatcher.start("PayloadDispatcherTest-" + waitStrategy);
+
+		Thread[] producers = new Thread[producerCount];
+		for (int i = 0; i < producerCount; i++) {
+			final AssociationImpl association = associations[i];
+			producers[i] = new Thread() {
+				@Override
+				public void run() {
+					for (int j = 0; j < messages; j++) {
+						PayloadData payloadData = new PayloadData(4, Unpooled.buffer(4).writeInt(j), true, false, 3, 1);
+						// the ring is full, a SelectorThread would suspend
+						// reading here
+						while (!dispatcher.dispatch(association, payloadData)) {
+							Thread.yield();
+						}
+					}
+				}
+			};
+			producers[i].start();
+		}
+		for (int i = 0; i < producerCount; i++) {
+			producers[i].join(20000);
+			// stop() would cut off a producer that is still running
+			assertFalse(producers[i].isAlive());
+		}
+
+		dispatcher.stop();
+		assertTrue(dispatcher.awaitTermination(5000));
+
+		assertEquals(producerCount * messages, dispatcher.getDispatched());
+		assertEquals(0, dispatcher.getQueueDepth());
+		assertTrue(dispatcher.getPeakQueueDepth() > 0);
+		assertTrue(dispatcher.getPeakQueueDepth() <= dispatcher.getCapacity());
+		for (int i = 0; i < producerCount; i++) {
+			assertEquals(messages, listeners[i].received);
+			assertEquals(0, listeners[i].outOfOrder);
+		}
+	}
+
+	private class OrderListener implements AssociationListener {
+
+		// only touched by the dispatcher thread
+		private int received = 0;
+		private int outOfOrder = 0;
+
+		@Override
+		public void onCommunicationUp(Association association, int maxInboundStreams, int maxOutboundStreams) {
+		}
+
+		@Override
+		public void onCommunicationShutdown(Association association) {
+		}
+
+		@Override
+		public void onCommunicationLost(Association association) {
+		}
+
+		@Override
+		public void onCommunicationRestart(Association association) {
+		}
+
+		@Override
+		public void onPayload(Association association, PayloadData payloadData) {
+			if (payloadData.getByteBuf().readInt() != received)
+				outOfOrder++;
+			received++;
+			payloadData.releaseBuffer();
+		}
+
+		@Override
+		public void inValidStreamId(PayloadData payloadData) {
+		}
+	}
+}
@@ -0,0 +1,324 @@
+/*
+ * TeleStax, Open Source Cloud Communications  Copyright 2012.
+ * and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package su.sres.sur.sctp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import io.netty.buffer.ByteBuf;
+import su.sres.sur.sctp.api.Association;
+import su.sres.sur.sctp.api.AssociationListener;
+import su.sres.sur.sctp.api.IpChannelType;
+import su.sres.sur.sctp.api.PayloadData;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.*;
+
+/**
+ * Checks that an Association stops reading when suspended by the application
+ * or by the backlog or the full ring of its worker thread, and that no data
+ * is lost
+ *
+ */
+public class ReadSuspensionTest {
+	private static final String SERVER_NAME = "testserver";
+	private static final String SERVER_HOST = "127.0.0.1";
+	private static final int SERVER_PORT = 13573;
+
+	private static final String SERVER_ASSOCIATION_NAME = "serverAssociation";
+	private static final String CLIENT_ASSOCIATION_NAME = "clientAssociation";
+
+	private static final String CLIENT_HOST = "127.0.0.1";
+	private static final int CLIENT_PORT = 13574;
+
+	private static final int MESSAGES = 400;
+	private static final int MESSAGE_SIZE = 1024;
+
+	private static final int BACKLOG_HIGH = 4;
+
+	private ManagementImpl management = null;
+
+	private volatile boolean serverAssocUp = false;
+	private volatile boolean clientAssocUp = false;
+
+	private volatile long receivedBytes = 0;
+	private volatile int corrupted = 0;
+	private volatile int maxBacklog = 0;
+	private volatile boolean backlogSuspended = false;
+	private volatile CountDownLatch listenerRelease = null;
+	private volatile long listenerDelay = 0;
+
+	public void setUp(IpChannelType ipChannelType, boolean singleThread, int portOffset) throws Exception {
+		this.setUp(ipChannelType, singleThread, 0, portOffset);
+	}
+
+	public void setUp(IpChannelType ipChannelType, boolean singleThread, int workerQueueSize, int portOffset)
+			throws Exception {
+		this.serverAssocUp = false;
+		this.clientAssocUp = false;
+		this.receivedBytes = 0;
+		this.corrupted = 0;
+		this.maxBacklog = 0;
+		this.backlogSuspended = false;
+		this.listenerRelease = null;
+
+		this.management = new ManagementImpl("server-management");
+		this.management.setSingleThread(singleThread);
+		if (workerQueueSize > 0)
+			this.management.setWorkerQueueSize(workerQueueSize);
+		this.management.start();
+		this.management.setConnectDelay(10000);// Try connecting every 10 secs
+		this.management.removeAllResourses();
+
+		this.management.addServer(SERVER_NAME, SERVER_HOST, SERVER_PORT + portOffset, ipChannelType, false, 0, null);
+		this.management.addServerAssociation(CLIENT_HOST, CLIENT_PORT + portOffset, SERVER_NAME, SERVER_ASSOCIATION_NAME,
+				ipChannelType);
+		this.management.addAssociation(CLIENT_HOST, CLIENT_PORT + portOffset, SERVER_HOST, SERVER_PORT + portOffset,
+				CLIENT_ASSOCIATION_NAME, ipChannelType, null);
+	}
+
+	public void tearDown() throws Exception {
+		this.management.removeAssociation(CLIENT_ASSOCIATION_NAME);
+		this.management.removeAssociation(SERVER_ASSOCIATION_NAME);
+		this.management.removeServer(SERVER_NAME);
+
+		this.management.stop();
+	}
+
+	/**
+	 * Nothing is read while the application keeps reading suspended
+	 */
+	@Test(groups = { "functional", "tcp" })
+	public void testSuspendReadingTcp() throws Exception {
+		this.setUp(IpChannelType.TCP, true, 0);
+		this.listenerDelay = 0;
+
+		AssociationImpl serverAssociation = this.startAssociations();
+		serverAssociation.suspendReading();
+		assertTrue(serverAssociation.isReadSuspended());
+
+		this.send();
+		Thread.sleep(1000);
+		assertEquals(0, this.receivedBytes);
+
+		serverAssociation.resumeReading();
+		assertTrue(!serverAssociation.isReadSuspended());
+
+		this.awaitReceived();
+		this.stopAssociations();
+	}
+
+	/**
+	 * The worker thread delivers slower than the data arrives, reading is
+	 * suspended whenever the backlog exceeds the high watermark
+	 */
+	@Test(groups = { "functional", "tcp" })
+	public void testInboundBacklogTcp() throws Exception {
+		this.setUp(IpChannelType.TCP, false, 2);
+		this.management.setInboundBacklogHighWatermark(BACKLOG_HIGH);
+		this.management.setInboundBacklogLowWatermark(1);
+		this.listenerDelay = 10;
+
+		this.startAssociations();
+		this.send();
+
+		this.awaitReceived();
+		assertTrue(this.backlogSuspended);
+		// the read stops as soon as the high watermark is exceeded
+		assertTrue(this.maxBacklog <= BACKLOG_HIGH + 1);
+		this.stopAssociations();
+	}
+
+	/**
+	 * The listener blocks, so the ring of the worker thread fills up. The
+	 * SelectorThread keeps the payload it could not dispatch and suspends
+	 * reading instead of waiting for room
+	 */
+	@Test(groups = { "functional", "tcp" })
+	public void testFullWorkerQueueTcp() throws Exception {
+		this.setUp(IpChannelType.TCP, false, 2, 30);
+		this.listenerDelay = 0;
+		this.listenerRelease = new CountDownLatch(1);
+
+		AssociationImpl serverAssociation = this.startAssociations();
+		try {
+			this.send();
+			for (int i1 = 0; i1 < 100; i1++) {
+				if (serverAssociation.isReadSuspended())
+					break;
+				Thread.sleep(100);
+			}
+			assertTrue(serverAssociation.isReadSuspended());
+		} finally {
+			this.listenerRelease.countDown();
+		}
+
+		this.awaitReceived();
+		assertTrue(!serverAssociation.isReadSuspended());
+		this.stopAssociations();
+	}
+
+	private AssociationImpl startAssociations() throws Exception {
+		this.management.startServer(SERVER_NAME);
+
+		AssociationImpl serverAssociation = (AssociationImpl) this.management.getAssociation(SERVER_ASSOCIATION_NAME);
+		serverAssociation.setAssociationListener(new ServerAssociationListener());
+		this.management.startAssociation(SERVER_ASSOCIATION_NAME);
+
+		this.management.getAssociation(CLIENT_ASSOCIATION_NAME).setAssociationListener(new ClientAssociationListener());
+		this.management.startAssociation(CLIENT_ASSOCIATION_NAME);
+
+		for (int i1 = 0; i1 < 100; i1++) {
+			if (this.serverAssocUp && this.clientAssocUp)
+				break;
+			Thread.sleep(100);
+		}
+		assertTrue(this.serverAssocUp);
+		assertTrue(this.clientAssocUp);
+		return serverAssociation;
+	}
+
+	private void send() throws Exception {
+		Association clientAssociation = this.management.getAssociation(CLIENT_ASSOCIATION_NAME);
+		for (int i = 0; i < MESSAGES; i++) {
+			ByteBuf byteBuf = clientAssociation.getByteBufAllocator().buffer(MESSAGE_SIZE);
+			for (int j = 0; j < MESSAGE_SIZE / 4; j++) {
+				byteBuf.writeInt(i);
+			}
+			clientAssociation.send(new PayloadData(MESSAGE_SIZE, byteBuf, true, false, 3, 1));
+		}
+	}
+
+	private void awaitReceived() throws Exception {
+		for (int i1 = 0; i1 < 300; i1++) {
+			if (this.receivedBytes == (long) MESSAGES * MESSAGE_SIZE)
+				break;
+			Thread.sleep(100);
+		}
+		assertEquals((long) MESSAGES * MESSAGE_SIZE, this.receivedBytes);
+		assertEquals(0, this.corrupted);
+	}
+
+	private void stopAssociations() throws Exception {
+		this.management.stopAssociation(CLIENT_ASSOCIATION_NAME);
+
+		Thread.sleep(1000);
+
+		this.management.stopAssociation(SERVER_ASSOCIATION_NAME);
+		this.management.stopServer(SERVER_NAME);
+
+		this.tearDown();
+	}
+
+	private class ClientAssociationListener implements AssociationListener {
+
+		@Override
+		public void onCommunicationUp(Association association, int maxInboundStreams, int maxOutboundStreams) {
+			clientAssocUp = true;
+		}
+
+		@Override
+		public void onCommunicationShutdown(Association association) {
+		}
+
+		@Override
+		public void onCommunicationLost(Association association) {
+		}
+
+		@Override
+		public void onCommunicationRestart(Association association) {
+		}
+
+		@Override
+		public void onPayload(Association association, PayloadData payloadData) {
+			payloadData.releaseBuffer();
+		}
+
+		@Override
+		public void inValidStreamId(PayloadData payloadData) {
+		}
+	}
+
+	private class ServerAssociationListener implements AssociationListener {
+
+		private int partial = 0;
+		private int partialBytes = 0;
+
+		@Override
+		public void onCommunicationUp(Association association, int maxInboundStreams, int maxOutboundStreams) {
+			serverAssocUp = true;
+		}
+
+		@Override
+		public void onCommunicationShutdown(Association association) {
+		}
+
+		@Override
+		public void onCommunicationLost(Association association) {
+		}
+
+		@Override
+		public void onCommunicationRestart(Association association) {
+		}
+
+		@Override
+		public void onPayload(Association association, PayloadData payloadData) {
+			InboundBacklogLimiter.Account backlog = ((AssociationImpl) association).getInboundBacklog();
+			if (backlog.getPendingPayloads() > maxBacklog)
+				maxBacklog = backlog.getPendingPayloads();
+			if (backlog.isSuspended())
+				backlogSuspended = true;
+
+			try {
+				if (listenerDelay > 0)
+					Thread.sleep(listenerDelay);
+				CountDownLatch release = listenerRelease;
+				if (release != null)
+					release.await(60, TimeUnit.SECONDS);
+
+				ByteBuf byteBuf = payloadData.getByteBuf();
+				while (byteBuf.isReadable()) {
+					partial = (partial << 8) | byteBuf.readUnsignedByte();
+					if (++partialBytes == 4) {
+						// every int of a message carries its sequence number
+						long offset = receivedBytes;
+						if (partial != (int) (offset / MESSAGE_SIZE))
+							corrupted++;
+						partial = 0;
+						partialBytes = 0;
+						receivedBytes = offset + 4;
+					}
+				}
+			} catch (InterruptedException e) {
+			} finally {
+				payloadData.releaseBuffer();
+			}
+		}
+
+		@Override
+		public void inValidStreamId(PayloadData payloadData) {
+		}
+	}
+
+}
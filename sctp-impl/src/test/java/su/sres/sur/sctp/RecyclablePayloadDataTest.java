@@ -0,0 +1,74 @@
+/*
+ * TeleStax, Open Source Cloud Communications  Copyright 2012.
+ * and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package su.sres.sur.sctp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import su.sres.sur.sctp.api.RecyclablePayloadData;
+
+import org.testng.annotations.Test;
+
+/**
+ *
+ *
+ */
+public class RecyclablePayloadDataTest {
+
+	@Test(groups = { "functional" })
+	public void testReleaseRecycles() {
+		ByteBuf byteBuf = Unpooled.buffer(4).writeInt(7);
+		RecyclablePayloadData payloadData = RecyclablePayloadData.newInstance(4, byteBuf, true, false, 3, 1);
+		assertEquals(4, payloadData.getDataLength());
+		assertSame(byteBuf, payloadData.getByteBuf());
+		assertEquals(3, payloadData.getPayloadProtocolId());
+		assertEquals(1, payloadData.getStreamNumber());
+
+		payloadData.releaseBuffer();
+		assertEquals(0, byteBuf.refCnt());
+		assertNull(payloadData.getByteBuf());
+		// a second release neither touches the buffer nor the pool
+		payloadData.releaseBuffer();
+
+		// the pool of this thread hands out the same instance again
+		ByteBuf byteBuf2 = Unpooled.buffer(4).writeInt(8);
+		RecyclablePayloadData payloadData2 = RecyclablePayloadData.newInstance(4, byteBuf2, false, true, 0, 2);
+		assertSame(payloadData, payloadData2);
+		assertSame(byteBuf2, payloadData2.getByteBuf());
+		assertEquals(2, payloadData2.getStreamNumber());
+		payloadData2.releaseBuffer();
+	}
+
+	@Test(groups = { "functional" })
+	public void testRecycleKeepsBuffer() {
+		ByteBuf byteBuf = Unpooled.buffer(4).writeInt(7);
+		RecyclablePayloadData payloadData = RecyclablePayloadData.newInstance(4, byteBuf, true, false, 3, 1);
+
+		// the stack hands the buffer on and only recycles the PayloadData
+		payloadData.recycle();
+		assertEquals(1, byteBuf.refCnt());
+		byteBuf.release();
+	}
+}
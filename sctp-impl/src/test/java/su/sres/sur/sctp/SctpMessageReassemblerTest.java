@@ -0,0 +1,135 @@
+/*
+ * TeleStax, Open Source Cloud Communications  Copyright 2012.
+ * and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package su.sres.sur.sctp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import su.sres.sur.sctp.api.PayloadData;
+import su.sres.sur.sctp.api.RecyclablePayloadData;
+
+import org.testng.annotations.Test;
+
+/**
+ *
+ *
+ */
+public class SctpMessageReassemblerTest {
+
+	private final PooledByteBufAllocator allocator = PooledByteBufAllocator.DEFAULT;
+
+	private PayloadData fragment(int length, int value, boolean complete, int streamNumber) {
+		ByteBuf byteBuf = this.allocator.directBuffer(length);
+		for (int i = 0; i < length; i++) {
+			byteBuf.writeByte(value);
+		}
+		return RecyclablePayloadData.newInstance(length, byteBuf, complete, false, 3, streamNumber);
+	}
+
+	@Test(groups = { "functional" })
+	public void testReassembly() {
+		SctpMessageReassembler reassembler = new SctpMessageReassembler("test", this.allocator, 1000);
+
+		// complete messages pass untouched
+		PayloadData complete = this.fragment(10, 0, true, 1);
+		assertSame(complete, reassembler.add(complete));
+		complete.releaseBuffer();
+
+		// fragments of two streams interleaved
+		assertNull(reassembler.add(this.fragment(100, 1, false, 1)));
+		assertNull(reassembler.add(this.fragment(50, 2, false, 2)));
+		assertNull(reassembler.add(this.fragment(100, 1, false, 1)));
+		assertEquals(2, reassembler.getPartialMessages());
+
+		// a complete message of another stream is not held back
+		complete = this.fragment(10, 3, true, 3);
+		assertSame(complete, reassembler.add(complete));
+		complete.releaseBuffer();
+
+		PayloadData message1 = reassembler.add(this.fragment(20, 1, true, 1));
+		assertEquals(220, message1.getDataLength());
+		assertEquals(220, message1.getByteBuf().readableBytes());
+		assertTrue(message1.isComplete());
+		assertEquals(1, message1.getStreamNumber());
+		assertEquals(3, message1.getPayloadProtocolId());
+		for (int i = 0; i < 220; i++) {
+			assertEquals(1, message1.getByte(i));
+		}
+
+		PayloadData message2 = reassembler.add(this.fragment(50, 2, true, 2));
+		assertEquals(100, message2.getDataLength());
+		assertEquals(0, reassembler.getPartialMessages());
+
+		ByteBuf byteBuf = message1.getByteBuf();
+		assertTrue(message1.release());
+		assertEquals(0, byteBuf.refCnt());
+		message2.releaseBuffer();
+	}
+
+	@Test(groups = { "functional" })
+	public void testMessageTooLarge() {
+		SctpMessageReassembler reassembler = new SctpMessageReassembler("test", this.allocator, 250);
+
+		PayloadData fragment1 = this.fragment(200, 1, false, 1);
+		ByteBuf byteBuf1 = fragment1.getByteBuf();
+		assertNull(reassembler.add(fragment1));
+		PayloadData fragment2 = this.fragment(100, 1, false, 1);
+		ByteBuf byteBuf2 = fragment2.getByteBuf();
+		assertNull(reassembler.add(fragment2));
+
+		// what was collected is released at once, the rest of the message
+		// is dropped as it arrives
+		assertEquals(0, byteBuf1.refCnt());
+		assertEquals(0, byteBuf2.refCnt());
+		PayloadData fragment3 = this.fragment(100, 1, true, 1);
+		ByteBuf byteBuf3 = fragment3.getByteBuf();
+		assertNull(reassembler.add(fragment3));
+		assertEquals(0, byteBuf3.refCnt());
+		assertEquals(0, reassembler.getPartialMessages());
+
+		// the next message of the stream is reassembled again
+		assertNull(reassembler.add(this.fragment(100, 2, false, 1)));
+		PayloadData message = reassembler.add(this.fragment(100, 2, true, 1));
+		assertEquals(200, message.getDataLength());
+		message.releaseBuffer();
+	}
+
+	@Test(groups = { "functional" })
+	public void testRelease() {
+		SctpMessageReassembler reassembler = new SctpMessageReassembler("test", this.allocator, 1000);
+
+		PayloadData fragment = this.fragment(100, 1, false, 1);
+		ByteBuf byteBuf = fragment.getByteBuf();
+		assertNull(reassembler.add(fragment));
+		assertFalse(byteBuf.refCnt() == 0);
+
+		// the connection is broken
+		reassembler.release();
+		assertEquals(0, byteBuf.refCnt());
+		assertEquals(0, reassembler.getPartialMessages());
+	}
+}
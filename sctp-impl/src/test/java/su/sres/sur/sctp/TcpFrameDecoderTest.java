@@ -0,0 +1,164 @@
+/*
+ * TeleStax, Open Source Cloud Communications  Copyright 2012.
+ * and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package su.sres.sur.sctp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.handler.codec.TooLongFrameException;
+import su.sres.sur.sctp.api.TcpFramingConfig;
+
+import org.testng.annotations.Test;
+
+/**
+ *
+ *
+ */
+public class TcpFrameDecoderTest {
+
+	private final UnpooledByteBufAllocator allocator = new UnpooledByteBufAllocator(true);
+
+	/**
+	 * M3UA common header with a body of bodyLength bytes of value
+	 */
+	private void writeM3ua(ByteBuf byteBuf, int bodyLength, int value) {
+		byteBuf.writeByte(1).writeByte(0).writeByte(1).writeByte(1).writeInt(8 + bodyLength);
+		for (int i = 0; i < bodyLength; i++) {
+			byteBuf.writeByte(value);
+		}
+	}
+
+	@Test(groups = { "functional" })
+	public void testM3uaFrames() throws Exception {
+		TcpFrameDecoder decoder = new TcpFrameDecoder(TcpFramingConfig.m3ua(1024));
+		assertNull(decoder.decode());
+
+		// two complete messages and the first 6 bytes of the third in one read
+		ByteBuf readBuffer = decoder.readBuffer(this.allocator, 256);
+		this.writeM3ua(readBuffer, 4, 1);
+		this.writeM3ua(readBuffer, 0, 0);
+		readBuffer.writeByte(1).writeByte(0).writeByte(1).writeByte(1).writeShort(0);
+
+		ByteBuf frame1 = decoder.decode();
+		assertEquals(12, frame1.readableBytes());
+		assertEquals(1, frame1.getByte(11));
+		ByteBuf frame2 = decoder.decode();
+		assertEquals(8, frame2.readableBytes());
+		assertNull(decoder.decode());
+
+		// messages are slices of the read buffer, which is kept. The slices
+		// may be wrapped by the leak detector, so their content is compared
+		readBuffer.setByte(11, 5);
+		assertEquals(5, frame1.getByte(11));
+		readBuffer.setByte(11, 1);
+		assertEquals(3, readBuffer.refCnt());
+
+		assertSame(readBuffer, decoder.readBuffer(this.allocator, 256));
+		readBuffer.writeShort(12).writeInt(0x01020304);
+		ByteBuf frame3 = decoder.decode();
+		assertEquals(12, frame3.readableBytes());
+		assertEquals(0x01020304, frame3.getInt(8));
+
+		frame1.release();
+		frame2.release();
+		frame3.release();
+		decoder.release();
+		assertEquals(0, readBuffer.refCnt());
+	}
+
+	@Test(groups = { "functional" })
+	public void testReadBufferReplaced() throws Exception {
+		TcpFrameDecoder decoder = new TcpFrameDecoder(TcpFramingConfig.m3ua(1024));
+
+		// a complete message followed by the header of a message larger than
+		// the rest of the read buffer
+		ByteBuf readBuffer = decoder.readBuffer(this.allocator, 64);
+		this.writeM3ua(readBuffer, 40, 1);
+		readBuffer.writeByte(1).writeByte(0).writeByte(1).writeByte(1).writeInt(200);
+		ByteBuf frame1 = decoder.decode();
+		assertNull(decoder.decode());
+
+		// the delivered message keeps the old buffer, only the header of the
+		// incomplete one is copied
+		ByteBuf readBuffer2 = decoder.readBuffer(this.allocator, 64);
+		assertNotSame(readBuffer, readBuffer2);
+		assertEquals(8, readBuffer2.readableBytes());
+		assertTrue(readBuffer2.writableBytes() >= 192);
+		assertEquals(1, readBuffer.refCnt());
+		assertEquals(1, frame1.getByte(47));
+		frame1.release();
+		assertEquals(0, readBuffer.refCnt());
+
+		for (int i = 0; i < 192; i++) {
+			readBuffer2.writeByte(2);
+		}
+		ByteBuf frame2 = decoder.decode();
+		assertEquals(200, frame2.readableBytes());
+		frame2.release();
+
+		// nothing refers to the read buffer any more, it is reused from the
+		// start
+		assertSame(readBuffer2, decoder.readBuffer(this.allocator, 64));
+		assertEquals(0, readBuffer2.writerIndex());
+		decoder.release();
+	}
+
+	@Test(groups = { "functional" })
+	public void testLengthPrefix() throws Exception {
+		TcpFrameDecoder decoder = new TcpFrameDecoder(TcpFramingConfig.lengthPrefix(2, 1024));
+
+		ByteBuf readBuffer = decoder.readBuffer(this.allocator, 64);
+		readBuffer.writeShort(3).writeByte(7).writeByte(8).writeByte(9).writeShort(0).writeByte(0);
+
+		// the prefix is stripped
+		ByteBuf frame1 = decoder.decode();
+		assertEquals(3, frame1.readableBytes());
+		assertEquals(7, frame1.getByte(0));
+		ByteBuf frame2 = decoder.decode();
+		assertEquals(0, frame2.readableBytes());
+		assertNull(decoder.decode());
+
+		frame1.release();
+		frame2.release();
+		decoder.release();
+	}
+
+	@Test(groups = { "functional" })
+	public void testTooLongFrame() throws Exception {
+		TcpFrameDecoder decoder = new TcpFrameDecoder(TcpFramingConfig.m3ua(1024));
+
+		ByteBuf readBuffer = decoder.readBuffer(this.allocator, 64);
+		readBuffer.writeByte(1).writeByte(0).writeByte(1).writeByte(1).writeInt(1025);
+		try {
+			decoder.decode();
+			assertTrue(false);
+		} catch (TooLongFrameException e) {
+		}
+		decoder.release();
+		assertEquals(0, readBuffer.refCnt());
+	}
+}
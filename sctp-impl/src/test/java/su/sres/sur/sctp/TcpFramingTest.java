@@ -0,0 +1,325 @@
+/*
+ * TeleStax, Open Source Cloud Communications  Copyright 2012.
+ * and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package su.sres.sur.sctp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import io.netty.buffer.ByteBuf;
+import su.sres.sur.sctp.api.Association;
+import su.sres.sur.sctp.api.AssociationListener;
+import su.sres.sur.sctp.api.IpChannelType;
+import su.sres.sur.sctp.api.PayloadData;
+import su.sres.sur.sctp.api.TcpFramingConfig;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.testng.annotations.*;
+
+/**
+ * Sends M3UA messages of different sizes in batches, so that they are
+ * coalesced and split by TCP, and checks that every PayloadData delivered to
+ * the server is exactly one message
+ *
+ */
+public class TcpFramingTest {
+	private static final String SERVER_NAME = "testserver";
+	private static final String SERVER_HOST = "127.0.0.1";
+	private static final int SERVER_PORT = 13577;
+
+	private static final String SERVER_ASSOCIATION_NAME = "serverAssociation";
+	private static final String CLIENT_ASSOCIATION_NAME = "clientAssociation";
+
+	private static final String CLIENT_HOST = "127.0.0.1";
+	private static final int CLIENT_PORT = 13578;
+
+	private static final int MESSAGES = 5000;
+	private static final int BATCH = 50;
+	private static final int READ_BUDGET_MESSAGES = 16;
+
+	private ManagementImpl management = null;
+
+	private volatile boolean serverAssocUp = false;
+	private volatile boolean clientAssocUp = false;
+
+	private volatile int received = 0;
+	private volatile int corrupted = 0;
+	private volatile int maxReadBatch = 0;
+	private volatile int suspendAt = -1;
+
+	public void setUp(IpChannelType ipChannelType, TcpFramingConfig tcpFraming, boolean singleThread,
+			int readBudgetMessages, int portOffset) throws Exception {
+		this.serverAssocUp = false;
+		this.clientAssocUp = false;
+		this.received = 0;
+		this.corrupted = 0;
+		this.maxReadBatch = 0;
+		this.suspendAt = -1;
+
+		this.management = new ManagementImpl("server-management");
+		this.management.setSingleThread(singleThread);
+		// messages often span two reads
+		this.management.setBufferSize(1000);
+		this.management.setTcpFraming(tcpFraming);
+		this.management.setReadBudgetMessages(readBudgetMessages);
+		this.management.start();
+		this.management.setConnectDelay(10000);// Try connecting every 10 secs
+		this.management.removeAllResourses();
+
+		this.management.addServer(SERVER_NAME, SERVER_HOST, SERVER_PORT + portOffset, ipChannelType, false, 0, null);
+		this.management.addServerAssociation(CLIENT_HOST, CLIENT_PORT + portOffset, SERVER_NAME, SERVER_ASSOCIATION_NAME,
+				ipChannelType);
+		this.management.addAssociation(CLIENT_HOST, CLIENT_PORT + portOffset, SERVER_HOST, SERVER_PORT + portOffset,
+				CLIENT_ASSOCIATION_NAME, ipChannelType, null);
+	}
+
+	public void tearDown() throws Exception {
+		this.management.removeAssociation(CLIENT_ASSOCIATION_NAME);
+		this.management.removeAssociation(SERVER_ASSOCIATION_NAME);
+		this.management.removeServer(SERVER_NAME);
+
+		this.management.stop();
+	}
+
+	@Test(groups = { "functional", "tcp" })
+	public void testM3uaFramingTcp() throws Exception {
+		this.transfer(TcpFramingConfig.m3ua(TcpFramingConfig.DEFAULT_MAX_FRAME_LENGTH), true, 0);
+	}
+
+	/**
+	 * Messages are delivered by the worker threads
+	 */
+	@Test(groups = { "functional", "tcp" })
+	public void testM3uaFramingWorkerThreadsTcp() throws Exception {
+		this.transfer(TcpFramingConfig.m3ua(TcpFramingConfig.DEFAULT_MAX_FRAME_LENGTH), false, 2);
+	}
+
+	/**
+	 * The length prefix is added by the sender and stripped by the receiver,
+	 * the messages are delivered as they were sent
+	 */
+	@Test(groups = { "functional", "tcp" })
+	public void testLengthPrefixFramingTcp() throws Exception {
+		this.transfer(TcpFramingConfig.lengthPrefix(2, TcpFramingConfig.DEFAULT_MAX_FRAME_LENGTH), true, 4);
+	}
+
+	/**
+	 * A read delivers no more messages than the read budget allows, the ones
+	 * left in the read buffer are delivered by the following reads
+	 */
+	@Test(groups = { "functional", "tcp" })
+	public void testFramingReadBudgetTcp() throws Exception {
+		this.setUp(IpChannelType.TCP, TcpFramingConfig.m3ua(TcpFramingConfig.DEFAULT_MAX_FRAME_LENGTH), true, 4, 6);
+
+		this.startAndSend();
+		this.awaitReceived();
+
+		assertTrue(this.maxReadBatch <= 4);
+		this.stopAndCheck();
+	}
+
+	/**
+	 * No message is delivered while reading is suspended, the ones left in the
+	 * read buffer are delivered after resumeReading()
+	 */
+	@Test(groups = { "functional", "tcp" })
+	public void testFramingSuspendReadingTcp() throws Exception {
+		this.setUp(IpChannelType.TCP, TcpFramingConfig.m3ua(TcpFramingConfig.DEFAULT_MAX_FRAME_LENGTH), true, 1, 8);
+		this.suspendAt = MESSAGES / 2;
+
+		this.startAndSend();
+		for (int i1 = 0; i1 < 200; i1++) {
+			if (this.received == this.suspendAt)
+				break;
+			Thread.sleep(100);
+		}
+		Thread.sleep(500);
+		assertEquals(this.suspendAt, this.received);
+
+		this.management.getAssociation(SERVER_ASSOCIATION_NAME).resumeReading();
+		this.awaitReceived();
+		this.stopAndCheck();
+	}
+
+	private void transfer(TcpFramingConfig tcpFraming, boolean singleThread, int portOffset) throws Exception {
+
+		this.setUp(IpChannelType.TCP, tcpFraming, singleThread, READ_BUDGET_MESSAGES, portOffset);
+
+		this.startAndSend();
+		this.awaitReceived();
+		this.stopAndCheck();
+	}
+
+	private void startAndSend() throws Exception {
+		this.management.startServer(SERVER_NAME);
+
+		this.management.getAssociation(SERVER_ASSOCIATION_NAME).setAssociationListener(new ServerAssociationListener());
+		this.management.startAssociation(SERVER_ASSOCIATION_NAME);
+
+		Association clientAssociation = this.management.getAssociation(CLIENT_ASSOCIATION_NAME);
+		clientAssociation.setAssociationListener(new ClientAssociationListener());
+		this.management.startAssociation(CLIENT_ASSOCIATION_NAME);
+
+		for (int i1 = 0; i1 < 100; i1++) {
+			if (this.serverAssocUp && this.clientAssocUp)
+				break;
+			Thread.sleep(100);
+		}
+		assertTrue(this.clientAssocUp);
+
+		ArrayList<PayloadData> batch = new ArrayList<PayloadData>();
+		for (int i = 0; i < MESSAGES; i++) {
+			batch.add(newMessage(clientAssociation, i));
+			if (batch.size() == BATCH) {
+				clientAssociation.send(batch);
+				batch.clear();
+			}
+		}
+	}
+
+	private void awaitReceived() throws Exception {
+		for (int i1 = 0; i1 < 200; i1++) {
+			if (this.received == MESSAGES)
+				break;
+			Thread.sleep(100);
+		}
+	}
+
+	private void stopAndCheck() throws Exception {
+		this.management.stopAssociation(CLIENT_ASSOCIATION_NAME);
+
+		Thread.sleep(1000);
+
+		this.management.stopAssociation(SERVER_ASSOCIATION_NAME);
+		this.management.stopServer(SERVER_NAME);
+
+		assertEquals(MESSAGES, this.received);
+		assertEquals(0, this.corrupted);
+
+		this.tearDown();
+	}
+
+	/**
+	 * An M3UA message with the sequence number i followed by up to 300 bytes of
+	 * (byte) i
+	 */
+	protected static PayloadData newMessage(Association association, int i) throws Exception {
+		int length = 8 + 4 + i % 301;
+		ByteBuf byteBuf = association.getByteBufAllocator().buffer(length);
+		byteBuf.writeByte(1).writeByte(0).writeByte(1).writeByte(1).writeInt(length).writeInt(i);
+		while (byteBuf.readableBytes() < length) {
+			byteBuf.writeByte(i);
+		}
+		return new PayloadData(length, byteBuf, true, false, 3, 1);
+	}
+
+	/**
+	 * @return true if the payload is exactly the message with the sequence
+	 *         number expected
+	 */
+	protected static boolean isMessage(PayloadData payloadData, int expected) {
+		int length = 8 + 4 + expected % 301;
+		if (payloadData.getDataLength() != length || payloadData.getUnsignedInt(4) != length
+				|| payloadData.getInt(8) != expected)
+			return false;
+		for (int i = 12; i < length; i++) {
+			if (payloadData.getByte(i) != (byte) expected)
+				return false;
+		}
+		return true;
+	}
+
+	private class ClientAssociationListener implements AssociationListener {
+
+		@Override
+		public void onCommunicationUp(Association association, int maxInboundStreams, int maxOutboundStreams) {
+			clientAssocUp = true;
+		}
+
+		@Override
+		public void onCommunicationShutdown(Association association) {
+		}
+
+		@Override
+		public void onCommunicationLost(Association association) {
+		}
+
+		@Override
+		public void onCommunicationRestart(Association association) {
+		}
+
+		@Override
+		public void onPayload(Association association, PayloadData payloadData) {
+			payloadData.releaseBuffer();
+		}
+
+		@Override
+		public void inValidStreamId(PayloadData payloadData) {
+		}
+	}
+
+	private class ServerAssociationListener implements AssociationListener {
+
+		@Override
+		public void onCommunicationUp(Association association, int maxInboundStreams, int maxOutboundStreams) {
+			serverAssocUp = true;
+		}
+
+		@Override
+		public void onCommunicationShutdown(Association association) {
+		}
+
+		@Override
+		public void onCommunicationLost(Association association) {
+		}
+
+		@Override
+		public void onCommunicationRestart(Association association) {
+		}
+
+		@Override
+		public void onPayloads(Association association, List<PayloadData> payloadDataList) {
+			if (payloadDataList.size() > maxReadBatch)
+				maxReadBatch = payloadDataList.size();
+			AssociationListener.super.onPayloads(association, payloadDataList);
+		}
+
+		@Override
+		public void onPayload(Association association, PayloadData payloadData) {
+			if (received + 1 == suspendAt)
+				association.suspendReading();
+			try {
+				if (!isMessage(payloadData, received))
+					corrupted++;
+				received++;
+			} finally {
+				payloadData.releaseBuffer();
+			}
+		}
+
+		@Override
+		public void inValidStreamId(PayloadData payloadData) {
+		}
+	}
+
+}
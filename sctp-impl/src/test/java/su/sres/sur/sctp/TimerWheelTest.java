@@ -0,0 +1,120 @@
+/*
+ * TeleStax, Open Source Cloud Communications  Copyright 2012.
+ * and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package su.sres.sur.sctp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+/**
+ *
+ *
+ */
+public class TimerWheelTest {
+
+	private static final long START = 1000000;
+
+	@Test(groups = { "functional" })
+	public void testExpireOrder() {
+		TimerWheel wheel = new TimerWheel(8, 10, START);
+
+		ChangeRequest late = new ChangeRequest(null, ChangeRequest.CONNECT, START + 500);
+		ChangeRequest early = new ChangeRequest(null, ChangeRequest.CONNECT, START + 25);
+		ChangeRequest due = new ChangeRequest(null, ChangeRequest.CONNECT, START - 100);
+		wheel.schedule(late);
+		wheel.schedule(early);
+		wheel.schedule(due);
+		assertEquals(3, wheel.size());
+
+		// already due request expires with the first tick
+		assertEquals(10, wheel.nextTimeout(START));
+
+		List<ChangeRequest> expired = new ArrayList<ChangeRequest>();
+		wheel.expire(START + 10, expired);
+		assertEquals(1, expired.size());
+		assertSame(due, expired.get(0));
+
+		expired.clear();
+		wheel.expire(START + 25, expired);
+		assertEquals(0, expired.size());
+		assertEquals(5, wheel.nextTimeout(START + 25));
+
+		wheel.expire(START + 30, expired);
+		assertEquals(1, expired.size());
+		assertSame(early, expired.get(0));
+
+		// the late request needs several rounds of the 8 buckets wheel
+		expired.clear();
+		wheel.expire(START + 499, expired);
+		assertEquals(0, expired.size());
+		wheel.expire(START + 510, expired);
+		assertEquals(1, expired.size());
+		assertSame(late, expired.get(0));
+
+		assertEquals(0, wheel.size());
+		assertEquals(-1, wheel.nextTimeout(START + 510));
+	}
+
+	@Test(groups = { "functional" })
+	public void testManyRequests() {
+		TimerWheel wheel = new TimerWheel(512, 10, START);
+		for (int i = 0; i < 10000; i++) {
+			wheel.schedule(new ChangeRequest(null, ChangeRequest.CONNECT, START + 5000 + (i % 100)));
+		}
+
+		List<ChangeRequest> expired = new ArrayList<ChangeRequest>();
+		wheel.expire(START + 4999, expired);
+		assertEquals(0, expired.size());
+
+		long now = START + 5000;
+		while (wheel.size() > 0) {
+			wheel.expire(now, expired);
+			for (ChangeRequest changeRequest : expired) {
+				assertTrue(changeRequest.getExecutionTime() <= now);
+			}
+			expired.clear();
+			now += 5;
+		}
+		assertTrue(now <= START + 5000 + 100 + 10 + 5);
+	}
+
+	@Test(groups = { "functional" })
+	public void testIdleCatchUp() {
+		TimerWheel wheel = new TimerWheel(16, 10, START);
+
+		List<ChangeRequest> expired = new ArrayList<ChangeRequest>();
+		wheel.expire(START + 3600000, expired);
+
+		ChangeRequest changeRequest = new ChangeRequest(null, ChangeRequest.CONNECT, START + 3600000 + 50);
+		wheel.schedule(changeRequest);
+		assertEquals(60, wheel.nextTimeout(START + 3600000));
+
+		wheel.expire(START + 3600000 + 60, expired);
+		assertEquals(1, expired.size());
+	}
+}
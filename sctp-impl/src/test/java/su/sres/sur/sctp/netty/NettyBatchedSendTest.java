@@ -0,0 +1,240 @@
+/*
+ * TeleStax, Open Source Cloud Communications  Copyright 2012.
+ * and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package su.sres.sur.sctp.netty;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.epoll.Epoll;
+import su.sres.sur.sctp.api.Association;
+import su.sres.sur.sctp.api.AssociationListener;
+import su.sres.sur.sctp.api.IpChannelType;
+import su.sres.sur.sctp.api.PayloadData;
+
+import java.util.ArrayList;
+
+import org.testng.annotations.Test;
+
+/**
+ * Sends payloads in batches, which are written with one flush each, and checks
+ * that they arrive complete and in order
+ *
+ */
+public class NettyBatchedSendTest {
+	private static final String SERVER_NAME = "testserver";
+	private static final String SERVER_HOST = "127.0.0.1";
+	private static final int SERVER_PORT = 22357;
+
+	private static final String SERVER_ASSOCIATION_NAME = "serverAssociation";
+	private static final String CLIENT_ASSOCIATION_NAME = "clientAssociation";
+
+	private static final String CLIENT_HOST = "127.0.0.1";
+	private static final int CLIENT_PORT = 22358;
+
+	private static final int MESSAGES = 4000;
+	private static final int MESSAGE_SIZE = 1024;
+	private static final int BATCH = 50;
+
+	private NettySctpManagementImpl management = null;
+
+	private volatile boolean serverAssocUp = false;
+	private volatile boolean clientAssocUp = false;
+
+	private volatile long receivedBytes = 0;
+	private volatile int corrupted = 0;
+
+	public void setUp(IpChannelType ipChannelType, boolean epollEnabled, int portOffset) throws Exception {
+		this.serverAssocUp = false;
+		this.clientAssocUp = false;
+		this.receivedBytes = 0;
+		this.corrupted = 0;
+
+		this.management = new NettySctpManagementImpl("netty-server-management");
+		this.management.setEpollEnabled(epollEnabled);
+		this.management.start();
+		this.management.setConnectDelay(10000);// Try connecting every 10 secs
+		this.management.removeAllResourses();
+
+		this.management.addServer(SERVER_NAME, SERVER_HOST, SERVER_PORT + portOffset, ipChannelType, false, 0, null);
+		this.management.addServerAssociation(CLIENT_HOST, CLIENT_PORT + portOffset, SERVER_NAME, SERVER_ASSOCIATION_NAME,
+				ipChannelType);
+		this.management.addAssociation(CLIENT_HOST, CLIENT_PORT + portOffset, SERVER_HOST, SERVER_PORT + portOffset,
+				CLIENT_ASSOCIATION_NAME, ipChannelType, null);
+	}
+
+	public void tearDown() throws Exception {
+		this.management.removeAssociation(CLIENT_ASSOCIATION_NAME);
+		this.management.removeAssociation(SERVER_ASSOCIATION_NAME);
+		this.management.removeServer(SERVER_NAME);
+
+		this.management.stop();
+	}
+
+	/**
+	 * TCP uses the epoll transport where it is available
+	 */
+	@Test(groups = { "functional", "tcp" })
+	public void testBatchedSendTcp() throws Exception {
+		this.transfer(true, 0);
+	}
+
+	/**
+	 * TCP falls back to NIO
+	 */
+	@Test(groups = { "functional", "tcp" })
+	public void testBatchedSendNioTcp() throws Exception {
+		this.transfer(false, 2);
+	}
+
+	private void transfer(boolean epollEnabled, int portOffset) throws Exception {
+
+		this.setUp(IpChannelType.TCP, epollEnabled, portOffset);
+		assertEquals(epollEnabled && Epoll.isAvailable(), this.management.isEpollTransport());
+
+		this.management.startServer(SERVER_NAME);
+
+		this.management.getAssociation(SERVER_ASSOCIATION_NAME).setAssociationListener(new ServerAssociationListener());
+		this.management.startAssociation(SERVER_ASSOCIATION_NAME);
+
+		Association clientAssociation = this.management.getAssociation(CLIENT_ASSOCIATION_NAME);
+		clientAssociation.setAssociationListener(new ClientAssociationListener());
+		this.management.startAssociation(CLIENT_ASSOCIATION_NAME);
+
+		// the first connect of a client is made after connectDelay
+		for (int i1 = 0; i1 < 200; i1++) {
+			if (this.serverAssocUp && this.clientAssocUp)
+				break;
+			Thread.sleep(100);
+		}
+		assertTrue(this.clientAssocUp);
+
+		ArrayList<PayloadData> batch = new ArrayList<PayloadData>();
+		for (int i = 0; i < MESSAGES; i++) {
+			ByteBuf byteBuf = clientAssociation.getByteBufAllocator().buffer(MESSAGE_SIZE);
+			for (int j = 0; j < MESSAGE_SIZE / 4; j++) {
+				byteBuf.writeInt(i);
+			}
+			batch.add(new PayloadData(MESSAGE_SIZE, byteBuf, true, false, 3, 1));
+			if (batch.size() == BATCH) {
+				clientAssociation.send(batch);
+				batch.clear();
+			}
+		}
+
+		for (int i1 = 0; i1 < 200; i1++) {
+			if (this.receivedBytes == (long) MESSAGES * MESSAGE_SIZE)
+				break;
+			Thread.sleep(100);
+		}
+
+		this.management.stopAssociation(CLIENT_ASSOCIATION_NAME);
+
+		Thread.sleep(1000);
+
+		this.management.stopAssociation(SERVER_ASSOCIATION_NAME);
+		this.management.stopServer(SERVER_NAME);
+
+		assertEquals((long) MESSAGES * MESSAGE_SIZE, this.receivedBytes);
+		assertEquals(0, this.corrupted);
+
+		this.tearDown();
+	}
+
+	private class ClientAssociationListener implements AssociationListener {
+
+		@Override
+		public void onCommunicationUp(Association association, int maxInboundStreams, int maxOutboundStreams) {
+			clientAssocUp = true;
+		}
+
+		@Override
+		public void onCommunicationShutdown(Association association) {
+		}
+
+		@Override
+		public void onCommunicationLost(Association association) {
+		}
+
+		@Override
+		public void onCommunicationRestart(Association association) {
+		}
+
+		@Override
+		public void onPayload(Association association, PayloadData payloadData) {
+			payloadData.releaseBuffer();
+		}
+
+		@Override
+		public void inValidStreamId(PayloadData payloadData) {
+		}
+	}
+
+	private class ServerAssociationListener implements AssociationListener {
+
+		private int partial = 0;
+		private int partialBytes = 0;
+
+		@Override
+		public void onCommunicationUp(Association association, int maxInboundStreams, int maxOutboundStreams) {
+			serverAssocUp = true;
+		}
+
+		@Override
+		public void onCommunicationShutdown(Association association) {
+		}
+
+		@Override
+		public void onCommunicationLost(Association association) {
+		}
+
+		@Override
+		public void onCommunicationRestart(Association association) {
+		}
+
+		@Override
+		public void onPayload(Association association, PayloadData payloadData) {
+			try {
+				ByteBuf byteBuf = payloadData.getByteBuf();
+				while (byteBuf.isReadable()) {
+					partial = (partial << 8) | byteBuf.readUnsignedByte();
+					if (++partialBytes == 4) {
+						// every int of a message carries its sequence number
+						long offset = receivedBytes;
+						if (partial != (int) (offset / MESSAGE_SIZE))
+							corrupted++;
+						partial = 0;
+						partialBytes = 0;
+						receivedBytes = offset + 4;
+					}
+				}
+			} finally {
+				payloadData.releaseBuffer();
+			}
+		}
+
+		@Override
+		public void inValidStreamId(PayloadData payloadData) {
+		}
+	}
+
+}
@@ -0,0 +1,219 @@
+/*
+ * TeleStax, Open Source Cloud Communications  Copyright 2012.
+ * and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package su.sres.sur.sctp.netty;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import su.sres.sur.sctp.api.Association;
+import su.sres.sur.sctp.api.AssociationListener;
+import su.sres.sur.sctp.api.IpChannelType;
+import su.sres.sur.sctp.api.PayloadData;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.annotations.Test;
+
+/**
+ * Spreads several Associations over the event loops of the worker and client
+ * groups by the LEAST_LOADED policy, with one Association of each side pinned,
+ * and checks the placement in the event loop report
+ *
+ */
+public class NettyEventLoopPlacementTest {
+	private static final String SERVER_NAME = "testserver";
+	private static final String SERVER_HOST = "127.0.0.1";
+	private static final int SERVER_PORT = 22387;
+
+	private static final String SERVER_ASSOCIATION_NAME = "serverAssociation";
+	private static final String CLIENT_ASSOCIATION_NAME = "clientAssociation";
+
+	private static final String CLIENT_HOST = "127.0.0.1";
+	private static final int CLIENT_PORT = 22397;
+
+	private static final int LOOPS = 4;
+	private static final int ASSOCIATIONS = 3;
+
+	private NettySctpManagementImpl management = null;
+
+	private final AtomicInteger serverAssocUp = new AtomicInteger();
+	private final AtomicInteger clientAssocUp = new AtomicInteger();
+
+	public void setUp(IpChannelType ipChannelType) throws Exception {
+		this.serverAssocUp.set(0);
+		this.clientAssocUp.set(0);
+
+		this.management = new NettySctpManagementImpl("netty-server-management");
+		this.management.setWorkerGroupThreads(LOOPS);
+		this.management.setClientGroupThreads(LOOPS);
+		this.management.setEventLoopPlacementPolicy(EventLoopPlacementPolicy.LEAST_LOADED);
+		this.management.start();
+		this.management.setConnectDelay(10000);// Try connecting every 10 secs
+		this.management.removeAllResourses();
+
+		for (int i = 0; i < ASSOCIATIONS; i++) {
+			this.management.addServer(SERVER_NAME + i, SERVER_HOST, SERVER_PORT + i, ipChannelType, false, 0, null);
+			this.management.addServerAssociation(CLIENT_HOST, CLIENT_PORT + i, SERVER_NAME + i, SERVER_ASSOCIATION_NAME + i,
+					ipChannelType);
+		}
+		// client associations have no server name, so they are added after
+		// the server associations
+		for (int i = 0; i < ASSOCIATIONS; i++) {
+			this.management.addAssociation(CLIENT_HOST, CLIENT_PORT + i, SERVER_HOST, SERVER_PORT + i,
+					CLIENT_ASSOCIATION_NAME + i, ipChannelType, null);
+		}
+	}
+
+	public void tearDown() throws Exception {
+		for (int i = 0; i < ASSOCIATIONS; i++) {
+			this.management.removeAssociation(CLIENT_ASSOCIATION_NAME + i);
+			this.management.removeAssociation(SERVER_ASSOCIATION_NAME + i);
+			this.management.removeServer(SERVER_NAME + i);
+		}
+
+		this.management.stop();
+	}
+
+	@Test(groups = { "functional", "tcp" })
+	public void testEventLoopPlacementTcp() throws Exception {
+
+		this.setUp(IpChannelType.TCP);
+
+		try {
+			this.management.setWorkerGroupThreads(1);
+			fail("WorkerGroupThreads must not be updated while the stack is running");
+		} catch (Exception e) {
+		}
+
+		((NettyAssociationImpl) this.management.getAssociation(SERVER_ASSOCIATION_NAME + 0)).setEventLoopIndex(1);
+		((NettyAssociationImpl) this.management.getAssociation(CLIENT_ASSOCIATION_NAME + 0)).setEventLoopIndex(LOOPS + 2);
+
+		for (int i = 0; i < ASSOCIATIONS; i++) {
+			this.management.startServer(SERVER_NAME + i);
+
+			this.management.getAssociation(SERVER_ASSOCIATION_NAME + i).setAssociationListener(new ServerAssociationListener());
+			this.management.startAssociation(SERVER_ASSOCIATION_NAME + i);
+
+			this.management.getAssociation(CLIENT_ASSOCIATION_NAME + i).setAssociationListener(new ClientAssociationListener());
+			this.management.startAssociation(CLIENT_ASSOCIATION_NAME + i);
+		}
+
+		// the first connect of a client is made after connectDelay
+		for (int i1 = 0; i1 < 200; i1++) {
+			if (this.serverAssocUp.get() == ASSOCIATIONS && this.clientAssocUp.get() == ASSOCIATIONS)
+				break;
+			Thread.sleep(100);
+		}
+
+		String report = this.management.getEventLoopReport();
+		String prefix = this.management.isEpollTransport() ? "Tcp" : "";
+
+		for (int i = 0; i < ASSOCIATIONS; i++) {
+			this.management.stopAssociation(CLIENT_ASSOCIATION_NAME + i);
+		}
+
+		Thread.sleep(1000);
+
+		for (int i = 0; i < ASSOCIATIONS; i++) {
+			this.management.stopAssociation(SERVER_ASSOCIATION_NAME + i);
+			this.management.stopServer(SERVER_NAME + i);
+		}
+
+		assertEquals(ASSOCIATIONS, this.serverAssocUp.get());
+		assertEquals(ASSOCIATIONS, this.clientAssocUp.get());
+
+		// pinned Associations are on their event loops, the index is taken
+		// modulo the thread count
+		assertTrue(report, report.contains("\n" + prefix + "WorkerGroup[1] associations=1 [" + SERVER_ASSOCIATION_NAME + 0 + "]"));
+		assertTrue(report, report.contains("\n" + prefix + "ClientGroup[2] associations=1 [" + CLIENT_ASSOCIATION_NAME + 0 + "]"));
+		// the others do not share an event loop
+		assertFalse(report, report.contains("associations=2"));
+		assertFalse(report, report.contains("associations=3"));
+
+		// the closed channels are removed from the report
+		report = this.management.getEventLoopReport();
+		assertFalse(report, report.contains("associations=1"));
+
+		this.tearDown();
+	}
+
+	private class ClientAssociationListener implements AssociationListener {
+
+		@Override
+		public void onCommunicationUp(Association association, int maxInboundStreams, int maxOutboundStreams) {
+			clientAssocUp.incrementAndGet();
+		}
+
+		@Override
+		public void onCommunicationShutdown(Association association) {
+		}
+
+		@Override
+		public void onCommunicationLost(Association association) {
+		}
+
+		@Override
+		public void onCommunicationRestart(Association association) {
+		}
+
+		@Override
+		public void onPayload(Association association, PayloadData payloadData) {
+			payloadData.releaseBuffer();
+		}
+
+		@Override
+		public void inValidStreamId(PayloadData payloadData) {
+		}
+	}
+
+	private class ServerAssociationListener implements AssociationListener {
+
+		@Override
+		public void onCommunicationUp(Association association, int maxInboundStreams, int maxOutboundStreams) {
+			serverAssocUp.incrementAndGet();
+		}
+
+		@Override
+		public void onCommunicationShutdown(Association association) {
+		}
+
+		@Override
+		public void onCommunicationLost(Association association) {
+		}
+
+		@Override
+		public void onCommunicationRestart(Association association) {
+		}
+
+		@Override
+		public void onPayload(Association association, PayloadData payloadData) {
+			payloadData.releaseBuffer();
+		}
+
+		@Override
+		public void inValidStreamId(PayloadData payloadData) {
+		}
+	}
+
+}
@@ -0,0 +1,138 @@
+/*
+ * TeleStax, Open Source Cloud Communications  Copyright 2012.
+ * and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package su.sres.sur.sctp.netty;
+
+import static org.junit.Assert.assertEquals;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.ReferenceCountUtil;
+
+import org.testng.annotations.Test;
+
+/**
+ *
+ *
+ */
+public class NettyFlushConsolidationHandlerTest {
+
+	@Test(groups = { "functional" })
+	public void testFlushAtEndOfLoopRun() {
+		FlushRecorder recorder = new FlushRecorder();
+		NettyFlushConsolidationHandler handler = new NettyFlushConsolidationHandler(256, 0);
+		EmbeddedChannel channel = new EmbeddedChannel(recorder, handler);
+
+		this.write(channel, 10);
+		// the flush is deferred till the event loop has run its tasks
+		assertEquals(0, recorder.flushed);
+		channel.runPendingTasks();
+		assertEquals(10, recorder.flushed);
+		assertEquals(10, handler.getFlushRequests());
+		assertEquals(1, handler.getFlushes());
+
+		// a single message on an idle channel is flushed without delay
+		this.write(channel, 1);
+		channel.runPendingTasks();
+		assertEquals(11, recorder.flushed);
+		assertEquals(2, handler.getFlushes());
+
+		channel.finishAndReleaseAll();
+	}
+
+	@Test(groups = { "functional" })
+	public void testMaxWrites() {
+		FlushRecorder recorder = new FlushRecorder();
+		NettyFlushConsolidationHandler handler = new NettyFlushConsolidationHandler(4, 0);
+		EmbeddedChannel channel = new EmbeddedChannel(recorder, handler);
+
+		this.write(channel, 10);
+		assertEquals(8, recorder.flushed);
+		assertEquals(2, handler.getFlushes());
+
+		channel.runPendingTasks();
+		assertEquals(10, recorder.flushed);
+		assertEquals(3, handler.getFlushes());
+
+		channel.finishAndReleaseAll();
+	}
+
+	@Test(groups = { "functional" })
+	public void testFlushInterval() throws Exception {
+		FlushRecorder recorder = new FlushRecorder();
+		NettyFlushConsolidationHandler handler = new NettyFlushConsolidationHandler(256, 50000);
+		EmbeddedChannel channel = new EmbeddedChannel(recorder, handler);
+
+		this.write(channel, 1);
+		channel.runPendingTasks();
+		assertEquals(1, recorder.flushed);
+
+		// the channel has just been flushed, the next flush waits for the
+		// rest of the interval
+		this.write(channel, 2);
+		channel.runPendingTasks();
+		assertEquals(1, recorder.flushed);
+
+		Thread.sleep(100);
+		channel.runPendingTasks();
+		assertEquals(3, recorder.flushed);
+		assertEquals(2, handler.getFlushes());
+
+		// close flushes pending writes
+		this.write(channel, 1);
+		channel.close();
+		assertEquals(4, recorder.flushed);
+		assertEquals(3, handler.getFlushes());
+
+		channel.finishAndReleaseAll();
+	}
+
+	private void write(EmbeddedChannel channel, int count) {
+		for (int i = 0; i < count; i++) {
+			channel.pipeline().writeAndFlush(Unpooled.buffer(4).writeInt(i));
+		}
+	}
+
+	/**
+	 * Counts the flushed writes and drops them. The writes do not reach
+	 * EmbeddedChannel, which runs the pending tasks on every write
+	 */
+	private static class FlushRecorder extends ChannelOutboundHandlerAdapter {
+
+		private int written = 0;
+		private int flushed = 0;
+
+		@Override
+		public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+			ReferenceCountUtil.release(msg);
+			promise.setSuccess();
+			this.written++;
+		}
+
+		@Override
+		public void flush(ChannelHandlerContext ctx) throws Exception {
+			this.flushed = this.written;
+		}
+	}
+}
@@ -0,0 +1,250 @@
+/*
+ * TeleStax, Open Source Cloud Communications  Copyright 2012.
+ * and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package su.sres.sur.sctp.netty;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import io.netty.buffer.ByteBuf;
+import su.sres.sur.sctp.api.Association;
+import su.sres.sur.sctp.api.AssociationListener;
+import su.sres.sur.sctp.api.IpChannelType;
+import su.sres.sur.sctp.api.PayloadData;
+import su.sres.sur.sctp.api.TcpFramingConfig;
+
+import java.util.ArrayList;
+
+import org.testng.annotations.*;
+
+/**
+ * Sends M3UA messages of different sizes in batches, so that they are
+ * coalesced and split by TCP, and checks that the frame decoder of the
+ * pipeline delivers every message in one PayloadData
+ *
+ */
+public class NettyTcpFramingTest {
+	private static final String SERVER_NAME = "testserver";
+	private static final String SERVER_HOST = "127.0.0.1";
+	private static final int SERVER_PORT = 22377;
+
+	private static final String SERVER_ASSOCIATION_NAME = "serverAssociation";
+	private static final String CLIENT_ASSOCIATION_NAME = "clientAssociation";
+
+	private static final String CLIENT_HOST = "127.0.0.1";
+	private static final int CLIENT_PORT = 22378;
+
+	private static final int MESSAGES = 5000;
+	private static final int BATCH = 50;
+
+	private NettySctpManagementImpl management = null;
+
+	private volatile boolean serverAssocUp = false;
+	private volatile boolean clientAssocUp = false;
+
+	private volatile int received = 0;
+	private volatile int corrupted = 0;
+
+	public void setUp(IpChannelType ipChannelType, TcpFramingConfig tcpFraming, int portOffset) throws Exception {
+		this.serverAssocUp = false;
+		this.clientAssocUp = false;
+		this.received = 0;
+		this.corrupted = 0;
+
+		this.management = new NettySctpManagementImpl("netty-server-management");
+		this.management.setTcpFraming(tcpFraming);
+		this.management.start();
+		this.management.setConnectDelay(10000);// Try connecting every 10 secs
+		this.management.removeAllResourses();
+
+		this.management.addServer(SERVER_NAME, SERVER_HOST, SERVER_PORT + portOffset, ipChannelType, false, 0, null);
+		this.management.addServerAssociation(CLIENT_HOST, CLIENT_PORT + portOffset, SERVER_NAME, SERVER_ASSOCIATION_NAME,
+				ipChannelType);
+		this.management.addAssociation(CLIENT_HOST, CLIENT_PORT + portOffset, SERVER_HOST, SERVER_PORT + portOffset,
+				CLIENT_ASSOCIATION_NAME, ipChannelType, null);
+	}
+
+	public void tearDown() throws Exception {
+		this.management.removeAssociation(CLIENT_ASSOCIATION_NAME);
+		this.management.removeAssociation(SERVER_ASSOCIATION_NAME);
+		this.management.removeServer(SERVER_NAME);
+
+		this.management.stop();
+	}
+
+	@Test(groups = { "functional", "tcp" })
+	public void testM3uaFramingTcp() throws Exception {
+		this.transfer(TcpFramingConfig.m3ua(TcpFramingConfig.DEFAULT_MAX_FRAME_LENGTH), 0);
+	}
+
+	/**
+	 * The length prefix is added by the prepender of the sender and stripped by
+	 * the decoder of the receiver, the messages are delivered as they were sent
+	 */
+	@Test(groups = { "functional", "tcp" })
+	public void testLengthPrefixFramingTcp() throws Exception {
+		this.transfer(TcpFramingConfig.lengthPrefix(2, TcpFramingConfig.DEFAULT_MAX_FRAME_LENGTH), 40);
+	}
+
+	private void transfer(TcpFramingConfig tcpFraming, int portOffset) throws Exception {
+
+		this.setUp(IpChannelType.TCP, tcpFraming, portOffset);
+
+		this.management.startServer(SERVER_NAME);
+
+		this.management.getAssociation(SERVER_ASSOCIATION_NAME).setAssociationListener(new ServerAssociationListener());
+		this.management.startAssociation(SERVER_ASSOCIATION_NAME);
+
+		Association clientAssociation = this.management.getAssociation(CLIENT_ASSOCIATION_NAME);
+		clientAssociation.setAssociationListener(new ClientAssociationListener());
+		this.management.startAssociation(CLIENT_ASSOCIATION_NAME);
+
+		// the first connect of a client is made after connectDelay
+		for (int i1 = 0; i1 < 200; i1++) {
+			if (this.serverAssocUp && this.clientAssocUp)
+				break;
+			Thread.sleep(100);
+		}
+		assertTrue(this.clientAssocUp);
+
+		ArrayList<PayloadData> batch = new ArrayList<PayloadData>();
+		for (int i = 0; i < MESSAGES; i++) {
+			batch.add(newMessage(clientAssociation, i));
+			if (batch.size() == BATCH) {
+				clientAssociation.send(batch);
+				batch.clear();
+			}
+		}
+
+		for (int i1 = 0; i1 < 200; i1++) {
+			if (this.received == MESSAGES)
+				break;
+			Thread.sleep(100);
+		}
+
+		this.management.stopAssociation(CLIENT_ASSOCIATION_NAME);
+
+		Thread.sleep(1000);
+
+		this.management.stopAssociation(SERVER_ASSOCIATION_NAME);
+		this.management.stopServer(SERVER_NAME);
+
+		assertEquals(MESSAGES, this.received);
+		assertEquals(0, this.corrupted);
+
+		this.tearDown();
+	}
+
+	/**
+	 * An M3UA message with the sequence number i followed by up to 300 bytes of
+	 * (byte) i
+	 */
+	private static PayloadData newMessage(Association association, int i) throws Exception {
+		int length = 8 + 4 + i % 301;
+		ByteBuf byteBuf = association.getByteBufAllocator().buffer(length);
+		byteBuf.writeByte(1).writeByte(0).writeByte(1).writeByte(1).writeInt(length).writeInt(i);
+		while (byteBuf.readableBytes() < length) {
+			byteBuf.writeByte(i);
+		}
+		return new PayloadData(length, byteBuf, true, false, 3, 1);
+	}
+
+	/**
+	 * @return true if the payload is exactly the message with the sequence
+	 *         number expected
+	 */
+	private static boolean isMessage(PayloadData payloadData, int expected) {
+		int length = 8 + 4 + expected % 301;
+		if (payloadData.getDataLength() != length || payloadData.getUnsignedInt(4) != length
+				|| payloadData.getInt(8) != expected)
+			return false;
+		for (int i = 12; i < length; i++) {
+			if (payloadData.getByte(i) != (byte) expected)
+				return false;
+		}
+		return true;
+	}
+
+	private class ClientAssociationListener implements AssociationListener {
+
+		@Override
+		public void onCommunicationUp(Association association, int maxInboundStreams, int maxOutboundStreams) {
+			clientAssocUp = true;
+		}
+
+		@Override
+		public void onCommunicationShutdown(Association association) {
+		}
+
+		@Override
+		public void onCommunicationLost(Association association) {
+		}
+
+		@Override
+		public void onCommunicationRestart(Association association) {
+		}
+
+		@Override
+		public void onPayload(Association association, PayloadData payloadData) {
+			payloadData.releaseBuffer();
+		}
+
+		@Override
+		public void inValidStreamId(PayloadData payloadData) {
+		}
+	}
+
+	private class ServerAssociationListener implements AssociationListener {
+
+		@Override
+		public void onCommunicationUp(Association association, int maxInboundStreams, int maxOutboundStreams) {
+			serverAssocUp = true;
+		}
+
+		@Override
+		public void onCommunicationShutdown(Association association) {
+		}
+
+		@Override
+		public void onCommunicationLost(Association association) {
+		}
+
+		@Override
+		public void onCommunicationRestart(Association association) {
+		}
+
+		@Override
+		public void onPayload(Association association, PayloadData payloadData) {
+			try {
+				if (!isMessage(payloadData, received))
+					corrupted++;
+				received++;
+			} finally {
+				payloadData.releaseBuffer();
+			}
+		}
+
+		@Override
+		public void inValidStreamId(PayloadData payloadData) {
+		}
+	}
+
+}
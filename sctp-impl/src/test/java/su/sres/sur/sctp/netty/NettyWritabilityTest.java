@@ -0,0 +1,220 @@
+/*
+ * TeleStax, Open Source Cloud Communications  Copyright 2012.
+ * and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package su.sres.sur.sctp.netty;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import io.netty.buffer.ByteBuf;
+import su.sres.sur.sctp.api.Association;
+import su.sres.sur.sctp.api.AssociationListener;
+import su.sres.sur.sctp.api.IpChannelType;
+import su.sres.sur.sctp.api.PayloadData;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+/**
+ * Stops reading on the server till the outbound buffer of the client exceeds
+ * its high water mark, and checks the writability events and the congestion
+ * level of the client
+ *
+ */
+public class NettyWritabilityTest {
+	private static final String SERVER_NAME = "testserver";
+	private static final String SERVER_HOST = "127.0.0.1";
+	private static final int SERVER_PORT = 22407;
+
+	private static final String SERVER_ASSOCIATION_NAME = "serverAssociation";
+	private static final String CLIENT_ASSOCIATION_NAME = "clientAssociation";
+
+	private static final String CLIENT_HOST = "127.0.0.1";
+	private static final int CLIENT_PORT = 22408;
+
+	private static final int MESSAGE_SIZE = 4096;
+	private static final long MAX_BYTES = 256L * 1024 * 1024;
+
+	private NettySctpManagementImpl management = null;
+
+	private volatile boolean serverAssocUp = false;
+	private volatile boolean clientAssocUp = false;
+
+	private final List<Boolean> writabilityEvents = Collections.synchronizedList(new ArrayList<Boolean>());
+
+	public void setUp(IpChannelType ipChannelType) throws Exception {
+		this.serverAssocUp = false;
+		this.clientAssocUp = false;
+		this.writabilityEvents.clear();
+
+		this.management = new NettySctpManagementImpl("netty-server-management");
+		this.management.setWriteBufferWaterMark(16 * 1024, 64 * 1024);
+		this.management.setUnwritableCongestionLevel(2);
+		this.management.start();
+		this.management.setConnectDelay(10000);// Try connecting every 10 secs
+		this.management.removeAllResourses();
+
+		this.management.addServer(SERVER_NAME, SERVER_HOST, SERVER_PORT, ipChannelType, false, 0, null);
+		this.management.addServerAssociation(CLIENT_HOST, CLIENT_PORT, SERVER_NAME, SERVER_ASSOCIATION_NAME, ipChannelType);
+		this.management.addAssociation(CLIENT_HOST, CLIENT_PORT, SERVER_HOST, SERVER_PORT, CLIENT_ASSOCIATION_NAME,
+				ipChannelType, null);
+	}
+
+	public void tearDown() throws Exception {
+		this.management.removeAssociation(CLIENT_ASSOCIATION_NAME);
+		this.management.removeAssociation(SERVER_ASSOCIATION_NAME);
+		this.management.removeServer(SERVER_NAME);
+
+		this.management.stop();
+	}
+
+	@Test(groups = { "functional", "tcp" })
+	public void testWritabilityTcp() throws Exception {
+
+		this.setUp(IpChannelType.TCP);
+
+		this.management.startServer(SERVER_NAME);
+
+		Association serverAssociation = this.management.getAssociation(SERVER_ASSOCIATION_NAME);
+		serverAssociation.setAssociationListener(new ServerAssociationListener());
+		this.management.startAssociation(SERVER_ASSOCIATION_NAME);
+
+		Association clientAssociation = this.management.getAssociation(CLIENT_ASSOCIATION_NAME);
+		clientAssociation.setAssociationListener(new ClientAssociationListener());
+		this.management.startAssociation(CLIENT_ASSOCIATION_NAME);
+
+		// the first connect of a client is made after connectDelay
+		for (int i1 = 0; i1 < 200; i1++) {
+			if (this.serverAssocUp && this.clientAssocUp)
+				break;
+			Thread.sleep(100);
+		}
+		assertTrue(this.clientAssocUp);
+		assertTrue(clientAssociation.isWritable());
+		assertEquals(0, clientAssociation.getCongestionLevel());
+
+		// the socket buffers fill up and the rest stays in the outbound buffer
+		serverAssociation.suspendReading();
+		long sent = 0;
+		while (this.writabilityEvents.isEmpty() && sent < MAX_BYTES) {
+			ByteBuf byteBuf = clientAssociation.getByteBufAllocator().buffer(MESSAGE_SIZE);
+			byteBuf.writeZero(MESSAGE_SIZE);
+			clientAssociation.send(new PayloadData(MESSAGE_SIZE, byteBuf, true, false, 3, 1));
+			sent += MESSAGE_SIZE;
+			if (!clientAssociation.isWritable())
+				Thread.sleep(10);
+		}
+		assertEquals(1, this.writabilityEvents.size());
+		assertFalse(this.writabilityEvents.get(0));
+		assertFalse(clientAssociation.isWritable());
+		assertTrue(clientAssociation.getCongestionLevel() >= 2);
+
+		serverAssociation.resumeReading();
+		for (int i1 = 0; i1 < 100; i1++) {
+			if (this.writabilityEvents.size() == 2)
+				break;
+			Thread.sleep(100);
+		}
+		assertEquals(2, this.writabilityEvents.size());
+		assertTrue(this.writabilityEvents.get(1));
+		assertTrue(clientAssociation.isWritable());
+		assertTrue(clientAssociation.getCongestionLevel() < 2);
+
+		this.management.stopAssociation(CLIENT_ASSOCIATION_NAME);
+
+		Thread.sleep(1000);
+
+		this.management.stopAssociation(SERVER_ASSOCIATION_NAME);
+		this.management.stopServer(SERVER_NAME);
+
+		assertFalse(clientAssociation.isWritable());
+
+		this.tearDown();
+	}
+
+	private class ClientAssociationListener implements AssociationListener {
+
+		@Override
+		public void onCommunicationUp(Association association, int maxInboundStreams, int maxOutboundStreams) {
+			clientAssocUp = true;
+		}
+
+		@Override
+		public void onCommunicationShutdown(Association association) {
+		}
+
+		@Override
+		public void onCommunicationLost(Association association) {
+		}
+
+		@Override
+		public void onCommunicationRestart(Association association) {
+		}
+
+		@Override
+		public void onPayload(Association association, PayloadData payloadData) {
+			payloadData.releaseBuffer();
+		}
+
+		@Override
+		public void onWritabilityChanged(Association association, boolean writable) {
+			writabilityEvents.add(writable);
+		}
+
+		@Override
+		public void inValidStreamId(PayloadData payloadData) {
+		}
+	}
+
+	private class ServerAssociationListener implements AssociationListener {
+
+		@Override
+		public void onCommunicationUp(Association association, int maxInboundStreams, int maxOutboundStreams) {
+			serverAssocUp = true;
+		}
+
+		@Override
+		public void onCommunicationShutdown(Association association) {
+		}
+
+		@Override
+		public void onCommunicationLost(Association association) {
+		}
+
+		@Override
+		public void onCommunicationRestart(Association association) {
+		}
+
+		@Override
+		public void onPayload(Association association, PayloadData payloadData) {
+			payloadData.releaseBuffer();
+		}
+
+		@Override
+		public void inValidStreamId(PayloadData payloadData) {
+		}
+	}
+
+}